@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig;
+
+import com.android.apksig.ApkVerifier.Issue;
+import com.android.apksig.ApkVerifier.IssueWithParams;
+import com.android.apksig.apk.ApkFormatException;
+import com.android.apksig.internal.apk.SignerVerificationCache;
+import com.android.apksig.internal.util.X509CertificateUtils;
+import com.android.apksig.util.DataSource;
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Verifier of a set of APKs which must be signed by the same signers, such as the base APK and the
+ * split APKs of an app.
+ *
+ * <p>Each APK is verified as by {@link ApkVerifier}. The results of verifying identical signer
+ * blocks, certificates and signing certificate lineages of APK Signature Scheme v2 and v3
+ * signatures are shared between the APKs, so that each is verified only once. In addition, the
+ * signers and signing certificate lineages of all APKs of the set are checked to be the same.
+ *
+ * <p>Use {@link Builder} to obtain instances of this verifier.
+ */
+public class ApkSetVerifier {
+
+    private final List<Apk> mApks;
+    private final Integer mMinSdkVersion;
+    private final int mMaxSdkVersion;
+
+    private ApkSetVerifier(List<Apk> apks, Integer minSdkVersion, int maxSdkVersion) {
+        mApks = apks;
+        mMinSdkVersion = minSdkVersion;
+        mMaxSdkVersion = maxSdkVersion;
+    }
+
+    /**
+     * Verifies the signatures of the APKs of the set, one after another, and returns the result of
+     * verification. The set can be considered verified iff the result's
+     * {@link Result#isVerified()} returns {@code true}.
+     *
+     * @throws IOException if an I/O error is encountered while reading an APK
+     * @throws ApkFormatException if an APK is malformed
+     * @throws NoSuchAlgorithmException if an APK's signatures cannot be verified because a
+     *         required cryptographic algorithm implementation is missing
+     */
+    public Result verify() throws IOException, ApkFormatException, NoSuchAlgorithmException {
+        List<ApkVerifier> verifiers = createVerifiers();
+        List<ApkVerifier.Result> apkResults = new ArrayList<>(verifiers.size());
+        for (ApkVerifier verifier : verifiers) {
+            apkResults.add(verifier.verify());
+        }
+        return new Result(getApkNames(), apkResults);
+    }
+
+    /**
+     * Asynchronously verifies the signatures of the APKs of the set. The APKs are verified
+     * concurrently on the provided executor, as by {@link ApkVerifier#verifyAsync(Executor)}. The
+     * returned future completes with the result which {@link #verify()} would return, or completes
+     * exceptionally with the first exception encountered while verifying an APK.
+     *
+     * <p>Canceling the returned future aborts verification of all APKs.
+     */
+    public CompletableFuture<Result> verifyAsync(Executor executor) {
+        List<ApkVerifier> verifiers = createVerifiers();
+        List<CompletableFuture<ApkVerifier.Result>> futures = new ArrayList<>(verifiers.size());
+        for (ApkVerifier verifier : verifiers) {
+            futures.add(verifier.verifyAsync(executor));
+        }
+        List<String> apkNames = getApkNames();
+        CompletableFuture<Result> result =
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                        .thenApply(ignored -> {
+                            List<ApkVerifier.Result> apkResults = new ArrayList<>(futures.size());
+                            for (CompletableFuture<ApkVerifier.Result> future : futures) {
+                                apkResults.add(future.join());
+                            }
+                            return new Result(apkNames, apkResults);
+                        });
+        result.whenComplete((ignored, e) -> {
+            if (result.isCancelled()) {
+                for (CompletableFuture<ApkVerifier.Result> future : futures) {
+                    future.cancel(false);
+                }
+            }
+        });
+        return result;
+    }
+
+    private List<ApkVerifier> createVerifiers() {
+        SignerVerificationCache signerCache = new SignerVerificationCache();
+        List<ApkVerifier> result = new ArrayList<>(mApks.size());
+        for (Apk apk : mApks) {
+            ApkVerifier.Builder builder =
+                    (apk.file != null)
+                            ? new ApkVerifier.Builder(apk.file)
+                            : new ApkVerifier.Builder(apk.dataSource);
+            if (mMinSdkVersion != null) {
+                builder.setMinCheckedPlatformVersion(mMinSdkVersion);
+            }
+            builder.setMaxCheckedPlatformVersion(mMaxSdkVersion);
+            builder.setSignerVerificationCache(signerCache);
+            result.add(builder.build());
+        }
+        return result;
+    }
+
+    private List<String> getApkNames() {
+        List<String> result = new ArrayList<>(mApks.size());
+        for (Apk apk : mApks) {
+            result.add(apk.name);
+        }
+        return result;
+    }
+
+    /**
+     * Result of verifying a set of APKs.
+     */
+    public static class Result {
+        private final List<String> mApkNames;
+        private final List<ApkVerifier.Result> mApkResults;
+        private final List<IssueWithParams> mErrors = new ArrayList<>();
+        private final int mFirstVerifiedApkIndex;
+
+        private Result(List<String> apkNames, List<ApkVerifier.Result> apkResults) {
+            mApkNames = Collections.unmodifiableList(apkNames);
+            mApkResults = Collections.unmodifiableList(apkResults);
+
+            // Check that all verified APKs have the same signers and signing certificate lineage
+            // as the first verified APK
+            int firstVerifiedApkIndex = -1;
+            List<X509Certificate> expectedSignerCerts = null;
+            List<X509Certificate> expectedLineageCerts = null;
+            for (int i = 0; i < apkResults.size(); i++) {
+                ApkVerifier.Result apkResult = apkResults.get(i);
+                if (!apkResult.isVerified()) {
+                    continue;
+                }
+                List<X509Certificate> signerCerts = getSignerCertificates(apkResult);
+                List<X509Certificate> lineageCerts = getLineageCertificates(apkResult);
+                if (firstVerifiedApkIndex == -1) {
+                    firstVerifiedApkIndex = i;
+                    expectedSignerCerts = signerCerts;
+                    expectedLineageCerts = lineageCerts;
+                    continue;
+                }
+                if (!signerCerts.equals(expectedSignerCerts)) {
+                    addError(
+                            Issue.APK_SET_SIGNERS_MISMATCH,
+                            apkNames.get(i),
+                            apkNames.get(firstVerifiedApkIndex));
+                }
+                if (!lineageCerts.equals(expectedLineageCerts)) {
+                    addError(
+                            Issue.APK_SET_LINEAGE_MISMATCH,
+                            apkNames.get(i),
+                            apkNames.get(firstVerifiedApkIndex));
+                }
+            }
+            mFirstVerifiedApkIndex = firstVerifiedApkIndex;
+        }
+
+        /**
+         * Returns {@code true} if all APKs of the set were verified and have the same signers and
+         * signing certificate lineage.
+         */
+        public boolean isVerified() {
+            if (!mErrors.isEmpty()) {
+                return false;
+            }
+            for (ApkVerifier.Result apkResult : mApkResults) {
+                if (!apkResult.isVerified()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns the names of the APKs of the set, in the order in which they were added to the
+         * {@link Builder}.
+         */
+        public List<String> getApkNames() {
+            return mApkNames;
+        }
+
+        /**
+         * Returns the results of verifying the APKs of the set, in the same order as
+         * {@link #getApkNames()}.
+         */
+        public List<ApkVerifier.Result> getApkResults() {
+            return mApkResults;
+        }
+
+        /**
+         * Returns errors encountered while checking that the APKs of the set have the same signers
+         * and signing certificate lineage. Errors encountered while verifying each APK are
+         * reported by the APK's result.
+         */
+        public List<IssueWithParams> getErrors() {
+            return mErrors;
+        }
+
+        /**
+         * Returns the signing certificates of the first verified APK of the set, or an empty list
+         * if no APK of the set was verified.
+         */
+        public List<X509Certificate> getSignerCertificates() {
+            if (mFirstVerifiedApkIndex == -1) {
+                return Collections.emptyList();
+            }
+            return mApkResults.get(mFirstVerifiedApkIndex).getSignerCertificates();
+        }
+
+        /**
+         * Returns the signing certificate lineage of the first verified APK of the set, or
+         * {@code null} if no APK of the set was verified or the APK has no lineage.
+         */
+        public SigningCertificateLineage getSigningCertificateLineage() {
+            if (mFirstVerifiedApkIndex == -1) {
+                return null;
+            }
+            return mApkResults.get(mFirstVerifiedApkIndex).getSigningCertificateLineage();
+        }
+
+        private void addError(Issue msg, Object... parameters) {
+            mErrors.add(new IssueWithParams(msg, parameters));
+        }
+
+        private static List<X509Certificate> getSignerCertificates(ApkVerifier.Result apkResult) {
+            return toFingerprintedCertificates(apkResult.getSignerCertificates());
+        }
+
+        private static List<X509Certificate> getLineageCertificates(ApkVerifier.Result apkResult) {
+            SigningCertificateLineage lineage = apkResult.getSigningCertificateLineage();
+            if (lineage == null) {
+                return Collections.emptyList();
+            }
+            return toFingerprintedCertificates(lineage.getCertificatesInLineage());
+        }
+
+        private static List<X509Certificate> toFingerprintedCertificates(
+                List<X509Certificate> certs) {
+            List<X509Certificate> result = new ArrayList<>(certs.size());
+            for (X509Certificate cert : certs) {
+                result.add(X509CertificateUtils.toFingerprintedCertificate(cert));
+            }
+            return result;
+        }
+    }
+
+    /** APK of the set. */
+    private static class Apk {
+        private final String name;
+        private final File file;
+        private final DataSource dataSource;
+
+        private Apk(String name, File file, DataSource dataSource) {
+            this.name = name;
+            this.file = file;
+            this.dataSource = dataSource;
+        }
+    }
+
+    /**
+     * Builder of {@link ApkSetVerifier} instances.
+     *
+     * <p>The resulting verifier by default checks whether each APK will verify on all platform
+     * versions supported by the APK, as specified by {@code android:minSdkVersion} attributes in
+     * the APK's {@code AndroidManifest.xml}. The range of platform versions can be customized
+     * using {@link #setMinCheckedPlatformVersion(int)} and
+     * {@link #setMaxCheckedPlatformVersion(int)}.
+     */
+    public static class Builder {
+        private final List<Apk> mApks = new ArrayList<>();
+
+        private Integer mMinSdkVersion;
+        private int mMaxSdkVersion = Integer.MAX_VALUE;
+
+        /**
+         * Adds the provided APK file to the set. The APK is named after the file.
+         */
+        public Builder addApk(File apk) {
+            if (apk == null) {
+                throw new NullPointerException("apk == null");
+            }
+            mApks.add(new Apk(apk.getName(), apk, null));
+            return this;
+        }
+
+        /**
+         * Adds the provided APK to the set.
+         *
+         * @param name name of the APK used in the result of verification
+         * @param apk APK contents
+         */
+        public Builder addApk(String name, DataSource apk) {
+            if (name == null) {
+                throw new NullPointerException("name == null");
+            }
+            if (apk == null) {
+                throw new NullPointerException("apk == null");
+            }
+            mApks.add(new Apk(name, null, apk));
+            return this;
+        }
+
+        /**
+         * Sets the oldest Android platform version for which the APKs are verified.
+         *
+         * @see ApkVerifier.Builder#setMinCheckedPlatformVersion(int)
+         */
+        public Builder setMinCheckedPlatformVersion(int minSdkVersion) {
+            mMinSdkVersion = minSdkVersion;
+            return this;
+        }
+
+        /**
+         * Sets the newest Android platform version for which the APKs are verified.
+         *
+         * @see ApkVerifier.Builder#setMaxCheckedPlatformVersion(int)
+         */
+        public Builder setMaxCheckedPlatformVersion(int maxSdkVersion) {
+            mMaxSdkVersion = maxSdkVersion;
+            return this;
+        }
+
+        /**
+         * Returns an {@link ApkSetVerifier} initialized according to the configuration of this
+         * builder.
+         *
+         * @throws IllegalStateException if no APKs were added
+         */
+        public ApkSetVerifier build() {
+            if (mApks.isEmpty()) {
+                throw new IllegalStateException("No APKs provided");
+            }
+            return new ApkSetVerifier(
+                    new ArrayList<>(mApks), mMinSdkVersion, mMaxSdkVersion);
+        }
+    }
+}
@@ -20,38 +20,63 @@ import com.android.apksig.apk.ApkFormatException;
 import com.android.apksig.apk.ApkSigningBlockNotFoundException;
 import com.android.apksig.apk.ApkUtils;
 import com.android.apksig.apk.MinSdkVersionException;
+import com.android.apksig.internal.apk.ChunkDigestingDataSink;
+import com.android.apksig.internal.apk.ContentDigestAlgorithm;
 import com.android.apksig.internal.util.ByteBufferDataSource;
+import com.android.apksig.internal.util.CancelableFuture;
+import com.android.apksig.internal.util.ExecutorRunnablesExecutor;
+import com.android.apksig.internal.util.PhaseTracker;
+import com.android.apksig.internal.util.ProgressReporter;
+import com.android.apksig.internal.util.RandomAccessFileDataSink;
+import com.android.apksig.internal.util.SegmentedDataSink;
+import com.android.apksig.internal.util.TeeDataSink;
+import com.android.apksig.internal.util.WriteBehindDataSink;
 import com.android.apksig.internal.zip.CentralDirectoryRecord;
+import com.android.apksig.internal.zip.DeflatingDataSink;
 import com.android.apksig.internal.zip.EocdRecord;
 import com.android.apksig.internal.zip.LocalFileRecord;
 import com.android.apksig.internal.zip.ZipUtils;
+import com.android.apksig.util.BatchSigner;
+import com.android.apksig.util.CancellationSignal;
 import com.android.apksig.util.DataSink;
 import com.android.apksig.util.DataSinks;
 import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
+import com.android.apksig.util.MetricsListener;
+import com.android.apksig.util.ProgressListener;
 import com.android.apksig.util.ReadableDataSink;
+import com.android.apksig.util.RunnablesExecutor;
 import com.android.apksig.zip.ZipFormatException;
 import java.io.ByteArrayOutputStream;
-import java.io.Closeable;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.file.Files;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.SignatureException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 /**
  * APK signer.
@@ -86,6 +111,28 @@ public class ApkSigner {
      */
     private static final String ANDROID_MANIFEST_ZIP_ENTRY_NAME = "AndroidManifest.xml";
 
+    /**
+     * Size (bytes) of buffers in which output written to a file is coalesced.
+     */
+    private static final int OUTPUT_APK_WRITE_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Maximum number of buffers holding output not yet written to a file.
+     */
+    private static final int OUTPUT_APK_WRITE_BUFFER_COUNT = 4;
+
+    /**
+     * Maximum number of bytes of the compressed data of an input entry held in memory until the
+     * entry is output. The remainder is written to a temporary file.
+     */
+    private static final int INPUT_ENTRY_COMPRESSED_DATA_MEMORY_BUDGET_BYTES = 16 * 1024 * 1024;
+
+    /** Last modification date of entries added to the output APK: Jan 1 2009 (DOS). */
+    private static final int DEFAULT_LAST_MODIFIED_DATE = 0x3a21;
+
+    /** Last modification time of entries added to the output APK. */
+    private static final int DEFAULT_LAST_MODIFIED_TIME = 0;
+
     private final List<SignerConfig> mSignerConfigs;
     private final Integer mMinSdkVersion;
     private final boolean mV1SigningEnabled;
@@ -99,6 +146,7 @@ public class ApkSigner {
 
     private final File mInputApkFile;
     private final DataSource mInputApkDataSource;
+    private final List<InputEntry> mInputEntries;
 
     private final File mOutputApkFile;
     private final DataSink mOutputApkDataSink;
@@ -106,6 +154,12 @@ public class ApkSigner {
 
     private final SigningCertificateLineage mSigningCertificateLineage;
 
+    private final MetricsListener mMetricsListener;
+    private final ProgressListener mProgressListener;
+    private final CancellationSignal mCancellationSignal;
+    private final boolean mParallelEntryCopyingEnabled;
+    private final int mGeneratedEntryCompressionLevel;
+
     private ApkSigner(
             List<SignerConfig> signerConfigs,
             Integer minSdkVersion,
@@ -118,10 +172,16 @@ public class ApkSigner {
             ApkSignerEngine signerEngine,
             File inputApkFile,
             DataSource inputApkDataSource,
+            List<InputEntry> inputEntries,
             File outputApkFile,
             DataSink outputApkDataSink,
             DataSource outputApkDataSource,
-            SigningCertificateLineage signingCertificateLineage) {
+            SigningCertificateLineage signingCertificateLineage,
+            MetricsListener metricsListener,
+            ProgressListener progressListener,
+            CancellationSignal cancellationSignal,
+            boolean parallelEntryCopyingEnabled,
+            int generatedEntryCompressionLevel) {
 
         mSignerConfigs = signerConfigs;
         mMinSdkVersion = minSdkVersion;
@@ -136,16 +196,24 @@ public class ApkSigner {
 
         mInputApkFile = inputApkFile;
         mInputApkDataSource = inputApkDataSource;
+        mInputEntries = inputEntries;
 
         mOutputApkFile = outputApkFile;
         mOutputApkDataSink = outputApkDataSink;
         mOutputApkDataSource = outputApkDataSource;
 
         mSigningCertificateLineage = signingCertificateLineage;
+        mMetricsListener = metricsListener;
+        mProgressListener = progressListener;
+        mCancellationSignal = cancellationSignal;
+        mParallelEntryCopyingEnabled = parallelEntryCopyingEnabled;
+        mGeneratedEntryCompressionLevel = generatedEntryCompressionLevel;
     }
 
     /**
-     * Signs the input APK and outputs the resulting signed APK. The input APK is not modified.
+     * Signs the input APK and outputs the resulting signed APK. The input APK is not modified. If
+     * the signer was provided with input entries instead of an input APK, the output APK is built
+     * from these entries and signed at the same time.
      *
      * @throws IOException if an I/O error is encountered while reading or writing the APKs
      * @throws ApkFormatException if the input APK is malformed
@@ -156,89 +224,155 @@ public class ApkSigner {
      * @throws SignatureException if an error occurred while generating or verifying a signature
      * @throws IllegalStateException if this signer's configuration is missing required information
      *         or if the signing engine is in an invalid state.
+     * @throws java.util.concurrent.CancellationException if signing was canceled via the
+     *         {@link CancellationSignal} or, if a signal was provided, the thread performing it
+     *         was interrupted
      */
     public void sign()
             throws IOException, ApkFormatException, NoSuchAlgorithmException, InvalidKeyException,
                     SignatureException, IllegalStateException {
-        Closeable in = null;
-        DataSource inputApk;
-        try {
-            if (mInputApkDataSource != null) {
-                inputApk = mInputApkDataSource;
-            } else if (mInputApkFile != null) {
-                RandomAccessFile inputFile = new RandomAccessFile(mInputApkFile, "r");
-                in = inputFile;
+        sign(RunnablesExecutor.SINGLE_THREADED, mCancellationSignal);
+    }
+
+    /**
+     * Asynchronously signs the input APK and outputs the resulting signed APK. The returned future
+     * completes once the signed APK has been output, or completes exceptionally with the exception
+     * which {@link #sign()} would throw.
+     *
+     * <p>Signing runs on the provided executor. Copying the input APK's entries to the output runs
+     * as a single task, while the CPU-bound digesting of APK contents for APK Signature Scheme v2
+     * and v3 is spread over additional tasks submitted to the same executor. If this signer was
+     * initialized with an {@link ApkSignerEngine}, digesting is performed by that engine's own
+     * executor instead. Any executor can be used, including a bounded thread pool or a virtual
+     * thread per task executor.
+     *
+     * <p>Canceling the returned future aborts signing. The thread performing it is not interrupted.
+     */
+    public CompletableFuture<Void> signAsync(Executor executor) {
+        RunnablesExecutor digestExecutor = new ExecutorRunnablesExecutor(executor);
+        return CancelableFuture.submit(executor, mCancellationSignal, cancellationSignal -> {
+            sign(digestExecutor, cancellationSignal);
+            return null;
+        });
+    }
+
+    private void sign(RunnablesExecutor executor, CancellationSignal cancellationSignal)
+            throws IOException, ApkFormatException, NoSuchAlgorithmException, InvalidKeyException,
+                    SignatureException {
+        if ((mInputEntries == null) && (mInputApkDataSource == null) && (mInputApkFile == null)) {
+            throw new IllegalStateException("Input APK not specified");
+        }
+        if ((mOutputApkDataSink == null) && (mOutputApkFile == null)) {
+            throw new IllegalStateException("Output APK not specified");
+        }
+
+        // Files are closed by a try-with-resources statement so that a failure to close a file does
+        // not replace an exception thrown while signing, but is suppressed by it.
+        try (RandomAccessFile inputFile =
+                        ((mInputEntries == null) && (mInputApkDataSource == null))
+                                ? new RandomAccessFile(mInputApkFile, "r")
+                                : null;
+                RandomAccessFile outputFile =
+                        (mOutputApkDataSink == null)
+                                ? new RandomAccessFile(mOutputApkFile, "rw")
+                                : null;
+                WriteBehindDataSink outputApkFileSink =
+                        (outputFile != null) ? createOutputApkFileSink(outputFile) : null) {
+            DataSource inputApk;
+            if (mInputEntries != null) {
+                // Output APK is built from the input entries
+                inputApk = null;
+            } else if (inputFile != null) {
                 inputApk = DataSources.asDataSource(inputFile);
             } else {
-                throw new IllegalStateException("Input APK not specified");
+                inputApk = mInputApkDataSource;
             }
-
-            Closeable out = null;
-            try {
-                DataSink outputApkOut;
-                DataSource outputApkIn;
-                if (mOutputApkDataSink != null) {
-                    outputApkOut = mOutputApkDataSink;
-                    outputApkIn = mOutputApkDataSource;
-                } else if (mOutputApkFile != null) {
-                    RandomAccessFile outputFile = new RandomAccessFile(mOutputApkFile, "rw");
-                    out = outputFile;
-                    outputFile.setLength(0);
-                    outputApkOut = DataSinks.asDataSink(outputFile);
-                    outputApkIn = DataSources.asDataSource(outputFile);
-                } else {
-                    throw new IllegalStateException("Output APK not specified");
-                }
-
-                sign(inputApk, outputApkOut, outputApkIn);
-            } finally {
-                if (out != null) {
-                    out.close();
-                }
+            DataSink outputApkOut;
+            DataSource outputApkIn;
+            if (outputApkFileSink != null) {
+                outputApkOut = outputApkFileSink;
+                outputApkIn = outputApkFileSink;
+            } else {
+                outputApkOut = mOutputApkDataSink;
+                outputApkIn = mOutputApkDataSource;
             }
-        } finally {
-            if (in != null) {
-                in.close();
+
+            if (inputApk != null) {
+                sign(
+                        executor,
+                        cancellationSignal,
+                        inputApk,
+                        outputApkOut,
+                        outputApkIn,
+                        outputApkFileSink);
+            } else {
+                signInputEntries(executor, cancellationSignal, outputApkOut, outputApkIn);
             }
         }
     }
 
+    /**
+     * Returns the sink to which the output APK is written. Output is written to the provided file
+     * on a background thread in large chunks. Reading it back waits for the data output so far to
+     * be written.
+     */
+    private static WriteBehindDataSink createOutputApkFileSink(RandomAccessFile outputFile)
+            throws IOException {
+        outputFile.setLength(0);
+        return new WriteBehindDataSink(
+                outputFile, 0, OUTPUT_APK_WRITE_BUFFER_SIZE, OUTPUT_APK_WRITE_BUFFER_COUNT);
+    }
+
     private void sign(
+            RunnablesExecutor executor,
+            CancellationSignal cancellationSignal,
             DataSource inputApk,
             DataSink outputApkOut,
-            DataSource outputApkIn)
+            DataSource outputApkIn,
+            WriteBehindDataSink outputApkFileSink)
                     throws IOException, ApkFormatException, NoSuchAlgorithmException,
                             InvalidKeyException, SignatureException {
         // Step 1. Find input APK's main ZIP sections
+        PhaseTracker findZipSectionsTracker =
+                PhaseTracker.start(mMetricsListener, MetricsListener.Phase.FIND_ZIP_SECTIONS);
         ApkUtils.ZipSections inputZipSections;
-        try {
-            inputZipSections = ApkUtils.findZipSections(inputApk);
-        } catch (ZipFormatException e) {
-            throw new ApkFormatException("Malformed APK: not a ZIP archive", e);
-        }
-        long inputApkSigningBlockOffset = -1;
         DataSource inputApkSigningBlock = null;
+        DataSource inputApkLfhSection;
+        List<CentralDirectoryRecord> inputCdRecords;
         try {
-            ApkUtils.ApkSigningBlock apkSigningBlockInfo =
-                    ApkUtils.findApkSigningBlock(inputApk, inputZipSections);
-            inputApkSigningBlockOffset = apkSigningBlockInfo.getStartOffset();
-            inputApkSigningBlock = apkSigningBlockInfo.getContents();
-        } catch (ApkSigningBlockNotFoundException e) {
-            // Input APK does not contain an APK Signing Block. That's OK. APKs are not required to
-            // contain this block. It's only needed if the APK is signed using APK Signature Scheme
-            // v2 and/or v3.
-        }
-        DataSource inputApkLfhSection =
-                inputApk.slice(
-                        0,
-                        (inputApkSigningBlockOffset != -1)
-                                ? inputApkSigningBlockOffset
-                                : inputZipSections.getZipCentralDirectoryOffset());
-
-        // Step 2. Parse the input APK's ZIP Central Directory
-        ByteBuffer inputCd = getZipCentralDirectory(inputApk, inputZipSections);
-        List<CentralDirectoryRecord> inputCdRecords =
-                parseZipCentralDirectory(inputCd, inputZipSections);
+            try {
+                inputZipSections = ApkUtils.findZipSections(inputApk);
+            } catch (ZipFormatException e) {
+                throw new ApkFormatException("Malformed APK: not a ZIP archive", e);
+            }
+            long inputApkSigningBlockOffset = -1;
+            try {
+                ApkUtils.ApkSigningBlock apkSigningBlockInfo =
+                        ApkUtils.findApkSigningBlock(inputApk, inputZipSections);
+                inputApkSigningBlockOffset = apkSigningBlockInfo.getStartOffset();
+                inputApkSigningBlock = apkSigningBlockInfo.getContents();
+            } catch (ApkSigningBlockNotFoundException e) {
+                // Input APK does not contain an APK Signing Block. That's OK. APKs are not required
+                // to contain this block. It's only needed if the APK is signed using APK Signature
+                // Scheme v2 and/or v3.
+            }
+            inputApkLfhSection =
+                    inputApk.slice(
+                            0,
+                            (inputApkSigningBlockOffset != -1)
+                                    ? inputApkSigningBlockOffset
+                                    : inputZipSections.getZipCentralDirectoryOffset());
+
+            // Step 2. Parse the input APK's ZIP Central Directory
+            ByteBuffer inputCd = getZipCentralDirectory(inputApk, inputZipSections);
+            inputCdRecords = parseZipCentralDirectory(inputCd, inputZipSections);
+            findZipSectionsTracker.addBytesRead(
+                    inputZipSections.getZipCentralDirectorySizeBytes()
+                            + inputZipSections.getZipEndOfCentralDirectory().remaining());
+            findZipSectionsTracker.addEntriesProcessed(inputCdRecords.size());
+        } finally {
+            findZipSectionsTracker.finish();
+        }
 
         List<Pattern> pinPatterns = extractPinPatterns(inputCdRecords, inputApkLfhSection);
         List<Hints.ByteRange> pinByteRanges = pinPatterns == null ? null : new ArrayList<>();
@@ -258,28 +392,7 @@ public class ApkSigner {
                 // Need to extract minSdkVersion from the APK's AndroidManifest.xml
                 minSdkVersion = getMinSdkVersionFromApk(inputCdRecords, inputApkLfhSection);
             }
-            List<DefaultApkSignerEngine.SignerConfig> engineSignerConfigs =
-                    new ArrayList<>(mSignerConfigs.size());
-            for (SignerConfig signerConfig : mSignerConfigs) {
-                engineSignerConfigs.add(
-                        new DefaultApkSignerEngine.SignerConfig.Builder(
-                                signerConfig.getName(),
-                                signerConfig.getPrivateKey(),
-                                signerConfig.getCertificates())
-                                .build());
-            }
-            DefaultApkSignerEngine.Builder signerEngineBuilder =
-                    new DefaultApkSignerEngine.Builder(engineSignerConfigs, minSdkVersion)
-                            .setV1SigningEnabled(mV1SigningEnabled)
-                            .setV2SigningEnabled(mV2SigningEnabled)
-                            .setV3SigningEnabled(mV3SigningEnabled)
-                            .setDebuggableApkPermitted(mDebuggableApkPermitted)
-                            .setOtherSignersSignaturesPreserved(mOtherSignersSignaturesPreserved)
-                            .setSigningCertificateLineage(mSigningCertificateLineage);
-            if (mCreatedBy != null) {
-                signerEngineBuilder.setCreatedBy(mCreatedBy);
-            }
-            signerEngine = signerEngineBuilder.build();
+            signerEngine = createSignerEngine(executor, cancellationSignal, minSdkVersion);
         }
 
         // Step 4. Provide the signer engine with the input APK's APK Signing Block (if any)
@@ -291,6 +404,8 @@ public class ApkSigner {
         // entries which need to be output. Entries are iterated in the order in which their Local
         // File Header records are stored in the file. This is to achieve better data locality in
         // case Central Directory entries are in the wrong order.
+        PhaseTracker copyEntriesTracker =
+                PhaseTracker.start(mMetricsListener, MetricsListener.Phase.COPY_ENTRIES);
         List<CentralDirectoryRecord> inputCdRecordsSortedByLfhOffset =
                 new ArrayList<>(inputCdRecords);
         Collections.sort(
@@ -302,7 +417,23 @@ public class ApkSigner {
         long outputOffset = 0;
         Map<String, CentralDirectoryRecord> outputCdRecordsByName =
                 new HashMap<>(inputCdRecords.size());
+        ProgressReporter.PhaseProgress copyProgress =
+                ProgressReporter.create(mProgressListener, cancellationSignal)
+                        .start(MetricsListener.Phase.COPY_ENTRIES, inputApkLfhSection.size());
+        long reportedInputOffset = 0;
+        // When copying entries in parallel, the output's layout is planned first. Entries are then
+        // copied to their planned offsets in the output file concurrently.
+        List<EntryCopy> plannedEntryCopies =
+                ((mParallelEntryCopyingEnabled) && (outputApkFileSink != null))
+                        ? new ArrayList<>(inputCdRecords.size())
+                        : null;
         for (final CentralDirectoryRecord inputCdRecord : inputCdRecordsSortedByLfhOffset) {
+            if (plannedEntryCopies == null) {
+                copyProgress.advance(inputOffset - reportedInputOffset);
+                reportedInputOffset = inputOffset;
+            } else {
+                copyProgress.throwIfCanceled();
+            }
             String entryName = inputCdRecord.getName();
             if (Hints.PIN_BYTE_RANGE_ZIP_ENTRY_NAME.equals(entryName)) {
                 continue;  // We'll re-add below if needed.
@@ -329,7 +460,12 @@ public class ApkSigner {
                 // this record's LFH. We output this data verbatim because this signer is supposed
                 // to preserve as much of input as possible.
                 long chunkSize = inputLocalFileHeaderStartOffset - inputOffset;
-                inputApkLfhSection.feed(inputOffset, chunkSize, outputApkOut);
+                if (plannedEntryCopies != null) {
+                    plannedEntryCopies.add(
+                            EntryCopy.ofChunk(inputOffset, chunkSize, outputOffset));
+                } else {
+                    inputApkLfhSection.feed(inputOffset, chunkSize, outputApkOut);
+                }
                 outputOffset += chunkSize;
                 inputOffset = inputLocalFileHeaderStartOffset;
             }
@@ -371,12 +507,24 @@ public class ApkSigner {
 
                 // Output entry's Local File Header + data
                 long outputLocalFileHeaderOffset = outputOffset;
-                long outputLocalFileRecordSize =
-                        outputInputJarEntryLfhRecordPreservingDataAlignment(
-                                inputApkLfhSection,
-                                inputLocalFileRecord,
-                                outputApkOut,
-                                outputLocalFileHeaderOffset);
+                long outputLocalFileRecordSize;
+                if (plannedEntryCopies != null) {
+                    EntryCopy entryCopy =
+                            EntryCopy.ofRecord(
+                                    inputLocalFileRecord,
+                                    getExtraFieldToPreserveDataAlignment(
+                                            inputLocalFileRecord, outputLocalFileHeaderOffset),
+                                    outputLocalFileHeaderOffset);
+                    plannedEntryCopies.add(entryCopy);
+                    outputLocalFileRecordSize = entryCopy.getOutputSize();
+                } else {
+                    outputLocalFileRecordSize =
+                            outputInputJarEntryLfhRecordPreservingDataAlignment(
+                                    inputApkLfhSection,
+                                    inputLocalFileRecord,
+                                    outputApkOut,
+                                    outputLocalFileHeaderOffset);
+                }
                 outputOffset += outputLocalFileRecordSize;
 
                 if (pinPatterns != null) {
@@ -414,10 +562,29 @@ public class ApkSigner {
             // APK's LFH section. We output this data verbatim because this signer is supposed
             // to preserve as much of input as possible.
             long chunkSize = inputLfhSectionSize - inputOffset;
-            inputApkLfhSection.feed(inputOffset, chunkSize, outputApkOut);
+            if (plannedEntryCopies != null) {
+                plannedEntryCopies.add(EntryCopy.ofChunk(inputOffset, chunkSize, outputOffset));
+            } else {
+                inputApkLfhSection.feed(inputOffset, chunkSize, outputApkOut);
+            }
             outputOffset += chunkSize;
             inputOffset = inputLfhSectionSize;
         }
+        if (plannedEntryCopies != null) {
+            reportedInputOffset +=
+                    copyEntries(
+                            executor,
+                            plannedEntryCopies,
+                            inputApkLfhSection,
+                            outputApkFileSink,
+                            outputOffset,
+                            copyProgress);
+        }
+        copyProgress.advance(inputOffset - reportedInputOffset);
+        copyEntriesTracker.addBytesRead(inputOffset);
+        copyEntriesTracker.addBytesWritten(outputOffset);
+        copyEntriesTracker.addEntriesProcessed(inputCdRecordsSortedByLfhOffset.size());
+        copyEntriesTracker.finish();
 
         // Step 6. Sort output APK's Central Directory records in the order in which they should
         // appear in the output
@@ -436,49 +603,19 @@ public class ApkSigner {
                 signerEngine.outputJarEntries();
         if (outputJarSignatureRequest != null) {
             if (lastModifiedDateForNewEntries == -1) {
-                lastModifiedDateForNewEntries = 0x3a21; // Jan 1 2009 (DOS)
-                lastModifiedTimeForNewEntries = 0;
-            }
-            for (ApkSignerEngine.OutputJarSignatureRequest.JarEntry entry :
-                    outputJarSignatureRequest.getAdditionalJarEntries()) {
-                String entryName = entry.getName();
-                byte[] uncompressedData = entry.getData();
-                ZipUtils.DeflateResult deflateResult =
-                        ZipUtils.deflate(ByteBuffer.wrap(uncompressedData));
-                byte[] compressedData = deflateResult.output;
-                long uncompressedDataCrc32 = deflateResult.inputCrc32;
-
-                ApkSignerEngine.InspectJarEntryRequest inspectEntryRequest =
-                        signerEngine.outputJarEntry(entryName);
-                if (inspectEntryRequest != null) {
-                    inspectEntryRequest.getDataSink().consume(
-                            uncompressedData, 0, uncompressedData.length);
-                    inspectEntryRequest.done();
-                }
-
-                long localFileHeaderOffset = outputOffset;
-                outputOffset +=
-                        LocalFileRecord.outputRecordWithDeflateCompressedData(
-                                entryName,
-                                lastModifiedTimeForNewEntries,
-                                lastModifiedDateForNewEntries,
-                                compressedData,
-                                uncompressedDataCrc32,
-                                uncompressedData.length,
-                                outputApkOut);
-
-
-                outputCdRecords.add(
-                        CentralDirectoryRecord.createWithDeflateCompressedData(
-                                entryName,
-                                lastModifiedTimeForNewEntries,
-                                lastModifiedDateForNewEntries,
-                                uncompressedDataCrc32,
-                                compressedData.length,
-                                uncompressedData.length,
-                                localFileHeaderOffset));
+                lastModifiedDateForNewEntries = DEFAULT_LAST_MODIFIED_DATE;
+                lastModifiedTimeForNewEntries = DEFAULT_LAST_MODIFIED_TIME;
             }
-            outputJarSignatureRequest.done();
+            outputOffset =
+                    outputJarSignatureEntries(
+                            executor,
+                            signerEngine,
+                            outputJarSignatureRequest,
+                            lastModifiedTimeForNewEntries,
+                            lastModifiedDateForNewEntries,
+                            outputOffset,
+                            outputApkOut,
+                            outputCdRecords);
         }
 
         if (pinByteRanges != null) {
@@ -486,7 +623,10 @@ public class ApkSigner {
             String entryName = Hints.PIN_BYTE_RANGE_ZIP_ENTRY_NAME;
             byte[] uncompressedData = Hints.encodeByteRangeList(pinByteRanges);
             ZipUtils.DeflateResult deflateResult =
-                    ZipUtils.deflate(ByteBuffer.wrap(uncompressedData));
+                    ZipUtils.deflate(
+                            ByteBuffer.wrap(uncompressedData),
+                            mGeneratedEntryCompressionLevel,
+                            executor);
             byte[] compressedData = deflateResult.output;
             long uncompressedDataCrc32 = deflateResult.inputCrc32;
             long localFileHeaderOffset = outputOffset;
@@ -510,6 +650,385 @@ public class ApkSigner {
                     localFileHeaderOffset));
         }
 
+        finishOutputApk(
+                signerEngine,
+                inputZipSections.getZipEndOfCentralDirectory(),
+                outputCdRecords,
+                outputOffset,
+                outputApkOut,
+                outputApkIn);
+    }
+
+    /**
+     * Builds the output APK from the input entries and signs it. The data of each entry is read
+     * once to be compressed, if needed, and digested for JAR signing while it is output. The 1 MB
+     * chunk digests of the output APK's ZIP Local File records needed for APK Signature Scheme v2
+     * and v3 signing are computed while the records are output.
+     */
+    private void signInputEntries(
+            RunnablesExecutor executor,
+            CancellationSignal cancellationSignal,
+            DataSink outputApkOut,
+            DataSource outputApkIn)
+                    throws IOException, ApkFormatException, NoSuchAlgorithmException,
+                            InvalidKeyException, SignatureException {
+        // Step 1. Obtain a signer engine instance
+        ApkSignerEngine signerEngine;
+        if (mSignerEngine != null) {
+            // Use the provided signer engine
+            signerEngine = mSignerEngine;
+        } else {
+            // Construct a signer engine from the provided parameters
+            int minSdkVersion;
+            if (mMinSdkVersion != null) {
+                // No need to extract minSdkVersion from the AndroidManifest.xml entry
+                minSdkVersion = mMinSdkVersion;
+            } else {
+                // Need to extract minSdkVersion from the AndroidManifest.xml entry
+                minSdkVersion = getMinSdkVersionFromInputEntries(mInputEntries);
+            }
+            signerEngine = createSignerEngine(executor, cancellationSignal, minSdkVersion);
+        }
+
+        // Step 2. Digest the output APK's ZIP Local File records as they are output if the engine
+        // is known to accept precomputed digests. Other engines read the records back.
+        DataSink outputLfhSection = outputApkOut;
+        ChunkDigestingDataSink chunkDigestingSink = null;
+        if (signerEngine instanceof DefaultApkSignerEngine) {
+            Set<ContentDigestAlgorithm> contentDigestAlgorithms =
+                    ((DefaultApkSignerEngine) signerEngine).getContentDigestAlgorithms();
+            if (!contentDigestAlgorithms.isEmpty()) {
+                chunkDigestingSink =
+                        new ChunkDigestingDataSink(outputApkOut, contentDigestAlgorithms);
+                outputLfhSection = chunkDigestingSink;
+            }
+        }
+
+        // Step 3. Output the Local File Header + data of those input entries which need to be
+        // output, in the order in which the entries were provided.
+        PhaseTracker copyEntriesTracker =
+                PhaseTracker.start(mMetricsListener, MetricsListener.Phase.COPY_ENTRIES);
+        long inputSize = 0;
+        for (InputEntry inputEntry : mInputEntries) {
+            inputSize += inputEntry.size();
+        }
+        ProgressReporter.PhaseProgress copyProgress =
+                ProgressReporter.create(mProgressListener, cancellationSignal)
+                        .start(MetricsListener.Phase.COPY_ENTRIES, inputSize);
+        long outputOffset = 0;
+        List<CentralDirectoryRecord> outputCdRecords = new ArrayList<>(mInputEntries.size() + 10);
+        Set<String> entryNames = new HashSet<>(mInputEntries.size());
+        for (InputEntry inputEntry : mInputEntries) {
+            copyProgress.throwIfCanceled();
+            String entryName = inputEntry.getName();
+            if (!entryNames.add(entryName)) {
+                throw new ApkFormatException(
+                        "Multiple ZIP entries with the same name: " + entryName);
+            }
+            // A failure to close the entry's file does not replace an exception thrown while
+            // outputting the entry, but is suppressed by it.
+            try (RandomAccessFile inputFile =
+                    (inputEntry.getDataSource() == null)
+                            ? new RandomAccessFile(inputEntry.getFile(), "r")
+                            : null) {
+                DataSource data =
+                        (inputFile != null)
+                                ? DataSources.asDataSource(inputFile)
+                                : inputEntry.getDataSource();
+                outputOffset +=
+                        outputInputEntry(
+                                signerEngine,
+                                inputEntry,
+                                data,
+                                outputOffset,
+                                outputLfhSection,
+                                outputCdRecords);
+                copyProgress.advance(data.size());
+            }
+        }
+        copyEntriesTracker.addBytesRead(inputSize);
+        copyEntriesTracker.addBytesWritten(outputOffset);
+        copyEntriesTracker.addEntriesProcessed(mInputEntries.size());
+        copyEntriesTracker.finish();
+
+        // Step 4. Generate and output JAR signatures, if necessary. This may output more Local File
+        // Header + data entries and add to the list of output Central Directory records.
+        ApkSignerEngine.OutputJarSignatureRequest outputJarSignatureRequest =
+                signerEngine.outputJarEntries();
+        if (outputJarSignatureRequest != null) {
+            outputOffset =
+                    outputJarSignatureEntries(
+                            executor,
+                            signerEngine,
+                            outputJarSignatureRequest,
+                            DEFAULT_LAST_MODIFIED_TIME,
+                            DEFAULT_LAST_MODIFIED_DATE,
+                            outputOffset,
+                            outputLfhSection,
+                            outputCdRecords);
+        }
+
+        // Step 5. Pad the ZIP Local File records the same way the signer engine would before the
+        // APK Signing Block, so that the precomputed digests cover the padding as well.
+        DataSource outputZipEntries = outputApkIn;
+        if (chunkDigestingSink != null) {
+            int remainder = (int) (outputOffset % ANDROID_COMMON_PAGE_ALIGNMENT_BYTES);
+            if (remainder != 0) {
+                int padding = ANDROID_COMMON_PAGE_ALIGNMENT_BYTES - remainder;
+                chunkDigestingSink.consume(ByteBuffer.allocate(padding));
+                outputOffset += padding;
+            }
+            outputZipEntries = chunkDigestingSink.finish(outputApkIn);
+        }
+
+        finishOutputApk(
+                signerEngine,
+                EocdRecord.createEmpty(),
+                outputCdRecords,
+                outputOffset,
+                outputApkOut,
+                outputZipEntries);
+    }
+
+    /**
+     * Outputs the Local File Header + data of the provided input entry if the signer engine
+     * requests the entry to be output, and adds the entry's Central Directory record to the
+     * provided list. Returns the number of bytes output.
+     */
+    private long outputInputEntry(
+            ApkSignerEngine signerEngine,
+            InputEntry inputEntry,
+            DataSource data,
+            long outputOffset,
+            DataSink outputLfhSection,
+            List<CentralDirectoryRecord> outputCdRecords)
+                    throws IOException, ApkFormatException {
+        String entryName = inputEntry.getName();
+        ApkSignerEngine.InputJarEntryInstructions entryInstructions =
+                signerEngine.inputJarEntry(entryName);
+        ApkSignerEngine.InspectJarEntryRequest inspectEntryRequest =
+                entryInstructions.getInspectJarEntryRequest();
+        if (inspectEntryRequest != null) {
+            data.feed(0, data.size(), inspectEntryRequest.getDataSink());
+            inspectEntryRequest.done();
+        }
+        if (entryInstructions.getOutputPolicy()
+                != ApkSignerEngine.InputJarEntryInstructions.OutputPolicy.OUTPUT) {
+            return 0;
+        }
+
+        // The entry's data is read once to compute its CRC-32, to be inspected by the signer
+        // engine and, if the entry is to be compressed, to be compressed into a buffer. The
+        // compressed size must be known before the Local File Header is output.
+        inspectEntryRequest = signerEngine.outputJarEntry(entryName);
+        Crc32Sink crc32Sink = new Crc32Sink();
+        List<DataSink> sinks = new ArrayList<>(3);
+        sinks.add(crc32Sink);
+        if (inspectEntryRequest != null) {
+            sinks.add(inspectEntryRequest.getDataSink());
+        }
+        long uncompressedSize = data.size();
+        long outputRecordSize;
+        if (inputEntry.isCompressed()) {
+            try (SegmentedDataSink compressedData =
+                    new SegmentedDataSink(
+                            SegmentedDataSink.DEFAULT_BLOCK_SIZE,
+                            INPUT_ENTRY_COMPRESSED_DATA_MEMORY_BUDGET_BYTES)) {
+                DeflatingDataSink deflatingSink =
+                        new DeflatingDataSink(compressedData, mGeneratedEntryCompressionLevel);
+                try {
+                    sinks.add(deflatingSink);
+                    data.feed(
+                            0,
+                            uncompressedSize,
+                            new TeeDataSink(sinks.toArray(new DataSink[sinks.size()])));
+                    deflatingSink.finish();
+                } finally {
+                    deflatingSink.release();
+                }
+                if (inspectEntryRequest != null) {
+                    inspectEntryRequest.done();
+                }
+                outputRecordSize =
+                        LocalFileRecord.outputRecordWithData(
+                                entryName,
+                                ZipUtils.COMPRESSION_METHOD_DEFLATED,
+                                DEFAULT_LAST_MODIFIED_TIME,
+                                DEFAULT_LAST_MODIFIED_DATE,
+                                crc32Sink.getValue(),
+                                uncompressedSize,
+                                ByteBuffer.allocate(0),
+                                compressedData,
+                                outputLfhSection);
+                outputCdRecords.add(
+                        CentralDirectoryRecord.createWithData(
+                                entryName,
+                                ZipUtils.COMPRESSION_METHOD_DEFLATED,
+                                DEFAULT_LAST_MODIFIED_TIME,
+                                DEFAULT_LAST_MODIFIED_DATE,
+                                crc32Sink.getValue(),
+                                compressedData.size(),
+                                uncompressedSize,
+                                outputOffset));
+            }
+        } else {
+            // Stored entries are read again to be output, after their CRC-32 is known
+            data.feed(
+                    0,
+                    uncompressedSize,
+                    new TeeDataSink(sinks.toArray(new DataSink[sinks.size()])));
+            if (inspectEntryRequest != null) {
+                inspectEntryRequest.done();
+            }
+            ByteBuffer aligningExtra =
+                    createExtraFieldToAlignData(
+                            ByteBuffer.allocate(0),
+                            outputOffset
+                                    + LocalFileRecord.getExtraFieldStartOffsetInsideRecord(
+                                            entryName),
+                            getDefaultDataAlignmentMultiple(entryName));
+            outputRecordSize =
+                    LocalFileRecord.outputRecordWithData(
+                            entryName,
+                            ZipUtils.COMPRESSION_METHOD_STORED,
+                            DEFAULT_LAST_MODIFIED_TIME,
+                            DEFAULT_LAST_MODIFIED_DATE,
+                            crc32Sink.getValue(),
+                            uncompressedSize,
+                            aligningExtra,
+                            data,
+                            outputLfhSection);
+            outputCdRecords.add(
+                    CentralDirectoryRecord.createWithData(
+                            entryName,
+                            ZipUtils.COMPRESSION_METHOD_STORED,
+                            DEFAULT_LAST_MODIFIED_TIME,
+                            DEFAULT_LAST_MODIFIED_DATE,
+                            crc32Sink.getValue(),
+                            uncompressedSize,
+                            uncompressedSize,
+                            outputOffset));
+        }
+        return outputRecordSize;
+    }
+
+    /**
+     * Returns a new signer engine constructed from the parameters of this signer.
+     */
+    private ApkSignerEngine createSignerEngine(
+            RunnablesExecutor executor, CancellationSignal cancellationSignal, int minSdkVersion)
+                    throws InvalidKeyException {
+        List<DefaultApkSignerEngine.SignerConfig> engineSignerConfigs =
+                new ArrayList<>(mSignerConfigs.size());
+        for (SignerConfig signerConfig : mSignerConfigs) {
+            DefaultApkSignerEngine.SignerConfig.Builder engineSignerConfigBuilder =
+                    (signerConfig.getBatchSigner() != null)
+                            ? new DefaultApkSignerEngine.SignerConfig.Builder(
+                                    signerConfig.getName(),
+                                    signerConfig.getBatchSigner(),
+                                    signerConfig.getCertificates())
+                            : new DefaultApkSignerEngine.SignerConfig.Builder(
+                                    signerConfig.getName(),
+                                    signerConfig.getPrivateKey(),
+                                    signerConfig.getCertificates());
+            engineSignerConfigs.add(engineSignerConfigBuilder.build());
+        }
+        DefaultApkSignerEngine.Builder signerEngineBuilder =
+                new DefaultApkSignerEngine.Builder(engineSignerConfigs, minSdkVersion)
+                        .setV1SigningEnabled(mV1SigningEnabled)
+                        .setV2SigningEnabled(mV2SigningEnabled)
+                        .setV3SigningEnabled(mV3SigningEnabled)
+                        .setDebuggableApkPermitted(mDebuggableApkPermitted)
+                        .setOtherSignersSignaturesPreserved(mOtherSignersSignaturesPreserved)
+                        .setSigningCertificateLineage(mSigningCertificateLineage)
+                        .setMetricsListener(mMetricsListener)
+                        .setProgressListener(mProgressListener)
+                        .setCancellationSignal(cancellationSignal);
+        if (mCreatedBy != null) {
+            signerEngineBuilder.setCreatedBy(mCreatedBy);
+        }
+        ApkSignerEngine signerEngine = signerEngineBuilder.build();
+        signerEngine.setExecutor(executor);
+        return signerEngine;
+    }
+
+    /**
+     * Outputs the JAR signature entries requested by the signer engine and adds their Central
+     * Directory records to the provided list. Returns the offset at which output continues.
+     */
+    private long outputJarSignatureEntries(
+            RunnablesExecutor executor,
+            ApkSignerEngine signerEngine,
+            ApkSignerEngine.OutputJarSignatureRequest outputJarSignatureRequest,
+            int lastModifiedTime,
+            int lastModifiedDate,
+            long outputOffset,
+            DataSink outputApkOut,
+            List<CentralDirectoryRecord> outputCdRecords)
+                    throws IOException, ApkFormatException {
+        for (ApkSignerEngine.OutputJarSignatureRequest.JarEntry entry :
+                outputJarSignatureRequest.getAdditionalJarEntries()) {
+            String entryName = entry.getName();
+            byte[] uncompressedData = entry.getData();
+            ZipUtils.DeflateResult deflateResult =
+                    ZipUtils.deflate(
+                            ByteBuffer.wrap(uncompressedData),
+                            mGeneratedEntryCompressionLevel,
+                            executor);
+            byte[] compressedData = deflateResult.output;
+            long uncompressedDataCrc32 = deflateResult.inputCrc32;
+
+            ApkSignerEngine.InspectJarEntryRequest inspectEntryRequest =
+                    signerEngine.outputJarEntry(entryName);
+            if (inspectEntryRequest != null) {
+                inspectEntryRequest.getDataSink().consume(
+                        uncompressedData, 0, uncompressedData.length);
+                inspectEntryRequest.done();
+            }
+
+            long localFileHeaderOffset = outputOffset;
+            outputOffset +=
+                    LocalFileRecord.outputRecordWithDeflateCompressedData(
+                            entryName,
+                            lastModifiedTime,
+                            lastModifiedDate,
+                            compressedData,
+                            uncompressedDataCrc32,
+                            uncompressedData.length,
+                            outputApkOut);
+
+
+            outputCdRecords.add(
+                    CentralDirectoryRecord.createWithDeflateCompressedData(
+                            entryName,
+                            lastModifiedTime,
+                            lastModifiedDate,
+                            uncompressedDataCrc32,
+                            compressedData.length,
+                            uncompressedData.length,
+                            localFileHeaderOffset));
+        }
+        outputJarSignatureRequest.done();
+        return outputOffset;
+    }
+
+    /**
+     * Outputs the APK Signing Block (if any), ZIP Central Directory, and ZIP End of Central
+     * Directory of the output APK whose ZIP entries have been output, given the Central Directory
+     * records of these entries.
+     *
+     * @param inputEocd ZIP End of Central Directory record on which the output's record is based
+     * @param outputZipEntries the output APK's ZIP entries
+     */
+    private void finishOutputApk(
+            ApkSignerEngine signerEngine,
+            ByteBuffer inputEocd,
+            List<CentralDirectoryRecord> outputCdRecords,
+            long outputCentralDirStartOffset,
+            DataSink outputApkOut,
+            DataSource outputZipEntries)
+                    throws IOException, ApkFormatException, NoSuchAlgorithmException,
+                            InvalidKeyException, SignatureException {
         // Step 8. Construct output ZIP Central Directory in an in-memory buffer
         long outputCentralDirSizeBytes = 0;
         for (CentralDirectoryRecord record : outputCdRecords) {
@@ -526,13 +1045,34 @@ public class ApkSigner {
         }
         outputCentralDir.flip();
         DataSource outputCentralDirDataSource = new ByteBufferDataSource(outputCentralDir);
-        long outputCentralDirStartOffset = outputOffset;
-        int outputCentralDirRecordCount = outputCdRecords.size();
+        outputZipSections(
+                signerEngine,
+                inputEocd,
+                outputCdRecords.size(),
+                outputCentralDirDataSource,
+                outputCentralDirStartOffset,
+                outputApkOut,
+                outputZipEntries);
+    }
 
+    /**
+     * Outputs the APK Signing Block (if any), ZIP Central Directory, and ZIP End of Central
+     * Directory of the output APK whose ZIP entries have been output.
+     */
+    private static void outputZipSections(
+            ApkSignerEngine signerEngine,
+            ByteBuffer inputEocd,
+            int outputCentralDirRecordCount,
+            DataSource outputCentralDirDataSource,
+            long outputCentralDirStartOffset,
+            DataSink outputApkOut,
+            DataSource outputZipEntries)
+                    throws IOException, ApkFormatException, NoSuchAlgorithmException,
+                            InvalidKeyException, SignatureException {
         // Step 9. Construct output ZIP End of Central Directory record in an in-memory buffer
         ByteBuffer outputEocd =
                 EocdRecord.createWithModifiedCentralDirectoryInfo(
-                        inputZipSections.getZipEndOfCentralDirectory(),
+                        inputEocd,
                         outputCentralDirRecordCount,
                         outputCentralDirDataSource.size(),
                         outputCentralDirStartOffset);
@@ -541,7 +1081,7 @@ public class ApkSigner {
         // This may insert an APK Signing Block just before the output's ZIP Central Directory
         ApkSignerEngine.OutputApkSigningBlockRequest2 outputApkSigningBlockRequest =
                 signerEngine.outputZipSections2(
-                        outputApkIn,
+                        outputZipEntries,
                         outputCentralDirDataSource,
                         DataSources.asDataSource(outputEocd));
 
@@ -579,35 +1119,158 @@ public class ApkSigner {
             LocalFileRecord inputRecord,
             DataSink outputLfhSection,
             long outputOffset) throws IOException {
+        ByteBuffer aligningExtra = getExtraFieldToPreserveDataAlignment(inputRecord, outputOffset);
+        if (aligningExtra == null) {
+            return inputRecord.outputRecord(inputLfhSection, outputLfhSection);
+        }
+        return inputRecord.outputRecordWithModifiedExtra(
+                inputLfhSection, aligningExtra, outputLfhSection);
+    }
+
+    /**
+     * Returns the extra field with which the provided input record must be output at the provided
+     * offset to preserve the alignment of its data, or {@code null} if the record can be output
+     * as is.
+     */
+    private static ByteBuffer getExtraFieldToPreserveDataAlignment(
+            LocalFileRecord inputRecord, long outputOffset) {
         long inputOffset = inputRecord.getStartOffsetInArchive();
         if (inputOffset == outputOffset) {
             // This record's data will be aligned same as in the input APK.
-            return inputRecord.outputRecord(inputLfhSection, outputLfhSection);
+            return null;
         }
         int dataAlignmentMultiple = getInputJarEntryDataAlignmentMultiple(inputRecord);
         if ((dataAlignmentMultiple <= 1)
                 || ((inputOffset % dataAlignmentMultiple)
                         == (outputOffset % dataAlignmentMultiple))) {
             // This record's data will be aligned same as in the input APK.
-            return inputRecord.outputRecord(inputLfhSection, outputLfhSection);
+            return null;
         }
 
         long inputDataStartOffset = inputOffset + inputRecord.getDataStartOffsetInRecord();
         if ((inputDataStartOffset % dataAlignmentMultiple) != 0) {
             // This record's data is not aligned in the input APK. No need to align it in the
             // output.
-            return inputRecord.outputRecord(inputLfhSection, outputLfhSection);
+            return null;
         }
 
         // This record's data needs to be re-aligned in the output. This is achieved using the
         // record's extra field.
-        ByteBuffer aligningExtra =
-                createExtraFieldToAlignData(
-                        inputRecord.getExtra(),
-                        outputOffset + inputRecord.getExtraFieldStartOffsetInsideRecord(),
-                        dataAlignmentMultiple);
-        return inputRecord.outputRecordWithModifiedExtra(
-                inputLfhSection, aligningExtra, outputLfhSection);
+        return createExtraFieldToAlignData(
+                inputRecord.getExtra(),
+                outputOffset + inputRecord.getExtraFieldStartOffsetInsideRecord(),
+                dataAlignmentMultiple);
+    }
+
+    /**
+     * Copies the provided regions of the input APK's Local File Header section to their planned
+     * offsets in the output file, concurrently, and returns the number of input bytes copied. The
+     * provided sink continues output after the copied regions.
+     *
+     * @param outputSize size (bytes) of the output covered by the provided regions
+     */
+    private static long copyEntries(
+            RunnablesExecutor executor,
+            List<EntryCopy> entryCopies,
+            DataSource inputLfhSection,
+            WriteBehindDataSink outputSink,
+            long outputSize,
+            ProgressReporter.PhaseProgress progress) throws IOException {
+        RandomAccessFile outputFile = outputSink.getFile();
+        // Preallocate the output so that concurrent writes do not extend the file piecemeal
+        outputFile.setLength(outputSize);
+        long inputSize = 0;
+        for (EntryCopy entryCopy : entryCopies) {
+            inputSize += entryCopy.getInputSize();
+        }
+
+        // Workers pull copies off a shared queue so that any one of them can complete all copies
+        AtomicInteger nextEntryCopy = new AtomicInteger();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        executor.execute(() -> () -> {
+            int entryCopyIndex;
+            while ((failure.get() == null)
+                    && ((entryCopyIndex = nextEntryCopy.getAndIncrement()) < entryCopies.size())) {
+                EntryCopy entryCopy = entryCopies.get(entryCopyIndex);
+                try {
+                    entryCopy.copy(inputLfhSection, outputFile);
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                    return;
+                }
+                progress.advance(entryCopy.getInputSize());
+            }
+        });
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        outputSink.skip(outputSize);
+        return inputSize;
+    }
+
+    /**
+     * Copy of a region of the input APK's Local File Header section, either verbatim or as a Local
+     * File Header record with a modified extra field, to a planned offset in the output APK.
+     */
+    private static class EntryCopy {
+        private final long mInputOffset;
+        private final long mInputSize;
+        private final LocalFileRecord mRecord;
+        private final ByteBuffer mModifiedExtra;
+        private final long mOutputOffset;
+
+        private EntryCopy(
+                long inputOffset,
+                long inputSize,
+                LocalFileRecord record,
+                ByteBuffer modifiedExtra,
+                long outputOffset) {
+            mInputOffset = inputOffset;
+            mInputSize = inputSize;
+            mRecord = record;
+            mModifiedExtra = modifiedExtra;
+            mOutputOffset = outputOffset;
+        }
+
+        /**
+         * Returns a copy of the specified region of the input, output verbatim.
+         */
+        static EntryCopy ofChunk(long inputOffset, long inputSize, long outputOffset) {
+            return new EntryCopy(inputOffset, inputSize, null, null, outputOffset);
+        }
+
+        /**
+         * Returns a copy of the provided record, output with the provided extra field or, if the
+         * extra field is {@code null}, as is.
+         */
+        static EntryCopy ofRecord(
+                LocalFileRecord record, ByteBuffer modifiedExtra, long outputOffset) {
+            return new EntryCopy(
+                    record.getStartOffsetInArchive(),
+                    record.getSize(),
+                    record,
+                    modifiedExtra,
+                    outputOffset);
+        }
+
+        long getInputSize() {
+            return mInputSize;
+        }
+
+        long getOutputSize() {
+            return (mModifiedExtra != null)
+                    ? mRecord.getSizeWithModifiedExtra(mModifiedExtra.remaining())
+                    : mInputSize;
+        }
+
+        void copy(DataSource inputLfhSection, RandomAccessFile outputFile) throws IOException {
+            DataSink output = new RandomAccessFileDataSink(outputFile, mOutputOffset);
+            if (mModifiedExtra != null) {
+                mRecord.outputRecordWithModifiedExtra(inputLfhSection, mModifiedExtra, output);
+            } else {
+                inputLfhSection.feed(mInputOffset, mInputSize, output);
+            }
+        }
     }
 
     private static int getInputJarEntryDataAlignmentMultiple(LocalFileRecord entry) {
@@ -650,7 +1313,15 @@ public class ApkSigner {
         }
 
         // Fall back to filename-based defaults
-        return (entry.getName().endsWith(".so")) ? ANDROID_COMMON_PAGE_ALIGNMENT_BYTES : 4;
+        return getDefaultDataAlignmentMultiple(entry.getName());
+    }
+
+    /**
+     * Returns the multiple to which the data of an uncompressed entry with the provided name is
+     * aligned by default. Native libraries are page-aligned so that they can be memory-mapped.
+     */
+    private static int getDefaultDataAlignmentMultiple(String entryName) {
+        return (entryName.endsWith(".so")) ? ANDROID_COMMON_PAGE_ALIGNMENT_BYTES : 4;
     }
 
     private static ByteBuffer createExtraFieldToAlignData(
@@ -832,6 +1503,250 @@ public class ApkSigner {
         return ApkUtils.getMinSdkVersionFromBinaryAndroidManifest(androidManifest);
     }
 
+    /**
+     * Returns the minimum Android version (API Level) supported by the APK built from the provided
+     * entries. This is based on the {@code android:minSdkVersion} attributes of the
+     * {@code AndroidManifest.xml} entry.
+     */
+    private static int getMinSdkVersionFromInputEntries(List<InputEntry> inputEntries)
+            throws IOException, MinSdkVersionException {
+        for (InputEntry inputEntry : inputEntries) {
+            if (!ANDROID_MANIFEST_ZIP_ENTRY_NAME.equals(inputEntry.getName())) {
+                continue;
+            }
+            if (inputEntry.getDataSource() != null) {
+                DataSource data = inputEntry.getDataSource();
+                return ApkUtils.getMinSdkVersionFromBinaryAndroidManifest(
+                        data.getByteBuffer(0, (int) data.size()));
+            }
+            try (RandomAccessFile file = new RandomAccessFile(inputEntry.getFile(), "r")) {
+                DataSource data = DataSources.asDataSource(file);
+                return ApkUtils.getMinSdkVersionFromBinaryAndroidManifest(
+                        data.getByteBuffer(0, (int) data.size()));
+            }
+        }
+        throw new MinSdkVersionException(
+                "Failed to determine APK's minimum supported Android platform version",
+                new ApkFormatException("Missing " + ANDROID_MANIFEST_ZIP_ENTRY_NAME));
+    }
+
+    /**
+     * {@link DataSink} which computes the CRC-32 of the data it receives.
+     */
+    private static class Crc32Sink implements DataSink {
+        private final CRC32 mCrc32 = new CRC32();
+
+        @Override
+        public void consume(byte[] buf, int offset, int length) {
+            mCrc32.update(buf, offset, length);
+        }
+
+        @Override
+        public void consume(ByteBuffer buf) {
+            mCrc32.update(buf);
+        }
+
+        long getValue() {
+            return mCrc32.getValue();
+        }
+    }
+
+    /**
+     * Entry of an APK which {@code ApkSigner} builds and signs, see
+     * {@link ApkSigner.Builder#setInputEntries(List)}. The entry's data is read from a file or
+     * a {@link DataSource}.
+     *
+     * <p>Use {@link Builder} to obtain entry instances, or {@link #listDirectory(File)} to obtain
+     * the entries of an exploded APK.
+     */
+    public static class InputEntry {
+        /**
+         * Extensions of files whose data is typically already compressed, and which the Android
+         * build tools thus store uncompressed.
+         */
+        private static final Set<String> NO_COMPRESS_EXTENSIONS =
+                new HashSet<>(
+                        Arrays.asList(
+                                ".jpg", ".jpeg", ".png", ".gif", ".webp", ".wav", ".mp2", ".mp3",
+                                ".ogg", ".aac", ".mpg", ".mpeg", ".mid", ".midi", ".smf", ".jet",
+                                ".rtttl", ".imy", ".xmf", ".mp4", ".m4a", ".m4v", ".3gp", ".3gpp",
+                                ".3g2", ".3gpp2", ".amr", ".awb", ".wma", ".wmv", ".webm", ".mkv"));
+
+        /**
+         * Name of the resource table entry, which the Android platform memory-maps and which must
+         * thus be stored uncompressed.
+         */
+        private static final String RESOURCE_TABLE_ZIP_ENTRY_NAME = "resources.arsc";
+
+        private final String mName;
+        private final File mFile;
+        private final DataSource mDataSource;
+        private final boolean mCompressed;
+
+        private InputEntry(String name, File file, DataSource dataSource, boolean compressed) {
+            mName = name;
+            mFile = file;
+            mDataSource = dataSource;
+            mCompressed = compressed;
+        }
+
+        /**
+         * Returns the name of this entry in the APK.
+         */
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Returns the file containing the uncompressed data of this entry or {@code null} if the
+         * data is provided as a {@link DataSource}.
+         */
+        public File getFile() {
+            return mFile;
+        }
+
+        /**
+         * Returns the uncompressed data of this entry or {@code null} if the data is provided as a
+         * {@link File}.
+         */
+        public DataSource getDataSource() {
+            return mDataSource;
+        }
+
+        /**
+         * Returns {@code true} if this entry is Deflate-compressed in the APK, {@code false} if it
+         * is stored uncompressed and aligned.
+         */
+        public boolean isCompressed() {
+            return mCompressed;
+        }
+
+        private long size() {
+            return (mDataSource != null) ? mDataSource.size() : mFile.length();
+        }
+
+        /**
+         * Returns the entries of the APK exploded into the provided directory, in the order of
+         * their names. The name of each entry is the path of its file relative to the directory,
+         * with {@code /} as separator. Directories themselves are not listed. Symbolic links to
+         * directories are not followed, which also rules out cycles.
+         *
+         * <p>Entries whose data is typically already compressed, such as images, audio and video,
+         * are stored uncompressed, as is the {@code resources.arsc} resource table. This matches
+         * the defaults of the Android build tools. Other entries are compressed.
+         */
+        public static List<InputEntry> listDirectory(File directory) throws IOException {
+            if (!directory.isDirectory()) {
+                throw new IOException("Not a directory: " + directory);
+            }
+            Map<String, File> files = new TreeMap<>();
+            listFiles(directory, "", files);
+            List<InputEntry> result = new ArrayList<>(files.size());
+            for (Map.Entry<String, File> file : files.entrySet()) {
+                String name = file.getKey();
+                result.add(
+                        new Builder(name, file.getValue())
+                                .setCompressed(isCompressedByDefault(name))
+                                .build());
+            }
+            return result;
+        }
+
+        private static void listFiles(File directory, String namePrefix, Map<String, File> result)
+                throws IOException {
+            File[] files = directory.listFiles();
+            if (files == null) {
+                throw new IOException("Failed to list files in " + directory);
+            }
+            for (File file : files) {
+                String name = namePrefix + file.getName();
+                if (file.isDirectory()) {
+                    if (!Files.isSymbolicLink(file.toPath())) {
+                        listFiles(file, name + "/", result);
+                    }
+                } else {
+                    result.put(name, file);
+                }
+            }
+        }
+
+        private static boolean isCompressedByDefault(String name) {
+            if (RESOURCE_TABLE_ZIP_ENTRY_NAME.equals(name)) {
+                return false;
+            }
+            int extensionStart = name.lastIndexOf('.');
+            if ((extensionStart == -1) || (extensionStart < name.lastIndexOf('/'))) {
+                return true;
+            }
+            return !NO_COMPRESS_EXTENSIONS.contains(
+                    name.substring(extensionStart).toLowerCase(Locale.US));
+        }
+
+        /**
+         * Builder of {@link InputEntry} instances.
+         */
+        public static class Builder {
+            private final String mName;
+            private final File mFile;
+            private final DataSource mDataSource;
+            private boolean mCompressed = true;
+
+            /**
+             * Constructs a new {@code Builder} of an entry with the provided name whose
+             * uncompressed data is the contents of the provided file.
+             */
+            public Builder(String name, File file) {
+                this(name, file, null);
+                if (file == null) {
+                    throw new NullPointerException("file == null");
+                }
+            }
+
+            /**
+             * Constructs a new {@code Builder} of an entry with the provided name whose
+             * uncompressed data is provided by the data source. The data source is read from
+             * every time the entry's data is needed.
+             */
+            public Builder(String name, DataSource data) {
+                this(name, null, data);
+                if (data == null) {
+                    throw new NullPointerException("data == null");
+                }
+            }
+
+            private Builder(String name, File file, DataSource dataSource) {
+                if (name == null) {
+                    throw new NullPointerException("name == null");
+                }
+                if (name.isEmpty()) {
+                    throw new IllegalArgumentException("Empty name");
+                }
+                mName = name;
+                mFile = file;
+                mDataSource = dataSource;
+            }
+
+            /**
+             * Sets whether the entry is Deflate-compressed in the APK. Otherwise, the entry is
+             * stored uncompressed, with its data aligned to 4096 bytes for native libraries
+             * ({@code .so} files) and to 4 bytes for other entries. By default, entries are
+             * compressed.
+             */
+            public Builder setCompressed(boolean compressed) {
+                mCompressed = compressed;
+                return this;
+            }
+
+            /**
+             * Returns a new {@code InputEntry} instance initialized according to the configuration
+             * of this builder.
+             */
+            public InputEntry build() {
+                return new InputEntry(mName, mFile, mDataSource, mCompressed);
+            }
+        }
+    }
+
     /**
      * Configuration of a signer.
      *
@@ -840,14 +1755,17 @@ public class ApkSigner {
     public static class SignerConfig {
         private final String mName;
         private final PrivateKey mPrivateKey;
+        private final BatchSigner mBatchSigner;
         private final List<X509Certificate> mCertificates;
 
         private SignerConfig(
                 String name,
                 PrivateKey privateKey,
+                BatchSigner batchSigner,
                 List<X509Certificate> certificates) {
             mName = name;
             mPrivateKey = privateKey;
+            mBatchSigner = batchSigner;
             mCertificates = Collections.unmodifiableList(new ArrayList<>(certificates));
         }
 
@@ -859,12 +1777,21 @@ public class ApkSigner {
         }
 
         /**
-         * Returns the signing key of this signer.
+         * Returns the signing key of this signer or {@code null} if this signer signs using a
+         * {@link BatchSigner}.
          */
         public PrivateKey getPrivateKey() {
             return mPrivateKey;
         }
 
+        /**
+         * Returns the signer which performs the private key operations of this signer or
+         * {@code null} if this signer signs using its {@link #getPrivateKey() private key}.
+         */
+        public BatchSigner getBatchSigner() {
+            return mBatchSigner;
+        }
+
         /**
          * Returns the certificate(s) of this signer. The first certificate's public key corresponds
          * to this signer's private key.
@@ -879,6 +1806,7 @@ public class ApkSigner {
         public static class Builder {
             private final String mName;
             private final PrivateKey mPrivateKey;
+            private final BatchSigner mBatchSigner;
             private final List<X509Certificate> mCertificates;
 
             /**
@@ -899,6 +1827,34 @@ public class ApkSigner {
                 }
                 mName = name;
                 mPrivateKey = privateKey;
+                mBatchSigner = null;
+                mCertificates = new ArrayList<>(certificates);
+            }
+
+            /**
+             * Constructs a new {@code Builder} for a signer whose private key operations are
+             * performed by the provided {@link BatchSigner}, for example, because the private key
+             * is held by a remote signing service.
+             *
+             * @param name signer's name. The name is reflected in the name of files comprising the
+             *        JAR signature of the APK.
+             * @param batchSigner signer which signs using the private key corresponding to the
+             *        subject public key of the first certificate
+             * @param certificates list of one or more X.509 certificates
+             */
+            public Builder(
+                    String name,
+                    BatchSigner batchSigner,
+                    List<X509Certificate> certificates) {
+                if (name.isEmpty()) {
+                    throw new IllegalArgumentException("Empty name");
+                }
+                if (batchSigner == null) {
+                    throw new NullPointerException("batchSigner == null");
+                }
+                mName = name;
+                mPrivateKey = null;
+                mBatchSigner = batchSigner;
                 mCertificates = new ArrayList<>(certificates);
             }
 
@@ -910,6 +1866,7 @@ public class ApkSigner {
                 return new SignerConfig(
                         mName,
                         mPrivateKey,
+                        mBatchSigner,
                         mCertificates);
             }
         }
@@ -921,7 +1878,8 @@ public class ApkSigner {
      * <p>The builder requires the following information to construct a working {@code ApkSigner}:
      * <ul>
      * <li>Signer configs or {@link ApkSignerEngine} -- provided in the constructor,</li>
-     * <li>APK to be signed -- see {@link #setInputApk(File) setInputApk} variants,</li>
+     * <li>APK to be signed -- see {@link #setInputApk(File) setInputApk} variants, or entries of
+     *     the APK to be built and signed -- see {@link #setInputEntries(List)},</li>
      * <li>where to store the output signed APK -- see {@link #setOutputApk(File) setOutputApk}
      *     variants.
      * </li>
@@ -941,6 +1899,7 @@ public class ApkSigner {
 
         private File mInputApkFile;
         private DataSource mInputApkDataSource;
+        private List<InputEntry> mInputEntries;
 
         private File mOutputApkFile;
         private DataSink mOutputApkDataSink;
@@ -948,6 +1907,12 @@ public class ApkSigner {
 
         private SigningCertificateLineage mSigningCertificateLineage;
 
+        private MetricsListener mMetricsListener = MetricsListener.NO_OP;
+        private ProgressListener mProgressListener = ProgressListener.NO_OP;
+        private CancellationSignal mCancellationSignal;
+        private boolean mParallelEntryCopyingEnabled;
+        private int mGeneratedEntryCompressionLevel = Deflater.BEST_COMPRESSION;
+
         // APK Signature Scheme v3 only supports a single signing certificate, so to move to v3
         // signing by default, but not require prior clients to update to explicitly disable v3
         // signing for multiple signers, we modify the mV3SigningEnabled depending on the provided
@@ -1006,6 +1971,7 @@ public class ApkSigner {
             }
             mInputApkFile = inputApk;
             mInputApkDataSource = null;
+            mInputEntries = null;
             return this;
         }
 
@@ -1020,6 +1986,33 @@ public class ApkSigner {
             }
             mInputApkDataSource = inputApk;
             mInputApkFile = null;
+            mInputEntries = null;
+            return this;
+        }
+
+        /**
+         * Sets the entries of the APK to be built and signed, instead of an APK to be signed. The
+         * output APK contains the entries in the provided order, followed by the entries generated
+         * by the signer, such as JAR signature files.
+         *
+         * <p>This avoids outputting an unsigned APK first and reading it back to sign it. The data
+         * of each entry is read once to be compressed, if needed, and digested for JAR signing.
+         * Compressed data is buffered, partly in a temporary file, until it is output because the
+         * Local File Header preceding it records its size. Data of uncompressed entries is read
+         * again when it is output. If the APK is signed using APK Signature Scheme v2 or v3 with
+         * signer configs rather than a custom {@link ApkSignerEngine}, the output is digested while
+         * it is output rather than read back. The output is then padded to a multiple of 4096 bytes
+         * before the APK Signing Block, as it otherwise would be by the signer.
+         *
+         * @see InputEntry#listDirectory(File)
+         */
+        public Builder setInputEntries(List<InputEntry> inputEntries) {
+            if (inputEntries == null) {
+                throw new NullPointerException("inputEntries == null");
+            }
+            mInputEntries = new ArrayList<>(inputEntries);
+            mInputApkFile = null;
+            mInputApkDataSource = null;
             return this;
         }
 
@@ -1260,6 +2253,81 @@ public class ApkSigner {
             return this;
         }
 
+        /**
+         * Sets the listener to be notified about the phases of signing and their timings. By
+         * default, {@link MetricsListener#NO_OP} is used and no metrics are collected.
+         *
+         * <p>If this builder was initialized with an {@link ApkSignerEngine}, only the phases
+         * performed by {@code ApkSigner} itself are reported to this listener. Phases performed by
+         * the engine are reported to the listener configured for the engine, if any.
+         */
+        public Builder setMetricsListener(MetricsListener metricsListener) {
+            if (metricsListener == null) {
+                throw new NullPointerException("metricsListener == null");
+            }
+            mMetricsListener = metricsListener;
+            return this;
+        }
+
+        /**
+         * Sets the listener to be notified about the progress of long-running phases of signing.
+         *
+         * <p>If this builder was initialized with an {@link ApkSignerEngine}, only the progress of
+         * phases performed by {@code ApkSigner} itself is reported to this listener.
+         */
+        public Builder setProgressListener(ProgressListener progressListener) {
+            if (progressListener == null) {
+                throw new NullPointerException("progressListener == null");
+            }
+            mProgressListener = progressListener;
+            return this;
+        }
+
+        /**
+         * Sets the signal via which signing can be canceled. Once the signal is canceled,
+         * {@link ApkSigner#sign()} throws a {@link java.util.concurrent.CancellationException}.
+         *
+         * <p>If this builder was initialized with an {@link ApkSignerEngine}, the engine is not
+         * aware of this signal.
+         */
+        public Builder setCancellationSignal(CancellationSignal cancellationSignal) {
+            mCancellationSignal = cancellationSignal;
+            return this;
+        }
+
+        /**
+         * Sets whether the input APK's entries are copied to the output APK concurrently. By
+         * default, entries are copied sequentially.
+         *
+         * <p>When enabled, the layout of the output APK's entries, including the extra fields
+         * which preserve data alignment, is planned before any entry data is copied. Entries are
+         * then copied to their planned offsets by tasks on the executor provided to
+         * {@link ApkSigner#signAsync(Executor)}. Copying is performed sequentially if the output
+         * APK is not a {@link File} or if signing is performed via {@link ApkSigner#sign()}.
+         */
+        public Builder setParallelEntryCopyingEnabled(boolean enabled) {
+            mParallelEntryCopyingEnabled = enabled;
+            return this;
+        }
+
+        /**
+         * Sets the compression level ({@code 0} to {@code 9}) with which entries generated by the
+         * signer, such as JAR signature files, are compressed. This level is also used for
+         * compressed input entries, see {@link #setInputEntries(List)}. By default, the best
+         * compression ({@code 9}) is used.
+         *
+         * <p>Generated entries longer than 1 MB are compressed in blocks which are deflated
+         * concurrently by tasks on the executor provided to {@link ApkSigner#signAsync(Executor)}.
+         * The output does not depend on the executor.
+         */
+        public Builder setGeneratedEntryCompressionLevel(int level) {
+            if ((level < Deflater.NO_COMPRESSION) || (level > Deflater.BEST_COMPRESSION)) {
+                throw new IllegalArgumentException("Unsupported compression level: " + level);
+            }
+            mGeneratedEntryCompressionLevel = level;
+            return this;
+        }
+
         /**
          * Returns a new {@code ApkSigner} instance initialized according to the configuration of
          * this builder.
@@ -1293,10 +2361,16 @@ public class ApkSigner {
                     mSignerEngine,
                     mInputApkFile,
                     mInputApkDataSource,
+                    mInputEntries,
                     mOutputApkFile,
                     mOutputApkDataSink,
                     mOutputApkDataSource,
-                    mSigningCertificateLineage);
+                    mSigningCertificateLineage,
+                    mMetricsListener,
+                    mProgressListener,
+                    mCancellationSignal,
+                    mParallelEntryCopyingEnabled,
+                    mGeneratedEntryCompressionLevel);
         }
     }
 }
@@ -18,35 +18,49 @@ package com.android.apksig;
 
 import com.android.apksig.apk.ApkFormatException;
 import com.android.apksig.apk.ApkUtils;
-import com.android.apksig.internal.apk.AndroidBinXmlParser;
+import com.android.apksig.internal.apk.ApkDigestCache;
+import com.android.apksig.internal.apk.ApkStreamReader;
 import com.android.apksig.internal.apk.ApkSigningBlockUtils;
 import com.android.apksig.internal.apk.v1.V1SchemeVerifier;
 import com.android.apksig.internal.apk.ContentDigestAlgorithm;
 import com.android.apksig.internal.apk.SignatureAlgorithm;
+import com.android.apksig.internal.apk.SignerVerificationCache;
+import com.android.apksig.internal.apk.VerificationResultCache;
 import com.android.apksig.internal.apk.v2.V2SchemeVerifier;
 import com.android.apksig.internal.apk.v3.V3SchemeVerifier;
 import com.android.apksig.internal.util.AndroidSdkVersion;
+import com.android.apksig.internal.util.CancelableFuture;
+import com.android.apksig.internal.util.ExecutorRunnablesExecutor;
+import com.android.apksig.internal.util.Pair;
+import com.android.apksig.internal.util.PhaseTracker;
+import com.android.apksig.internal.util.ProgressReporter;
+import com.android.apksig.internal.util.X509CertificateUtils;
 import com.android.apksig.internal.zip.CentralDirectoryRecord;
+import com.android.apksig.util.CancellationSignal;
 import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
+import com.android.apksig.util.MetricsListener;
+import com.android.apksig.util.ProgressListener;
 import com.android.apksig.util.RunnablesExecutor;
 import com.android.apksig.zip.ZipFormatException;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * APK signature verifier which mimics the behavior of the Android platform.
@@ -75,19 +89,36 @@ public class ApkVerifier {
 
     private final File mApkFile;
     private final DataSource mApkDataSource;
+    private final InputStream mApkStream;
+    private DataSource mStreamedApk;
 
     private final Integer mMinSdkVersion;
     private final int mMaxSdkVersion;
 
+    private final MetricsListener mMetricsListener;
+    private final ProgressReporter mProgressReporter;
+    private final VerificationResultCache mResultCache;
+    private final SignerVerificationCache mSignerCache;
+
     private ApkVerifier(
             File apkFile,
             DataSource apkDataSource,
+            InputStream apkStream,
             Integer minSdkVersion,
-            int maxSdkVersion) {
+            int maxSdkVersion,
+            MetricsListener metricsListener,
+            ProgressReporter progressReporter,
+            VerificationResultCache resultCache,
+            SignerVerificationCache signerCache) {
         mApkFile = apkFile;
         mApkDataSource = apkDataSource;
+        mApkStream = apkStream;
         mMinSdkVersion = minSdkVersion;
         mMaxSdkVersion = maxSdkVersion;
+        mMetricsListener = metricsListener;
+        mProgressReporter = progressReporter;
+        mResultCache = resultCache;
+        mSignerCache = signerCache;
     }
 
     /**
@@ -108,9 +139,134 @@ public class ApkVerifier {
      *         required cryptographic algorithm implementation is missing
      * @throws IllegalStateException if this verifier's configuration is missing required
      *         information.
+     * @throws java.util.concurrent.CancellationException if verification was canceled via the
+     *         {@link CancellationSignal} or, if a signal was provided, the thread performing it
+     *         was interrupted
      */
     public Result verify() throws IOException, ApkFormatException, NoSuchAlgorithmException,
             IllegalStateException {
+        return verify(RunnablesExecutor.SINGLE_THREADED, mProgressReporter, true);
+    }
+
+    /**
+     * Extracts the APK's signers without verifying the integrity of the APK's contents. This is
+     * much faster than {@link #verify()} for large APKs because the APK's contents are not
+     * digested. Only the APK Signing Block and the JAR signature files are read.
+     *
+     * <p>The same signature schemes are considered as by {@link #verify()}. The signatures over
+     * signed data, the signers' certificates and the signing certificate lineage are verified.
+     * However, the APK's content digests and the digests of JAR entries are not checked. Thus, the
+     * returned result's {@link Result#isVerified()} and {@link Result#isVerifiedUsingV1Scheme()}
+     * and similar methods always return {@code false}, while its
+     * {@link Result#isInspectionOnly()} returns {@code true} and
+     * {@link Result#isInspectedUsingV1Scheme()} and similar methods report the inspected schemes.
+     * The signers reported in the result must not be trusted as signers of the APK's contents.
+     *
+     * @throws IOException if an I/O error is encountered while reading the APK
+     * @throws ApkFormatException if the APK is malformed
+     * @throws NoSuchAlgorithmException if the APK's signatures cannot be verified because a
+     *         required cryptographic algorithm implementation is missing
+     * @throws IllegalStateException if this verifier's configuration is missing required
+     *         information.
+     * @throws java.util.concurrent.CancellationException if inspection was canceled via the
+     *         {@link CancellationSignal} or, if a signal was provided, the thread performing it
+     *         was interrupted
+     */
+    public Result inspectSigners() throws IOException, ApkFormatException,
+            NoSuchAlgorithmException, IllegalStateException {
+        return verify(RunnablesExecutor.SINGLE_THREADED, mProgressReporter, false);
+    }
+
+    /**
+     * Verifies the APK's signatures for each of the provided ranges of Android platform versions
+     * and returns the results of verification in the same order as the ranges. Each result is the
+     * result which {@link #verify()} would return if the range's bounds were specified via
+     * {@link Builder#setMinCheckedPlatformVersion(int)} and
+     * {@link Builder#setMaxCheckedPlatformVersion(int)}. The platform versions specified via the
+     * {@link Builder} are ignored.
+     *
+     * <p>This is faster than verifying the APK once for each range because digests of the APK's
+     * contents are shared between the verifications for all ranges. Each JAR entry is read at most
+     * once. The APK's contents outside of the APK Signing Block are read at most once per APK
+     * signature scheme: a scheme verified after another one reads them again only if its signers
+     * use digest algorithms which the signers of the earlier scheme do not.
+     *
+     * @throws IOException if an I/O error is encountered while reading the APK
+     * @throws ApkFormatException if the APK is malformed
+     * @throws NoSuchAlgorithmException if the APK's signatures cannot be verified because a
+     *         required cryptographic algorithm implementation is missing
+     * @throws IllegalArgumentException if no ranges are provided
+     * @throws IllegalStateException if this verifier's configuration is missing required
+     *         information.
+     * @throws java.util.concurrent.CancellationException if verification was canceled via the
+     *         {@link CancellationSignal} or, if a signal was provided, the thread performing it
+     *         was interrupted
+     */
+    public List<Result> verify(List<PlatformVersionRange> platformVersionRanges)
+            throws IOException, ApkFormatException, NoSuchAlgorithmException,
+            IllegalStateException {
+        List<Pair<Integer, Integer>> sdkVersionRanges =
+                new ArrayList<>(platformVersionRanges.size());
+        for (PlatformVersionRange range : platformVersionRanges) {
+            sdkVersionRanges.add(Pair.of(range.getMinSdkVersion(), range.getMaxSdkVersion()));
+        }
+        return verify(
+                RunnablesExecutor.SINGLE_THREADED,
+                mProgressReporter,
+                true,
+                sdkVersionRanges,
+                new ApkDigestCache(sdkVersionRanges));
+    }
+
+    /**
+     * Asynchronously verifies the APK's signatures. The returned future completes with the result
+     * which {@link #verify()} would return, or completes exceptionally with the exception which
+     * {@link #verify()} would throw.
+     *
+     * <p>Verification runs on the provided executor. Reading the APK's ZIP and signing block
+     * structures runs as a single task, while the CPU-bound digesting of APK contents is spread
+     * over additional tasks submitted to the same executor. The task which reads the APK also takes
+     * part in digesting and never waits for a task which has not yet started. Thus, any executor
+     * can be used, including a bounded thread pool or a virtual thread per task executor.
+     *
+     * <p>Canceling the returned future aborts verification. The thread performing it is not
+     * interrupted.
+     */
+    public CompletableFuture<Result> verifyAsync(Executor executor) {
+        RunnablesExecutor digestExecutor = new ExecutorRunnablesExecutor(executor);
+        return CancelableFuture.submit(
+                executor,
+                mProgressReporter.getCancellationSignal(),
+                cancellationSignal ->
+                        verify(
+                                digestExecutor,
+                                mProgressReporter.withCancellationSignal(cancellationSignal),
+                                true));
+    }
+
+    private Result verify(
+            RunnablesExecutor executor, ProgressReporter progressReporter, boolean verifyIntegrity)
+            throws IOException, ApkFormatException, NoSuchAlgorithmException {
+        return verify(
+                executor,
+                progressReporter,
+                verifyIntegrity,
+                Collections.singletonList(Pair.of(mMinSdkVersion, mMaxSdkVersion)),
+                null).get(0);
+    }
+
+    /**
+     * Verifies the APK's signatures for each of the provided
+     * {@code [minSdkVersion, maxSdkVersion]} ranges. A {@code null} {@code minSdkVersion} is
+     * obtained from the APK's {@code AndroidManifest.xml}.
+     */
+    private List<Result> verify(
+            RunnablesExecutor executor,
+            ProgressReporter progressReporter,
+            boolean verifyIntegrity,
+            List<Pair<Integer, Integer>> sdkVersionRanges,
+            ApkDigestCache digestCache)
+            throws IOException, ApkFormatException, NoSuchAlgorithmException {
         Closeable in = null;
         try {
             DataSource apk;
@@ -120,10 +276,28 @@ public class ApkVerifier {
                 RandomAccessFile f = new RandomAccessFile(mApkFile, "r");
                 in = f;
                 apk = DataSources.asDataSource(f, 0, f.length());
+            } else if (mApkStream != null) {
+                apk = getStreamedApk(progressReporter);
             } else {
                 throw new IllegalStateException("APK not provided");
             }
-            return verify(apk);
+            List<Result> results = new ArrayList<>(sdkVersionRanges.size());
+            for (Pair<Integer, Integer> range : sdkVersionRanges) {
+                Result result =
+                        verify(
+                                executor,
+                                progressReporter,
+                                verifyIntegrity,
+                                apk,
+                                range.getFirst(),
+                                range.getSecond(),
+                                digestCache);
+                if (!verifyIntegrity) {
+                    result.setInspectionOnly();
+                }
+                results.add(result);
+            }
+            return results;
         } finally {
             if (in != null) {
                 in.close();
@@ -131,57 +305,120 @@ public class ApkVerifier {
         }
     }
 
+    /**
+     * Returns the APK read from {@link #mApkStream}. The stream is read the first time this method
+     * is invoked.
+     */
+    private synchronized DataSource getStreamedApk(ProgressReporter progressReporter)
+            throws IOException, ApkFormatException, NoSuchAlgorithmException {
+        if (mStreamedApk == null) {
+            PhaseTracker tracker =
+                    PhaseTracker.start(mMetricsListener, MetricsListener.Phase.READ_APK_STREAM);
+            try {
+                mStreamedApk = ApkStreamReader.read(mApkStream, progressReporter);
+                tracker.addBytesRead(mStreamedApk.size());
+            } finally {
+                tracker.finish();
+            }
+        }
+        return mStreamedApk;
+    }
+
     /**
      * Verifies the APK's signatures and returns the result of verification. The APK can be
      * considered verified iff the result's {@link Result#isVerified()} returns {@code true}.
      * The verification result also includes errors, warnings, and information about signers.
      *
+     * @param executor executor used to compute digests of APK contents
+     * @param progressReporter reporter to which progress is reported and which is checked for
+     *        cancellation
+     * @param verifyIntegrity whether to verify the APK's contents against its signatures. If
+     *        {@code false}, the result is never marked as verified. Instead, the caller marks it
+     *        as an inspection-only result.
      * @param apk APK file contents
+     * @param requestedMinSdkVersion oldest platform version for which to verify the APK, or
+     *        {@code null} to obtain it from the APK's {@code AndroidManifest.xml}
+     * @param maxSdkVersion newest platform version for which to verify the APK
+     * @param digestCache digests shared with verifications for other platform version ranges, or
+     *        {@code null} if none
      *
      * @throws IOException if an I/O error is encountered while reading the APK
      * @throws ApkFormatException if the APK is malformed
      * @throws NoSuchAlgorithmException if the APK's signatures cannot be verified because a
      *         required cryptographic algorithm implementation is missing
      */
-    private Result verify(DataSource apk)
+    private Result verify(
+            RunnablesExecutor executor,
+            ProgressReporter progressReporter,
+            boolean verifyIntegrity,
+            DataSource apk,
+            Integer requestedMinSdkVersion,
+            int maxSdkVersion,
+            ApkDigestCache digestCache)
             throws IOException, ApkFormatException, NoSuchAlgorithmException {
-        if (mMinSdkVersion != null) {
-            if (mMinSdkVersion < 0) {
+        if (requestedMinSdkVersion != null) {
+            if (requestedMinSdkVersion < 0) {
                 throw new IllegalArgumentException(
-                        "minSdkVersion must not be negative: " + mMinSdkVersion);
+                        "minSdkVersion must not be negative: " + requestedMinSdkVersion);
             }
-            if ((mMinSdkVersion != null) && (mMinSdkVersion > mMaxSdkVersion)) {
+            if ((requestedMinSdkVersion != null) && (requestedMinSdkVersion > maxSdkVersion)) {
                 throw new IllegalArgumentException(
-                        "minSdkVersion (" + mMinSdkVersion + ") > maxSdkVersion (" + mMaxSdkVersion
-                                + ")");
+                        "minSdkVersion (" + requestedMinSdkVersion + ") > maxSdkVersion ("
+                                + maxSdkVersion + ")");
             }
         }
-        int maxSdkVersion = mMaxSdkVersion;
 
         ApkUtils.ZipSections zipSections;
+        PhaseTracker findZipSectionsTracker =
+                PhaseTracker.start(mMetricsListener, MetricsListener.Phase.FIND_ZIP_SECTIONS);
         try {
             zipSections = ApkUtils.findZipSections(apk);
         } catch (ZipFormatException e) {
             throw new ApkFormatException("Malformed APK: not a ZIP archive", e);
+        } finally {
+            findZipSectionsTracker.finish();
         }
 
         ByteBuffer androidManifest = null;
+        ApkUtils.AndroidManifestAttributes androidManifestAttributes = null;
 
         int minSdkVersion;
-        if (mMinSdkVersion != null) {
+        if (requestedMinSdkVersion != null) {
             // No need to obtain minSdkVersion from the APK's AndroidManifest.xml
-            minSdkVersion = mMinSdkVersion;
+            minSdkVersion = requestedMinSdkVersion;
         } else {
             // Need to obtain minSdkVersion from the APK's AndroidManifest.xml
             if (androidManifest == null) {
                 androidManifest = getAndroidManifestFromApk(apk, zipSections);
             }
-            minSdkVersion =
-                    ApkUtils.getMinSdkVersionFromBinaryAndroidManifest(androidManifest.slice());
-            if (minSdkVersion > mMaxSdkVersion) {
+            Set<ApkUtils.AndroidManifestAttribute> attributes =
+                    EnumSet.of(ApkUtils.AndroidManifestAttribute.MIN_SDK_VERSION);
+            if (maxSdkVersion >= AndroidSdkVersion.O) {
+                // Also needed below. Obtain it in the same pass over AndroidManifest.xml.
+                attributes.add(ApkUtils.AndroidManifestAttribute.TARGET_SANDBOX_VERSION);
+            }
+            androidManifestAttributes =
+                    ApkUtils.getAndroidManifestAttributes(androidManifest.slice(), attributes);
+            minSdkVersion = androidManifestAttributes.getMinSdkVersion();
+            if (minSdkVersion > maxSdkVersion) {
                 throw new IllegalArgumentException(
                         "minSdkVersion from APK (" + minSdkVersion + ") > maxSdkVersion ("
-                                + mMaxSdkVersion + ")");
+                                + maxSdkVersion + ")");
+            }
+        }
+
+        // An APK file which verified before with the same configuration need not have its contents
+        // verified again. Its signatures over signed data are still verified to populate the
+        // result.
+        String resultCacheKey = null;
+        boolean verifiedBefore = false;
+        if ((verifyIntegrity) && (mResultCache != null) && (mApkFile != null)) {
+            resultCacheKey =
+                    VerificationResultCache.getKey(
+                            mApkFile, apk, zipSections, minSdkVersion + "-" + maxSdkVersion);
+            if (mResultCache.contains(resultCacheKey)) {
+                verifiedBefore = true;
+                verifyIntegrity = false;
             }
         }
 
@@ -212,13 +449,19 @@ public class ApkVerifier {
         // verification. If the signature is found but does not verify, the APK is rejected.
         Set<Integer> foundApkSigSchemeIds = new HashSet<>(2);
         if (maxSdkVersion >= AndroidSdkVersion.N) {
-            RunnablesExecutor executor = RunnablesExecutor.SINGLE_THREADED;
             // Android P and newer attempts to verify APKs using APK Signature Scheme v3
             if (maxSdkVersion >= AndroidSdkVersion.P) {
+                PhaseTracker tracker =
+                        PhaseTracker.start(mMetricsListener, MetricsListener.Phase.V3_VERIFICATION);
                 try {
                     ApkSigningBlockUtils.Result v3Result =
                             V3SchemeVerifier.verify(
                                     executor,
+                                    mMetricsListener,
+                                    progressReporter,
+                                    verifyIntegrity,
+                                    digestCache,
+                                    mSignerCache,
                                     apk,
                                     zipSections,
                                     Math.max(minSdkVersion, AndroidSdkVersion.P),
@@ -227,6 +470,8 @@ public class ApkVerifier {
                     result.mergeFrom(v3Result);
                 } catch (ApkSigningBlockUtils.SignatureNotFoundException ignored) {
                     // v3 signature not required
+                } finally {
+                    tracker.finish();
                 }
                 if (result.containsErrors()) {
                     return result;
@@ -238,10 +483,17 @@ public class ApkVerifier {
             // APK Signature Scheme v2 signatures.  Android P onwards verifies v2 signatures only if
             // no APK Signature Scheme v3 (or newer scheme) signatures were found.
             if (minSdkVersion < AndroidSdkVersion.P || foundApkSigSchemeIds.isEmpty()) {
+                PhaseTracker tracker =
+                        PhaseTracker.start(mMetricsListener, MetricsListener.Phase.V2_VERIFICATION);
                 try {
                     ApkSigningBlockUtils.Result v2Result =
                             V2SchemeVerifier.verify(
                                     executor,
+                                    mMetricsListener,
+                                    progressReporter,
+                                    verifyIntegrity,
+                                    digestCache,
+                                    mSignerCache,
                                     apk,
                                     zipSections,
                                     supportedSchemeNames,
@@ -252,6 +504,8 @@ public class ApkVerifier {
                     result.mergeFrom(v2Result);
                 } catch (ApkSigningBlockUtils.SignatureNotFoundException ignored) {
                     // v2 signature not required
+                } finally {
+                    tracker.finish();
                 }
                 if (result.containsErrors()) {
                     return result;
@@ -262,11 +516,16 @@ public class ApkVerifier {
         // Android O and newer requires that APKs targeting security sandbox version 2 and higher
         // are signed using APK Signature Scheme v2 or newer.
         if (maxSdkVersion >= AndroidSdkVersion.O) {
-            if (androidManifest == null) {
-                androidManifest = getAndroidManifestFromApk(apk, zipSections);
+            if (androidManifestAttributes == null) {
+                if (androidManifest == null) {
+                    androidManifest = getAndroidManifestFromApk(apk, zipSections);
+                }
+                Set<ApkUtils.AndroidManifestAttribute> attributes =
+                        EnumSet.of(ApkUtils.AndroidManifestAttribute.TARGET_SANDBOX_VERSION);
+                androidManifestAttributes =
+                        ApkUtils.getAndroidManifestAttributes(androidManifest.slice(), attributes);
             }
-            int targetSandboxVersion =
-                    getTargetSandboxVersionFromBinaryAndroidManifest(androidManifest.slice());
+            int targetSandboxVersion = androidManifestAttributes.getTargetSandboxVersion();
             if (targetSandboxVersion > 1) {
                 if (foundApkSigSchemeIds.isEmpty()) {
                     result.addError(
@@ -281,14 +540,24 @@ public class ApkVerifier {
         // Android N onwards verifies JAR signatures only if no APK Signature Scheme v2 (or newer
         // scheme) signatures were found.
         if ((minSdkVersion < AndroidSdkVersion.N) || (foundApkSigSchemeIds.isEmpty())) {
-            V1SchemeVerifier.Result v1Result =
-                    V1SchemeVerifier.verify(
-                            apk,
-                            zipSections,
-                            supportedSchemeNames,
-                            foundApkSigSchemeIds,
-                            minSdkVersion,
-                            maxSdkVersion);
+            PhaseTracker tracker =
+                    PhaseTracker.start(mMetricsListener, MetricsListener.Phase.V1_VERIFICATION);
+            V1SchemeVerifier.Result v1Result;
+            try {
+                v1Result =
+                        V1SchemeVerifier.verify(
+                                progressReporter,
+                                verifyIntegrity,
+                                digestCache,
+                                apk,
+                                zipSections,
+                                supportedSchemeNames,
+                                foundApkSigSchemeIds,
+                                minSdkVersion,
+                                maxSdkVersion);
+            } finally {
+                tracker.finish();
+            }
             result.mergeFrom(v1Result);
         }
         if (result.containsErrors()) {
@@ -302,38 +571,31 @@ public class ApkVerifier {
                     new ArrayList<>(result.getV1SchemeSigners());
             ArrayList<Result.V2SchemeSignerInfo> v2Signers =
                     new ArrayList<>(result.getV2SchemeSigners());
-            ArrayList<ByteArray> v1SignerCerts = new ArrayList<>();
-            ArrayList<ByteArray> v2SignerCerts = new ArrayList<>();
+            // Certificates of verified signers are compared by fingerprint
+            List<X509Certificate> v1SignerCerts = new ArrayList<>(v1Signers.size());
+            List<X509Certificate> v2SignerCerts = new ArrayList<>(v2Signers.size());
             for (Result.V1SchemeSignerInfo signer : v1Signers) {
-                try {
-                    v1SignerCerts.add(new ByteArray(signer.getCertificate().getEncoded()));
-                } catch (CertificateEncodingException e) {
-                    throw new RuntimeException(
-                            "Failed to encode JAR signer " + signer.getName() + " certs", e);
-                }
+                v1SignerCerts.add(
+                        X509CertificateUtils.toFingerprintedCertificate(signer.getCertificate()));
             }
             for (Result.V2SchemeSignerInfo signer : v2Signers) {
-                try {
-                    v2SignerCerts.add(new ByteArray(signer.getCertificate().getEncoded()));
-                } catch (CertificateEncodingException e) {
-                    throw new RuntimeException(
-                            "Failed to encode APK Signature Scheme v2 signer (index: "
-                                    + signer.getIndex() + ") certs",
-                            e);
-                }
+                v2SignerCerts.add(
+                        X509CertificateUtils.toFingerprintedCertificate(signer.getCertificate()));
             }
+            Set<X509Certificate> v1SignerCertsSet = new HashSet<>(v1SignerCerts);
+            Set<X509Certificate> v2SignerCertsSet = new HashSet<>(v2SignerCerts);
 
             for (int i = 0; i < v1SignerCerts.size(); i++) {
-                ByteArray v1Cert = v1SignerCerts.get(i);
-                if (!v2SignerCerts.contains(v1Cert)) {
+                X509Certificate v1Cert = v1SignerCerts.get(i);
+                if (!v2SignerCertsSet.contains(v1Cert)) {
                     Result.V1SchemeSignerInfo v1Signer = v1Signers.get(i);
                     v1Signer.addError(Issue.V2_SIG_MISSING);
                     break;
                 }
             }
             for (int i = 0; i < v2SignerCerts.size(); i++) {
-                ByteArray v2Cert = v2SignerCerts.get(i);
-                if (!v1SignerCerts.contains(v2Cert)) {
+                X509Certificate v2Cert = v2SignerCerts.get(i);
+                if (!v1SignerCertsSet.contains(v2Cert)) {
                     Result.V2SchemeSignerInfo v2Signer = v2Signers.get(i);
                     v2Signer.addError(Issue.JAR_SIG_MISSING);
                     break;
@@ -374,15 +636,12 @@ public class ApkVerifier {
                     // multiple signers implies a different signer for different platform versions
                     result.addError(Issue.V3_SIG_MULTIPLE_SIGNERS);
                 }
-                try {
-                    if (!Arrays.equals(oldSignerCert.getEncoded(),
-                           v3Signers.get(0).mCerts.get(0).getEncoded())) {
-                        result.addError(Issue.V3_SIG_PAST_SIGNERS_MISMATCH);
-                    }
-                } catch (CertificateEncodingException e) {
-                    // we just go the encoding for the v1/v2 certs above, so must be v3
-                    throw new RuntimeException(
-                            "Failed to encode APK Signature Scheme v3 signer cert", e);
+                X509Certificate v3SignerCert =
+                        X509CertificateUtils.toFingerprintedCertificate(
+                                v3Signers.get(0).mCerts.get(0));
+                if (!v3SignerCert.equals(
+                        X509CertificateUtils.toFingerprintedCertificate(oldSignerCert))) {
+                    result.addError(Issue.V3_SIG_PAST_SIGNERS_MISMATCH);
                 }
             } else {
                 // we have some signing history, make sure that the root of the history is the same
@@ -404,8 +663,10 @@ public class ApkVerifier {
             return result;
         }
 
-        // Verified
-        result.setVerified();
+        if ((verifyIntegrity) || (verifiedBefore)) {
+            // Verified
+            result.setVerified();
+        }
         if (result.isVerifiedUsingV3Scheme()) {
             List<Result.V3SchemeSignerInfo> v3Signers = result.getV3SchemeSigners();
             result.addSignerCertificate(v3Signers.get(v3Signers.size() - 1).getCertificate());
@@ -422,6 +683,15 @@ public class ApkVerifier {
                     "APK verified, but has not verified using any of v1, v2 or v3schemes");
         }
 
+        // Only results without warnings and ignored JAR signers are cached because those may stem
+        // from verifying the APK's contents, which is skipped for cached APKs.
+        if ((resultCacheKey != null)
+                && (!verifiedBefore)
+                && (!result.containsWarnings())
+                && (result.getV1SchemeIgnoredSigners().isEmpty())) {
+            mResultCache.put(resultCacheKey);
+        }
+
         return result;
     }
 
@@ -439,69 +709,6 @@ public class ApkVerifier {
         }
     }
 
-    /**
-     * Android resource ID of the {@code android:targetSandboxVersion} attribute in
-     * AndroidManifest.xml.
-     */
-    private static final int TARGET_SANDBOX_VERSION_ATTR_ID = 0x0101054c;
-
-    /**
-     * Returns the security sandbox version targeted by an APK with the provided
-     * {@code AndroidManifest.xml}.
-     *
-     * @param androidManifestContents contents of {@code AndroidManifest.xml} in binary Android
-     *        resource format
-     *
-     * @throws ApkFormatException if an error occurred while determining the version
-     */
-    private static int getTargetSandboxVersionFromBinaryAndroidManifest(
-            ByteBuffer androidManifestContents) throws ApkFormatException {
-        // Return the value of the android:targetSandboxVersion attribute of the top-level manifest
-        // element
-        try {
-            AndroidBinXmlParser parser = new AndroidBinXmlParser(androidManifestContents);
-            int eventType = parser.getEventType();
-            while (eventType != AndroidBinXmlParser.EVENT_END_DOCUMENT) {
-                if ((eventType == AndroidBinXmlParser.EVENT_START_ELEMENT)
-                        && (parser.getDepth() == 1)
-                        && ("manifest".equals(parser.getName()))
-                        && (parser.getNamespace().isEmpty())) {
-                    // In each manifest element, targetSandboxVersion defaults to 1
-                    int result = 1;
-                    for (int i = 0; i < parser.getAttributeCount(); i++) {
-                        if (parser.getAttributeNameResourceId(i)
-                                == TARGET_SANDBOX_VERSION_ATTR_ID) {
-                            int valueType = parser.getAttributeValueType(i);
-                            switch (valueType) {
-                                case AndroidBinXmlParser.VALUE_TYPE_INT:
-                                    result = parser.getAttributeIntValue(i);
-                                    break;
-                                default:
-                                    throw new ApkFormatException(
-                                            "Failed to determine APK's target sandbox version"
-                                                    + ": unsupported value type of"
-                                                    + " AndroidManifest.xml"
-                                                    + " android:targetSandboxVersion"
-                                                    + ". Only integer values supported.");
-                            }
-                            break;
-                        }
-                    }
-                    return result;
-                }
-                eventType = parser.next();
-            }
-            throw new ApkFormatException(
-                    "Failed to determine APK's target sandbox version"
-                            + " : no manifest element in AndroidManifest.xml");
-        } catch (AndroidBinXmlParser.XmlParserException e) {
-            throw new ApkFormatException(
-                    "Failed to determine APK's target sandbox version"
-                            + ": malformed AndroidManifest.xml",
-                    e);
-        }
-    }
-
     /**
      * Result of verifying an APKs signatures. The APK can be considered verified iff
      * {@link #isVerified()} returns {@code true}.
@@ -516,9 +723,13 @@ public class ApkVerifier {
         private final List<V3SchemeSignerInfo> mV3SchemeSigners = new ArrayList<>();
 
         private boolean mVerified;
+        private boolean mInspectionOnly;
         private boolean mVerifiedUsingV1Scheme;
         private boolean mVerifiedUsingV2Scheme;
         private boolean mVerifiedUsingV3Scheme;
+        private boolean mInspectedUsingV1Scheme;
+        private boolean mInspectedUsingV2Scheme;
+        private boolean mInspectedUsingV3Scheme;
         private SigningCertificateLineage mSigningCertificateLineage;
 
         /**
@@ -532,6 +743,33 @@ public class ApkVerifier {
             mVerified = true;
         }
 
+        /**
+         * Returns {@code true} if this result was produced by {@link ApkVerifier#inspectSigners()}
+         * and no errors were encountered. Such a result reports signers whose signatures over
+         * signed data verified. However, the APK's contents were not verified against these
+         * signatures. {@link #isVerified()}, {@link #isVerifiedUsingV1Scheme()} and similar
+         * methods of such a result return {@code false}, while {@link #isInspectedUsingV1Scheme()}
+         * and similar methods report the schemes whose signatures over signed data verified.
+         */
+        public boolean isInspectionOnly() {
+            return mInspectionOnly;
+        }
+
+        /**
+         * Marks this result as produced by {@link ApkVerifier#inspectSigners()}. The schemes whose
+         * signatures over signed data verified are reported as inspected rather than verified,
+         * regardless of whether errors were encountered.
+         */
+        private void setInspectionOnly() {
+            mInspectionOnly = !containsErrors();
+            mInspectedUsingV1Scheme = mVerifiedUsingV1Scheme;
+            mInspectedUsingV2Scheme = mVerifiedUsingV2Scheme;
+            mInspectedUsingV3Scheme = mVerifiedUsingV3Scheme;
+            mVerifiedUsingV1Scheme = false;
+            mVerifiedUsingV2Scheme = false;
+            mVerifiedUsingV3Scheme = false;
+        }
+
         /**
          * Returns {@code true} if the APK's JAR signatures verified.
          */
@@ -553,6 +791,33 @@ public class ApkVerifier {
             return mVerifiedUsingV3Scheme;
         }
 
+        /**
+         * Returns {@code true} if the signatures over signed data of the APK's JAR signatures
+         * verified during {@link ApkVerifier#inspectSigners()}. The APK's contents were not
+         * verified against these signatures.
+         */
+        public boolean isInspectedUsingV1Scheme() {
+            return mInspectedUsingV1Scheme;
+        }
+
+        /**
+         * Returns {@code true} if the signatures over signed data of the APK's APK Signature Scheme
+         * v2 signatures verified during {@link ApkVerifier#inspectSigners()}. The APK's contents
+         * were not verified against these signatures.
+         */
+        public boolean isInspectedUsingV2Scheme() {
+            return mInspectedUsingV2Scheme;
+        }
+
+        /**
+         * Returns {@code true} if the signature over signed data of the APK's APK Signature Scheme
+         * v3 signature verified during {@link ApkVerifier#inspectSigners()}. The APK's contents
+         * were not verified against this signature.
+         */
+        public boolean isInspectedUsingV3Scheme() {
+            return mInspectedUsingV3Scheme;
+        }
+
         /**
          * Returns the verified signers' certificates, one per signer.
          */
@@ -607,7 +872,8 @@ public class ApkVerifier {
 
         /**
          * Returns the combined SigningCertificateLineage associated with this APK's APK Signature
-         * Scheme v3 signing block.
+         * Scheme v3 signing block. The lineage is not shared with other results, even when APKs
+         * are verified together by {@link ApkSetVerifier}.
          */
         public SigningCertificateLineage getSigningCertificateLineage() {
             return mSigningCertificateLineage;
@@ -656,7 +922,11 @@ public class ApkVerifier {
                     for (ApkSigningBlockUtils.Result.SignerInfo signer : source.signers) {
                         mV3SchemeSigners.add(new V3SchemeSignerInfo(signer));
                     }
-                    mSigningCertificateLineage = source.signingCertificateLineage;
+                    // The lineage may be shared with other results via the signer cache
+                    mSigningCertificateLineage =
+                            (source.signingCertificateLineage != null)
+                                    ? source.signingCertificateLineage.copy()
+                                    : null;
                     break;
                 default:
                     throw new IllegalArgumentException("Unknown Signing Block Scheme Id");
@@ -698,6 +968,28 @@ public class ApkVerifier {
             return false;
         }
 
+        private boolean containsWarnings() {
+            if (!mWarnings.isEmpty()) {
+                return true;
+            }
+            for (V1SchemeSignerInfo signer : mV1SchemeSigners) {
+                if (!signer.getWarnings().isEmpty()) {
+                    return true;
+                }
+            }
+            for (V2SchemeSignerInfo signer : mV2SchemeSigners) {
+                if (!signer.getWarnings().isEmpty()) {
+                    return true;
+                }
+            }
+            for (V3SchemeSignerInfo signer : mV3SchemeSigners) {
+                if (!signer.getWarnings().isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
         /**
          * Information about a JAR signer associated with the APK's signature.
          */
@@ -1724,7 +2016,30 @@ public class ApkVerifier {
          * <li>Parameter 1: entry ID ({@code Integer})</li>
          * </ul>
          */
-        APK_SIG_BLOCK_UNKNOWN_ENTRY_ID("APK Signing Block contains unknown entry: ID %1$#x");
+        APK_SIG_BLOCK_UNKNOWN_ENTRY_ID("APK Signing Block contains unknown entry: ID %1$#x"),
+
+        /**
+         * The signers of an APK of an APK set differ from the signers of the first verified APK of
+         * the set.
+         *
+         * <ul>
+         * <li>Parameter 1: name of the APK ({@code String})</li>
+         * <li>Parameter 2: name of the first verified APK ({@code String})</li>
+         * </ul>
+         */
+        APK_SET_SIGNERS_MISMATCH("Signers of %1$s differ from signers of %2$s"),
+
+        /**
+         * The signing certificate lineage of an APK of an APK set differs from the lineage of the
+         * first verified APK of the set.
+         *
+         * <ul>
+         * <li>Parameter 1: name of the APK ({@code String})</li>
+         * <li>Parameter 2: name of the first verified APK ({@code String})</li>
+         * </ul>
+         */
+        APK_SET_LINEAGE_MISMATCH(
+                "SigningCertificateLineage of %1$s differs from SigningCertificateLineage of %2$s");
 
         private final String mFormat;
 
@@ -1782,42 +2097,50 @@ public class ApkVerifier {
     }
 
     /**
-     * Wrapped around {@code byte[]} which ensures that {@code equals} and {@code hashCode} operate
-     * on the contents of the arrays rather than on references.
+     * Range of Android platform versions for which an APK is verified. See
+     * {@link ApkVerifier#verify(List)}.
      */
-    private static class ByteArray {
-        private final byte[] mArray;
-        private final int mHashCode;
+    public static class PlatformVersionRange {
+        private final int mMinSdkVersion;
+        private final int mMaxSdkVersion;
+
+        /**
+         * Constructs a new range of platform versions.
+         *
+         * @param minSdkVersion API Level of the oldest platform in the range
+         * @param maxSdkVersion API Level of the newest platform in the range
+         */
+        public PlatformVersionRange(int minSdkVersion, int maxSdkVersion) {
+            if (minSdkVersion < 0) {
+                throw new IllegalArgumentException(
+                        "minSdkVersion must not be negative: " + minSdkVersion);
+            }
+            if (minSdkVersion > maxSdkVersion) {
+                throw new IllegalArgumentException(
+                        "minSdkVersion (" + minSdkVersion + ") > maxSdkVersion (" + maxSdkVersion
+                                + ")");
+            }
+            mMinSdkVersion = minSdkVersion;
+            mMaxSdkVersion = maxSdkVersion;
+        }
 
-        private ByteArray(byte[] arr) {
-            mArray = arr;
-            mHashCode = Arrays.hashCode(mArray);
+        /**
+         * Returns the API Level of the oldest platform in this range.
+         */
+        public int getMinSdkVersion() {
+            return mMinSdkVersion;
         }
 
-        @Override
-        public int hashCode() {
-            return mHashCode;
+        /**
+         * Returns the API Level of the newest platform in this range.
+         */
+        public int getMaxSdkVersion() {
+            return mMaxSdkVersion;
         }
 
         @Override
-        public boolean equals(Object obj) {
-            if (this == obj) {
-                return true;
-            }
-            if (obj == null) {
-                return false;
-            }
-            if (getClass() != obj.getClass()) {
-                return false;
-            }
-            ByteArray other = (ByteArray) obj;
-            if (hashCode() != other.hashCode()) {
-                return false;
-            }
-            if (!Arrays.equals(mArray, other.mArray)) {
-                return false;
-            }
-            return true;
+        public String toString() {
+            return "[" + mMinSdkVersion + ", " + mMaxSdkVersion + "]";
         }
     }
 
@@ -1832,9 +2155,15 @@ public class ApkVerifier {
     public static class Builder {
         private final File mApkFile;
         private final DataSource mApkDataSource;
+        private final InputStream mApkStream;
 
         private Integer mMinSdkVersion;
         private int mMaxSdkVersion = Integer.MAX_VALUE;
+        private MetricsListener mMetricsListener = MetricsListener.NO_OP;
+        private ProgressListener mProgressListener = ProgressListener.NO_OP;
+        private CancellationSignal mCancellationSignal;
+        private VerificationResultCache mResultCache;
+        private SignerVerificationCache mSignerCache;
 
         /**
          * Constructs a new {@code Builder} for verifying the provided APK file.
@@ -1845,6 +2174,7 @@ public class ApkVerifier {
             }
             mApkFile = apk;
             mApkDataSource = null;
+            mApkStream = null;
         }
 
         /**
@@ -1856,6 +2186,29 @@ public class ApkVerifier {
             }
             mApkDataSource = apk;
             mApkFile = null;
+            mApkStream = null;
+        }
+
+        /**
+         * Constructs a new {@code Builder} for verifying the APK read from the provided stream,
+         * for example, the body of a network request. The APK is read once, until the end of the
+         * stream, when it is first verified. The stream is not closed.
+         *
+         * <p>The APK is not buffered in memory or on disk. Instead, everything needed to verify
+         * the APK's contents is computed while the APK's ZIP Local File records stream past. Only
+         * the ZIP Local File Headers, the JAR signature files, {@code AndroidManifest.xml}, the
+         * APK Signing Block, the ZIP Central Directory and the ZIP End of Central Directory record
+         * are retained. This requires the APK's ZIP Local File records to be contiguous and to
+         * start at the beginning of the APK. JAR entry digests are only available for SHA-1 and
+         * SHA-256, which are the digest algorithms used by Android tooling.
+         */
+        public Builder(InputStream apk) {
+            if (apk == null) {
+                throw new NullPointerException("apk == null");
+            }
+            mApkStream = apk;
+            mApkFile = null;
+            mApkDataSource = null;
         }
 
         /**
@@ -1894,6 +2247,74 @@ public class ApkVerifier {
             return this;
         }
 
+        /**
+         * Sets the listener to be notified about the phases of verification and their timings.
+         * By default, {@link MetricsListener#NO_OP} is used and no metrics are collected.
+         */
+        public Builder setMetricsListener(MetricsListener metricsListener) {
+            if (metricsListener == null) {
+                throw new NullPointerException("metricsListener == null");
+            }
+            mMetricsListener = metricsListener;
+            return this;
+        }
+
+        /**
+         * Sets the listener to be notified about the progress of long-running phases of
+         * verification.
+         */
+        public Builder setProgressListener(ProgressListener progressListener) {
+            if (progressListener == null) {
+                throw new NullPointerException("progressListener == null");
+            }
+            mProgressListener = progressListener;
+            return this;
+        }
+
+        /**
+         * Sets the signal via which verification can be canceled. Once the signal is canceled,
+         * {@link ApkVerifier#verify()} throws a {@link java.util.concurrent.CancellationException}.
+         */
+        public Builder setCancellationSignal(CancellationSignal cancellationSignal) {
+            mCancellationSignal = cancellationSignal;
+            return this;
+        }
+
+        /**
+         * Sets the directory in which to cache APK files which verified successfully. By default,
+         * no cache is used.
+         *
+         * <p>If an APK file with the same size, modification time, file key (e.g., inode number),
+         * APK Signing Block, ZIP Central Directory and ZIP End of Central Directory was verified
+         * before using the same platform version range, the APK's contents are not verified again.
+         * Only the signatures over signed data are verified to populate the result. The cache is
+         * only used when verifying an APK file, rather than a {@link DataSource}.
+         *
+         * <p>The directory may be shared by multiple processes. Once the cache holds more than
+         * {@code maxEntries} entries, the least recently used entries are deleted.
+         *
+         * <p><em>Security note:</em> cache entries are trusted as is. Anyone who can create files
+         * in {@code directory} can make an arbitrary APK pass verification with only its
+         * signatures over signed data checked. Use a directory writable only by trusted users.
+         *
+         * @param directory cache directory or {@code null} to not use a cache
+         * @param maxEntries maximum number of APK files in the cache
+         */
+        public Builder setResultCacheDirectory(File directory, int maxEntries) {
+            mResultCache =
+                    (directory != null) ? new VerificationResultCache(directory, maxEntries) : null;
+            return this;
+        }
+
+        /**
+         * Sets the cache of signer verification results shared with verifiers of other APKs, or
+         * {@code null} to not share results.
+         */
+        Builder setSignerVerificationCache(SignerVerificationCache signerCache) {
+            mSignerCache = signerCache;
+            return this;
+        }
+
         /**
          * Returns an {@link ApkVerifier} initialized according to the configuration of this
          * builder.
@@ -1902,8 +2323,13 @@ public class ApkVerifier {
             return new ApkVerifier(
                     mApkFile,
                     mApkDataSource,
+                    mApkStream,
                     mMinSdkVersion,
-                    mMaxSdkVersion);
+                    mMaxSdkVersion,
+                    mMetricsListener,
+                    ProgressReporter.create(mProgressListener, mCancellationSignal),
+                    mResultCache,
+                    mSignerCache);
         }
     }
 }
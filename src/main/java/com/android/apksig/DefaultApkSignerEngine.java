@@ -19,6 +19,7 @@ package com.android.apksig;
 import com.android.apksig.apk.ApkFormatException;
 import com.android.apksig.apk.ApkUtils;
 import com.android.apksig.internal.apk.ApkSigningBlockUtils;
+import com.android.apksig.internal.apk.ContentDigestAlgorithm;
 import com.android.apksig.internal.apk.SignatureAlgorithm;
 import com.android.apksig.internal.apk.v1.DigestAlgorithm;
 import com.android.apksig.internal.apk.v1.V1SchemeSigner;
@@ -27,12 +28,18 @@ import com.android.apksig.internal.apk.v2.V2SchemeSigner;
 import com.android.apksig.internal.apk.v3.V3SchemeSigner;
 import com.android.apksig.internal.jar.ManifestParser;
 import com.android.apksig.internal.util.AndroidSdkVersion;
+import com.android.apksig.internal.util.CryptoFactory;
 import com.android.apksig.internal.util.Pair;
+import com.android.apksig.internal.util.PhaseTracker;
+import com.android.apksig.internal.util.ProgressReporter;
 import com.android.apksig.internal.util.TeeDataSink;
+import com.android.apksig.util.BatchSigner;
+import com.android.apksig.util.CancellationSignal;
 import com.android.apksig.util.DataSink;
 import com.android.apksig.util.DataSinks;
 import com.android.apksig.util.DataSource;
-
+import com.android.apksig.util.MetricsListener;
+import com.android.apksig.util.ProgressListener;
 import com.android.apksig.util.RunnablesExecutor;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -48,6 +55,7 @@ import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -145,6 +153,17 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
 
     private RunnablesExecutor mExecutor = RunnablesExecutor.SINGLE_THREADED;
 
+    private final MetricsListener mMetricsListener;
+
+    private final ProgressReporter mProgressReporter;
+
+    /**
+     * Tracker of the time spent computing digests of output JAR entries for v1 signature or
+     * {@code null} if no such digests have been requested since the v1 signature was last
+     * generated.
+     */
+    private PhaseTracker mV1EntryDigestsTracker;
+
     private DefaultApkSignerEngine(
             List<SignerConfig> signerConfigs,
             int minSdkVersion,
@@ -154,7 +173,9 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
             boolean debuggableApkPermitted,
             boolean otherSignersSignaturesPreserved,
             String createdBy,
-            SigningCertificateLineage signingCertificateLineage) throws InvalidKeyException {
+            SigningCertificateLineage signingCertificateLineage,
+            MetricsListener metricsListener,
+            ProgressReporter progressReporter) throws InvalidKeyException {
         if (signerConfigs.isEmpty()) {
             throw new IllegalArgumentException("At least one signer config must be provided");
         }
@@ -175,6 +196,8 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
         mSignerConfigs = signerConfigs;
         mMinSdkVersion = minSdkVersion;
         mSigningCertificateLineage = signingCertificateLineage;
+        mMetricsListener = metricsListener;
+        mProgressReporter = progressReporter;
 
         if (v1SigningEnabled) {
             if (v3SigningEnabled) {
@@ -232,6 +255,7 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
             V1SchemeSigner.SignerConfig v1SignerConfig = new V1SchemeSigner.SignerConfig();
             v1SignerConfig.name = v1SignerName;
             v1SignerConfig.privateKey = signerConfig.getPrivateKey();
+            v1SignerConfig.batchSigner = signerConfig.getBatchSigner();
             v1SignerConfig.certificates = certificates;
             v1SignerConfig.signatureDigestAlgorithm = v1SignatureDigestAlgorithm;
             // For digesting contents of APK entries and of MANIFEST.MF, pick the algorithm
@@ -377,6 +401,7 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
         ApkSigningBlockUtils.SignerConfig newSignerConfig =
                 new ApkSigningBlockUtils.SignerConfig();
         newSignerConfig.privateKey = signerConfig.getPrivateKey();
+        newSignerConfig.batchSigner = signerConfig.getBatchSigner();
         newSignerConfig.certificates = certificates;
 
         switch (schemeId) {
@@ -405,6 +430,27 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
         return newSignerConfig;
     }
 
+    /**
+     * Returns the content digest algorithms over which APK Signature Scheme v2 and v3 signatures
+     * generated by this engine are computed. The set is empty if neither scheme is enabled.
+     */
+    Set<ContentDigestAlgorithm> getContentDigestAlgorithms() throws InvalidKeyException {
+        List<ApkSigningBlockUtils.SignerConfig> signerConfigs = new ArrayList<>();
+        if (mV2SigningEnabled) {
+            signerConfigs.addAll(createV2SignerConfigs(true));
+        }
+        if (mV3SigningEnabled) {
+            signerConfigs.addAll(createV3SignerConfigs(true));
+        }
+        Set<ContentDigestAlgorithm> result = EnumSet.noneOf(ContentDigestAlgorithm.class);
+        for (ApkSigningBlockUtils.SignerConfig signerConfig : signerConfigs) {
+            for (SignatureAlgorithm signatureAlgorithm : signerConfig.signatureAlgorithms) {
+                result.add(signatureAlgorithm.getContentDigestAlgorithm());
+            }
+        }
+        return result;
+    }
+
     private boolean isDebuggable(String entryName) {
         return mDebuggableApkPermitted
                 || !ApkUtils.ANDROID_MANIFEST_ZIP_ENTRY_NAME.equals(entryName);
@@ -527,10 +573,17 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
             // preserved. In that scenario we can't modify MANIFEST.MF and add/remove JAR entries
             // covered by v1 signature.
             invalidateV1Signature();
+            if (mV1EntryDigestsTracker == null) {
+                mV1EntryDigestsTracker =
+                        PhaseTracker.create(
+                                mMetricsListener, MetricsListener.Phase.V1_ENTRY_DIGESTS);
+            }
             GetJarEntryDataDigestRequest dataDigestRequest =
                     new GetJarEntryDataDigestRequest(
                             entryName,
-                            V1SchemeSigner.getJcaMessageDigestAlgorithm(mV1ContentDigestAlgorithm));
+                            V1SchemeSigner.getJcaMessageDigestAlgorithm(mV1ContentDigestAlgorithm),
+                            mV1ContentDigestAlgorithm.name(),
+                            mV1EntryDigestsTracker);
             mOutputJarEntryDigestRequests.put(entryName, dataDigestRequest);
             mOutputJarEntryDigests.remove(entryName);
 
@@ -629,6 +682,10 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
             mOutputJarEntryDigests.put(entryName, digestRequest.getDigest());
         }
         mOutputJarEntryDigestRequests.clear();
+        if (mV1EntryDigestsTracker != null) {
+            mV1EntryDigestsTracker.finish();
+            mV1EntryDigestsTracker = null;
+        }
 
         for (GetJarEntryDataRequest dataRequest : mOutputSignatureJarEntryDataRequests.values()) {
             if (!dataRequest.isDone()) {
@@ -652,39 +709,15 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
         checkOutputApkNotDebuggableIfDebuggableMustBeRejected();
         List<Pair<String, byte[]>> signatureZipEntries;
         if ((mAddV1SignatureRequest == null) || (!mAddV1SignatureRequest.isDone())) {
-            try {
-                signatureZipEntries =
-                        V1SchemeSigner.sign(
-                                mV1SignerConfigs,
-                                mV1ContentDigestAlgorithm,
-                                mOutputJarEntryDigests,
-                                apkSigningSchemeIds,
-                                inputJarManifest,
-                                mCreatedBy);
-            } catch (CertificateException e) {
-                throw new SignatureException("Failed to generate v1 signature", e);
-            }
+            signatureZipEntries =
+                    signManifest(apkSigningSchemeIds, generateManifestFile(inputJarManifest));
         } else {
-            V1SchemeSigner.OutputManifestFile newManifest =
-                    V1SchemeSigner.generateManifestFile(
-                            mV1ContentDigestAlgorithm,
-                            mOutputJarEntryDigests,
-                            inputJarManifest);
+            V1SchemeSigner.OutputManifestFile newManifest = generateManifestFile(inputJarManifest);
             byte[] emittedSignatureManifest =
                     mEmittedSignatureJarEntryData.get(V1SchemeSigner.MANIFEST_ENTRY_NAME);
             if (!Arrays.equals(newManifest.contents, emittedSignatureManifest)) {
                 // Emitted v1 signature is no longer valid.
-                try {
-                    signatureZipEntries =
-                            V1SchemeSigner.signManifest(
-                                    mV1SignerConfigs,
-                                    mV1ContentDigestAlgorithm,
-                                    apkSigningSchemeIds,
-                                    mCreatedBy,
-                                    newManifest);
-                } catch (CertificateException e) {
-                    throw new SignatureException("Failed to generate v1 signature", e);
-                }
+                signatureZipEntries = signManifest(apkSigningSchemeIds, newManifest);
             } else {
                 // Emitted v1 signature is still valid. Check whether the signature is there in the
                 // output.
@@ -731,6 +764,48 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
         return mAddV1SignatureRequest;
     }
 
+    private V1SchemeSigner.OutputManifestFile generateManifestFile(byte[] inputJarManifest)
+            throws ApkFormatException {
+        PhaseTracker tracker =
+                PhaseTracker.start(mMetricsListener, MetricsListener.Phase.V1_MANIFEST_GENERATION);
+        try {
+            V1SchemeSigner.OutputManifestFile result =
+                    V1SchemeSigner.generateManifestFile(
+                            mV1ContentDigestAlgorithm, mOutputJarEntryDigests, inputJarManifest);
+            tracker.addEntriesProcessed(mOutputJarEntryDigests.size());
+            tracker.addBytesWritten(result.contents.length);
+            return result;
+        } finally {
+            tracker.finish();
+        }
+    }
+
+    private List<Pair<String, byte[]>> signManifest(
+            List<Integer> apkSigningSchemeIds, V1SchemeSigner.OutputManifestFile manifest)
+                    throws InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+        PhaseTracker tracker =
+                PhaseTracker.start(mMetricsListener, MetricsListener.Phase.V1_SIGNATURE_GENERATION);
+        try {
+            List<Pair<String, byte[]>> result =
+                    V1SchemeSigner.signManifest(
+                            mV1SignerConfigs,
+                            mV1ContentDigestAlgorithm,
+                            apkSigningSchemeIds,
+                            mCreatedBy,
+                            manifest,
+                            mExecutor);
+            for (Pair<String, byte[]> entry : result) {
+                tracker.addEntriesProcessed(1);
+                tracker.addBytesWritten(entry.getSecond().length);
+            }
+            return result;
+        } catch (CertificateException e) {
+            throw new SignatureException("Failed to generate v1 signature", e);
+        } finally {
+            tracker.finish();
+        }
+    }
+
     @Deprecated
     @Override
     public OutputApkSigningBlockRequest outputZipSections(
@@ -775,33 +850,57 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
         DataSource eocd =
                 ApkSigningBlockUtils.copyWithModifiedCDOffset(beforeCentralDir, zipEocd);
 
-        List<Pair<byte[], Integer>> signingSchemeBlocks = new ArrayList<>();
+        // Signatures of all v2 and v3 signers are generated together, in parallel if the executor
+        // is multi-threaded. The blocks are then assembled in the usual order.
+        ApkSigningBlockUtils.PendingSignatures pendingSignatures =
+                new ApkSigningBlockUtils.PendingSignatures();
+        List<ApkSigningBlockUtils.PendingBlock> pendingBlocks = new ArrayList<>(2);
 
         // create APK Signature Scheme V2 Signature if requested
         if (mV2SigningEnabled) {
             invalidateV2Signature();
             List<ApkSigningBlockUtils.SignerConfig> v2SignerConfigs =
                     createV2SignerConfigs(apkSigningBlockPaddingSupported);
-            signingSchemeBlocks.add(
-                    V2SchemeSigner.generateApkSignatureSchemeV2Block(
+            pendingBlocks.add(
+                    V2SchemeSigner.prepareApkSignatureSchemeV2Block(
                             mExecutor,
+                            mMetricsListener,
+                            mProgressReporter,
                             beforeCentralDir,
                             zipCentralDirectory,
                             eocd,
                             v2SignerConfigs,
-                            mV3SigningEnabled));
+                            mV3SigningEnabled,
+                            pendingSignatures));
         }
         if (mV3SigningEnabled) {
             invalidateV3Signature();
             List<ApkSigningBlockUtils.SignerConfig> v3SignerConfigs =
                     createV3SignerConfigs(apkSigningBlockPaddingSupported);
-            signingSchemeBlocks.add(
-                    V3SchemeSigner.generateApkSignatureSchemeV3Block(
+            pendingBlocks.add(
+                    V3SchemeSigner.prepareApkSignatureSchemeV3Block(
                             mExecutor,
+                            mMetricsListener,
+                            mProgressReporter,
                             beforeCentralDir,
                             zipCentralDirectory,
                             eocd,
-                            v3SignerConfigs));
+                            v3SignerConfigs,
+                            pendingSignatures));
+        }
+
+        PhaseTracker tracker =
+                PhaseTracker.start(mMetricsListener, MetricsListener.Phase.SIGNATURE_GENERATION);
+        List<Pair<byte[], Integer>> signingSchemeBlocks = new ArrayList<>(pendingBlocks.size());
+        try {
+            pendingSignatures.generate(mExecutor);
+            for (ApkSigningBlockUtils.PendingBlock pendingBlock : pendingBlocks) {
+                Pair<byte[], Integer> signingSchemeBlock = pendingBlock.getBlock();
+                tracker.addBytesWritten(signingSchemeBlock.getFirst().length);
+                signingSchemeBlocks.add(signingSchemeBlock);
+            }
+        } finally {
+            tracker.finish();
         }
 
         // create APK Signing Block with v2 and/or v3 blocks
@@ -1110,6 +1209,8 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
     private static class GetJarEntryDataDigestRequest implements InspectJarEntryRequest {
         private final String mEntryName;
         private final String mJcaDigestAlgorithm;
+        private final String mDigestAlgorithmName;
+        private final PhaseTracker mTracker;
         private final Object mLock = new Object();
 
         private boolean mDone;
@@ -1117,9 +1218,15 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
         private MessageDigest mMessageDigest;
         private byte[] mDigest;
 
-        private GetJarEntryDataDigestRequest(String entryName, String jcaDigestAlgorithm) {
+        private GetJarEntryDataDigestRequest(
+                String entryName,
+                String jcaDigestAlgorithm,
+                String digestAlgorithmName,
+                PhaseTracker tracker) {
             mEntryName = entryName;
             mJcaDigestAlgorithm = jcaDigestAlgorithm;
+            mDigestAlgorithmName = digestAlgorithmName;
+            mTracker = tracker;
         }
 
         @Override
@@ -1133,6 +1240,10 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
                 checkNotDone();
                 if (mDataSink == null) {
                     mDataSink = DataSinks.asDataSink(getMessageDigest());
+                    if (mTracker.isEnabled()) {
+                        mDataSink = new PhaseTrackingDataSink(
+                                mDataSink, mTracker, mDigestAlgorithmName);
+                    }
                 }
                 return mDataSink;
             }
@@ -1142,7 +1253,7 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
             synchronized (mLock) {
                 if (mMessageDigest == null) {
                     try {
-                        mMessageDigest = MessageDigest.getInstance(mJcaDigestAlgorithm);
+                        mMessageDigest = CryptoFactory.getMessageDigest(mJcaDigestAlgorithm);
                     } catch (NoSuchAlgorithmException e) {
                         throw new RuntimeException(
                                 mJcaDigestAlgorithm + " MessageDigest not available", e);
@@ -1159,7 +1270,10 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
                     return;
                 }
                 mDone = true;
+                mTracker.resume();
                 mDigest = getMessageDigest().digest();
+                mTracker.pause();
+                mTracker.addEntriesProcessed(1);
                 mMessageDigest = null;
                 mDataSink = null;
             }
@@ -1189,6 +1303,46 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
         }
     }
 
+    /**
+     * {@link DataSink} which attributes the time spent in the delegate sink and the data consumed
+     * by it to a paused and resumed {@link PhaseTracker}.
+     */
+    private static class PhaseTrackingDataSink implements DataSink {
+        private final DataSink mDelegate;
+        private final PhaseTracker mTracker;
+        private final String mDigestAlgorithmName;
+
+        private PhaseTrackingDataSink(
+                DataSink delegate, PhaseTracker tracker, String digestAlgorithmName) {
+            mDelegate = delegate;
+            mTracker = tracker;
+            mDigestAlgorithmName = digestAlgorithmName;
+        }
+
+        @Override
+        public void consume(byte[] buf, int offset, int length) throws IOException {
+            mTracker.resume();
+            try {
+                mDelegate.consume(buf, offset, length);
+            } finally {
+                mTracker.pause();
+            }
+            mTracker.addDigestedBytes(mDigestAlgorithmName, length);
+        }
+
+        @Override
+        public void consume(ByteBuffer buf) throws IOException {
+            int length = buf.remaining();
+            mTracker.resume();
+            try {
+                mDelegate.consume(buf);
+            } finally {
+                mTracker.pause();
+            }
+            mTracker.addDigestedBytes(mDigestAlgorithmName, length);
+        }
+    }
+
     /**
      * JAR entry inspection request which transparently satisfies multiple such requests.
      */
@@ -1240,14 +1394,17 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
     public static class SignerConfig {
         private final String mName;
         private final PrivateKey mPrivateKey;
+        private final BatchSigner mBatchSigner;
         private final List<X509Certificate> mCertificates;
 
         private SignerConfig(
                 String name,
                 PrivateKey privateKey,
+                BatchSigner batchSigner,
                 List<X509Certificate> certificates) {
             mName = name;
             mPrivateKey = privateKey;
+            mBatchSigner = batchSigner;
             mCertificates = Collections.unmodifiableList(new ArrayList<>(certificates));
         }
 
@@ -1259,12 +1416,21 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
         }
 
         /**
-         * Returns the signing key of this signer.
+         * Returns the signing key of this signer or {@code null} if this signer signs using a
+         * {@link BatchSigner}.
          */
         public PrivateKey getPrivateKey() {
             return mPrivateKey;
         }
 
+        /**
+         * Returns the signer which performs the private key operations of this signer or
+         * {@code null} if this signer signs using its {@link #getPrivateKey() private key}.
+         */
+        public BatchSigner getBatchSigner() {
+            return mBatchSigner;
+        }
+
         /**
          * Returns the certificate(s) of this signer. The first certificate's public key corresponds
          * to this signer's private key.
@@ -1279,6 +1445,7 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
         public static class Builder {
             private final String mName;
             private final PrivateKey mPrivateKey;
+            private final BatchSigner mBatchSigner;
             private final List<X509Certificate> mCertificates;
 
             /**
@@ -1299,6 +1466,34 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
                 }
                 mName = name;
                 mPrivateKey = privateKey;
+                mBatchSigner = null;
+                mCertificates = new ArrayList<>(certificates);
+            }
+
+            /**
+             * Constructs a new {@code Builder} for a signer whose private key operations are
+             * performed by the provided {@link BatchSigner}, for example, because the private key
+             * is held by a remote signing service.
+             *
+             * @param name signer's name. The name is reflected in the name of files comprising the
+             *        JAR signature of the APK.
+             * @param batchSigner signer which signs using the private key corresponding to the
+             *        subject public key of the first certificate
+             * @param certificates list of one or more X.509 certificates
+             */
+            public Builder(
+                    String name,
+                    BatchSigner batchSigner,
+                    List<X509Certificate> certificates) {
+                if (name.isEmpty()) {
+                    throw new IllegalArgumentException("Empty name");
+                }
+                if (batchSigner == null) {
+                    throw new NullPointerException("batchSigner == null");
+                }
+                mName = name;
+                mPrivateKey = null;
+                mBatchSigner = batchSigner;
                 mCertificates = new ArrayList<>(certificates);
             }
 
@@ -1310,6 +1505,7 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
                 return new SignerConfig(
                         mName,
                         mPrivateKey,
+                        mBatchSigner,
                         mCertificates);
             }
         }
@@ -1331,6 +1527,10 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
 
         private SigningCertificateLineage mSigningCertificateLineage;
 
+        private MetricsListener mMetricsListener = MetricsListener.NO_OP;
+        private ProgressListener mProgressListener = ProgressListener.NO_OP;
+        private CancellationSignal mCancellationSignal;
+
         // APK Signature Scheme v3 only supports a single signing certificate, so to move to v3
         // signing by default, but not require prior clients to update to explicitly disable v3
         // signing for multiple signers, we modify the mV3SigningEnabled depending on the provided
@@ -1413,7 +1613,9 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
                     mDebuggableApkPermitted,
                     mOtherSignersSignaturesPreserved,
                     mCreatedBy,
-                    mSigningCertificateLineage);
+                    mSigningCertificateLineage,
+                    mMetricsListener,
+                    ProgressReporter.create(mProgressListener, mCancellationSignal));
         }
 
         /**
@@ -1502,5 +1704,38 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
             }
             return this;
         }
+
+        /**
+         * Sets the listener to be notified about the phases of signing and their timings. By
+         * default, {@link MetricsListener#NO_OP} is used and no metrics are collected.
+         */
+        public Builder setMetricsListener(MetricsListener metricsListener) {
+            if (metricsListener == null) {
+                throw new NullPointerException("metricsListener == null");
+            }
+            mMetricsListener = metricsListener;
+            return this;
+        }
+
+        /**
+         * Sets the listener to be notified about the progress of long-running phases of signing.
+         */
+        public Builder setProgressListener(ProgressListener progressListener) {
+            if (progressListener == null) {
+                throw new NullPointerException("progressListener == null");
+            }
+            mProgressListener = progressListener;
+            return this;
+        }
+
+        /**
+         * Sets the signal via which signing can be canceled. Once the signal is canceled,
+         * computation of APK Signature Scheme v2 and v3 signatures aborts with a
+         * {@link java.util.concurrent.CancellationException}.
+         */
+        public Builder setCancellationSignal(CancellationSignal cancellationSignal) {
+            mCancellationSignal = cancellationSignal;
+            return this;
+        }
     }
 }
@@ -30,6 +30,8 @@ import com.android.apksig.internal.util.AndroidSdkVersion;
 import com.android.apksig.internal.util.ByteBufferUtils;
 import com.android.apksig.internal.util.Pair;
 import com.android.apksig.internal.util.RandomAccessFileDataSink;
+import com.android.apksig.internal.util.X509CertificateUtils;
+import com.android.apksig.util.BatchSigner;
 import com.android.apksig.util.DataSink;
 import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
@@ -48,7 +50,6 @@ import java.security.SignatureException;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -343,8 +344,7 @@ public class SigningCertificateLineage {
 
         // make sure that the parent matches our newest generation (leaf node/sink)
         SigningCertificateNode currentGeneration = mSigningLineage.get(mSigningLineage.size() - 1);
-        if (!Arrays.equals(currentGeneration.signingCert.getEncoded(),
-                parent.getCertificate().getEncoded())) {
+        if (!currentGeneration.signingCert.equals(parent.getCertificate())) {
             throw new IllegalArgumentException("SignerConfig Certificate containing private key"
                     + " to sign the new SigningCertificateLineage record does not match the"
                     + " existing most recent record");
@@ -366,6 +366,7 @@ public class SigningCertificateLineage {
         ApkSigningBlockUtils.SignerConfig newSignerConfig =
                 new ApkSigningBlockUtils.SignerConfig();
         newSignerConfig.privateKey = parent.getPrivateKey();
+        newSignerConfig.batchSigner = parent.getBatchSigner();
         newSignerConfig.certificates = certificates;
         newSignerConfig.signatureAlgorithms = Collections.singletonList(signatureAlgorithm);
 
@@ -518,10 +519,16 @@ public class SigningCertificateLineage {
         // fancier
         List<DefaultApkSignerEngine.SignerConfig> sortedSignerConfigs =
                 new ArrayList<>(signerConfigs.size());
+        List<X509Certificate> signerCerts = new ArrayList<>(signerConfigs.size());
+        for (DefaultApkSignerEngine.SignerConfig config : signerConfigs) {
+            signerCerts.add(
+                    X509CertificateUtils.toFingerprintedCertificate(
+                            config.getCertificates().get(0)));
+        }
         for (int i = 0; i < mSigningLineage.size(); i++) {
             for (int j = 0; j < signerConfigs.size(); j++) {
                 DefaultApkSignerEngine.SignerConfig config = signerConfigs.get(j);
-                if (mSigningLineage.get(i).signingCert.equals(config.getCertificates().get(0))) {
+                if (mSigningLineage.get(i).signingCert.equals(signerCerts.get(j))) {
                     sortedSignerConfigs.add(config);
                     break;
                 }
@@ -556,9 +563,10 @@ public class SigningCertificateLineage {
             throw new NullPointerException("cert == null");
         }
 
+        X509Certificate fingerprintedCert = X509CertificateUtils.toFingerprintedCertificate(cert);
         for (int i = 0; i < mSigningLineage.size(); i++) {
             SigningCertificateNode lineageNode = mSigningLineage.get(i);
-            if (lineageNode.signingCert.equals(cert)) {
+            if (lineageNode.signingCert.equals(fingerprintedCert)) {
                 int flags = lineageNode.flags;
                 return new SignerCapabilities.Builder(flags).build();
             }
@@ -580,9 +588,10 @@ public class SigningCertificateLineage {
         }
 
         X509Certificate cert = config.getCertificate();
+        X509Certificate fingerprintedCert = X509CertificateUtils.toFingerprintedCertificate(cert);
         for (int i = 0; i < mSigningLineage.size(); i++) {
             SigningCertificateNode lineageNode = mSigningLineage.get(i);
-            if (lineageNode.signingCert.equals(cert)) {
+            if (lineageNode.signingCert.equals(fingerprintedCert)) {
                 int flags = lineageNode.flags;
                 SignerCapabilities newCapabilities = new SignerCapabilities.Builder(
                         flags).setCallerConfiguredCapabilities(capabilities).build();
@@ -628,8 +637,9 @@ public class SigningCertificateLineage {
             throw new NullPointerException("cert == null");
         }
 
+        X509Certificate fingerprintedCert = X509CertificateUtils.toFingerprintedCertificate(cert);
         for (int i = 0; i < mSigningLineage.size(); i++) {
-            if (mSigningLineage.get(i).signingCert.equals(cert)) {
+            if (mSigningLineage.get(i).signingCert.equals(fingerprintedCert)) {
                 return true;
             }
         }
@@ -657,8 +667,10 @@ public class SigningCertificateLineage {
         if (x509Certificate == null) {
             throw new NullPointerException("x509Certificate == null");
         }
+        X509Certificate fingerprintedCert =
+                X509CertificateUtils.toFingerprintedCertificate(x509Certificate);
         for (int i = 0; i < mSigningLineage.size(); i++) {
-            if (mSigningLineage.get(i).signingCert.equals(x509Certificate)) {
+            if (mSigningLineage.get(i).signingCert.equals(fingerprintedCert)) {
                 return new SigningCertificateLineage(
                         mMinSdkVersion, new ArrayList<>(mSigningLineage.subList(0, i + 1)));
             }
@@ -668,6 +680,24 @@ public class SigningCertificateLineage {
         throw new IllegalArgumentException("Certificate not found in SigningCertificateLineage");
     }
 
+    /**
+     * Returns a copy of this lineage whose signer capabilities can be updated independently of
+     * this lineage.
+     */
+    SigningCertificateLineage copy() {
+        List<SigningCertificateNode> nodes = new ArrayList<>(mSigningLineage.size());
+        for (SigningCertificateNode node : mSigningLineage) {
+            nodes.add(
+                    new SigningCertificateNode(
+                            node.signingCert,
+                            node.parentSigAlgorithm,
+                            node.sigAlgorithm,
+                            node.signature,
+                            node.flags));
+        }
+        return new SigningCertificateLineage(mMinSdkVersion, nodes);
+    }
+
     /**
      * Consolidates all of the lineages found in an APK into one lineage, which is the longest one.
      * In so doing, it also checks that all of the smaller lineages are contained in the largest,
@@ -935,22 +965,34 @@ public class SigningCertificateLineage {
      */
     public static class SignerConfig {
         private final PrivateKey mPrivateKey;
+        private final BatchSigner mBatchSigner;
         private final X509Certificate mCertificate;
 
         private SignerConfig(
                 PrivateKey privateKey,
+                BatchSigner batchSigner,
                 X509Certificate certificate) {
             mPrivateKey = privateKey;
+            mBatchSigner = batchSigner;
             mCertificate = certificate;
         }
 
         /**
-         * Returns the signing key of this signer.
+         * Returns the signing key of this signer or {@code null} if this signer signs using a
+         * {@link BatchSigner}.
          */
         public PrivateKey getPrivateKey() {
             return mPrivateKey;
         }
 
+        /**
+         * Returns the signer which performs the private key operations of this signer or
+         * {@code null} if this signer signs using its {@link #getPrivateKey() private key}.
+         */
+        public BatchSigner getBatchSigner() {
+            return mBatchSigner;
+        }
+
         /**
          * Returns the certificate(s) of this signer. The first certificate's public key corresponds
          * to this signer's private key.
@@ -964,6 +1006,7 @@ public class SigningCertificateLineage {
          */
         public static class Builder {
             private final PrivateKey mPrivateKey;
+            private final BatchSigner mBatchSigner;
             private final X509Certificate mCertificate;
 
             /**
@@ -977,6 +1020,26 @@ public class SigningCertificateLineage {
                     PrivateKey privateKey,
                     X509Certificate certificate) {
                 mPrivateKey = privateKey;
+                mBatchSigner = null;
+                mCertificate = certificate;
+            }
+
+            /**
+             * Constructs a new {@code Builder} for a signer whose private key operations are
+             * performed by the provided {@link BatchSigner}.
+             *
+             * @param batchSigner signer which signs using the private key corresponding to the
+             * subject public key of the {@code certificate}
+             * @param certificate the X.509 certificate of the signer
+             */
+            public Builder(
+                    BatchSigner batchSigner,
+                    X509Certificate certificate) {
+                if (batchSigner == null) {
+                    throw new NullPointerException("batchSigner == null");
+                }
+                mPrivateKey = null;
+                mBatchSigner = batchSigner;
                 mCertificate = certificate;
             }
 
@@ -987,6 +1050,7 @@ public class SigningCertificateLineage {
             public SignerConfig build() {
                 return new SignerConfig(
                         mPrivateKey,
+                        mBatchSigner,
                         mCertificate);
             }
         }
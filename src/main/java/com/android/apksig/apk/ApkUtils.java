@@ -17,19 +17,27 @@
 package com.android.apksig.apk;
 
 import com.android.apksig.internal.apk.AndroidBinXmlParser;
+import com.android.apksig.internal.apk.AndroidBinXmlParser.AttributeValue;
+import com.android.apksig.internal.apk.AndroidBinXmlParser.XmlParserException;
+import com.android.apksig.internal.apk.AndroidBinXmlQuery;
 import com.android.apksig.internal.apk.v1.V1SchemeVerifier;
 import com.android.apksig.internal.util.Pair;
+import com.android.apksig.internal.util.VerityTreeBuilder;
 import com.android.apksig.internal.zip.CentralDirectoryRecord;
 import com.android.apksig.internal.zip.LocalFileRecord;
 import com.android.apksig.internal.zip.ZipUtils;
+import com.android.apksig.util.DataSink;
 import com.android.apksig.util.DataSource;
 import com.android.apksig.zip.ZipFormatException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * APK utilities.
@@ -271,6 +279,53 @@ public abstract class ApkUtils {
         }
     }
 
+    /**
+     * Outputs the verity tree of the provided APK into {@code treeOut} and returns the tree's root
+     * hash. This is the tree whose root hash is covered by the {@code VERITY_CHUNKED_SHA256}
+     * content digest of APK Signature Scheme v2 and v3 signatures. The tree is built in a single
+     * pass over the APK using a bounded amount of memory. It is output in the on-disk verity tree
+     * format, from the top level to the bottom level.
+     *
+     * <p>The tree is built as if the APK Signing Block were not present. The APK's contents
+     * preceding the APK Signing Block (or the ZIP Central Directory if there is no APK Signing
+     * Block) must be aligned to 4 KB.
+     *
+     * @throws IOException if an I/O error occurs while reading the APK or outputting the tree
+     * @throws ApkFormatException if the APK is malformed or not aligned as required
+     * @throws NoSuchAlgorithmException if SHA-256 is not supported
+     */
+    public static byte[] generateVerityTree(DataSource apk, DataSink treeOut)
+            throws IOException, ApkFormatException, NoSuchAlgorithmException {
+        ZipSections zipSections;
+        try {
+            zipSections = findZipSections(apk);
+        } catch (ZipFormatException e) {
+            throw new ApkFormatException("Not a valid ZIP archive", e);
+        }
+        long beforeApkSigningBlockSize;
+        try {
+            beforeApkSigningBlockSize = findApkSigningBlock(apk, zipSections).getStartOffset();
+        } catch (ApkSigningBlockNotFoundException e) {
+            beforeApkSigningBlockSize = zipSections.getZipCentralDirectoryOffset();
+        }
+        if (beforeApkSigningBlockSize % 4096 != 0) {
+            throw new ApkFormatException(
+                    "APK Signing Block offset not a multiple of 4096: "
+                            + beforeApkSigningBlockSize);
+        }
+        // Salt consistent with the one used for APK Signature Scheme v2 and v3 signatures
+        VerityTreeBuilder builder = new VerityTreeBuilder(new byte[8]);
+        return builder.generateVerityTree(
+                apk.slice(0, beforeApkSigningBlockSize),
+                apk.slice(
+                        zipSections.getZipCentralDirectoryOffset(),
+                        zipSections.getZipCentralDirectorySizeBytes()),
+                apk.slice(
+                        zipSections.getZipEndOfCentralDirectoryOffset(),
+                        apk.size() - zipSections.getZipEndOfCentralDirectoryOffset()),
+                treeOut);
+    }
+
     /**
      * Returns the contents of the APK's {@code AndroidManifest.xml}.
      *
@@ -319,75 +374,284 @@ public abstract class ApkUtils {
     private static final int DEBUGGABLE_ATTR_ID = 0x0101000f;
 
     /**
-     * Returns the lowest Android platform version (API Level) supported by an APK with the
-     * provided {@code AndroidManifest.xml}.
+     * Android resource ID of the {@code android:targetSandboxVersion} attribute in
+     * AndroidManifest.xml.
+     */
+    private static final int TARGET_SANDBOX_VERSION_ATTR_ID = 0x0101054c;
+
+    /**
+     * Attribute of an APK's {@code AndroidManifest.xml} which can be obtained using
+     * {@link #getAndroidManifestAttributes(ByteBuffer, Set)}.
+     */
+    public enum AndroidManifestAttribute {
+        /** See {@link AndroidManifestAttributes#getMinSdkVersion()}. */
+        MIN_SDK_VERSION,
+
+        /** See {@link AndroidManifestAttributes#isDebuggable()}. */
+        DEBUGGABLE,
+
+        /** See {@link AndroidManifestAttributes#getPackageName()}. */
+        PACKAGE_NAME,
+
+        /** See {@link AndroidManifestAttributes#getTargetSandboxVersion()}. */
+        TARGET_SANDBOX_VERSION,
+    }
+
+    /**
+     * Returns the requested attributes of an APK with the provided {@code AndroidManifest.xml}.
+     * The manifest is parsed at most once, and parsing stops as soon as all requested attributes
+     * have been found. Errors are reported by the methods of the returned object which obtain the
+     * affected attributes.
      *
      * @param androidManifestContents contents of {@code AndroidManifest.xml} in binary Android
      *        resource format
-     *
-     * @throws MinSdkVersionException if an error occurred while determining the API Level
      */
-    public static int getMinSdkVersionFromBinaryAndroidManifest(
-            ByteBuffer androidManifestContents) throws MinSdkVersionException {
-        // IMPLEMENTATION NOTE: Minimum supported Android platform version number is declared using
-        // uses-sdk elements which are children of the top-level manifest element. uses-sdk element
-        // declares the minimum supported platform version using the android:minSdkVersion attribute
-        // whose default value is 1.
-        // For each encountered uses-sdk element, the Android runtime checks that its minSdkVersion
-        // is not higher than the runtime's API Level and rejects APKs if it is higher. Thus, the
-        // effective minSdkVersion value is the maximum over the encountered minSdkVersion values.
+    public static AndroidManifestAttributes getAndroidManifestAttributes(
+            ByteBuffer androidManifestContents, Set<AndroidManifestAttribute> attributes) {
+        AndroidBinXmlQuery query = new AndroidBinXmlQuery();
+        int[] queryIndices = new int[AndroidManifestAttribute.values().length];
+        Arrays.fill(queryIndices, -1);
+        for (AndroidManifestAttribute attribute : attributes) {
+            int queryIndex;
+            switch (attribute) {
+                case MIN_SDK_VERSION:
+                    queryIndex =
+                            query.addAttributeOfEachElement("*/uses-sdk", MIN_SDK_VERSION_ATTR_ID);
+                    break;
+                case DEBUGGABLE:
+                    queryIndex =
+                            query.addAttributeOfFirstElement("*/application", DEBUGGABLE_ATTR_ID);
+                    break;
+                case PACKAGE_NAME:
+                    queryIndex = query.addAttributeOfFirstElement("manifest", "package");
+                    break;
+                case TARGET_SANDBOX_VERSION:
+                    queryIndex =
+                            query.addAttributeOfFirstElement(
+                                    "manifest", TARGET_SANDBOX_VERSION_ATTR_ID);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported attribute: " + attribute);
+            }
+            queryIndices[attribute.ordinal()] = queryIndex;
+        }
+        return new AndroidManifestAttributes(query.run(androidManifestContents), queryIndices);
+    }
 
-        try {
-            // If no uses-sdk elements are encountered, Android accepts the APK. We treat this
-            // scenario as though the minimum supported API Level is 1.
-            int result = 1;
-
-            AndroidBinXmlParser parser = new AndroidBinXmlParser(androidManifestContents);
-            int eventType = parser.getEventType();
-            while (eventType != AndroidBinXmlParser.EVENT_END_DOCUMENT) {
-                if ((eventType == AndroidBinXmlParser.EVENT_START_ELEMENT)
-                        && (parser.getDepth() == 2)
-                        && ("uses-sdk".equals(parser.getName()))
-                        && (parser.getNamespace().isEmpty())) {
+    /**
+     * Attributes of an APK's {@code AndroidManifest.xml} obtained using
+     * {@link #getAndroidManifestAttributes(ByteBuffer, Set)}. Methods for attributes which were
+     * not requested throw {@link IllegalStateException}.
+     */
+    public static class AndroidManifestAttributes {
+        private final AndroidBinXmlQuery.Result mQueryResult;
+        private final int[] mQueryIndices;
+
+        private AndroidManifestAttributes(
+                AndroidBinXmlQuery.Result queryResult, int[] queryIndices) {
+            mQueryResult = queryResult;
+            mQueryIndices = queryIndices;
+        }
+
+        private List<AttributeValue> getValues(AndroidManifestAttribute attribute)
+                throws XmlParserException {
+            int queryIndex = mQueryIndices[attribute.ordinal()];
+            if (queryIndex == -1) {
+                throw new IllegalStateException(attribute + " not requested");
+            }
+            return mQueryResult.getValues(queryIndex);
+        }
+
+        /**
+         * Returns the lowest Android platform version (API Level) supported by the APK.
+         *
+         * @throws MinSdkVersionException if an error occurred while determining the API Level
+         */
+        public int getMinSdkVersion() throws MinSdkVersionException {
+            // IMPLEMENTATION NOTE: Minimum supported Android platform version number is declared
+            // using uses-sdk elements which are children of the top-level manifest element. uses-sdk
+            // element declares the minimum supported platform version using the
+            // android:minSdkVersion attribute whose default value is 1.
+            // For each encountered uses-sdk element, the Android runtime checks that its
+            // minSdkVersion is not higher than the runtime's API Level and rejects APKs if it is
+            // higher. Thus, the effective minSdkVersion value is the maximum over the encountered
+            // minSdkVersion values.
+
+            try {
+                // If no uses-sdk elements are encountered, Android accepts the APK. We treat this
+                // scenario as though the minimum supported API Level is 1.
+                int result = 1;
+
+                for (AttributeValue value : getValues(AndroidManifestAttribute.MIN_SDK_VERSION)) {
                     // In each uses-sdk element, minSdkVersion defaults to 1
                     int minSdkVersion = 1;
-                    for (int i = 0; i < parser.getAttributeCount(); i++) {
-                        if (parser.getAttributeNameResourceId(i) == MIN_SDK_VERSION_ATTR_ID) {
-                            int valueType = parser.getAttributeValueType(i);
-                            switch (valueType) {
-                                case AndroidBinXmlParser.VALUE_TYPE_INT:
-                                    minSdkVersion = parser.getAttributeIntValue(i);
-                                    break;
-                                case AndroidBinXmlParser.VALUE_TYPE_STRING:
-                                    minSdkVersion =
-                                            getMinSdkVersionForCodename(
-                                                    parser.getAttributeStringValue(i));
-                                    break;
-                                default:
-                                    throw new MinSdkVersionException(
-                                            "Unable to determine APK's minimum supported Android"
-                                                    + ": unsupported value type in "
-                                                    + ANDROID_MANIFEST_ZIP_ENTRY_NAME + "'s"
-                                                    + " minSdkVersion"
-                                                    + ". Only integer values supported.");
-                            }
-                            break;
+                    if (value != null) {
+                        switch (value.getType()) {
+                            case AndroidBinXmlParser.VALUE_TYPE_INT:
+                                minSdkVersion = value.getIntValue();
+                                break;
+                            case AndroidBinXmlParser.VALUE_TYPE_STRING:
+                                minSdkVersion =
+                                        getMinSdkVersionForCodename(value.getStringValue());
+                                break;
+                            default:
+                                throw new MinSdkVersionException(
+                                        "Unable to determine APK's minimum supported Android"
+                                                + ": unsupported value type in "
+                                                + ANDROID_MANIFEST_ZIP_ENTRY_NAME + "'s"
+                                                + " minSdkVersion"
+                                                + ". Only integer values supported.");
                         }
                     }
                     result = Math.max(result, minSdkVersion);
                 }
-                eventType = parser.next();
+
+                return result;
+            } catch (XmlParserException e) {
+                throw new MinSdkVersionException(
+                        "Unable to determine APK's minimum supported Android platform version"
+                                + ": malformed binary resource: " + ANDROID_MANIFEST_ZIP_ENTRY_NAME,
+                        e);
+            }
+        }
+
+        /**
+         * Returns {@code true} if the APK is debuggable. See the {@code android:debuggable}
+         * attribute of the {@code application} element.
+         *
+         * @throws ApkFormatException if the manifest is malformed
+         */
+        public boolean isDebuggable() throws ApkFormatException {
+            // IMPLEMENTATION NOTE: Whether the package is debuggable is declared using the first
+            // "application" element which is a child of the top-level manifest element. The
+            // debuggable attribute of this application element is coerced to a boolean value. If
+            // there is no application element or if it doesn't declare the debuggable attribute,
+            // the package is considered not debuggable.
+
+            try {
+                List<AttributeValue> values = getValues(AndroidManifestAttribute.DEBUGGABLE);
+                AttributeValue value = (values.isEmpty()) ? null : values.get(0);
+                if (value == null) {
+                    // No application element found or it does not declare the debuggable
+                    // attribute
+                    return false;
+                }
+                switch (value.getType()) {
+                    case AndroidBinXmlParser.VALUE_TYPE_BOOLEAN:
+                    case AndroidBinXmlParser.VALUE_TYPE_STRING:
+                    case AndroidBinXmlParser.VALUE_TYPE_INT:
+                        String stringValue = value.getStringValue();
+                        return ("true".equals(stringValue))
+                                || ("TRUE".equals(stringValue))
+                                || ("1".equals(stringValue));
+                    case AndroidBinXmlParser.VALUE_TYPE_REFERENCE:
+                        // References to resources are not supported on purpose. The reason is that
+                        // the resolved value depends on the resource configuration (e.g, MNC/MCC,
+                        // locale, screen density) used at resolution time. As a result, the same
+                        // APK may appear as debuggable in one situation and as non-debuggable in
+                        // another situation. Such APKs may put users at risk.
+                        throw new ApkFormatException(
+                                "Unable to determine whether APK is debuggable"
+                                        + ": " + ANDROID_MANIFEST_ZIP_ENTRY_NAME + "'s"
+                                        + " android:debuggable attribute references a"
+                                        + " resource. References are not supported for"
+                                        + " security reasons. Only constant boolean,"
+                                        + " string and int values are supported.");
+                    default:
+                        throw new ApkFormatException(
+                                "Unable to determine whether APK is debuggable"
+                                        + ": " + ANDROID_MANIFEST_ZIP_ENTRY_NAME + "'s"
+                                        + " android:debuggable attribute uses"
+                                        + " unsupported value type. Only boolean,"
+                                        + " string and int values are supported.");
+                }
+            } catch (XmlParserException e) {
+                throw new ApkFormatException(
+                        "Unable to determine whether APK is debuggable: malformed binary resource: "
+                                + ANDROID_MANIFEST_ZIP_ENTRY_NAME,
+                        e);
             }
+        }
 
-            return result;
-        } catch (AndroidBinXmlParser.XmlParserException e) {
-            throw new MinSdkVersionException(
-                    "Unable to determine APK's minimum supported Android platform version"
-                            + ": malformed binary resource: " + ANDROID_MANIFEST_ZIP_ENTRY_NAME,
-                    e);
+        /**
+         * Returns the package name of the APK or {@code null} if package name is not declared.
+         * See the {@code package} attribute of the {@code manifest} element.
+         *
+         * @throws ApkFormatException if the manifest is malformed
+         */
+        public String getPackageName() throws ApkFormatException {
+            // IMPLEMENTATION NOTE: Package name is declared as the "package" attribute of the
+            // top-level manifest element. Interestingly, as opposed to most other attributes,
+            // Android Package Manager looks up this attribute by its name rather than by its
+            // resource ID.
+
+            try {
+                List<AttributeValue> values = getValues(AndroidManifestAttribute.PACKAGE_NAME);
+                AttributeValue value = (values.isEmpty()) ? null : values.get(0);
+                // No manifest element found or it does not declare the "package" attribute
+                return (value != null) ? value.getStringValue() : null;
+            } catch (XmlParserException e) {
+                throw new ApkFormatException(
+                        "Unable to determine APK package name: malformed binary resource: "
+                                + ANDROID_MANIFEST_ZIP_ENTRY_NAME,
+                        e);
+            }
+        }
+
+        /**
+         * Returns the security sandbox version targeted by the APK. See the
+         * {@code android:targetSandboxVersion} attribute of the {@code manifest} element.
+         *
+         * @throws ApkFormatException if an error occurred while determining the version
+         */
+        public int getTargetSandboxVersion() throws ApkFormatException {
+            try {
+                List<AttributeValue> values =
+                        getValues(AndroidManifestAttribute.TARGET_SANDBOX_VERSION);
+                if (values.isEmpty()) {
+                    throw new ApkFormatException(
+                            "Failed to determine APK's target sandbox version"
+                                    + " : no manifest element in AndroidManifest.xml");
+                }
+                AttributeValue value = values.get(0);
+                if (value == null) {
+                    // In each manifest element, targetSandboxVersion defaults to 1
+                    return 1;
+                }
+                if (value.getType() != AndroidBinXmlParser.VALUE_TYPE_INT) {
+                    throw new ApkFormatException(
+                            "Failed to determine APK's target sandbox version"
+                                    + ": unsupported value type of AndroidManifest.xml"
+                                    + " android:targetSandboxVersion"
+                                    + ". Only integer values supported.");
+                }
+                return value.getIntValue();
+            } catch (XmlParserException e) {
+                throw new ApkFormatException(
+                        "Failed to determine APK's target sandbox version"
+                                + ": malformed AndroidManifest.xml",
+                        e);
+            }
         }
     }
 
+    /**
+     * Returns the lowest Android platform version (API Level) supported by an APK with the
+     * provided {@code AndroidManifest.xml}.
+     *
+     * @param androidManifestContents contents of {@code AndroidManifest.xml} in binary Android
+     *        resource format
+     *
+     * @throws MinSdkVersionException if an error occurred while determining the API Level
+     */
+    public static int getMinSdkVersionFromBinaryAndroidManifest(
+            ByteBuffer androidManifestContents) throws MinSdkVersionException {
+        return getAndroidManifestAttributes(
+                        androidManifestContents,
+                        EnumSet.of(AndroidManifestAttribute.MIN_SDK_VERSION))
+                .getMinSdkVersion();
+    }
+
     private static class CodenamesLazyInitializer {
 
         /**
@@ -491,69 +755,9 @@ public abstract class ApkUtils {
      */
     public static boolean getDebuggableFromBinaryAndroidManifest(
             ByteBuffer androidManifestContents) throws ApkFormatException {
-        // IMPLEMENTATION NOTE: Whether the package is debuggable is declared using the first
-        // "application" element which is a child of the top-level manifest element. The debuggable
-        // attribute of this application element is coerced to a boolean value. If there is no
-        // application element or if it doesn't declare the debuggable attribute, the package is
-        // considered not debuggable.
-
-        try {
-            AndroidBinXmlParser parser = new AndroidBinXmlParser(androidManifestContents);
-            int eventType = parser.getEventType();
-            while (eventType != AndroidBinXmlParser.EVENT_END_DOCUMENT) {
-                if ((eventType == AndroidBinXmlParser.EVENT_START_ELEMENT)
-                        && (parser.getDepth() == 2)
-                        && ("application".equals(parser.getName()))
-                        && (parser.getNamespace().isEmpty())) {
-                    for (int i = 0; i < parser.getAttributeCount(); i++) {
-                        if (parser.getAttributeNameResourceId(i) == DEBUGGABLE_ATTR_ID) {
-                            int valueType = parser.getAttributeValueType(i);
-                            switch (valueType) {
-                                case AndroidBinXmlParser.VALUE_TYPE_BOOLEAN:
-                                case AndroidBinXmlParser.VALUE_TYPE_STRING:
-                                case AndroidBinXmlParser.VALUE_TYPE_INT:
-                                    String value = parser.getAttributeStringValue(i);
-                                    return ("true".equals(value))
-                                            || ("TRUE".equals(value))
-                                            || ("1".equals(value));
-                                case AndroidBinXmlParser.VALUE_TYPE_REFERENCE:
-                                    // References to resources are not supported on purpose. The
-                                    // reason is that the resolved value depends on the resource
-                                    // configuration (e.g, MNC/MCC, locale, screen density) used
-                                    // at resolution time. As a result, the same APK may appear as
-                                    // debuggable in one situation and as non-debuggable in another
-                                    // situation. Such APKs may put users at risk.
-                                    throw new ApkFormatException(
-                                            "Unable to determine whether APK is debuggable"
-                                                    + ": " + ANDROID_MANIFEST_ZIP_ENTRY_NAME + "'s"
-                                                    + " android:debuggable attribute references a"
-                                                    + " resource. References are not supported for"
-                                                    + " security reasons. Only constant boolean,"
-                                                    + " string and int values are supported.");
-                                default:
-                                    throw new ApkFormatException(
-                                            "Unable to determine whether APK is debuggable"
-                                                    + ": " + ANDROID_MANIFEST_ZIP_ENTRY_NAME + "'s"
-                                                    + " android:debuggable attribute uses"
-                                                    + " unsupported value type. Only boolean,"
-                                                    + " string and int values are supported.");
-                            }
-                        }
-                    }
-                    // This application element does not declare the debuggable attribute
-                    return false;
-                }
-                eventType = parser.next();
-            }
-
-            // No application element found
-            return false;
-        } catch (AndroidBinXmlParser.XmlParserException e) {
-            throw new ApkFormatException(
-                    "Unable to determine whether APK is debuggable: malformed binary resource: "
-                            + ANDROID_MANIFEST_ZIP_ENTRY_NAME,
-                    e);
-        }
+        return getAndroidManifestAttributes(
+                        androidManifestContents, EnumSet.of(AndroidManifestAttribute.DEBUGGABLE))
+                .isDebuggable();
     }
 
     /**
@@ -568,37 +772,8 @@ public abstract class ApkUtils {
      */
     public static String getPackageNameFromBinaryAndroidManifest(
             ByteBuffer androidManifestContents) throws ApkFormatException {
-        // IMPLEMENTATION NOTE: Package name is declared as the "package" attribute of the top-level
-        // manifest element. Interestingly, as opposed to most other attributes, Android Package
-        // Manager looks up this attribute by its name rather than by its resource ID.
-
-        try {
-            AndroidBinXmlParser parser = new AndroidBinXmlParser(androidManifestContents);
-            int eventType = parser.getEventType();
-            while (eventType != AndroidBinXmlParser.EVENT_END_DOCUMENT) {
-                if ((eventType == AndroidBinXmlParser.EVENT_START_ELEMENT)
-                        && (parser.getDepth() == 1)
-                        && ("manifest".equals(parser.getName()))
-                        && (parser.getNamespace().isEmpty())) {
-                    for (int i = 0; i < parser.getAttributeCount(); i++) {
-                        if ("package".equals(parser.getAttributeName(i))
-                                && (parser.getNamespace().isEmpty())) {
-                            return parser.getAttributeStringValue(i);
-                        }
-                    }
-                    // No "package" attribute found
-                    return null;
-                }
-                eventType = parser.next();
-            }
-
-            // No manifest element found
-            return null;
-        } catch (AndroidBinXmlParser.XmlParserException e) {
-            throw new ApkFormatException(
-                    "Unable to determine APK package name: malformed binary resource: "
-                            + ANDROID_MANIFEST_ZIP_ENTRY_NAME,
-                    e);
-        }
+        return getAndroidManifestAttributes(
+                        androidManifestContents, EnumSet.of(AndroidManifestAttribute.PACKAGE_NAME))
+                .getPackageName();
     }
 }
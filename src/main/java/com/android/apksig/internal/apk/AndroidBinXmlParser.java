@@ -20,9 +20,7 @@ import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  * XML pull style parser of Android binary XML resources, such as {@code AndroidManifest.xml}.
@@ -198,20 +196,18 @@ public class AndroidBinXmlParser {
      * @throws XmlParserException if a parsing error is occurred
      */
     public int getAttributeValueType(int index) throws XmlParserException {
-        int type = getAttribute(index).getValueType();
-        switch (type) {
-            case Attribute.TYPE_STRING:
-                return VALUE_TYPE_STRING;
-            case Attribute.TYPE_INT_DEC:
-            case Attribute.TYPE_INT_HEX:
-                return VALUE_TYPE_INT;
-            case Attribute.TYPE_REFERENCE:
-                return VALUE_TYPE_REFERENCE;
-            case Attribute.TYPE_INT_BOOLEAN:
-                return VALUE_TYPE_BOOLEAN;
-            default:
-                return VALUE_TYPE_UNSUPPORTED;
-        }
+        return getAttribute(index).getPublicValueType();
+    }
+
+    /**
+     * Returns the value of the specified attribute of the current element. The value remains
+     * accessible after this parser advances to other events.
+     *
+     * @throws IndexOutOfBoundsException if the index is out of range or the current event is not a
+     *         {@code start element} event
+     */
+    public AttributeValue getAttributeValue(int index) {
+        return new AttributeValue(getAttribute(index));
     }
 
     /**
@@ -444,6 +440,25 @@ public class AndroidBinXmlParser {
             return mValueType;
         }
 
+        /**
+         * Returns the value type of this attribute. See {@code VALUE_TYPE_...} constants.
+         */
+        public int getPublicValueType() {
+            switch (mValueType) {
+                case TYPE_STRING:
+                    return VALUE_TYPE_STRING;
+                case TYPE_INT_DEC:
+                case TYPE_INT_HEX:
+                    return VALUE_TYPE_INT;
+                case TYPE_REFERENCE:
+                    return VALUE_TYPE_REFERENCE;
+                case TYPE_INT_BOOLEAN:
+                    return VALUE_TYPE_BOOLEAN;
+                default:
+                    return VALUE_TYPE_UNSUPPORTED;
+            }
+        }
+
         public int getIntValue() throws XmlParserException {
             switch (mValueType) {
                 case TYPE_REFERENCE:
@@ -485,6 +500,38 @@ public class AndroidBinXmlParser {
         }
     }
 
+    /**
+     * Value of an attribute of an element. Unlike the {@code getAttribute...Value} methods of the
+     * parser, this value can be accessed after the parser advanced past the element. String values
+     * are decoded only when requested.
+     */
+    public static class AttributeValue {
+        private final Attribute mAttribute;
+
+        private AttributeValue(Attribute attribute) {
+            mAttribute = attribute;
+        }
+
+        /**
+         * Returns the type of this value. See {@code VALUE_TYPE_...} constants.
+         */
+        public int getType() {
+            return mAttribute.getPublicValueType();
+        }
+
+        public int getIntValue() throws XmlParserException {
+            return mAttribute.getIntValue();
+        }
+
+        public boolean getBooleanValue() throws XmlParserException {
+            return mAttribute.getBooleanValue();
+        }
+
+        public String getStringValue() throws XmlParserException {
+            return mAttribute.getStringValue();
+        }
+    }
+
     /**
      * Chunk of a document. Each chunk is tagged with a type and consists of a header followed by
      * contents.
@@ -577,7 +624,7 @@ public class AndroidBinXmlParser {
         private final ByteBuffer mStringsSection;
         private final int mStringCount;
         private final boolean mUtf8Encoded;
-        private final Map<Integer, String> mCachedStrings = new HashMap<>();
+        private String[] mCachedStrings;
 
         /**
          * Constructs a new string pool from the provided chunk.
@@ -649,7 +696,13 @@ public class AndroidBinXmlParser {
             }
 
             int idx = (int) index;
-            String result = mCachedStrings.get(idx);
+            if (mCachedStrings == null) {
+                // Each string has a 4-byte offset in the chunk. The string count of a malformed
+                // pool may exceed the number of offsets present.
+                mCachedStrings =
+                        new String[Math.min(mStringCount, mChunkContents.capacity() / 4)];
+            }
+            String result = (idx < mCachedStrings.length) ? mCachedStrings[idx] : null;
             if (result != null) {
                 return result;
             }
@@ -665,7 +718,9 @@ public class AndroidBinXmlParser {
                     (mUtf8Encoded)
                             ? getLengthPrefixedUtf8EncodedString(mStringsSection)
                             : getLengthPrefixedUtf16EncodedString(mStringsSection);
-            mCachedStrings.put(idx, result);
+            if (idx < mCachedStrings.length) {
+                mCachedStrings[idx] = result;
+            }
             return result;
         }
 
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.apk;
+
+import com.android.apksig.internal.apk.AndroidBinXmlParser.AttributeValue;
+import com.android.apksig.internal.apk.AndroidBinXmlParser.XmlParserException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Query which extracts attributes of elements of an Android binary XML document, such as
+ * {@code AndroidManifest.xml}, in a single pass over the document.
+ *
+ * <p>Each queried attribute is identified by the path of its element and by the resource ID or
+ * name of the attribute. The query stops parsing the document as soon as all queried attributes
+ * have been found. Strings, such as string values of attributes, are decoded only when requested.
+ */
+public class AndroidBinXmlQuery {
+    private final List<Target> mTargets = new ArrayList<>();
+
+    /**
+     * Adds the attribute with the provided resource ID of the first element at the provided path
+     * to this query and returns the index of the attribute in the {@link Result}.
+     *
+     * @param elementPath {@code /}-separated names of the elements leading from the root element
+     *        to the element, for example, {@code manifest/application}. {@code *} matches an
+     *        element with any name. Elements must not be associated with a namespace.
+     */
+    public int addAttributeOfFirstElement(String elementPath, int attributeResourceId) {
+        return addTarget(new Target(elementPath, attributeResourceId, null, false));
+    }
+
+    /**
+     * Adds the attribute with the provided name, not associated with a resource ID, of the first
+     * element at the provided path to this query and returns the index of the attribute in the
+     * {@link Result}.
+     *
+     * @see #addAttributeOfFirstElement(String, int)
+     */
+    public int addAttributeOfFirstElement(String elementPath, String attributeName) {
+        return addTarget(new Target(elementPath, 0, attributeName, false));
+    }
+
+    /**
+     * Adds the attribute with the provided resource ID of each element at the provided path to
+     * this query and returns the index of the attribute in the {@link Result}. Querying such an
+     * attribute requires parsing the whole document.
+     *
+     * @see #addAttributeOfFirstElement(String, int)
+     */
+    public int addAttributeOfEachElement(String elementPath, int attributeResourceId) {
+        return addTarget(new Target(elementPath, attributeResourceId, null, true));
+    }
+
+    private int addTarget(Target target) {
+        mTargets.add(target);
+        return mTargets.size() - 1;
+    }
+
+    /**
+     * Runs this query against the provided document. Parsing errors do not cause this method to
+     * fail. Instead, attributes not found before the error are reported as incomplete by the
+     * returned result.
+     */
+    public Result run(ByteBuffer xml) {
+        Result result = new Result(mTargets.size());
+        int pendingFirstElementTargets = 0;
+        for (Target target : mTargets) {
+            if (!target.mEachElement) {
+                pendingFirstElementTargets++;
+            }
+        }
+        boolean eachElementTargets = pendingFirstElementTargets < mTargets.size();
+
+        try {
+            AndroidBinXmlParser parser = new AndroidBinXmlParser(xml);
+            List<String> elementPath = new ArrayList<>();
+            int eventType = parser.getEventType();
+            while (eventType != AndroidBinXmlParser.EVENT_END_DOCUMENT) {
+                if (eventType == AndroidBinXmlParser.EVENT_START_ELEMENT) {
+                    elementPath.add(parser.getName());
+                    for (int i = 0; i < mTargets.size(); i++) {
+                        Target target = mTargets.get(i);
+                        if ((result.mComplete[i])
+                                || (!target.matchesElement(elementPath, parser))) {
+                            continue;
+                        }
+                        result.mValues.get(i).add(target.findAttributeValue(parser));
+                        if (!target.mEachElement) {
+                            result.mComplete[i] = true;
+                            pendingFirstElementTargets--;
+                        }
+                    }
+                    if ((pendingFirstElementTargets == 0) && (!eachElementTargets)) {
+                        // All queried attributes found
+                        return result;
+                    }
+                } else if (eventType == AndroidBinXmlParser.EVENT_END_ELEMENT) {
+                    elementPath.remove(elementPath.size() - 1);
+                }
+                eventType = parser.next();
+            }
+            for (int i = 0; i < mTargets.size(); i++) {
+                // Targets not found are complete once the whole document has been parsed
+                result.mComplete[i] = true;
+            }
+        } catch (XmlParserException e) {
+            result.mParserException = e;
+        }
+        return result;
+    }
+
+    /**
+     * Result of running a query.
+     */
+    public static class Result {
+        private final List<List<AttributeValue>> mValues;
+        private final boolean[] mComplete;
+        private XmlParserException mParserException;
+
+        private Result(int targetCount) {
+            mValues = new ArrayList<>(targetCount);
+            for (int i = 0; i < targetCount; i++) {
+                mValues.add(new ArrayList<>(1));
+            }
+            mComplete = new boolean[targetCount];
+        }
+
+        /**
+         * Returns the values of the attribute with the provided index, one for each matching
+         * element in document order. A value is {@code null} if the matching element does not
+         * declare the attribute. For an attribute of the first element, the list is empty if no
+         * such element was found.
+         *
+         * @throws XmlParserException if the document could not be parsed far enough to find all
+         *         values of the attribute
+         */
+        public List<AttributeValue> getValues(int index) throws XmlParserException {
+            if (!mComplete[index]) {
+                // Parsing stops before all values have been found only if it fails
+                throw mParserException;
+            }
+            return mValues.get(index);
+        }
+    }
+
+    private static class Target {
+        private static final String ANY_NAME = "*";
+
+        private final String[] mElementPath;
+        private final int mAttributeResourceId;
+        private final String mAttributeName;
+        private final boolean mEachElement;
+
+        private Target(
+                String elementPath,
+                int attributeResourceId,
+                String attributeName,
+                boolean eachElement) {
+            mElementPath = elementPath.split("/");
+            mAttributeResourceId = attributeResourceId;
+            mAttributeName = attributeName;
+            mEachElement = eachElement;
+        }
+
+        private boolean matchesElement(List<String> elementPath, AndroidBinXmlParser parser) {
+            if (elementPath.size() != mElementPath.length) {
+                return false;
+            }
+            for (int i = mElementPath.length - 1; i >= 0; i--) {
+                if ((!ANY_NAME.equals(mElementPath[i]))
+                        && (!mElementPath[i].equals(elementPath.get(i)))) {
+                    return false;
+                }
+            }
+            return parser.getNamespace().isEmpty();
+        }
+
+        private AttributeValue findAttributeValue(AndroidBinXmlParser parser)
+                throws XmlParserException {
+            for (int i = 0; i < parser.getAttributeCount(); i++) {
+                if (mAttributeName != null) {
+                    if (mAttributeName.equals(parser.getAttributeName(i))) {
+                        return parser.getAttributeValue(i);
+                    }
+                } else if (parser.getAttributeNameResourceId(i) == mAttributeResourceId) {
+                    return parser.getAttributeValue(i);
+                }
+            }
+            return null;
+        }
+    }
+}
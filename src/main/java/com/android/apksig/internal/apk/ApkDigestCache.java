@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.apk;
+
+import com.android.apksig.internal.util.Pair;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Digests of an APK's contents shared between verifications of the same APK for multiple Android
+ * platform version ranges.
+ *
+ * <p>Whenever a digest of a JAR entry is missing from this cache, the digests needed by any of the
+ * ranges are computed in the same pass over the entry's data. Thus, each JAR entry is read at most
+ * once, regardless of the number of ranges.
+ *
+ * <p>Whenever a content digest is missing from this cache, the digests listed by the signers of
+ * the APK signature scheme being verified are computed in the same pass over the APK's contents.
+ * The signers of other schemes are not known at that point. Thus, the APK's contents outside of
+ * the APK Signing Block are read once per scheme whose signers need digests not yet in this cache,
+ * for example, twice if only the v2 signers use
+ * {@link ContentDigestAlgorithm#VERITY_CHUNKED_SHA256}.
+ *
+ * <p>This class is not thread-safe.
+ */
+public class ApkDigestCache {
+    private final List<Pair<Integer, Integer>> mSdkVersionRanges;
+    private final int mMaxSdkVersion;
+
+    private final Map<ContentDigestAlgorithm, byte[]> mContentDigests = new HashMap<>();
+    private final Map<String, Map<String, byte[]>> mEntryDigests = new HashMap<>();
+
+    /**
+     * Constructs a new cache for verifications of the provided
+     * {@code [minSdkVersion, maxSdkVersion]} ranges.
+     */
+    public ApkDigestCache(List<Pair<Integer, Integer>> sdkVersionRanges) {
+        if (sdkVersionRanges.isEmpty()) {
+            throw new IllegalArgumentException("No platform version ranges");
+        }
+        int maxSdkVersion = 0;
+        for (Pair<Integer, Integer> range : sdkVersionRanges) {
+            maxSdkVersion = Math.max(maxSdkVersion, range.getSecond());
+        }
+        mSdkVersionRanges = Collections.unmodifiableList(sdkVersionRanges);
+        mMaxSdkVersion = maxSdkVersion;
+    }
+
+    /**
+     * Returns the {@code [minSdkVersion, maxSdkVersion]} ranges for which the APK is verified.
+     */
+    public List<Pair<Integer, Integer>> getSdkVersionRanges() {
+        return mSdkVersionRanges;
+    }
+
+    /**
+     * Returns the content digests of the APK computed so far.
+     */
+    public Map<ContentDigestAlgorithm, byte[]> getContentDigests() {
+        return Collections.unmodifiableMap(mContentDigests);
+    }
+
+    /**
+     * Returns the content digest algorithms to compute when the provided algorithms are needed, or
+     * an empty set if their digests have already been computed. The algorithms to compute are the
+     * provided algorithms and the algorithms of the digests listed by the provided signers which
+     * are supported on any of the platform versions of this cache, except for the algorithms whose
+     * digests have already been computed.
+     */
+    public Set<ContentDigestAlgorithm> getContentDigestAlgorithmsToCompute(
+            Set<ContentDigestAlgorithm> digestAlgorithms,
+            List<ApkSigningBlockUtils.Result.SignerInfo> signers) {
+        if (mContentDigests.keySet().containsAll(digestAlgorithms)) {
+            return Collections.emptySet();
+        }
+        Set<ContentDigestAlgorithm> result = new HashSet<>(digestAlgorithms);
+        for (ApkSigningBlockUtils.Result.SignerInfo signer : signers) {
+            for (ApkSigningBlockUtils.Result.SignerInfo.ContentDigest digest
+                    : signer.contentDigests) {
+                SignatureAlgorithm signatureAlgorithm =
+                        SignatureAlgorithm.findById(digest.getSignatureAlgorithmId());
+                if ((signatureAlgorithm != null)
+                        && (signatureAlgorithm.getMinSdkVersion() <= mMaxSdkVersion)) {
+                    result.add(signatureAlgorithm.getContentDigestAlgorithm());
+                }
+            }
+        }
+        result.removeAll(mContentDigests.keySet());
+        return result;
+    }
+
+    /**
+     * Adds the provided content digests of the APK to this cache.
+     */
+    public void putContentDigests(Map<ContentDigestAlgorithm, byte[]> contentDigests) {
+        mContentDigests.putAll(contentDigests);
+    }
+
+    /**
+     * Returns the cached digests of the uncompressed data of the provided JAR entry, keyed by JCA
+     * digest algorithm, or {@code null} if none have been computed yet.
+     */
+    public Map<String, byte[]> getEntryDigests(String entryName) {
+        return mEntryDigests.get(entryName);
+    }
+
+    /**
+     * Adds the provided digests of the uncompressed data of the provided JAR entry, keyed by JCA
+     * digest algorithm, to this cache.
+     */
+    public void putEntryDigests(String entryName, Map<String, byte[]> digests) {
+        mEntryDigests.computeIfAbsent(entryName, k -> new HashMap<>()).putAll(digests);
+    }
+}
@@ -23,14 +23,18 @@ import com.android.apksig.apk.ApkSigningBlockNotFoundException;
 import com.android.apksig.apk.ApkUtils;
 import com.android.apksig.internal.util.ByteBufferDataSource;
 import com.android.apksig.internal.util.ChainedDataSource;
+import com.android.apksig.internal.util.CryptoFactory;
 import com.android.apksig.internal.util.Pair;
+import com.android.apksig.internal.util.PhaseTracker;
+import com.android.apksig.internal.util.ProgressReporter;
 import com.android.apksig.internal.util.VerityTreeBuilder;
 import com.android.apksig.internal.zip.ZipUtils;
+import com.android.apksig.util.BatchSigner;
 import com.android.apksig.util.DataSink;
 import com.android.apksig.util.DataSinks;
 import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
-
+import com.android.apksig.util.MetricsListener;
 import com.android.apksig.util.RunnablesExecutor;
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
@@ -39,7 +43,6 @@ import java.nio.ByteOrder;
 import java.security.DigestException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.KeyFactory;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
@@ -53,11 +56,14 @@ import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
@@ -152,9 +158,16 @@ public class ApkSigningBlockUtils {
      * <p>The reason this method is currently not parameterized by a
      * {@code [minSdkVersion, maxSdkVersion]} range is that up until now content digest algorithms
      * exhibit the same behavior on all Android platform versions.
+     *
+     * <p>If {@code digestCache} is not {@code null}, content digests are taken from the cache, and
+     * any missing digests are computed together with the digests needed by the other platform
+     * version ranges of the cache.
      */
     public static void verifyIntegrity(
             RunnablesExecutor executor,
+            MetricsListener metricsListener,
+            ProgressReporter progressReporter,
+            ApkDigestCache digestCache,
             DataSource beforeApkSigningBlock,
             DataSource centralDir,
             ByteBuffer eocd,
@@ -180,15 +193,35 @@ public class ApkSigningBlockUtils {
         ZipUtils.setZipEocdCentralDirectoryOffset(modifiedEocd, beforeApkSigningBlock.size());
         Map<ContentDigestAlgorithm, byte[]> actualContentDigests;
         try {
-            actualContentDigests =
-                    computeContentDigests(
-                            executor,
-                            contentDigestAlgorithms,
-                            beforeApkSigningBlock,
-                            centralDir,
-                            new ByteBufferDataSource(modifiedEocd));
+            if (digestCache == null) {
+                actualContentDigests =
+                        computeContentDigests(
+                                executor,
+                                metricsListener,
+                                progressReporter,
+                                contentDigestAlgorithms,
+                                beforeApkSigningBlock,
+                                centralDir,
+                                new ByteBufferDataSource(modifiedEocd));
+            } else {
+                Set<ContentDigestAlgorithm> digestAlgorithmsToCompute =
+                        digestCache.getContentDigestAlgorithmsToCompute(
+                                contentDigestAlgorithms, result.signers);
+                if (!digestAlgorithmsToCompute.isEmpty()) {
+                    digestCache.putContentDigests(
+                            computeContentDigests(
+                                    executor,
+                                    metricsListener,
+                                    progressReporter,
+                                    digestAlgorithmsToCompute,
+                                    beforeApkSigningBlock,
+                                    centralDir,
+                                    new ByteBufferDataSource(modifiedEocd)));
+                }
+                actualContentDigests = digestCache.getContentDigests();
+            }
             // Special checks for the verity algorithm requirements.
-            if (actualContentDigests.containsKey(ContentDigestAlgorithm.VERITY_CHUNKED_SHA256)) {
+            if (contentDigestAlgorithms.contains(ContentDigestAlgorithm.VERITY_CHUNKED_SHA256)) {
                 if ((beforeApkSigningBlock.size() % ANDROID_COMMON_PAGE_ALIGNMENT_BYTES != 0)) {
                     throw new RuntimeException(
                             "APK Signing Block is not aligned on 4k boundary: " +
@@ -206,7 +239,7 @@ public class ApkSigningBlockUtils {
         } catch (DigestException e) {
             throw new RuntimeException("Failed to compute content digests", e);
         }
-        if (!contentDigestAlgorithms.equals(actualContentDigests.keySet())) {
+        if (!actualContentDigests.keySet().containsAll(contentDigestAlgorithms)) {
             throw new RuntimeException(
                     "Mismatch between sets of requested and computed content digests"
                             + " . Requested: " + contentDigestAlgorithms
@@ -410,6 +443,8 @@ public class ApkSigningBlockUtils {
 
     public static Map<ContentDigestAlgorithm, byte[]> computeContentDigests(
             RunnablesExecutor executor,
+            MetricsListener metricsListener,
+            ProgressReporter progressReporter,
             Set<ContentDigestAlgorithm> digestAlgorithms,
             DataSource beforeCentralDir,
             DataSource centralDir,
@@ -419,14 +454,42 @@ public class ApkSigningBlockUtils {
                 .filter(a -> a == ContentDigestAlgorithm.CHUNKED_SHA256 ||
                              a == ContentDigestAlgorithm.CHUNKED_SHA512)
                 .collect(Collectors.toSet());
-        computeOneMbChunkContentDigests(
-                executor,
-                oneMbChunkBasedAlgorithm,
-                new DataSource[] { beforeCentralDir, centralDir, eocd },
-                contentDigests);
+        long contentSize = beforeCentralDir.size() + centralDir.size() + eocd.size();
+        if (!oneMbChunkBasedAlgorithm.isEmpty()) {
+            PhaseTracker tracker =
+                    PhaseTracker.start(metricsListener, MetricsListener.Phase.CONTENT_DIGESTS);
+            try {
+                computeOneMbChunkContentDigests(
+                        executor,
+                        progressReporter.start(MetricsListener.Phase.CONTENT_DIGESTS, contentSize),
+                        oneMbChunkBasedAlgorithm,
+                        new DataSource[] { beforeCentralDir, centralDir, eocd },
+                        contentDigests);
+                tracker.addBytesRead(contentSize);
+                for (ContentDigestAlgorithm digestAlgorithm : oneMbChunkBasedAlgorithm) {
+                    tracker.addDigestedBytes(digestAlgorithm.name(), contentSize);
+                }
+            } finally {
+                tracker.finish();
+            }
+        }
 
         if (digestAlgorithms.contains(ContentDigestAlgorithm.VERITY_CHUNKED_SHA256)) {
-            computeApkVerityDigest(beforeCentralDir, centralDir, eocd, contentDigests);
+            PhaseTracker tracker =
+                    PhaseTracker.start(metricsListener, MetricsListener.Phase.VERITY_TREE);
+            try {
+                computeApkVerityDigest(
+                        progressReporter.start(MetricsListener.Phase.VERITY_TREE, contentSize),
+                        beforeCentralDir,
+                        centralDir,
+                        eocd,
+                        contentDigests);
+                tracker.addBytesRead(contentSize);
+                tracker.addDigestedBytes(
+                        ContentDigestAlgorithm.VERITY_CHUNKED_SHA256.name(), contentSize);
+            } finally {
+                tracker.finish();
+            }
         }
         return contentDigests;
     }
@@ -472,7 +535,7 @@ public class ApkSigningBlockUtils {
                     chunkCount, concatenationOfChunkCountAndChunkDigests, 1);
             digestsOfChunks[i] = concatenationOfChunkCountAndChunkDigests;
             String jcaAlgorithm = digestAlgorithm.getJcaMessageDigestAlgorithm();
-            mds[i] = MessageDigest.getInstance(jcaAlgorithm);
+            mds[i] = CryptoFactory.getMessageDigest(jcaAlgorithm);
         }
 
         DataSink mdSink = DataSinks.asDataSink(mds);
@@ -540,6 +603,31 @@ public class ApkSigningBlockUtils {
             DataSource[] contents,
             Map<ContentDigestAlgorithm, byte[]> outputContentDigests)
             throws NoSuchAlgorithmException, DigestException {
+        long contentSize = 0;
+        for (DataSource input : contents) {
+            contentSize += input.size();
+        }
+        computeOneMbChunkContentDigests(
+                executor,
+                ProgressReporter.NONE.start(MetricsListener.Phase.CONTENT_DIGESTS, contentSize),
+                digestAlgorithms,
+                contents,
+                outputContentDigests);
+    }
+
+    /**
+     * Computes 1 MB chunk-based digests of the provided contents using the provided executor.
+     *
+     * @throws CancellationException if the operation has been canceled, or if the thread running
+     *         this method or any of the executor's worker threads has been interrupted
+     */
+    static void computeOneMbChunkContentDigests(
+            RunnablesExecutor executor,
+            ProgressReporter.PhaseProgress progress,
+            Set<ContentDigestAlgorithm> digestAlgorithms,
+            DataSource[] contents,
+            Map<ContentDigestAlgorithm, byte[]> outputContentDigests)
+            throws NoSuchAlgorithmException, DigestException {
         long chunkCountLong = 0;
         for (DataSource input : contents) {
             chunkCountLong +=
@@ -555,8 +643,25 @@ public class ApkSigningBlockUtils {
             chunkDigestsList.add(new ChunkDigests(algorithms, chunkCount));
         }
 
-        ChunkSupplier chunkSupplier = new ChunkSupplier(contents);
-        executor.execute(() -> new ChunkDigester(chunkSupplier, chunkDigestsList));
+        // The chunks of an APK read from a stream or output while being built were digested while
+        // the APK streamed past.
+        int precomputedChunkCount = 0;
+        if ((contents.length > 0) && (contents[0] instanceof ChunkDigestedDataSource)) {
+            precomputedChunkCount =
+                    copyPrecomputedChunkDigests(
+                            (ChunkDigestedDataSource) contents[0], chunkDigestsList);
+            if (precomputedChunkCount > 0) {
+                progress.advance(contents[0].size());
+            }
+        }
+
+        ChunkSupplier chunkSupplier = new ChunkSupplier(contents, precomputedChunkCount);
+        executor.execute(() -> new ChunkDigester(chunkSupplier, chunkDigestsList, progress));
+        if (chunkSupplier.isCanceled()) {
+            // A worker stopped early, but the executor did not propagate the worker's exception.
+            throw new CancellationException("Content digest computation canceled");
+        }
+        progress.throwIfCanceled();
 
         // Compute and write out final digest for each algorithm.
         for (ChunkDigests chunkDigests : chunkDigestsList) {
@@ -567,6 +672,33 @@ public class ApkSigningBlockUtils {
         }
     }
 
+    /**
+     * Copies the chunk digests of the provided data source, computed while it was streamed, into
+     * the provided chunk digests and returns the number of chunks copied. Nothing is copied if the
+     * chunk digests of any of the algorithms were not computed.
+     */
+    private static int copyPrecomputedChunkDigests(
+            ChunkDigestedDataSource source, List<ChunkDigests> chunkDigestsList) {
+        List<byte[]> precomputedChunkDigests = new ArrayList<>(chunkDigestsList.size());
+        for (ChunkDigests chunkDigests : chunkDigestsList) {
+            byte[] precomputed = source.getChunkDigests(chunkDigests.algorithm);
+            if (precomputed == null) {
+                return 0;
+            }
+            precomputedChunkDigests.add(precomputed);
+        }
+        for (int i = 0; i < chunkDigestsList.size(); i++) {
+            byte[] precomputed = precomputedChunkDigests.get(i);
+            System.arraycopy(
+                    precomputed,
+                    0,
+                    chunkDigestsList.get(i).concatOfDigestsOfChunks,
+                    chunkDigestsList.get(i).getOffset(0),
+                    precomputed.length);
+        }
+        return (int) getChunkCount(source.size(), CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES);
+    }
+
     private static class ChunkDigests {
         private final ContentDigestAlgorithm algorithm;
         private final int digestOutputSize;
@@ -584,7 +716,7 @@ public class ApkSigningBlockUtils {
         }
 
         private MessageDigest createMessageDigest() throws NoSuchAlgorithmException {
-            return MessageDigest.getInstance(algorithm.getJcaMessageDigestAlgorithm());
+            return CryptoFactory.getMessageDigest(algorithm.getJcaMessageDigestAlgorithm());
         }
 
         private int getOffset(int chunkIndex) {
@@ -600,10 +732,15 @@ public class ApkSigningBlockUtils {
         private final List<ChunkDigests> chunkDigests;
         private final List<MessageDigest> messageDigests;
         private final DataSink mdSink;
+        private final ProgressReporter.PhaseProgress progress;
 
-        private ChunkDigester(ChunkSupplier dataSupplier, List<ChunkDigests> chunkDigests) {
+        private ChunkDigester(
+                ChunkSupplier dataSupplier,
+                List<ChunkDigests> chunkDigests,
+                ProgressReporter.PhaseProgress progress) {
             this.dataSupplier = dataSupplier;
             this.chunkDigests = chunkDigests;
+            this.progress = progress;
             messageDigests = new ArrayList<>(chunkDigests.size());
             for (ChunkDigests chunkDigest : chunkDigests) {
                 try {
@@ -649,7 +786,13 @@ public class ApkSigningBlockUtils {
                                             + " digest: " + actualDigestSize);
                         }
                     }
+
+                    progress.advance(size);
                 }
+            } catch (CancellationException e) {
+                // Stop the other workers too
+                dataSupplier.cancel();
+                throw e;
             } catch (IOException | DigestException e) {
                 throw new RuntimeException(e);
             }
@@ -667,8 +810,13 @@ public class ApkSigningBlockUtils {
         private final int[] chunkCounts;
         private final int totalChunkCount;
         private final AtomicInteger nextIndex;
+        private volatile boolean canceled;
 
-        private ChunkSupplier(DataSource[] dataSources) {
+        /**
+         * Constructs a new supplier of the chunks of the provided data sources, starting with the
+         * chunk at the provided index.
+         */
+        private ChunkSupplier(DataSource[] dataSources, int firstChunkIndex) {
             this.dataSources = dataSources;
             chunkCounts = new int[dataSources.length];
             int totalChunkCount = 0;
@@ -685,7 +833,7 @@ public class ApkSigningBlockUtils {
                 totalChunkCount += chunkCount;
             }
             this.totalChunkCount = totalChunkCount;
-            nextIndex = new AtomicInteger(0);
+            nextIndex = new AtomicInteger(firstChunkIndex);
         }
 
         /**
@@ -696,6 +844,9 @@ public class ApkSigningBlockUtils {
          */
         @Override
         public ChunkSupplier.Chunk get() {
+            if (canceled) {
+                return null;
+            }
             int index = nextIndex.getAndIncrement();
             if (index < 0 || index >= totalChunkCount) {
                 return null;
@@ -725,6 +876,17 @@ public class ApkSigningBlockUtils {
                     index);
         }
 
+        /**
+         * Stops supplying chunks. Subsequent invocations of {@link #get()} return {@code null}.
+         */
+        private void cancel() {
+            canceled = true;
+        }
+
+        private boolean isCanceled() {
+            return canceled;
+        }
+
         static class Chunk {
             private final int chunkIndex;
             private final DataSource dataSource;
@@ -736,8 +898,9 @@ public class ApkSigningBlockUtils {
         }
     }
 
-    private static void computeApkVerityDigest(DataSource beforeCentralDir, DataSource centralDir,
-            DataSource eocd, Map<ContentDigestAlgorithm, byte[]> outputContentDigests)
+    private static void computeApkVerityDigest(ProgressReporter.PhaseProgress progress,
+            DataSource beforeCentralDir, DataSource centralDir, DataSource eocd,
+            Map<ContentDigestAlgorithm, byte[]> outputContentDigests)
             throws IOException, NoSuchAlgorithmException {
         // FORMAT:
         // OFFSET       DATA TYPE  DESCRIPTION
@@ -751,8 +914,18 @@ public class ApkSigningBlockUtils {
 
         // Use 0s as salt for now.  This also needs to be consistent in the fsverify header for
         // kernel to use.
-        VerityTreeBuilder builder = new VerityTreeBuilder(new byte[8]);
-        byte[] rootHash = builder.generateVerityTreeRootHash(beforeCentralDir, centralDir, eocd);
+        byte[] rootHash = null;
+        if (beforeCentralDir instanceof ChunkDigestedDataSource) {
+            // The verity tree of an APK read from a stream or output while being built was built
+            // while the APK streamed past.
+            rootHash =
+                    ((ChunkDigestedDataSource) beforeCentralDir).getVerityTreeRootHash(
+                            centralDir, eocd);
+        }
+        if (rootHash == null) {
+            VerityTreeBuilder builder = new VerityTreeBuilder(new byte[8], progress);
+            rootHash = builder.generateVerityTreeRootHash(beforeCentralDir, centralDir, eocd);
+        }
         encoded.put(rootHash);
         encoded.putLong(beforeCentralDir.size() + centralDir.size() + eocd.size());
 
@@ -779,7 +952,7 @@ public class ApkSigningBlockUtils {
         if (encodedPublicKey == null) {
             try {
                 encodedPublicKey =
-                        KeyFactory.getInstance(publicKey.getAlgorithm())
+                        CryptoFactory.getKeyFactory(publicKey.getAlgorithm())
                                 .getKeySpec(publicKey, X509EncodedKeySpec.class)
                                 .getEncoded();
             } catch (InvalidKeySpecException e) {
@@ -1010,6 +1183,8 @@ public class ApkSigningBlockUtils {
     public static Pair<List<SignerConfig>, Map<ContentDigestAlgorithm, byte[]>>
             computeContentDigests(
                     RunnablesExecutor executor,
+                    MetricsListener metricsListener,
+                    ProgressReporter progressReporter,
                     DataSource beforeCentralDir,
                     DataSource centralDir,
                     DataSource eocd,
@@ -1034,6 +1209,8 @@ public class ApkSigningBlockUtils {
             contentDigests =
                     computeContentDigests(
                             executor,
+                            metricsListener,
+                            progressReporter,
                             contentDigestAlgorithms,
                             beforeCentralDir,
                             centralDir,
@@ -1136,16 +1313,38 @@ public class ApkSigningBlockUtils {
                     throws InvalidKeyException, NoSuchAlgorithmException, SignatureException {
         List<Pair<Integer, byte[]>> signatures =
                 new ArrayList<>(signerConfig.signatureAlgorithms.size());
-        PublicKey publicKey = signerConfig.certificates.get(0).getPublicKey();
         for (SignatureAlgorithm signatureAlgorithm : signerConfig.signatureAlgorithms) {
+            byte[] signatureBytes =
+                    generateSignatureOverData(signerConfig, signatureAlgorithm, data);
+            signatures.add(Pair.of(signatureAlgorithm.getId(), signatureBytes));
+        }
+        return signatures;
+    }
+
+    /**
+     * Signs the provided data using the provided signature algorithm and verifies the resulting
+     * signature against the public key of the signer's certificate.
+     */
+    private static byte[] generateSignatureOverData(
+            SignerConfig signerConfig, SignatureAlgorithm signatureAlgorithm, byte[] data)
+                    throws InvalidKeyException, NoSuchAlgorithmException, SignatureException {
+        byte[] signatureBytes;
+        if (signerConfig.batchSigner != null) {
+            signatureBytes =
+                    signUsingBatchSigner(
+                            signerConfig.batchSigner,
+                            Collections.singletonList(
+                                    newSignatureRequest(signerConfig, signatureAlgorithm, data)))
+                            .get(0);
+        } else {
             Pair<String, ? extends AlgorithmParameterSpec> sigAlgAndParams =
                     signatureAlgorithm.getJcaSignatureAlgorithmAndParams();
             String jcaSignatureAlgorithm = sigAlgAndParams.getFirst();
             AlgorithmParameterSpec jcaSignatureAlgorithmParams = sigAlgAndParams.getSecond();
-            byte[] signatureBytes;
             try {
-                Signature signature = Signature.getInstance(jcaSignatureAlgorithm);
-                signature.initSign(signerConfig.privateKey);
+                Signature signature =
+                        CryptoFactory.getSignatureForSigning(
+                                jcaSignatureAlgorithm, signerConfig.privateKey);
                 if (jcaSignatureAlgorithmParams != null) {
                     signature.setParameter(jcaSignatureAlgorithmParams);
                 }
@@ -1156,32 +1355,284 @@ public class ApkSigningBlockUtils {
             } catch (InvalidAlgorithmParameterException | SignatureException e) {
                 throw new SignatureException("Failed to sign using " + jcaSignatureAlgorithm, e);
             }
+        }
+        verifyGeneratedSignature(signerConfig, signatureAlgorithm, data, signatureBytes);
+        return signatureBytes;
+    }
 
+    /**
+     * Verifies the provided signature, generated by the provided signer, against the public key of
+     * the signer's certificate.
+     */
+    private static void verifyGeneratedSignature(
+            SignerConfig signerConfig,
+            SignatureAlgorithm signatureAlgorithm,
+            byte[] data,
+            byte[] signatureBytes)
+                    throws InvalidKeyException, NoSuchAlgorithmException, SignatureException {
+        PublicKey publicKey = signerConfig.certificates.get(0).getPublicKey();
+        Pair<String, ? extends AlgorithmParameterSpec> sigAlgAndParams =
+                signatureAlgorithm.getJcaSignatureAlgorithmAndParams();
+        String jcaSignatureAlgorithm = sigAlgAndParams.getFirst();
+        AlgorithmParameterSpec jcaSignatureAlgorithmParams = sigAlgAndParams.getSecond();
+        try {
+            Signature signature =
+                    CryptoFactory.getSignatureForVerification(jcaSignatureAlgorithm, publicKey);
+            if (jcaSignatureAlgorithmParams != null) {
+                signature.setParameter(jcaSignatureAlgorithmParams);
+            }
+            signature.update(data);
+            if (!signature.verify(signatureBytes)) {
+                throw new SignatureException("Failed to verify generated "
+                        + jcaSignatureAlgorithm
+                        + " signature using public key from certificate");
+            }
+        } catch (InvalidKeyException e) {
+            throw new InvalidKeyException(
+                    "Failed to verify generated " + jcaSignatureAlgorithm + " signature using"
+                            + " public key from certificate", e);
+        } catch (InvalidAlgorithmParameterException | SignatureException e) {
+            throw new SignatureException(
+                    "Failed to verify generated " + jcaSignatureAlgorithm + " signature using"
+                            + " public key from certificate", e);
+        }
+    }
+
+    private static BatchSigner.SignatureRequest newSignatureRequest(
+            SignerConfig signerConfig, SignatureAlgorithm signatureAlgorithm, byte[] data) {
+        Pair<String, ? extends AlgorithmParameterSpec> sigAlgAndParams =
+                signatureAlgorithm.getJcaSignatureAlgorithmAndParams();
+        return new BatchSigner.SignatureRequest(
+                signerConfig.certificates.get(0),
+                sigAlgAndParams.getFirst(),
+                sigAlgAndParams.getSecond(),
+                data);
+    }
+
+    /**
+     * Requests the provided signatures from the provided batch signer and returns them in the
+     * order of the requests. The signatures are not verified.
+     *
+     * @throws SignatureException if the batch signer failed or did not return a signature for each
+     *         request
+     */
+    public static List<byte[]> signUsingBatchSigner(
+            BatchSigner batchSigner, List<BatchSigner.SignatureRequest> requests)
+                    throws InvalidKeyException, SignatureException {
+        List<byte[]> signatures;
+        try {
+            signatures = batchSigner.sign(requests);
+        } catch (InvalidKeyException e) {
+            throw new InvalidKeyException("Failed to sign using batch signer", e);
+        } catch (SignatureException e) {
+            throw new SignatureException("Failed to sign using batch signer", e);
+        }
+        if ((signatures == null) || (signatures.size() != requests.size())) {
+            throw new SignatureException(
+                    "Batch signer returned " + ((signatures != null) ? signatures.size() : 0)
+                            + " signatures for " + requests.size() + " requests");
+        }
+        for (int i = 0; i < signatures.size(); i++) {
+            if (signatures.get(i) == null) {
+                throw new SignatureException(
+                        "Batch signer returned no signature for "
+                                + requests.get(i).getJcaSignatureAlgorithm() + " request #"
+                                + (i + 1));
+            }
+        }
+        return signatures;
+    }
+
+    /**
+     * Signatures over the signed data of multiple signers, possibly of multiple signature schemes,
+     * which are generated together. Each signature of each signer is generated as a separate task
+     * of the {@link RunnablesExecutor} passed to {@link #generate(RunnablesExecutor)}, which is
+     * where signing with multiple signers or signature algorithms benefits from multiple threads.
+     * Signatures of signers backed by a {@link BatchSigner} are instead requested from that signer
+     * in a single batch.
+     *
+     * <p>Signatures are requested using {@link #add(SignerConfig, byte[])}, generated using
+     * {@link #generate(RunnablesExecutor)}, and then obtained using {@link #get(int)}. The results
+     * do not depend on the order in which the tasks ran.
+     */
+    public static class PendingSignatures {
+        private final List<SignerConfig> mSignerConfigs = new ArrayList<>();
+        private final List<byte[]> mData = new ArrayList<>();
+        private byte[][][] mSignatures;
+        private Exception[][] mFailures;
+
+        /**
+         * Requests signatures of the provided data using each of the signature algorithms of the
+         * provided signer and returns the index under which the signatures can be obtained using
+         * {@link #get(int)}.
+         *
+         * @throws IllegalStateException if signatures have already been generated
+         */
+        public int add(SignerConfig signerConfig, byte[] data) {
+            if (mSignatures != null) {
+                throw new IllegalStateException("Signatures already generated");
+            }
+            mSignerConfigs.add(signerConfig);
+            mData.add(data);
+            return mSignerConfigs.size() - 1;
+        }
+
+        /**
+         * Generates all requested signatures using the provided executor. Failures to generate a
+         * signature are not thrown by this method, but by {@link #get(int)}.
+         *
+         * @throws IllegalStateException if signatures have already been generated
+         */
+        public void generate(RunnablesExecutor executor) {
+            if (mSignatures != null) {
+                throw new IllegalStateException("Signatures already generated");
+            }
+            int requestCount = mSignerConfigs.size();
+            mSignatures = new byte[requestCount][][];
+            mFailures = new Exception[requestCount][];
+            List<Runnable> tasks = new ArrayList<>();
+            Map<BatchSigner, List<int[]>> batches = new LinkedHashMap<>();
+            for (int i = 0; i < requestCount; i++) {
+                SignerConfig signerConfig = mSignerConfigs.get(i);
+                int algorithmCount = signerConfig.signatureAlgorithms.size();
+                mSignatures[i] = new byte[algorithmCount][];
+                mFailures[i] = new Exception[algorithmCount];
+                for (int j = 0; j < algorithmCount; j++) {
+                    int requestIndex = i;
+                    int algorithmIndex = j;
+                    if (signerConfig.batchSigner != null) {
+                        batches.computeIfAbsent(signerConfig.batchSigner, k -> new ArrayList<>())
+                                .add(new int[] {requestIndex, algorithmIndex});
+                    } else {
+                        tasks.add(() -> generateSignature(requestIndex, algorithmIndex));
+                    }
+                }
+            }
+            // Batches go first so that local signing overlaps with waiting for batch signers
+            List<Runnable> batchTasks = new ArrayList<>(batches.size());
+            for (Map.Entry<BatchSigner, List<int[]>> batch : batches.entrySet()) {
+                batchTasks.add(() -> generateSignatures(batch.getKey(), batch.getValue()));
+            }
+            tasks.addAll(0, batchTasks);
+            if (tasks.size() < 2) {
+                // Not worth handing over to other threads
+                executor = RunnablesExecutor.SINGLE_THREADED;
+            }
+
+            // Workers pull tasks off a shared queue so that any one of them can complete all tasks
+            AtomicInteger nextTask = new AtomicInteger();
+            executor.execute(() -> () -> {
+                int taskIndex;
+                while ((taskIndex = nextTask.getAndIncrement()) < tasks.size()) {
+                    tasks.get(taskIndex).run();
+                }
+            });
+        }
+
+        private void generateSignature(int requestIndex, int algorithmIndex) {
+            SignerConfig signerConfig = mSignerConfigs.get(requestIndex);
             try {
-                Signature signature = Signature.getInstance(jcaSignatureAlgorithm);
-                signature.initVerify(publicKey);
-                if (jcaSignatureAlgorithmParams != null) {
-                    signature.setParameter(jcaSignatureAlgorithmParams);
+                mSignatures[requestIndex][algorithmIndex] =
+                        generateSignatureOverData(
+                                signerConfig,
+                                signerConfig.signatureAlgorithms.get(algorithmIndex),
+                                mData.get(requestIndex));
+            } catch (InvalidKeyException | NoSuchAlgorithmException
+                    | SignatureException | RuntimeException e) {
+                mFailures[requestIndex][algorithmIndex] = e;
+            }
+        }
+
+        /**
+         * Requests the provided signatures, as pairs of request index and algorithm index, from
+         * the provided batch signer in a single batch.
+         */
+        private void generateSignatures(BatchSigner batchSigner, List<int[]> signatures) {
+            List<BatchSigner.SignatureRequest> requests = new ArrayList<>(signatures.size());
+            for (int[] signature : signatures) {
+                SignerConfig signerConfig = mSignerConfigs.get(signature[0]);
+                requests.add(
+                        newSignatureRequest(
+                                signerConfig,
+                                signerConfig.signatureAlgorithms.get(signature[1]),
+                                mData.get(signature[0])));
+            }
+            List<byte[]> signaturesBytes;
+            try {
+                signaturesBytes = signUsingBatchSigner(batchSigner, requests);
+            } catch (InvalidKeyException | SignatureException | RuntimeException e) {
+                for (int[] signature : signatures) {
+                    mFailures[signature[0]][signature[1]] = e;
                 }
-                signature.update(data);
-                if (!signature.verify(signatureBytes)) {
-                    throw new SignatureException("Failed to verify generated "
-                            + jcaSignatureAlgorithm
-                            + " signature using public key from certificate");
+                return;
+            }
+            for (int i = 0; i < signatures.size(); i++) {
+                int requestIndex = signatures.get(i)[0];
+                int algorithmIndex = signatures.get(i)[1];
+                SignerConfig signerConfig = mSignerConfigs.get(requestIndex);
+                try {
+                    verifyGeneratedSignature(
+                            signerConfig,
+                            signerConfig.signatureAlgorithms.get(algorithmIndex),
+                            mData.get(requestIndex),
+                            signaturesBytes.get(i));
+                    mSignatures[requestIndex][algorithmIndex] = signaturesBytes.get(i);
+                } catch (InvalidKeyException | NoSuchAlgorithmException
+                        | SignatureException | RuntimeException e) {
+                    mFailures[requestIndex][algorithmIndex] = e;
                 }
-            } catch (InvalidKeyException e) {
-                throw new InvalidKeyException(
-                        "Failed to verify generated " + jcaSignatureAlgorithm + " signature using"
-                                + " public key from certificate", e);
-            } catch (InvalidAlgorithmParameterException | SignatureException e) {
-                throw new SignatureException(
-                        "Failed to verify generated " + jcaSignatureAlgorithm + " signature using"
-                                + " public key from certificate", e);
             }
+        }
 
-            signatures.add(Pair.of(signatureAlgorithm.getId(), signatureBytes));
+        /**
+         * Returns the signature algorithm IDs and corresponding signatures requested under the
+         * provided index, in the order of the signer's signature algorithms.
+         *
+         * @throws InvalidKeyException if the signer's key could not be used to generate one of
+         *         the signatures
+         * @throws SignatureException if one of the signatures could not be generated
+         * @throws IllegalStateException if signatures have not yet been generated
+         */
+        public List<Pair<Integer, byte[]>> get(int index)
+                throws InvalidKeyException, NoSuchAlgorithmException, SignatureException {
+            if (mSignatures == null) {
+                throw new IllegalStateException("Signatures not yet generated");
+            }
+            List<SignatureAlgorithm> signatureAlgorithms =
+                    mSignerConfigs.get(index).signatureAlgorithms;
+            List<Pair<Integer, byte[]>> signatures = new ArrayList<>(signatureAlgorithms.size());
+            for (int i = 0; i < signatureAlgorithms.size(); i++) {
+                Exception failure = mFailures[index][i];
+                if (failure instanceof InvalidKeyException) {
+                    throw (InvalidKeyException) failure;
+                } else if (failure instanceof NoSuchAlgorithmException) {
+                    throw (NoSuchAlgorithmException) failure;
+                } else if (failure instanceof SignatureException) {
+                    throw (SignatureException) failure;
+                } else if (failure instanceof RuntimeException) {
+                    throw (RuntimeException) failure;
+                }
+                byte[] signatureBytes = mSignatures[index][i];
+                if (signatureBytes == null) {
+                    throw new IllegalStateException(
+                            signatureAlgorithms.get(i) + " signature not generated");
+                }
+                signatures.add(Pair.of(signatureAlgorithms.get(i).getId(), signatureBytes));
+            }
+            return signatures;
         }
-        return signatures;
+    }
+
+    /**
+     * APK Signature Scheme block whose signatures are generated by {@link PendingSignatures}.
+     */
+    public interface PendingBlock {
+        /**
+         * Returns the block and the ID of its signature scheme. Must not be invoked before the
+         * signatures of the block have been generated.
+         */
+        Pair<byte[], Integer> getBlock()
+                throws InvalidKeyException, NoSuchAlgorithmException, SignatureException;
     }
 
     /**
@@ -1191,6 +1642,12 @@ public class ApkSigningBlockUtils {
         /** Private key. */
         public PrivateKey privateKey;
 
+        /**
+         * Signer which performs private key operations instead of {@link #privateKey}, or
+         * {@code null} to sign using {@link #privateKey}.
+         */
+        public BatchSigner batchSigner;
+
         /**
          * Certificates, with the first certificate containing the public key corresponding to
          * {@link #privateKey}.
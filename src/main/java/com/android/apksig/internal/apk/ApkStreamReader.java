@@ -0,0 +1,471 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.apk;
+
+import com.android.apksig.apk.ApkFormatException;
+import com.android.apksig.apk.ApkSigningBlockNotFoundException;
+import com.android.apksig.apk.ApkUtils;
+import com.android.apksig.internal.util.CryptoFactory;
+import com.android.apksig.internal.util.ProgressReporter;
+import com.android.apksig.internal.util.VerityTreeBuilder;
+import com.android.apksig.internal.zip.InflaterPool;
+import com.android.apksig.internal.zip.ZipUtils;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.zip.ZipFormatException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads an APK once from a non-seekable stream, producing a {@link StreamedApkDataSource}.
+ *
+ * <p>APK signatures can only be checked once the APK Signing Block and the ZIP Central Directory,
+ * which are at the end of the APK, are known. Thus, while the ZIP Local File records stream past,
+ * this reader speculatively computes everything which may be needed to verify the APK's contents:
+ * the {@link ContentDigestAlgorithm#CHUNKED_SHA256} and
+ * {@link ContentDigestAlgorithm#CHUNKED_SHA512} chunk digests and the
+ * {@link ContentDigestAlgorithm#VERITY_CHUNKED_SHA256} verity tree of the records, and the
+ * {@link #ENTRY_DIGEST_ALGORITHMS} digests of each entry's uncompressed data. The memory needed
+ * is thus bounded by the size of the APK Signing Block, the ZIP Central Directory and the JAR
+ * signature files rather than by the size of the APK.
+ *
+ * <p>The ZIP Local File records must be contiguous and start at the beginning of the stream. The
+ * data of an entry which uses a Data Descriptor is delimited by inflating it, which is why such
+ * entries must be Deflate-compressed.
+ */
+public class ApkStreamReader {
+
+    /**
+     * JCA digest algorithms computed over the uncompressed data of each entry. These are the
+     * algorithms used in JAR manifests by Android tooling.
+     */
+    public static final String[] ENTRY_DIGEST_ALGORITHMS = {"SHA-1", "SHA-256"};
+
+    /** 1 MB chunk-based content digest algorithms computed over the ZIP Local File records. */
+    private static final ContentDigestAlgorithm[] CHUNK_DIGEST_ALGORITHMS = {
+            ContentDigestAlgorithm.CHUNKED_SHA256,
+            ContentDigestAlgorithm.CHUNKED_SHA512,
+    };
+
+    private static final int LOCAL_FILE_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_FILE_HEADER_SIZE_BYTES = 30;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int DATA_DESCRIPTOR_SIZE_BYTES_WITHOUT_SIGNATURE = 12;
+
+    private static final int CHUNK_SIZE_BYTES = 1024 * 1024;
+    private static final int BUFFER_SIZE_BYTES = 65536;
+
+    private final InputStream mIn;
+    private final ProgressReporter mProgressReporter;
+
+    private final byte[] mBuf = new byte[BUFFER_SIZE_BYTES];
+    private int mBufPosition;
+    private int mBufLimit;
+    private long mOffset;
+
+    private boolean mReadingLocalFileRecords = true;
+    private final byte[] mChunk = new byte[CHUNK_SIZE_BYTES];
+    private int mChunkSize;
+    private final MessageDigest[] mChunkMds = new MessageDigest[CHUNK_DIGEST_ALGORITHMS.length];
+    private final ByteArrayOutputStream[] mChunkDigests =
+            new ByteArrayOutputStream[CHUNK_DIGEST_ALGORITHMS.length];
+    private final VerityTreeBuilder mVerityTreeBuilder;
+    private final VerityTreeBuilder.IncrementalTree mVerityTree;
+
+    private final MessageDigest[] mEntryMds = new MessageDigest[ENTRY_DIGEST_ALGORITHMS.length];
+    private final Map<Long, StreamedApkDataSource.StreamedApk.Entry> mEntries = new HashMap<>();
+
+    private final NavigableMap<Long, byte[]> mRetainedSegments = new TreeMap<>();
+    private ByteArrayOutputStream mRetainedSegment;
+    private long mRetainedSegmentOffset;
+
+    private ApkStreamReader(InputStream in, ProgressReporter progressReporter)
+            throws NoSuchAlgorithmException {
+        mIn = in;
+        mProgressReporter = progressReporter;
+        for (int i = 0; i < CHUNK_DIGEST_ALGORITHMS.length; i++) {
+            mChunkMds[i] = CryptoFactory.getMessageDigest(
+                    CHUNK_DIGEST_ALGORITHMS[i].getJcaMessageDigestAlgorithm());
+            mChunkDigests[i] = new ByteArrayOutputStream();
+        }
+        for (int i = 0; i < ENTRY_DIGEST_ALGORITHMS.length; i++) {
+            mEntryMds[i] = CryptoFactory.getMessageDigest(ENTRY_DIGEST_ALGORITHMS[i]);
+        }
+        // Use 0s as salt, same as ApkSigningBlockUtils does for the verity content digest.
+        mVerityTreeBuilder = new VerityTreeBuilder(new byte[8]);
+        mVerityTree = mVerityTreeBuilder.newIncrementalTree();
+    }
+
+    /**
+     * Reads the APK from the provided stream until the end of the stream. The stream is not
+     * closed.
+     *
+     * @throws ApkFormatException if the APK's ZIP Local File records cannot be read from a stream
+     * @throws java.util.concurrent.CancellationException if reading has been canceled via the
+     *         provided reporter
+     */
+    public static StreamedApkDataSource read(InputStream in, ProgressReporter progressReporter)
+            throws IOException, ApkFormatException, NoSuchAlgorithmException {
+        return new ApkStreamReader(in, progressReporter).read();
+    }
+
+    private StreamedApkDataSource read()
+            throws IOException, ApkFormatException, NoSuchAlgorithmException {
+        while ((ensureAvailable(4) >= 4) && (getInt(mBuf, mBufPosition)
+                == LOCAL_FILE_HEADER_SIGNATURE)) {
+            readLocalFileRecord();
+        }
+        long localFileRecordsSize = mOffset;
+        mReadingLocalFileRecords = false;
+
+        // The rest of the APK is the APK Signing Block (if any), the ZIP Central Directory and the
+        // ZIP End of Central Directory record, possibly preceded by padding. These are needed to
+        // verify the APK.
+        startRetaining();
+        while (ensureAvailable(1) > 0) {
+            consume(mBufLimit - mBufPosition);
+        }
+        stopRetaining();
+
+        // Padding which precedes the APK Signing Block, for example, to align the block, is
+        // digested together with the ZIP Local File records
+        long beforeApkSigningBlockSize = findApkSigningBlockOffset(localFileRecordsSize);
+        if (beforeApkSigningBlockSize > localFileRecordsSize) {
+            digestLocalFileRecords(
+                    mRetainedSegments.get(localFileRecordsSize),
+                    0,
+                    (int) (beforeApkSigningBlockSize - localFileRecordsSize));
+        }
+        Map<ContentDigestAlgorithm, byte[]> chunkDigests = finishDigesting();
+
+        return new StreamedApkDataSource(
+                new StreamedApkDataSource.StreamedApk(
+                        mOffset,
+                        mRetainedSegments,
+                        beforeApkSigningBlockSize,
+                        chunkDigests,
+                        mVerityTreeBuilder,
+                        mVerityTree,
+                        mEntries));
+    }
+
+    private void readLocalFileRecord()
+            throws IOException, ApkFormatException, NoSuchAlgorithmException {
+        long headerOffset = mOffset;
+        startRetaining();
+        ByteBuffer header = ByteBuffer.wrap(readFully(LOCAL_FILE_HEADER_SIZE_BYTES));
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        short gpFlags = header.getShort(6);
+        short compressionMethod = header.getShort(8);
+        long compressedSize = header.getInt(18) & 0xffffffffL;
+        int nameLength = ZipUtils.getUnsignedInt16(header, 26);
+        int extraLength = ZipUtils.getUnsignedInt16(header, 28);
+        byte[] nameAndExtra = readFully(nameLength + extraLength);
+        String name = new String(nameAndExtra, 0, nameLength, StandardCharsets.UTF_8);
+
+        // JAR signature files and AndroidManifest.xml are read when verifying the APK. The data
+        // of other entries is not retained.
+        boolean dataRetained =
+                (name.startsWith("META-INF/"))
+                        || (ApkUtils.ANDROID_MANIFEST_ZIP_ENTRY_NAME.equals(name));
+        if (!dataRetained) {
+            stopRetaining();
+        }
+
+        // The size of the data of an entry which uses a Data Descriptor is not known until the
+        // data ends. Such data can only be delimited by inflating it, even if the Local File Header
+        // claims the data is uncompressed. Android uses the compression method from the Central
+        // Directory, which may differ.
+        boolean dataDescriptorUsed = (gpFlags & ZipUtils.GP_FLAG_DATA_DESCRIPTOR_USED) != 0;
+        boolean compressed =
+                (compressionMethod != ZipUtils.COMPRESSION_METHOD_STORED) || (dataDescriptorUsed);
+        long dataSize;
+        long uncompressedSize;
+        boolean malformed = false;
+        if (!compressed) {
+            dataSize = compressedSize;
+            uncompressedSize = compressedSize;
+            long remaining = dataSize;
+            while (remaining > 0) {
+                if (ensureAvailable(1) == 0) {
+                    throw new ApkFormatException("Truncated data of entry " + name);
+                }
+                int chunkSize = (int) Math.min(remaining, mBufLimit - mBufPosition);
+                for (MessageDigest md : mEntryMds) {
+                    md.update(mBuf, mBufPosition, chunkSize);
+                }
+                consume(chunkSize);
+                remaining -= chunkSize;
+            }
+        } else {
+            dataSize = 0;
+            uncompressedSize = 0;
+            InflaterPool.PooledInflater pooledInflater = InflaterPool.acquire();
+            try {
+                Inflater inflater = pooledInflater.getInflater();
+                byte[] outputBuffer = pooledInflater.getOutputBuffer();
+                // Without a Data Descriptor, the size of the data is known. Otherwise, the data
+                // ends where the compressed stream ends.
+                while ((dataDescriptorUsed) ? !inflater.finished() : dataSize < compressedSize) {
+                    if (ensureAvailable(1) == 0) {
+                        throw new ApkFormatException("Truncated data of entry " + name);
+                    }
+                    int chunkSize = mBufLimit - mBufPosition;
+                    if (!dataDescriptorUsed) {
+                        chunkSize = (int) Math.min(chunkSize, compressedSize - dataSize);
+                    }
+                    if ((!malformed) && (!inflater.finished())) {
+                        inflater.setInput(mBuf, mBufPosition, chunkSize);
+                        try {
+                            uncompressedSize += inflate(inflater, outputBuffer);
+                        } catch (DataFormatException e) {
+                            if (dataDescriptorUsed) {
+                                throw new ApkFormatException("Malformed data of entry " + name, e);
+                            }
+                            malformed = true;
+                        }
+                        if (dataDescriptorUsed) {
+                            chunkSize -= inflater.getRemaining();
+                        }
+                    }
+                    consume(chunkSize);
+                    dataSize += chunkSize;
+                }
+            } finally {
+                pooledInflater.release();
+            }
+        }
+        Map<String, byte[]> digests = new HashMap<>(ENTRY_DIGEST_ALGORITHMS.length);
+        for (int i = 0; i < ENTRY_DIGEST_ALGORITHMS.length; i++) {
+            digests.put(ENTRY_DIGEST_ALGORITHMS[i], mEntryMds[i].digest());
+        }
+
+        if (dataDescriptorUsed) {
+            // The Data Descriptor is read when the entry's Local File record is checked.
+            startRetaining();
+            int dataDescriptorSize = DATA_DESCRIPTOR_SIZE_BYTES_WITHOUT_SIGNATURE;
+            if ((ensureAvailable(4) >= 4)
+                    && (getInt(mBuf, mBufPosition) == DATA_DESCRIPTOR_SIGNATURE)) {
+                dataDescriptorSize += 4;
+            }
+            readFully(dataDescriptorSize);
+        }
+        stopRetaining();
+
+        mEntries.put(
+                headerOffset,
+                new StreamedApkDataSource.StreamedApk.Entry(
+                        compressed, dataSize, uncompressedSize, malformed, digests));
+    }
+
+    /**
+     * Inflates the inflater's input into the entry digests and returns the number of bytes output.
+     */
+    private long inflate(Inflater inflater, byte[] outputBuffer) throws DataFormatException {
+        long result = 0;
+        while ((!inflater.finished()) && (!inflater.needsInput())) {
+            int outputSize = inflater.inflate(outputBuffer);
+            if (outputSize == 0) {
+                if (inflater.needsDictionary()) {
+                    throw new DataFormatException("Preset dictionary not supported");
+                }
+                break;
+            }
+            for (MessageDigest md : mEntryMds) {
+                md.update(outputBuffer, 0, outputSize);
+            }
+            result += outputSize;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the offset of the APK Signing Block (or of the ZIP Central Directory if there is no
+     * APK Signing Block), or the provided size of the ZIP Local File records if the offset is not
+     * in the retained data following the records.
+     */
+    private long findApkSigningBlockOffset(long localFileRecordsSize) {
+        DataSource apk =
+                new StreamedApkDataSource(
+                        new StreamedApkDataSource.StreamedApk(
+                                mOffset,
+                                mRetainedSegments,
+                                localFileRecordsSize,
+                                Collections.emptyMap(),
+                                null,
+                                null,
+                                mEntries));
+        long result;
+        try {
+            ApkUtils.ZipSections zipSections = ApkUtils.findZipSections(apk);
+            try {
+                result = ApkUtils.findApkSigningBlock(apk, zipSections).getStartOffset();
+            } catch (ApkSigningBlockNotFoundException e) {
+                result = zipSections.getZipCentralDirectoryOffset();
+            }
+        } catch (IOException | ZipFormatException e) {
+            // Malformed APK. This is reported when the APK is verified.
+            return localFileRecordsSize;
+        }
+        if ((result < localFileRecordsSize) || (result > mOffset)) {
+            return localFileRecordsSize;
+        }
+        return result;
+    }
+
+    /**
+     * Finishes digesting the data preceding the APK Signing Block and returns its concatenated
+     * chunk digests.
+     */
+    private Map<ContentDigestAlgorithm, byte[]> finishDigesting() {
+        if (mChunkSize > 0) {
+            digestChunk();
+        }
+        Map<ContentDigestAlgorithm, byte[]> result = new HashMap<>(CHUNK_DIGEST_ALGORITHMS.length);
+        for (int i = 0; i < CHUNK_DIGEST_ALGORITHMS.length; i++) {
+            result.put(CHUNK_DIGEST_ALGORITHMS[i], mChunkDigests[i].toByteArray());
+        }
+        return result;
+    }
+
+    /**
+     * Digests the provided data preceding the APK Signing Block.
+     */
+    private void digestLocalFileRecords(byte[] buf, int offset, int length) throws IOException {
+        mVerityTree.consume(buf, offset, length);
+        while (length > 0) {
+            int chunkSize = Math.min(length, CHUNK_SIZE_BYTES - mChunkSize);
+            System.arraycopy(buf, offset, mChunk, mChunkSize, chunkSize);
+            mChunkSize += chunkSize;
+            offset += chunkSize;
+            length -= chunkSize;
+            if (mChunkSize == CHUNK_SIZE_BYTES) {
+                digestChunk();
+            }
+        }
+    }
+
+    /**
+     * Digests the current chunk, see {@code ApkSigningBlockUtils.computeContentDigests}. The
+     * chunk is buffered because its size, which is digested first, is only known once it is full
+     * or once the APK Signing Block is found.
+     */
+    private void digestChunk() {
+        byte[] chunkPrefix = new byte[5];
+        chunkPrefix[0] = (byte) 0xa5;
+        ByteBuffer.wrap(chunkPrefix, 1, 4).order(ByteOrder.LITTLE_ENDIAN).putInt(mChunkSize);
+        for (int i = 0; i < mChunkMds.length; i++) {
+            MessageDigest md = mChunkMds[i];
+            md.update(chunkPrefix);
+            md.update(mChunk, 0, mChunkSize);
+            byte[] digest = md.digest();
+            mChunkDigests[i].write(digest, 0, digest.length);
+        }
+        mChunkSize = 0;
+    }
+
+    private void startRetaining() {
+        if (mRetainedSegment == null) {
+            mRetainedSegment = new ByteArrayOutputStream();
+            mRetainedSegmentOffset = mOffset;
+        }
+    }
+
+    private void stopRetaining() {
+        if (mRetainedSegment != null) {
+            if (mRetainedSegment.size() > 0) {
+                mRetainedSegments.put(mRetainedSegmentOffset, mRetainedSegment.toByteArray());
+            }
+            mRetainedSegment = null;
+        }
+    }
+
+    /**
+     * Reads the provided number of bytes.
+     */
+    private byte[] readFully(int length) throws IOException, ApkFormatException {
+        byte[] result = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            if (ensureAvailable(1) == 0) {
+                throw new ApkFormatException(
+                        "Unexpected end of APK at offset " + (mOffset + offset));
+            }
+            int chunkSize = Math.min(length - offset, mBufLimit - mBufPosition);
+            System.arraycopy(mBuf, mBufPosition, result, offset, chunkSize);
+            consume(chunkSize);
+            offset += chunkSize;
+        }
+        return result;
+    }
+
+    /**
+     * Marks the provided number of buffered bytes as read, retaining and digesting them as needed.
+     */
+    private void consume(int length) throws IOException {
+        if (mRetainedSegment != null) {
+            mRetainedSegment.write(mBuf, mBufPosition, length);
+        }
+        if (mReadingLocalFileRecords) {
+            digestLocalFileRecords(mBuf, mBufPosition, length);
+        }
+        mBufPosition += length;
+        mOffset += length;
+    }
+
+    /**
+     * Buffers at least the provided number of bytes, unless the end of the stream is reached, and
+     * returns the number of buffered bytes.
+     */
+    private int ensureAvailable(int length) throws IOException {
+        int available = mBufLimit - mBufPosition;
+        if (available >= length) {
+            return available;
+        }
+        System.arraycopy(mBuf, mBufPosition, mBuf, 0, available);
+        mBufPosition = 0;
+        mBufLimit = available;
+        while (mBufLimit < length) {
+            mProgressReporter.throwIfCanceled();
+            int chunkSize = mIn.read(mBuf, mBufLimit, mBuf.length - mBufLimit);
+            if (chunkSize < 0) {
+                break;
+            }
+            mBufLimit += chunkSize;
+        }
+        return mBufLimit;
+    }
+
+    private static int getInt(byte[] buf, int offset) {
+        return (buf[offset] & 0xff)
+                | ((buf[offset + 1] & 0xff) << 8)
+                | ((buf[offset + 2] & 0xff) << 16)
+                | ((buf[offset + 3] & 0xff) << 24);
+    }
+}
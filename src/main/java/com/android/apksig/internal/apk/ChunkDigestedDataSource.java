@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.apk;
+
+import com.android.apksig.internal.util.VerityTreeBuilder;
+import com.android.apksig.util.DataSource;
+import java.io.IOException;
+
+/**
+ * {@link DataSource} of the data preceding an APK's APK Signing Block whose 1 MB chunk digests
+ * (see {@link ContentDigestAlgorithm#CHUNKED_SHA256} and
+ * {@link ContentDigestAlgorithm#CHUNKED_SHA512}) and verity tree were computed ahead of time, for
+ * example, while its contents streamed past. {@link ApkSigningBlockUtils} uses these instead of
+ * reading and digesting the contents again.
+ */
+public interface ChunkDigestedDataSource extends DataSource {
+
+    /**
+     * Returns the concatenated digests of the 1 MB chunks of this data source computed using the
+     * provided algorithm, or {@code null} if these digests were not computed.
+     */
+    byte[] getChunkDigests(ContentDigestAlgorithm algorithm);
+
+    /**
+     * Returns the root hash of the APK verity tree built from ZIP blocks, where this data source is
+     * the data preceding the APK Signing Block, or {@code null} if the verity tree of this data
+     * source was not computed. See
+     * {@link VerityTreeBuilder#generateVerityTreeRootHash(DataSource, DataSource, DataSource)}.
+     */
+    byte[] getVerityTreeRootHash(DataSource centralDir, DataSource eocd) throws IOException;
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.apk;
+
+import com.android.apksig.internal.util.CryptoFactory;
+import com.android.apksig.internal.util.VerityTreeBuilder;
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.DataSource;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link DataSink} which computes the 1 MB chunk digests and the verity tree of the data it
+ * forwards to another sink. This is used to digest the ZIP Local File records of an APK while they
+ * are being output so that they do not need to be read back and digested again when the APK is
+ * signed using APK Signature Scheme v2 or v3.
+ */
+public class ChunkDigestingDataSink implements DataSink {
+
+    private static final int CHUNK_SIZE_BYTES = 1024 * 1024;
+
+    private final DataSink mDelegate;
+    private final List<ContentDigestAlgorithm> mAlgorithms;
+    private final MessageDigest[] mChunkMds;
+    private final ByteArrayOutputStream[] mChunkDigests;
+    private final VerityTreeBuilder mVerityTreeBuilder;
+    private final VerityTreeBuilder.IncrementalTree mVerityTree;
+    private final byte[] mChunk = new byte[CHUNK_SIZE_BYTES];
+    private int mChunkSize;
+    private long mSize;
+    private boolean mFinished;
+
+    /**
+     * Constructs a new sink which forwards data to the provided sink while computing its chunk
+     * digests using the provided algorithms. The verity tree is built if the algorithms include
+     * {@link ContentDigestAlgorithm#VERITY_CHUNKED_SHA256}.
+     */
+    public ChunkDigestingDataSink(DataSink delegate, Set<ContentDigestAlgorithm> algorithms)
+            throws NoSuchAlgorithmException {
+        mDelegate = delegate;
+        mAlgorithms = new ArrayList<>(algorithms);
+        if (mAlgorithms.remove(ContentDigestAlgorithm.VERITY_CHUNKED_SHA256)) {
+            // Use 0s as salt, same as ApkSigningBlockUtils does for the verity content digest.
+            mVerityTreeBuilder = new VerityTreeBuilder(new byte[8]);
+            mVerityTree = mVerityTreeBuilder.newIncrementalTree();
+        } else {
+            mVerityTreeBuilder = null;
+            mVerityTree = null;
+        }
+        mChunkMds = new MessageDigest[mAlgorithms.size()];
+        mChunkDigests = new ByteArrayOutputStream[mAlgorithms.size()];
+        for (int i = 0; i < mAlgorithms.size(); i++) {
+            mChunkMds[i] = CryptoFactory.getMessageDigest(
+                    mAlgorithms.get(i).getJcaMessageDigestAlgorithm());
+            mChunkDigests[i] = new ByteArrayOutputStream();
+        }
+    }
+
+    /**
+     * Returns the number of bytes forwarded so far.
+     */
+    public long size() {
+        return mSize;
+    }
+
+    @Override
+    public void consume(byte[] buf, int offset, int length) throws IOException {
+        checkNotFinished();
+        digest(buf, offset, length);
+        if (mVerityTree != null) {
+            mVerityTree.consume(buf, offset, length);
+        }
+        mDelegate.consume(buf, offset, length);
+    }
+
+    @Override
+    public void consume(ByteBuffer buf) throws IOException {
+        checkNotFinished();
+        if (mVerityTree != null) {
+            mVerityTree.consume(buf.duplicate());
+        }
+        if (buf.hasArray()) {
+            digest(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        } else {
+            ByteBuffer data = buf.duplicate();
+            while (data.hasRemaining()) {
+                int chunkSize = Math.min(data.remaining(), CHUNK_SIZE_BYTES - mChunkSize);
+                data.get(mChunk, mChunkSize, chunkSize);
+                mChunkSize += chunkSize;
+                mSize += chunkSize;
+                if (mChunkSize == CHUNK_SIZE_BYTES) {
+                    digestChunk();
+                }
+            }
+        }
+        mDelegate.consume(buf);
+    }
+
+    /**
+     * Finishes digesting and returns a data source of the forwarded data whose chunk digests are
+     * the ones computed by this sink. The provided data source must contain the forwarded data
+     * starting at offset {@code 0}. No more data may be forwarded afterwards.
+     */
+    public ChunkDigestedDataSource finish(DataSource forwarded) throws IOException {
+        if (!mFinished) {
+            mFinished = true;
+            if (mChunkSize > 0) {
+                digestChunk();
+            }
+        }
+        if (forwarded.size() < mSize) {
+            throw new IOException(
+                    "Forwarded data not visible. Expected: " + mSize + " bytes, available: "
+                            + forwarded.size() + " bytes");
+        }
+        Map<ContentDigestAlgorithm, byte[]> chunkDigests = new EnumMap<>(
+                ContentDigestAlgorithm.class);
+        for (int i = 0; i < mAlgorithms.size(); i++) {
+            chunkDigests.put(mAlgorithms.get(i), mChunkDigests[i].toByteArray());
+        }
+        return new DigestedDataSource(
+                forwarded.slice(0, mSize), chunkDigests, mVerityTreeBuilder, mVerityTree);
+    }
+
+    private void digest(byte[] buf, int offset, int length) {
+        mSize += length;
+        while (length > 0) {
+            int chunkSize = Math.min(length, CHUNK_SIZE_BYTES - mChunkSize);
+            System.arraycopy(buf, offset, mChunk, mChunkSize, chunkSize);
+            mChunkSize += chunkSize;
+            offset += chunkSize;
+            length -= chunkSize;
+            if (mChunkSize == CHUNK_SIZE_BYTES) {
+                digestChunk();
+            }
+        }
+    }
+
+    /**
+     * Digests the current chunk, see {@code ApkSigningBlockUtils.computeContentDigests}. The
+     * chunk is buffered because its size, which is digested first, is only known once it is full
+     * or once all data has been forwarded.
+     */
+    private void digestChunk() {
+        byte[] chunkPrefix = new byte[5];
+        chunkPrefix[0] = (byte) 0xa5;
+        ByteBuffer.wrap(chunkPrefix, 1, 4).order(ByteOrder.LITTLE_ENDIAN).putInt(mChunkSize);
+        for (int i = 0; i < mChunkMds.length; i++) {
+            MessageDigest md = mChunkMds[i];
+            md.update(chunkPrefix);
+            md.update(mChunk, 0, mChunkSize);
+            byte[] digest = md.digest();
+            mChunkDigests[i].write(digest, 0, digest.length);
+        }
+        mChunkSize = 0;
+    }
+
+    private void checkNotFinished() {
+        if (mFinished) {
+            throw new IllegalStateException("Already finished");
+        }
+    }
+
+    /**
+     * Data source of the forwarded data. Its slices are plain data sources because chunk digests
+     * and the verity tree are only known for the data as a whole.
+     */
+    private static class DigestedDataSource implements ChunkDigestedDataSource {
+        private final DataSource mData;
+        private final Map<ContentDigestAlgorithm, byte[]> mChunkDigests;
+        private final VerityTreeBuilder mVerityTreeBuilder;
+        private final VerityTreeBuilder.IncrementalTree mVerityTree;
+
+        private DigestedDataSource(
+                DataSource data,
+                Map<ContentDigestAlgorithm, byte[]> chunkDigests,
+                VerityTreeBuilder verityTreeBuilder,
+                VerityTreeBuilder.IncrementalTree verityTree) {
+            mData = data;
+            mChunkDigests = chunkDigests;
+            mVerityTreeBuilder = verityTreeBuilder;
+            mVerityTree = verityTree;
+        }
+
+        @Override
+        public byte[] getChunkDigests(ContentDigestAlgorithm algorithm) {
+            return mChunkDigests.get(algorithm);
+        }
+
+        @Override
+        public byte[] getVerityTreeRootHash(DataSource centralDir, DataSource eocd)
+                throws IOException {
+            if ((mVerityTree == null)
+                    || (mData.size() % ApkSigningBlockUtils.ANDROID_COMMON_PAGE_ALIGNMENT_BYTES
+                            != 0)) {
+                // The verity tree is only built from ZIP blocks if the data preceding the APK
+                // Signing Block is page-aligned
+                return null;
+            }
+            synchronized (mVerityTreeBuilder) {
+                return mVerityTreeBuilder.generateVerityTreeRootHash(
+                        mVerityTree, centralDir, eocd);
+            }
+        }
+
+        @Override
+        public long size() {
+            return mData.size();
+        }
+
+        @Override
+        public void feed(long offset, long size, DataSink sink) throws IOException {
+            mData.feed(offset, size, sink);
+        }
+
+        @Override
+        public ByteBuffer getByteBuffer(long offset, int size) throws IOException {
+            return mData.getByteBuffer(offset, size);
+        }
+
+        @Override
+        public void copyTo(long offset, int size, ByteBuffer dest) throws IOException {
+            mData.copyTo(offset, size, dest);
+        }
+
+        @Override
+        public DataSource slice(long offset, long size) {
+            return mData.slice(offset, size);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.apk;
+
+import com.android.apksig.SigningCertificateLineage;
+import com.android.apksig.internal.util.CryptoFactory;
+import com.android.apksig.internal.util.X509CertificateUtils;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Results of verifying APK Signature Scheme v2 and v3 signer blocks, shared between verifications
+ * of multiple APKs signed by the same signers, such as the splits of an app. The cache may be
+ * shared between threads.
+ *
+ * <p>Signatures over identical {@code signed-data} are verified only once. Identical encoded
+ * certificates and proof-of-rotation records are parsed and verified only once. Only successful
+ * results are cached, so that failures are reported for each APK in the same way as when the APK
+ * is verified on its own. Cached {@link SigningCertificateLineage} instances are shared between
+ * the internal results of verifying signers and must not be modified. Public verification results
+ * hold copies of these instances.
+ */
+public class SignerVerificationCache {
+    private final Set<ByteBuffer> mVerifiedSignatures = ConcurrentHashMap.newKeySet();
+    private final Map<ByteBuffer, X509Certificate> mCertificates = new ConcurrentHashMap<>();
+    private final Map<ByteBuffer, SigningCertificateLineage> mLineages =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Returns {@code true} if the provided signature over the provided signed data has been
+     * verified using the provided public key.
+     */
+    public boolean isSignatureVerified(
+            SignatureAlgorithm algorithm,
+            byte[] publicKey,
+            byte[] signedData,
+            byte[] signature) throws NoSuchAlgorithmException {
+        return mVerifiedSignatures.contains(
+                getSignatureKey(algorithm, publicKey, signedData, signature));
+    }
+
+    /**
+     * Records that the provided signature over the provided signed data has verified using the
+     * provided public key.
+     */
+    public void addVerifiedSignature(
+            SignatureAlgorithm algorithm,
+            byte[] publicKey,
+            byte[] signedData,
+            byte[] signature) throws NoSuchAlgorithmException {
+        mVerifiedSignatures.add(getSignatureKey(algorithm, publicKey, signedData, signature));
+    }
+
+    /**
+     * Returns the certificate decoded from the provided encoded form. The certificate is decoded
+     * only the first time its encoded form is encountered.
+     *
+     * @throws CertificateException if the certificate could not be decoded
+     */
+    public X509Certificate generateCertificate(
+            byte[] encodedForm, CertificateFactory certFactory) throws CertificateException {
+        ByteBuffer key = ByteBuffer.wrap(encodedForm);
+        X509Certificate certificate = mCertificates.get(key);
+        if (certificate == null) {
+            certificate = X509CertificateUtils.generateCertificate(encodedForm, certFactory);
+            mCertificates.putIfAbsent(key, certificate);
+        }
+        return certificate;
+    }
+
+    /**
+     * Returns the signing certificate lineage read from the provided value of the
+     * proof-of-rotation attribute of an APK Signature Scheme v3 signer. The lineage is read and
+     * verified only the first time the value is encountered.
+     *
+     * @see SigningCertificateLineage#readFromV3AttributeValue(byte[])
+     */
+    public SigningCertificateLineage getSigningCertificateLineage(byte[] attrValue)
+            throws IOException {
+        ByteBuffer key = ByteBuffer.wrap(attrValue);
+        SigningCertificateLineage lineage = mLineages.get(key);
+        if (lineage == null) {
+            lineage = SigningCertificateLineage.readFromV3AttributeValue(attrValue);
+            mLineages.putIfAbsent(key, lineage);
+        }
+        return lineage;
+    }
+
+    private static ByteBuffer getSignatureKey(
+            SignatureAlgorithm algorithm,
+            byte[] publicKey,
+            byte[] signedData,
+            byte[] signature) throws NoSuchAlgorithmException {
+        MessageDigest md = CryptoFactory.getMessageDigest("SHA-256");
+        md.update(ByteBuffer.allocate(4).putInt(algorithm.getId()).array());
+        updateWithLengthPrefixed(md, publicKey);
+        updateWithLengthPrefixed(md, signedData);
+        updateWithLengthPrefixed(md, signature);
+        return ByteBuffer.wrap(md.digest());
+    }
+
+    private static void updateWithLengthPrefixed(MessageDigest md, byte[] data) {
+        md.update(ByteBuffer.allocate(4).putInt(data.length).array());
+        md.update(data);
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.apk;
+
+import com.android.apksig.internal.util.VerityTreeBuilder;
+import com.android.apksig.internal.zip.CentralDirectoryRecord;
+import com.android.apksig.internal.zip.LocalFileRecord;
+import com.android.apksig.internal.zip.ZipUtils;
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.zip.ZipFormatException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ * {@link DataSource} of an APK which was read once from a stream, see {@link ApkStreamReader}.
+ *
+ * <p>Only the ZIP Local File Headers, the entries needed to verify the APK's signatures (JAR
+ * signature files and {@code AndroidManifest.xml}) and everything following the ZIP Local File
+ * records (APK Signing Block, ZIP Central Directory and ZIP End of Central Directory) are retained.
+ * Reading other data throws an {@link IOException}. Instead, the digests needed to verify the
+ * APK's contents were computed while the contents streamed past: the 1 MB chunk digests and the
+ * verity tree of the data preceding the APK Signing Block, and the digests of uncompressed data of
+ * each entry.
+ */
+public class StreamedApkDataSource implements ChunkDigestedDataSource {
+
+    private final StreamedApk mApk;
+    private final long mOffset;
+    private final long mSize;
+
+    StreamedApkDataSource(StreamedApk apk) {
+        this(apk, 0, apk.size);
+    }
+
+    private StreamedApkDataSource(StreamedApk apk, long offset, long size) {
+        mApk = apk;
+        mOffset = offset;
+        mSize = size;
+    }
+
+    /**
+     * Returns the concatenated digests of the 1 MB chunks of this data source computed using the
+     * provided algorithm, or {@code null} if these digests were not computed. Chunk digests are
+     * only computed for the data preceding the APK Signing Block.
+     */
+    @Override
+    public byte[] getChunkDigests(ContentDigestAlgorithm algorithm) {
+        if ((mOffset != 0) || (mSize != mApk.beforeApkSigningBlockSize)) {
+            return null;
+        }
+        return mApk.chunkDigests.get(algorithm);
+    }
+
+    /**
+     * Returns the root hash of the APK verity tree built from ZIP blocks, where this data source is
+     * the data preceding the APK Signing Block, or {@code null} if the verity tree of this data
+     * source was not computed. See
+     * {@link VerityTreeBuilder#generateVerityTreeRootHash(DataSource, DataSource, DataSource)}.
+     */
+    @Override
+    public byte[] getVerityTreeRootHash(DataSource centralDir, DataSource eocd)
+            throws IOException {
+        if ((mOffset != 0) || (mSize != mApk.beforeApkSigningBlockSize)) {
+            return null;
+        }
+        synchronized (mApk.verityTreeBuilder) {
+            return mApk.verityTreeBuilder.generateVerityTreeRootHash(
+                    mApk.verityTree, centralDir, eocd);
+        }
+    }
+
+    /**
+     * Returns the digest of the uncompressed data of the entry pointed to by the provided ZIP
+     * Central Directory (CD) record. The digest was computed while the entry streamed past.
+     *
+     * <p>This mimics {@link LocalFileRecord#outputUncompressedData(DataSource,
+     * CentralDirectoryRecord, long, DataSink)}: the entry's Local File Header is checked against
+     * the CD record and the size of the entry's data is checked against the sizes in the CD
+     * record.
+     *
+     * @throws IOException if the digest was not computed, for example, because the digest
+     *         algorithm is not one of {@link ApkStreamReader#ENTRY_DIGEST_ALGORITHMS}
+     */
+    public byte[] getUncompressedDataDigest(
+            CentralDirectoryRecord cdRecord,
+            long cdStartOffset,
+            String jcaDigestAlgorithm) throws ZipFormatException, IOException {
+        String entryName = cdRecord.getName();
+        LocalFileRecord.getRecord(this, cdRecord, cdStartOffset);
+        StreamedApk.Entry entry =
+                mApk.entries.get(mOffset + cdRecord.getLocalFileHeaderOffset());
+        if (entry == null) {
+            throw new IOException("Entry not read from stream: " + entryName);
+        }
+        boolean compressed =
+                (cdRecord.getCompressionMethod() != ZipUtils.COMPRESSION_METHOD_STORED);
+        long dataSize =
+                (compressed) ? cdRecord.getCompressedSize() : cdRecord.getUncompressedSize();
+        if (dataSize != entry.dataSize) {
+            throw new ZipFormatException(
+                    "Data size mismatch between Local File record and Central Directory for entry "
+                            + entryName + ". Local File record: " + entry.dataSize
+                            + ", CD: " + dataSize);
+        }
+        if (compressed != entry.compressed) {
+            throw new ZipFormatException(
+                    "Compression method mismatch between Local File Header and Central Directory"
+                            + " for entry " + entryName);
+        }
+        if (entry.malformed) {
+            throw new ZipFormatException("Data of entry " + entryName + " malformed");
+        }
+        if ((compressed) && (entry.uncompressedSize != cdRecord.getUncompressedSize())) {
+            throw new ZipFormatException(
+                    "Unexpected size of uncompressed data of " + entryName
+                            + ". Expected: " + cdRecord.getUncompressedSize() + " bytes"
+                            + ", actual: " + entry.uncompressedSize + " bytes");
+        }
+        byte[] digest = entry.digests.get(jcaDigestAlgorithm);
+        if (digest == null) {
+            throw new IOException(
+                    jcaDigestAlgorithm + " digest of " + entryName + " not computed while"
+                            + " streaming");
+        }
+        return digest;
+    }
+
+    @Override
+    public long size() {
+        return mSize;
+    }
+
+    @Override
+    public void feed(long offset, long size, DataSink sink) throws IOException {
+        checkChunkValid(offset, size);
+        long position = mOffset + offset;
+        long end = position + size;
+        while (position < end) {
+            Map.Entry<Long, byte[]> segment = getRetainedSegment(position, end - position);
+            int offsetInSegment = (int) (position - segment.getKey());
+            int chunkSize =
+                    (int) Math.min(end - position, segment.getValue().length - offsetInSegment);
+            sink.consume(segment.getValue(), offsetInSegment, chunkSize);
+            position += chunkSize;
+        }
+    }
+
+    @Override
+    public ByteBuffer getByteBuffer(long offset, int size) throws IOException {
+        checkChunkValid(offset, size);
+        long position = mOffset + offset;
+        Map.Entry<Long, byte[]> segment = getRetainedSegment(position, size);
+        int offsetInSegment = (int) (position - segment.getKey());
+        if (offsetInSegment + size <= segment.getValue().length) {
+            return ByteBuffer.wrap(segment.getValue(), offsetInSegment, size).slice();
+        }
+        ByteBuffer result = ByteBuffer.allocate(size);
+        copyTo(offset, size, result);
+        result.flip();
+        return result;
+    }
+
+    @Override
+    public void copyTo(long offset, int size, ByteBuffer dest) throws IOException {
+        feed(offset, size, new DataSink() {
+            @Override
+            public void consume(byte[] buf, int offset, int length) {
+                dest.put(buf, offset, length);
+            }
+
+            @Override
+            public void consume(ByteBuffer buf) {
+                dest.put(buf);
+            }
+        });
+    }
+
+    @Override
+    public StreamedApkDataSource slice(long offset, long size) {
+        checkChunkValid(offset, size);
+        return new StreamedApkDataSource(mApk, mOffset + offset, size);
+    }
+
+    /**
+     * Returns the retained segment of the APK which contains the provided position.
+     *
+     * @throws IOException if the data at the provided position was not retained
+     */
+    private Map.Entry<Long, byte[]> getRetainedSegment(long position, long size)
+            throws IOException {
+        Map.Entry<Long, byte[]> segment = mApk.retainedSegments.floorEntry(position);
+        if ((segment == null) || (segment.getKey() + segment.getValue().length <= position)) {
+            throw new IOException(
+                    "Data not retained while streaming APK. Offset: " + position
+                            + ", size: " + size);
+        }
+        return segment;
+    }
+
+    private void checkChunkValid(long offset, long size) {
+        if (offset < 0) {
+            throw new IndexOutOfBoundsException("offset: " + offset);
+        }
+        if (size < 0) {
+            throw new IndexOutOfBoundsException("size: " + size);
+        }
+        if (offset > mSize) {
+            throw new IndexOutOfBoundsException(
+                    "offset (" + offset + ") > source size (" + mSize + ")");
+        }
+        long endOffset = offset + size;
+        if (endOffset < offset) {
+            throw new IndexOutOfBoundsException(
+                    "offset (" + offset + ") + size (" + size + ") overflow");
+        }
+        if (endOffset > mSize) {
+            throw new IndexOutOfBoundsException(
+                    "offset (" + offset + ") + size (" + size + ") > source size (" + mSize
+                            + ")");
+        }
+    }
+
+    /**
+     * Data of an APK read from a stream, shared by a data source and its slices.
+     */
+    static class StreamedApk {
+        /** Size of the APK. */
+        final long size;
+
+        /** Retained data of the APK, keyed by offset in the APK. Segments do not overlap. */
+        final NavigableMap<Long, byte[]> retainedSegments;
+
+        /**
+         * Size of the data preceding the APK Signing Block (or the ZIP Central Directory if there
+         * is no APK Signing Block): the ZIP Local File records and any padding following them.
+         */
+        final long beforeApkSigningBlockSize;
+
+        /** Concatenated 1 MB chunk digests of the data preceding the APK Signing Block. */
+        final Map<ContentDigestAlgorithm, byte[]> chunkDigests;
+
+        /** Builder of {@link #verityTree}. Guards use of the tree. */
+        final VerityTreeBuilder verityTreeBuilder;
+
+        /** Verity tree fed with the data preceding the APK Signing Block. */
+        final VerityTreeBuilder.IncrementalTree verityTree;
+
+        /** Entries of the APK, keyed by offset of their Local File Header. */
+        final Map<Long, Entry> entries;
+
+        StreamedApk(
+                long size,
+                NavigableMap<Long, byte[]> retainedSegments,
+                long beforeApkSigningBlockSize,
+                Map<ContentDigestAlgorithm, byte[]> chunkDigests,
+                VerityTreeBuilder verityTreeBuilder,
+                VerityTreeBuilder.IncrementalTree verityTree,
+                Map<Long, Entry> entries) {
+            this.size = size;
+            this.retainedSegments = retainedSegments;
+            this.beforeApkSigningBlockSize = beforeApkSigningBlockSize;
+            this.chunkDigests = chunkDigests;
+            this.verityTreeBuilder = verityTreeBuilder;
+            this.verityTree = verityTree;
+            this.entries = entries;
+        }
+
+        /**
+         * ZIP entry whose data streamed past.
+         */
+        static class Entry {
+            /** Whether the entry's data was inflated. */
+            final boolean compressed;
+
+            /** Size (in bytes) of the entry's data as stored in the APK. */
+            final long dataSize;
+
+            /** Size (in bytes) of the entry's uncompressed data. */
+            final long uncompressedSize;
+
+            /** Whether the entry's data could not be inflated. */
+            final boolean malformed;
+
+            /** Digests of the entry's uncompressed data, keyed by JCA digest algorithm name. */
+            final Map<String, byte[]> digests;
+
+            Entry(
+                    boolean compressed,
+                    long dataSize,
+                    long uncompressedSize,
+                    boolean malformed,
+                    Map<String, byte[]> digests) {
+                this.compressed = compressed;
+                this.dataSize = dataSize;
+                this.uncompressedSize = uncompressedSize;
+                this.malformed = malformed;
+                this.digests = digests;
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.apk;
+
+import com.android.apksig.apk.ApkSigningBlockNotFoundException;
+import com.android.apksig.apk.ApkUtils;
+import com.android.apksig.internal.util.MessageDigestSink;
+import com.android.apksig.internal.util.Pair;
+import com.android.apksig.util.DataSource;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * On-disk cache of APK files which have been verified successfully. The cache may be shared
+ * between threads and processes.
+ *
+ * <p>An APK file is identified by its size, modification time and file key (e.g., inode number),
+ * and by the digest of its APK Signing Block, ZIP Central Directory and ZIP End of Central
+ * Directory record. These are cheap to obtain compared to verifying the APK's contents.
+ *
+ * <p>Each cache entry is a file in the cache directory, named after the SHA-256 digest of the
+ * entry's key and containing the key itself. Entries are created atomically by renaming a fully
+ * written temporary file. The last modified time of an entry is updated whenever the entry is
+ * found, and the least recently used entries are deleted once the number of entries exceeds the
+ * capacity of the cache.
+ *
+ * <p>Entries are not authenticated: the cache trusts every entry file in its directory. Anyone
+ * who can create files in the directory can compute the key of an APK and thereby make the APK's
+ * contents skip verification. The directory must thus be writable only by trusted users.
+ */
+public class VerificationResultCache {
+
+    /** Version of the cache key format. Must be changed when the verification logic changes. */
+    private static final String KEY_FORMAT_VERSION = "1";
+
+    private static final String ENTRY_FILE_SUFFIX = ".verified";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    /** Temporary files older than this were left behind by a process which died. */
+    private static final long STALE_TEMP_FILE_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final File mDirectory;
+    private final int mMaxEntries;
+
+    /**
+     * Constructs a new cache stored in the provided directory and holding up to the provided number
+     * of entries. The directory is created if it does not exist.
+     */
+    public VerificationResultCache(File directory, int maxEntries) {
+        if (directory == null) {
+            throw new NullPointerException("directory == null");
+        }
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        mDirectory = directory;
+        mMaxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the key identifying the provided APK file and verification configuration.
+     *
+     * @param apkFile the APK file
+     * @param apk contents of {@code apkFile}
+     * @param zipSections ZIP sections of {@code apk}
+     * @param configuration verifier configuration which affects the result of verification
+     */
+    public static String getKey(
+            File apkFile, DataSource apk, ApkUtils.ZipSections zipSections, String configuration)
+                    throws IOException {
+        BasicFileAttributes attrs =
+                Files.readAttributes(apkFile.toPath(), BasicFileAttributes.class);
+        Object fileKey = attrs.fileKey();
+        String fileId = (fileKey != null) ? fileKey.toString() : apkFile.getCanonicalPath();
+
+        MessageDigest md = newSha256();
+        MessageDigestSink sink = new MessageDigestSink(new MessageDigest[] {md});
+        long centralDirStartOffset = zipSections.getZipCentralDirectoryOffset();
+        long signedMetadataStartOffset = centralDirStartOffset;
+        try {
+            signedMetadataStartOffset =
+                    ApkUtils.findApkSigningBlock(apk, zipSections).getStartOffset();
+        } catch (ApkSigningBlockNotFoundException e) {
+            // Only JAR signatures, if any. The Central Directory and EoCD are still covered.
+        }
+        // APK Signing Block, ZIP Central Directory and ZIP End of Central Directory are contiguous
+        apk.feed(signedMetadataStartOffset, apk.size() - signedMetadataStartOffset, sink);
+
+        return "version=" + KEY_FORMAT_VERSION
+                + "\nsize=" + attrs.size()
+                + "\nmtime=" + attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+                + "\nfile=" + fileId
+                + "\nconfig=" + configuration
+                + "\nmetadata=" + toHex(md.digest())
+                + "\n";
+    }
+
+    /**
+     * Returns {@code true} if this cache contains the provided key. Marks the entry as most
+     * recently used. Returns {@code false} if the cache could not be read.
+     */
+    public boolean contains(String key) {
+        File entryFile = getEntryFile(key);
+        try {
+            byte[] contents = Files.readAllBytes(entryFile.toPath());
+            if (!Arrays.equals(contents, key.getBytes(StandardCharsets.UTF_8))) {
+                return false;
+            }
+            Files.setLastModifiedTime(
+                    entryFile.toPath(), FileTime.fromMillis(System.currentTimeMillis()));
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            // The cache is best-effort
+            return false;
+        }
+    }
+
+    /**
+     * Adds the provided key to this cache and evicts the least recently used entries if the cache
+     * is over capacity. Failures to write to the cache are ignored.
+     */
+    public void put(String key) {
+        File entryFile = getEntryFile(key);
+        File tempFile = null;
+        try {
+            Files.createDirectories(mDirectory.toPath());
+            tempFile = File.createTempFile("entry", TEMP_FILE_SUFFIX, mDirectory);
+            Files.write(tempFile.toPath(), key.getBytes(StandardCharsets.UTF_8));
+            try {
+                Files.move(
+                        tempFile.toPath(),
+                        entryFile.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(
+                        tempFile.toPath(),
+                        entryFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            tempFile = null;
+        } catch (IOException e) {
+            // The cache is best-effort
+            return;
+        } finally {
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Deletes the least recently used entries until this cache is within its capacity, and deletes
+     * temporary files left behind by processes which died. Other processes may concurrently
+     * create, use or delete entries.
+     */
+    private void evict() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long staleTempFileTime = System.currentTimeMillis() - STALE_TEMP_FILE_AGE_MILLIS;
+        // Last modified times are obtained upfront because they may change while sorting
+        List<Pair<File, Long>> entries = new ArrayList<>(files.length);
+        for (File file : files) {
+            String name = file.getName();
+            long lastModified = file.lastModified();
+            if (name.endsWith(ENTRY_FILE_SUFFIX)) {
+                entries.add(Pair.of(file, lastModified));
+            } else if ((name.endsWith(TEMP_FILE_SUFFIX)) && (lastModified != 0)
+                    && (lastModified < staleTempFileTime)) {
+                file.delete();
+            }
+        }
+        int excessEntryCount = entries.size() - mMaxEntries;
+        if (excessEntryCount <= 0) {
+            return;
+        }
+        entries.sort((e1, e2) -> Long.compare(e1.getSecond(), e2.getSecond()));
+        for (int i = 0; i < excessEntryCount; i++) {
+            entries.get(i).getFirst().delete();
+        }
+    }
+
+    private File getEntryFile(String key) {
+        MessageDigest md = newSha256();
+        return new File(
+                mDirectory,
+                toHex(md.digest(key.getBytes(StandardCharsets.UTF_8))) + ENTRY_FILE_SUFFIX);
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 MessageDigest not available", e);
+        }
+    }
+
+    private static String toHex(byte[] value) {
+        StringBuilder sb = new StringBuilder(value.length * 2);
+        for (byte b : value) {
+            sb.append(Character.forDigit((b >> 4) & 0x0f, 16));
+            sb.append(Character.forDigit(b & 0x0f, 16));
+        }
+        return sb.toString();
+    }
+}
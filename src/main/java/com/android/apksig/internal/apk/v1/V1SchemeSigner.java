@@ -17,6 +17,7 @@
 package com.android.apksig.internal.apk.v1;
 
 import com.android.apksig.apk.ApkFormatException;
+import com.android.apksig.internal.apk.ApkSigningBlockUtils;
 import com.android.apksig.internal.asn1.Asn1DerEncoder;
 import com.android.apksig.internal.asn1.Asn1EncodingException;
 import com.android.apksig.internal.asn1.Asn1OpaqueObject;
@@ -31,7 +32,10 @@ import com.android.apksig.internal.pkcs7.Pkcs7Constants;
 import com.android.apksig.internal.pkcs7.SignedData;
 import com.android.apksig.internal.pkcs7.SignerIdentifier;
 import com.android.apksig.internal.pkcs7.SignerInfo;
+import com.android.apksig.internal.util.CryptoFactory;
 import com.android.apksig.internal.util.Pair;
+import com.android.apksig.util.BatchSigner;
+import com.android.apksig.util.RunnablesExecutor;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -49,12 +53,12 @@ import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 import javax.security.auth.x500.X500Principal;
@@ -87,6 +91,12 @@ public abstract class V1SchemeSigner {
         /** Private key. */
         public PrivateKey privateKey;
 
+        /**
+         * Signer which performs private key operations instead of {@link #privateKey}, or
+         * {@code null} to sign using {@link #privateKey}.
+         */
+        public BatchSigner batchSigner;
+
         /**
          * Certificates, with the first certificate containing the public key corresponding to
          * {@link #privateKey}.
@@ -170,7 +180,7 @@ public abstract class V1SchemeSigner {
     private static MessageDigest getMessageDigestInstance(DigestAlgorithm digestAlgorithm)
             throws NoSuchAlgorithmException {
         String jcaAlgorithm = digestAlgorithm.getJcaMessageDigestAlgorithm();
-        return MessageDigest.getInstance(jcaAlgorithm);
+        return CryptoFactory.getMessageDigest(jcaAlgorithm);
     }
 
     /**
@@ -277,6 +287,37 @@ public abstract class V1SchemeSigner {
             OutputManifestFile manifest)
                     throws NoSuchAlgorithmException, InvalidKeyException, CertificateException,
                             SignatureException {
+        return signManifest(
+                signerConfigs,
+                digestAlgorithm,
+                apkSigningSchemeIds,
+                createdBy,
+                manifest,
+                RunnablesExecutor.SINGLE_THREADED);
+    }
+
+    /**
+     * Signs the provided APK using JAR signing (aka v1 signature scheme) and returns the list of
+     * JAR entries which need to be added to the APK as part of the signature. The signature blocks
+     * of multiple signers are generated in parallel using the provided executor.
+     *
+     * @param signerConfigs signer configurations, one for each signer. At least one signer config
+     *        must be provided.
+     *
+     * @throws InvalidKeyException if a signing key is not suitable for this signature scheme or
+     *         cannot be used in general
+     * @throws SignatureException if an error occurs when computing digests of generating
+     *         signatures
+     */
+    public static List<Pair<String, byte[]>> signManifest(
+            List<SignerConfig> signerConfigs,
+            DigestAlgorithm digestAlgorithm,
+            List<Integer> apkSigningSchemeIds,
+            String createdBy,
+            OutputManifestFile manifest,
+            RunnablesExecutor executor)
+                    throws NoSuchAlgorithmException, InvalidKeyException, CertificateException,
+                            SignatureException {
         if (signerConfigs.isEmpty()) {
             throw new IllegalArgumentException("At least one signer config must be provided");
         }
@@ -286,11 +327,61 @@ public abstract class V1SchemeSigner {
                 new ArrayList<>(2 * signerConfigs.size() + 1);
         byte[] sfBytes =
                 generateSignatureFile(apkSigningSchemeIds, digestAlgorithm, createdBy, manifest);
-        for (SignerConfig signerConfig : signerConfigs) {
+        int signerCount = signerConfigs.size();
+        byte[][] signatureBlocks = new byte[signerCount][];
+        Exception[] failures = new Exception[signerCount];
+        List<Runnable> tasks = new ArrayList<>(signerCount);
+        Map<BatchSigner, List<Integer>> batches = new LinkedHashMap<>();
+        for (int i = 0; i < signerCount; i++) {
+            int signerIndex = i;
+            BatchSigner batchSigner = signerConfigs.get(signerIndex).batchSigner;
+            if (batchSigner != null) {
+                batches.computeIfAbsent(batchSigner, k -> new ArrayList<>()).add(signerIndex);
+                continue;
+            }
+            tasks.add(() -> {
+                try {
+                    signatureBlocks[signerIndex] =
+                            generateSignatureBlock(signerConfigs.get(signerIndex), sfBytes, null);
+                } catch (NoSuchAlgorithmException | InvalidKeyException | CertificateException
+                        | SignatureException | RuntimeException e) {
+                    failures[signerIndex] = e;
+                }
+            });
+        }
+        // Batches go first so that local signing overlaps with waiting for batch signers
+        List<Runnable> batchTasks = new ArrayList<>(batches.size());
+        for (Map.Entry<BatchSigner, List<Integer>> batch : batches.entrySet()) {
+            batchTasks.add(
+                    () -> generateSignatureBlocks(
+                            batch.getKey(),
+                            batch.getValue(),
+                            signerConfigs,
+                            sfBytes,
+                            signatureBlocks,
+                            failures));
+        }
+        tasks.addAll(0, batchTasks);
+        if (tasks.size() < 2) {
+            // Not worth handing over to other threads
+            executor = RunnablesExecutor.SINGLE_THREADED;
+        }
+        // Workers pull tasks off a shared queue so that any one of them can complete all tasks
+        AtomicInteger nextTask = new AtomicInteger();
+        executor.execute(() -> () -> {
+            int taskIndex;
+            while ((taskIndex = nextTask.getAndIncrement()) < tasks.size()) {
+                tasks.get(taskIndex).run();
+            }
+        });
+
+        for (int i = 0; i < signerCount; i++) {
+            SignerConfig signerConfig = signerConfigs.get(i);
             String signerName = signerConfig.name;
             byte[] signatureBlock;
             try {
-                signatureBlock = generateSignatureBlock(signerConfig, sfBytes);
+                throwIfFailed(failures[i]);
+                signatureBlock = signatureBlocks[i];
             } catch (InvalidKeyException e) {
                 throw new InvalidKeyException(
                         "Failed to sign using signer \"" + signerName + "\"", e);
@@ -301,6 +392,10 @@ public abstract class V1SchemeSigner {
                 throw new SignatureException(
                         "Failed to sign using signer \"" + signerName + "\"", e);
             }
+            if (signatureBlock == null) {
+                throw new IllegalStateException(
+                        "Signature block of signer \"" + signerName + "\" not generated");
+            }
             signatureJarEntries.add(Pair.of("META-INF/" + signerName + ".SF", sfBytes));
             PublicKey publicKey = signerConfig.certificates.get(0).getPublicKey();
             String signatureBlockFileName =
@@ -313,6 +408,86 @@ public abstract class V1SchemeSigner {
         return signatureJarEntries;
     }
 
+    /**
+     * Generates the signature blocks of the provided signers, whose signatures are requested from
+     * the provided batch signer in a single batch. Signature blocks and failures are stored at the
+     * index of the respective signer.
+     */
+    private static void generateSignatureBlocks(
+            BatchSigner batchSigner,
+            List<Integer> signerIndices,
+            List<SignerConfig> signerConfigs,
+            byte[] signatureFileBytes,
+            byte[][] signatureBlocks,
+            Exception[] failures) {
+        List<Integer> requestSignerIndices = new ArrayList<>(signerIndices.size());
+        List<BatchSigner.SignatureRequest> requests = new ArrayList<>(signerIndices.size());
+        for (int signerIndex : signerIndices) {
+            SignerConfig signerConfig = signerConfigs.get(signerIndex);
+            X509Certificate signingCert = signerConfig.certificates.get(0);
+            String jcaSignatureAlgorithm;
+            try {
+                jcaSignatureAlgorithm =
+                        getSignerInfoSignatureAlgorithm(
+                                signingCert.getPublicKey(), signerConfig.signatureDigestAlgorithm)
+                                .getFirst();
+            } catch (InvalidKeyException | RuntimeException e) {
+                failures[signerIndex] = e;
+                continue;
+            }
+            requestSignerIndices.add(signerIndex);
+            requests.add(
+                    new BatchSigner.SignatureRequest(
+                            signingCert, jcaSignatureAlgorithm, null, signatureFileBytes));
+        }
+        if (requests.isEmpty()) {
+            return;
+        }
+
+        List<byte[]> signatures;
+        try {
+            signatures = ApkSigningBlockUtils.signUsingBatchSigner(batchSigner, requests);
+        } catch (InvalidKeyException | SignatureException | RuntimeException e) {
+            for (int signerIndex : requestSignerIndices) {
+                failures[signerIndex] = e;
+            }
+            return;
+        }
+        for (int i = 0; i < requestSignerIndices.size(); i++) {
+            int signerIndex = requestSignerIndices.get(i);
+            try {
+                signatureBlocks[signerIndex] =
+                        generateSignatureBlock(
+                                signerConfigs.get(signerIndex),
+                                signatureFileBytes,
+                                signatures.get(i));
+            } catch (NoSuchAlgorithmException | InvalidKeyException | CertificateException
+                    | SignatureException | RuntimeException e) {
+                failures[signerIndex] = e;
+            }
+        }
+    }
+
+    /**
+     * Rethrows the provided failure of
+     * {@link #generateSignatureBlock(SignerConfig, byte[], byte[])}, if any.
+     */
+    private static void throwIfFailed(Exception failure)
+            throws NoSuchAlgorithmException, InvalidKeyException, CertificateException,
+                    SignatureException {
+        if (failure instanceof NoSuchAlgorithmException) {
+            throw (NoSuchAlgorithmException) failure;
+        } else if (failure instanceof InvalidKeyException) {
+            throw (InvalidKeyException) failure;
+        } else if (failure instanceof CertificateException) {
+            throw (CertificateException) failure;
+        } else if (failure instanceof SignatureException) {
+            throw (SignatureException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+    }
+
     /**
      * Returns the names of JAR entries which this signer will produce as part of v1 signature.
      */
@@ -367,31 +542,32 @@ public abstract class V1SchemeSigner {
 
         List<String> sortedEntryNames = new ArrayList<>(jarEntryDigests.keySet());
         Collections.sort(sortedEntryNames);
-        SortedMap<String, byte[]> invidualSectionsContents = new TreeMap<>();
+        // Individual sections are not stored separately. Only their offsets in the manifest are
+        // recorded, to keep memory use low for APKs with many entries.
+        int[] individualSectionsOffsets = new int[sortedEntryNames.size() + 1];
         String entryDigestAttributeName = getEntryDigestAttributeName(jarEntryDigestAlgorithm);
-        for (String entryName : sortedEntryNames) {
+        for (int i = 0; i < sortedEntryNames.size(); i++) {
+            String entryName = sortedEntryNames.get(i);
             checkEntryNameValid(entryName);
             byte[] entryDigest = jarEntryDigests.get(entryName);
             Attributes entryAttrs = new Attributes();
             entryAttrs.putValue(
                     entryDigestAttributeName,
                     Base64.getEncoder().encodeToString(entryDigest));
-            ByteArrayOutputStream sectionOut = new ByteArrayOutputStream();
-            byte[] sectionBytes;
+            individualSectionsOffsets[i] = manifestOut.size();
             try {
-                ManifestWriter.writeIndividualSection(sectionOut, entryName, entryAttrs);
-                sectionBytes = sectionOut.toByteArray();
-                manifestOut.write(sectionBytes);
+                ManifestWriter.writeIndividualSection(manifestOut, entryName, entryAttrs);
             } catch (IOException e) {
                 throw new RuntimeException("Failed to write in-memory MANIFEST.MF", e);
             }
-            invidualSectionsContents.put(entryName, sectionBytes);
         }
+        individualSectionsOffsets[sortedEntryNames.size()] = manifestOut.size();
 
         OutputManifestFile result = new OutputManifestFile();
         result.contents = manifestOut.toByteArray();
         result.mainSectionAttributes = mainAttrs;
-        result.individualSectionsContents = invidualSectionsContents;
+        result.individualSectionsNames = sortedEntryNames;
+        result.individualSectionsOffsets = individualSectionsOffsets;
         return result;
     }
 
@@ -413,7 +589,16 @@ public abstract class V1SchemeSigner {
 
     public static class OutputManifestFile {
         public byte[] contents;
-        public SortedMap<String, byte[]> individualSectionsContents;
+
+        /** Names of individual sections, in the order in which they appear in the manifest. */
+        public List<String> individualSectionsNames;
+
+        /**
+         * Offsets in {@link #contents} at which individual sections start, followed by the offset
+         * at which the last section ends.
+         */
+        public int[] individualSectionsOffsets;
+
         public Attributes mainSectionAttributes;
     }
 
@@ -456,11 +641,14 @@ public abstract class V1SchemeSigner {
             throw new RuntimeException("Failed to write in-memory .SF file", e);
         }
         String entryDigestAttributeName = getEntryDigestAttributeName(manifestDigestAlgorithm);
-        for (Map.Entry<String, byte[]> manifestSection
-                : manifest.individualSectionsContents.entrySet()) {
-            String sectionName = manifestSection.getKey();
-            byte[] sectionContents = manifestSection.getValue();
-            byte[] sectionDigest = md.digest(sectionContents);
+        for (int i = 0; i < manifest.individualSectionsNames.size(); i++) {
+            String sectionName = manifest.individualSectionsNames.get(i);
+            int sectionOffset = manifest.individualSectionsOffsets[i];
+            md.update(
+                    manifest.contents,
+                    sectionOffset,
+                    manifest.individualSectionsOffsets[i + 1] - sectionOffset);
+            byte[] sectionDigest = md.digest();
             Attributes attrs = new Attributes();
             attrs.putValue(
                     entryDigestAttributeName,
@@ -493,10 +681,11 @@ public abstract class V1SchemeSigner {
 
     /**
      * Generates the CMS PKCS #7 signature block corresponding to the provided signature file and
-     * signing configuration.
+     * signing configuration. The signature of the signature file is generated using the signer's
+     * private key unless it is provided.
      */
     private static byte[] generateSignatureBlock(
-            SignerConfig signerConfig, byte[] signatureFileBytes)
+            SignerConfig signerConfig, byte[] signatureFileBytes, byte[] signatureBytes)
                     throws NoSuchAlgorithmException, InvalidKeyException, CertificateException,
                             SignatureException {
         // Obtain relevant bits of signing configuration
@@ -509,22 +698,24 @@ public abstract class V1SchemeSigner {
         String jcaSignatureAlgorithm = signatureAlgs.getFirst();
 
         // Generate the cryptographic signature of the signature file
-        byte[] signatureBytes;
-        try {
-            Signature signature = Signature.getInstance(jcaSignatureAlgorithm);
-            signature.initSign(signerConfig.privateKey);
-            signature.update(signatureFileBytes);
-            signatureBytes = signature.sign();
-        } catch (InvalidKeyException e) {
-            throw new InvalidKeyException("Failed to sign using " + jcaSignatureAlgorithm, e);
-        } catch (SignatureException e) {
-            throw new SignatureException("Failed to sign using " + jcaSignatureAlgorithm, e);
+        if (signatureBytes == null) {
+            try {
+                Signature signature =
+                        CryptoFactory.getSignatureForSigning(
+                                jcaSignatureAlgorithm, signerConfig.privateKey);
+                signature.update(signatureFileBytes);
+                signatureBytes = signature.sign();
+            } catch (InvalidKeyException e) {
+                throw new InvalidKeyException("Failed to sign using " + jcaSignatureAlgorithm, e);
+            } catch (SignatureException e) {
+                throw new SignatureException("Failed to sign using " + jcaSignatureAlgorithm, e);
+            }
         }
 
         // Verify the signature against the public key in the signing certificate
         try {
-            Signature signature = Signature.getInstance(jcaSignatureAlgorithm);
-            signature.initVerify(publicKey);
+            Signature signature =
+                    CryptoFactory.getSignatureForVerification(jcaSignatureAlgorithm, publicKey);
             signature.update(signatureFileBytes);
             if (!signature.verify(signatureBytes)) {
                 throw new SignatureException("Signature did not verify");
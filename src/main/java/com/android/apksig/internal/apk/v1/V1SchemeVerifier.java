@@ -20,6 +20,8 @@ import com.android.apksig.ApkVerifier.Issue;
 import com.android.apksig.ApkVerifier.IssueWithParams;
 import com.android.apksig.apk.ApkFormatException;
 import com.android.apksig.apk.ApkUtils;
+import com.android.apksig.internal.apk.ApkDigestCache;
+import com.android.apksig.internal.apk.StreamedApkDataSource;
 import com.android.apksig.internal.asn1.Asn1BerParser;
 import com.android.apksig.internal.asn1.Asn1Class;
 import com.android.apksig.internal.asn1.Asn1DecodingException;
@@ -37,14 +39,17 @@ import com.android.apksig.internal.pkcs7.SignerIdentifier;
 import com.android.apksig.internal.pkcs7.SignerInfo;
 import com.android.apksig.internal.util.AndroidSdkVersion;
 import com.android.apksig.internal.util.ByteBufferUtils;
+import com.android.apksig.internal.util.CryptoFactory;
 import com.android.apksig.internal.util.X509CertificateUtils;
 import com.android.apksig.internal.util.GuaranteedEncodedFormX509Certificate;
 import com.android.apksig.internal.util.InclusiveIntRange;
 import com.android.apksig.internal.util.Pair;
+import com.android.apksig.internal.util.ProgressReporter;
 import com.android.apksig.internal.zip.CentralDirectoryRecord;
 import com.android.apksig.internal.zip.LocalFileRecord;
 import com.android.apksig.util.DataSinks;
 import com.android.apksig.util.DataSource;
+import com.android.apksig.util.MetricsListener;
 import com.android.apksig.zip.ZipFormatException;
 
 import java.io.IOException;
@@ -67,6 +72,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -98,12 +104,23 @@ public abstract class V1SchemeVerifier {
      * result with one or more errors and whose {@code Result.verified == false}, or this method
      * throws an exception.
      *
+     * <p>If {@code verifyIntegrity} is {@code false}, the uncompressed contents of JAR entries are
+     * not verified against the JAR manifest. Only signature block files, signature files, and the
+     * JAR manifest are verified. The result then does not guarantee that the APK's JAR entries
+     * match the signatures.
+     *
+     * <p>If {@code digestCache} is not {@code null}, the digests of JAR entries are shared with
+     * verifications of the APK for other platform version ranges.
+     *
      * @throws ApkFormatException if the APK is malformed
      * @throws IOException if an I/O error occurs when reading the APK
      * @throws NoSuchAlgorithmException if the APK's JAR signatures cannot be verified because a
      *         required cryptographic algorithm implementation is missing
      */
     public static Result verify(
+            ProgressReporter progressReporter,
+            boolean verifyIntegrity,
+            ApkDigestCache digestCache,
             DataSource apk,
             ApkUtils.ZipSections apkSections,
             Map<Integer, String> supportedApkSigSchemeNames,
@@ -127,6 +144,9 @@ public abstract class V1SchemeVerifier {
 
         // Verify JAR signature(s).
         Signers.verify(
+                progressReporter,
+                verifyIntegrity,
+                digestCache,
                 apk,
                 apkSections.getZipCentralDirectoryOffset(),
                 cdRecords,
@@ -209,9 +229,13 @@ public abstract class V1SchemeVerifier {
         /**
          * Verifies JAR signatures of the provided APK and populates the provided result container
          * with errors, warnings, and information about signers. The APK is considered verified if
-         * the {@link Result#verified} is {@code true}.
+         * the {@link Result#verified} is {@code true}. If {@code verifyIntegrity} is
+         * {@code false}, data of JAR entries is not verified.
          */
         private static void verify(
+                ProgressReporter progressReporter,
+                boolean verifyIntegrity,
+                ApkDigestCache digestCache,
                 DataSource apk,
                 long cdStartOffset,
                 List<CentralDirectoryRecord> cdRecords,
@@ -355,6 +379,16 @@ public abstract class V1SchemeVerifier {
             // * Contents of all JAR manifest sections listed in .SF files verify against .SF files.
             // * All JAR entries listed in JAR manifest are present in the APK.
 
+            if (!verifyIntegrity) {
+                // Data of JAR entries is not verified. All remaining signers are thus reported as
+                // signers of the APK.
+                for (Signer signer : signers) {
+                    result.signers.add(signer.getResult());
+                }
+                result.verified = true;
+                return;
+            }
+
             // Verify data of JAR entries against JAR manifest and .SF files. On Android, an APK's
             // JAR entry is considered signed by signers associated with an .SF file iff the entry
             // is mentioned in the .SF file and the entry's digest(s) mentioned in the JAR manifest
@@ -363,6 +397,8 @@ public abstract class V1SchemeVerifier {
             // we've identified so far.
             Set<Signer> apkSigners =
                     verifyJarEntriesAgainstManifestAndSigners(
+                            progressReporter,
+                            digestCache,
                             apk,
                             cdStartOffset,
                             cdRecords,
@@ -520,19 +556,16 @@ public abstract class V1SchemeVerifier {
             } else {
                 unverifiedSignerInfosToTry = signedData.signerInfos;
             }
-            List<X509Certificate> signedDataCertificates = null;
+            // Parse SignedData.certificates -- they are needed to verify SignerInfo
+            List<X509Certificate> signedDataCertificates;
+            try {
+                signedDataCertificates = parseCertificates(signedData.certificates);
+            } catch (CertificateException e) {
+                mResult.addError(
+                        Issue.JAR_SIG_PARSE_EXCEPTION, mSignatureBlockEntry.getName(), e);
+                return;
+            }
             for (SignerInfo unverifiedSignerInfo : unverifiedSignerInfosToTry) {
-                // Parse SignedData.certificates -- they are needed to verify SignerInfo
-                if (signedDataCertificates == null) {
-                    try {
-                        signedDataCertificates = parseCertificates(signedData.certificates);
-                    } catch (CertificateException e) {
-                        mResult.addError(
-                                Issue.JAR_SIG_PARSE_EXCEPTION, mSignatureBlockEntry.getName(), e);
-                        return;
-                    }
-                }
-
                 // Verify SignerInfo
                 X509Certificate signingCertificate;
                 try {
@@ -678,8 +711,9 @@ public abstract class V1SchemeVerifier {
             // public key
             String jcaSignatureAlgorithm =
                     getJcaSignatureAlgorithm(digestAlgorithmOid, signatureAlgorithmOid);
-            Signature s = Signature.getInstance(jcaSignatureAlgorithm);
-            s.initVerify(signingCertificate.getPublicKey());
+            Signature s =
+                    CryptoFactory.getSignatureForVerification(
+                            jcaSignatureAlgorithm, signingCertificate.getPublicKey());
             if (signerInfo.signedAttrs != null) {
                 // Signed attributes present -- verify signature against the ASN.1 DER encoded form
                 // of signed attributes. This verifies integrity of the signature file because
@@ -730,7 +764,7 @@ public abstract class V1SchemeVerifier {
                         throw new SignatureException("No content digest in signed attributes");
                     }
                     byte[] actualSignatureFileDigest =
-                            MessageDigest.getInstance(
+                            CryptoFactory.getMessageDigest(
                                     getJcaDigestAlgorithm(digestAlgorithmOid))
                                     .digest(signatureFile);
                     if (!Arrays.equals(
@@ -1813,6 +1847,8 @@ public abstract class V1SchemeVerifier {
     }
 
     private static Set<Signer> verifyJarEntriesAgainstManifestAndSigners(
+            ProgressReporter progressReporter,
+            ApkDigestCache digestCache,
             DataSource apk,
             long cdOffsetInApk,
             Collection<CentralDirectoryRecord> cdRecords,
@@ -1831,7 +1867,12 @@ public abstract class V1SchemeVerifier {
                 new HashSet<>(entryNameToManifestSection.keySet());
         List<Signer> firstSignedEntrySigners = null;
         String firstSignedEntryName = null;
+        ProgressReporter.PhaseProgress progress =
+                progressReporter.start(
+                        MetricsListener.Phase.V1_VERIFICATION,
+                        cdRecordsSortedByLocalFileHeaderOffset.size());
         for (CentralDirectoryRecord cdRecord : cdRecordsSortedByLocalFileHeaderOffset) {
+            progress.advance(1);
             String entryName = cdRecord.getName();
             manifestEntryNamesMissingFromApk.remove(entryName);
             if (!isJarEntryDigestNeededInManifest(entryName)) {
@@ -1876,17 +1917,15 @@ public abstract class V1SchemeVerifier {
                 continue;
             }
 
-            MessageDigest[] mds = new MessageDigest[expectedDigests.size()];
-            for (int i = 0; i < expectedDigests.size(); i++) {
-                mds[i] = getMessageDigest(expectedDigests.get(i).jcaDigestAlgorithm);
-            }
-
+            byte[][] actualDigests;
             try {
-                LocalFileRecord.outputUncompressedData(
+                actualDigests = getUncompressedDataDigests(
                         apk,
                         cdRecord,
                         cdOffsetInApk,
-                        DataSinks.asDataSink(mds));
+                        manifestSection,
+                        expectedDigests,
+                        digestCache);
             } catch (ZipFormatException e) {
                 throw new ApkFormatException("Malformed ZIP entry: " + entryName, e);
             } catch (IOException e) {
@@ -1895,7 +1934,7 @@ public abstract class V1SchemeVerifier {
 
             for (int i = 0; i < expectedDigests.size(); i++) {
                 NamedDigest expectedDigest = expectedDigests.get(i);
-                byte[] actualDigest = mds[i].digest();
+                byte[] actualDigest = actualDigests[i];
                 if (!Arrays.equals(expectedDigest.digest, actualDigest)) {
                     result.addError(
                             Issue.JAR_SIG_ZIP_ENTRY_DIGEST_DID_NOT_VERIFY,
@@ -1916,6 +1955,99 @@ public abstract class V1SchemeVerifier {
         }
     }
 
+    /**
+     * Returns the digests of the uncompressed data of the entry pointed to by the provided ZIP
+     * Central Directory record, computed using the algorithms of the provided digests.
+     *
+     * <p>If {@code digestCache} is not {@code null}, the digests are taken from the cache. Digests
+     * missing from the cache are computed using the algorithms of the digests to verify for any
+     * of the cache's platform version ranges, in a single pass over the entry's data.
+     */
+    private static byte[][] getUncompressedDataDigests(
+            DataSource apk,
+            CentralDirectoryRecord cdRecord,
+            long cdOffsetInApk,
+            ManifestParser.Section manifestSection,
+            List<NamedDigest> expectedDigests,
+            ApkDigestCache digestCache)
+            throws ZipFormatException, IOException, NoSuchAlgorithmException {
+        List<String> digestAlgorithms = new ArrayList<>(expectedDigests.size());
+        for (NamedDigest expectedDigest : expectedDigests) {
+            digestAlgorithms.add(expectedDigest.jcaDigestAlgorithm);
+        }
+        if ((digestCache == null) || (apk instanceof StreamedApkDataSource)) {
+            // Digests of a streamed APK's entries were computed while the APK streamed past
+            return getUncompressedDataDigests(apk, cdRecord, cdOffsetInApk, digestAlgorithms);
+        }
+
+        String entryName = cdRecord.getName();
+        Map<String, byte[]> cachedDigests = digestCache.getEntryDigests(entryName);
+        if ((cachedDigests == null) || (!cachedDigests.keySet().containsAll(digestAlgorithms))) {
+            Set<String> digestAlgorithmsToCompute = new LinkedHashSet<>(digestAlgorithms);
+            for (Pair<Integer, Integer> range : digestCache.getSdkVersionRanges()) {
+                for (NamedDigest digest
+                        : getDigestsToVerify(
+                                manifestSection, "-Digest", range.getFirst(), range.getSecond())) {
+                    digestAlgorithmsToCompute.add(digest.jcaDigestAlgorithm);
+                }
+            }
+            if (cachedDigests != null) {
+                digestAlgorithmsToCompute.removeAll(cachedDigests.keySet());
+            }
+            List<String> algorithms = new ArrayList<>(digestAlgorithmsToCompute);
+            byte[][] digests = getUncompressedDataDigests(apk, cdRecord, cdOffsetInApk, algorithms);
+            Map<String, byte[]> computedDigests = new HashMap<>(algorithms.size());
+            for (int i = 0; i < digests.length; i++) {
+                computedDigests.put(algorithms.get(i), digests[i]);
+            }
+            digestCache.putEntryDigests(entryName, computedDigests);
+            cachedDigests = digestCache.getEntryDigests(entryName);
+        }
+        byte[][] result = new byte[digestAlgorithms.size()][];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = cachedDigests.get(digestAlgorithms.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the digests of the uncompressed data of the entry pointed to by the provided ZIP
+     * Central Directory record, computed using the provided JCA digest algorithms.
+     */
+    private static byte[][] getUncompressedDataDigests(
+            DataSource apk,
+            CentralDirectoryRecord cdRecord,
+            long cdOffsetInApk,
+            List<String> digestAlgorithms)
+            throws ZipFormatException, IOException, NoSuchAlgorithmException {
+        byte[][] result = new byte[digestAlgorithms.size()][];
+        if (apk instanceof StreamedApkDataSource) {
+            // The entry's data was digested while the APK streamed past and was not retained
+            StreamedApkDataSource streamedApk = (StreamedApkDataSource) apk;
+            for (int i = 0; i < digestAlgorithms.size(); i++) {
+                result[i] =
+                        streamedApk.getUncompressedDataDigest(
+                                cdRecord, cdOffsetInApk, digestAlgorithms.get(i));
+            }
+            return result;
+        }
+
+        MessageDigest[] mds = new MessageDigest[digestAlgorithms.size()];
+        for (int i = 0; i < digestAlgorithms.size(); i++) {
+            mds[i] = CryptoFactory.acquireMessageDigest(digestAlgorithms.get(i));
+        }
+        LocalFileRecord.outputUncompressedData(
+                apk,
+                cdRecord,
+                cdOffsetInApk,
+                DataSinks.asDataSink(mds));
+        for (int i = 0; i < mds.length; i++) {
+            result[i] = mds[i].digest();
+            CryptoFactory.releaseMessageDigest(mds[i]);
+        }
+        return result;
+    }
+
     private static List<String> getSignerNames(List<Signer> signers) {
         if (signers.isEmpty()) {
             return Collections.emptyList();
@@ -1927,20 +2059,17 @@ public abstract class V1SchemeVerifier {
         return result;
     }
 
-    private static MessageDigest getMessageDigest(String algorithm)
-            throws NoSuchAlgorithmException {
-        return MessageDigest.getInstance(algorithm);
-    }
-
     private static byte[] digest(String algorithm, byte[] data, int offset, int length)
             throws NoSuchAlgorithmException {
-        MessageDigest md = getMessageDigest(algorithm);
+        MessageDigest md = CryptoFactory.acquireMessageDigest(algorithm);
         md.update(data, offset, length);
-        return md.digest();
+        byte[] result = md.digest();
+        CryptoFactory.releaseMessageDigest(md);
+        return result;
     }
 
     private static byte[] digest(String algorithm, byte[] data) throws NoSuchAlgorithmException {
-        return getMessageDigest(algorithm).digest(data);
+        return digest(algorithm, data, 0, data.length);
     }
 
     public static class NamedDigest {
@@ -22,11 +22,16 @@ import static com.android.apksig.internal.apk.ApkSigningBlockUtils.encodeCertifi
 import static com.android.apksig.internal.apk.ApkSigningBlockUtils.encodePublicKey;
 
 import com.android.apksig.internal.apk.ApkSigningBlockUtils;
+import com.android.apksig.internal.apk.ApkSigningBlockUtils.PendingBlock;
+import com.android.apksig.internal.apk.ApkSigningBlockUtils.PendingSignatures;
 import com.android.apksig.internal.apk.ApkSigningBlockUtils.SignerConfig;
 import com.android.apksig.internal.apk.ContentDigestAlgorithm;
 import com.android.apksig.internal.apk.SignatureAlgorithm;
 import com.android.apksig.internal.util.Pair;
+import com.android.apksig.internal.util.PhaseTracker;
+import com.android.apksig.internal.util.ProgressReporter;
 import com.android.apksig.util.DataSource;
+import com.android.apksig.util.MetricsListener;
 import com.android.apksig.util.RunnablesExecutor;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -140,6 +145,8 @@ public abstract class V2SchemeSigner {
 
     public static Pair<byte[], Integer> generateApkSignatureSchemeV2Block(
             RunnablesExecutor executor,
+            MetricsListener metricsListener,
+            ProgressReporter progressReporter,
             DataSource beforeCentralDir,
             DataSource centralDir,
             DataSource eocd,
@@ -147,44 +154,115 @@ public abstract class V2SchemeSigner {
             boolean v3SigningEnabled)
                     throws IOException, InvalidKeyException, NoSuchAlgorithmException,
                             SignatureException {
+        PendingSignatures pendingSignatures = new PendingSignatures();
+        PendingBlock pendingBlock =
+                prepareApkSignatureSchemeV2Block(
+                        executor,
+                        metricsListener,
+                        progressReporter,
+                        beforeCentralDir,
+                        centralDir,
+                        eocd,
+                        signerConfigs,
+                        v3SigningEnabled,
+                        pendingSignatures);
+        PhaseTracker tracker =
+                PhaseTracker.start(metricsListener, MetricsListener.Phase.SIGNATURE_GENERATION);
+        try {
+            pendingSignatures.generate(executor);
+            Pair<byte[], Integer> result = pendingBlock.getBlock();
+            tracker.addBytesWritten(result.getFirst().length);
+            return result;
+        } finally {
+            tracker.finish();
+        }
+    }
+
+    /**
+     * Computes the content digests of the APK and prepares its APK Signature Scheme v2 block,
+     * adding the signatures which the block requires to the provided pending signatures. The
+     * returned block can be obtained once these signatures have been generated.
+     */
+    public static PendingBlock prepareApkSignatureSchemeV2Block(
+            RunnablesExecutor executor,
+            MetricsListener metricsListener,
+            ProgressReporter progressReporter,
+            DataSource beforeCentralDir,
+            DataSource centralDir,
+            DataSource eocd,
+            List<SignerConfig> signerConfigs,
+            boolean v3SigningEnabled,
+            PendingSignatures pendingSignatures)
+                    throws IOException, InvalidKeyException, NoSuchAlgorithmException,
+                            SignatureException {
         Pair<List<SignerConfig>,
                 Map<ContentDigestAlgorithm, byte[]>> digestInfo =
                 ApkSigningBlockUtils.computeContentDigests(
-                        executor, beforeCentralDir, centralDir, eocd, signerConfigs);
-        return generateApkSignatureSchemeV2Block(
-                digestInfo.getFirst(), digestInfo.getSecond(),v3SigningEnabled);
+                        executor,
+                        metricsListener,
+                        progressReporter,
+                        beforeCentralDir,
+                        centralDir,
+                        eocd,
+                        signerConfigs);
+        return prepareApkSignatureSchemeV2Block(
+                digestInfo.getFirst(), digestInfo.getSecond(), v3SigningEnabled,
+                pendingSignatures);
     }
 
-    private static Pair<byte[], Integer> generateApkSignatureSchemeV2Block(
+    private static PendingBlock prepareApkSignatureSchemeV2Block(
             List<SignerConfig> signerConfigs,
             Map<ContentDigestAlgorithm, byte[]> contentDigests,
-            boolean v3SigningEnabled)
+            boolean v3SigningEnabled,
+            PendingSignatures pendingSignatures)
                     throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
-        // FORMAT:
-        // * length-prefixed sequence of length-prefixed signer blocks.
-
-        List<byte[]> signerBlocks = new ArrayList<>(signerConfigs.size());
+        List<V2SignatureSchemeBlock.Signer> signers = new ArrayList<>(signerConfigs.size());
+        int[] signatureIndices = new int[signerConfigs.size()];
         int signerNumber = 0;
         for (SignerConfig signerConfig : signerConfigs) {
             signerNumber++;
-            byte[] signerBlock;
+            V2SignatureSchemeBlock.Signer signer;
             try {
-                signerBlock = generateSignerBlock(signerConfig, contentDigests, v3SigningEnabled);
+                signer = prepareSigner(signerConfig, contentDigests, v3SigningEnabled);
             } catch (InvalidKeyException e) {
                 throw new InvalidKeyException("Signer #" + signerNumber + " failed", e);
             } catch (SignatureException e) {
                 throw new SignatureException("Signer #" + signerNumber + " failed", e);
             }
-            signerBlocks.add(signerBlock);
+            signatureIndices[signers.size()] =
+                    pendingSignatures.add(signerConfig, signer.signedData);
+            signers.add(signer);
         }
 
-        return Pair.of(encodeAsSequenceOfLengthPrefixedElements(
-                new byte[][] {
-                    encodeAsSequenceOfLengthPrefixedElements(signerBlocks),
-                }), APK_SIGNATURE_SCHEME_V2_BLOCK_ID);
+        return () -> {
+            // FORMAT:
+            // * length-prefixed sequence of length-prefixed signer blocks.
+
+            List<byte[]> signerBlocks = new ArrayList<>(signers.size());
+            for (int i = 0; i < signers.size(); i++) {
+                V2SignatureSchemeBlock.Signer signer = signers.get(i);
+                try {
+                    signer.signatures = pendingSignatures.get(signatureIndices[i]);
+                } catch (InvalidKeyException e) {
+                    throw new InvalidKeyException("Signer #" + (i + 1) + " failed", e);
+                } catch (SignatureException e) {
+                    throw new SignatureException("Signer #" + (i + 1) + " failed", e);
+                }
+                signerBlocks.add(encodeSigner(signer));
+            }
+
+            return Pair.of(encodeAsSequenceOfLengthPrefixedElements(
+                    new byte[][] {
+                        encodeAsSequenceOfLengthPrefixedElements(signerBlocks),
+                    }), APK_SIGNATURE_SCHEME_V2_BLOCK_ID);
+        };
     }
 
-    private static byte[] generateSignerBlock(
+    /**
+     * Returns the signer with its signed data and public key populated. The signatures over the
+     * signed data are to be generated separately.
+     */
+    private static V2SignatureSchemeBlock.Signer prepareSigner(
             SignerConfig signerConfig,
             Map<ContentDigestAlgorithm, byte[]> contentDigests,
             boolean v3SigningEnabled)
@@ -237,10 +315,10 @@ public abstract class V2SchemeSigner {
             new byte[0],
         });
         signer.publicKey = encodedPublicKey;
-        signer.signatures = new ArrayList<>();
-        signer.signatures =
-                ApkSigningBlockUtils.generateSignaturesOverData(signerConfig, signer.signedData);
+        return signer;
+    }
 
+    private static byte[] encodeSigner(V2SignatureSchemeBlock.Signer signer) {
         // FORMAT:
         // * length-prefixed signed data
         // * length-prefixed sequence of length-prefixed signatures:
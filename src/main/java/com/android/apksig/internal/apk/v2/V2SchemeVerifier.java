@@ -19,14 +19,19 @@ package com.android.apksig.internal.apk.v2;
 import com.android.apksig.ApkVerifier.Issue;
 import com.android.apksig.apk.ApkFormatException;
 import com.android.apksig.apk.ApkUtils;
+import com.android.apksig.internal.apk.ApkDigestCache;
 import com.android.apksig.internal.apk.ApkSigningBlockUtils;
 import com.android.apksig.internal.apk.ContentDigestAlgorithm;
 import com.android.apksig.internal.apk.SignatureAlgorithm;
 import com.android.apksig.internal.apk.SignatureInfo;
+import com.android.apksig.internal.apk.SignerVerificationCache;
 import com.android.apksig.internal.util.ByteBufferUtils;
+import com.android.apksig.internal.util.CryptoFactory;
+import com.android.apksig.internal.util.ProgressReporter;
 import com.android.apksig.internal.util.X509CertificateUtils;
 import com.android.apksig.internal.util.GuaranteedEncodedFormX509Certificate;
 import com.android.apksig.util.DataSource;
+import com.android.apksig.util.MetricsListener;
 import com.android.apksig.util.RunnablesExecutor;
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
@@ -34,7 +39,6 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
@@ -80,6 +84,15 @@ public abstract class V2SchemeVerifier {
      * this method returns a result with one or more errors and whose
      * {@code Result.verified == false}, or this method throws an exception.
      *
+     * <p>If {@code verifyIntegrity} is {@code false}, the APK's content digests are not computed.
+     * Only the signatures over signed data and the certificates are verified. The result then
+     * does not guarantee that the APK's contents match the signatures.
+     *
+     * <p>If {@code digestCache} is not {@code null}, the APK's content digests are shared with
+     * verifications of the APK for other platform version ranges. If {@code signerCache} is not
+     * {@code null}, the results of verifying signer blocks are shared with verifications of other
+     * APKs.
+     *
      * @throws ApkFormatException if the APK is malformed
      * @throws NoSuchAlgorithmException if the APK's signatures cannot be verified because a
      *         required cryptographic algorithm implementation is missing
@@ -89,6 +102,11 @@ public abstract class V2SchemeVerifier {
      */
     public static ApkSigningBlockUtils.Result verify(
             RunnablesExecutor executor,
+            MetricsListener metricsListener,
+            ProgressReporter progressReporter,
+            boolean verifyIntegrity,
+            ApkDigestCache digestCache,
+            SignerVerificationCache signerCache,
             DataSource apk,
             ApkUtils.ZipSections zipSections,
             Map<Integer, String> supportedApkSigSchemeNames,
@@ -111,6 +129,11 @@ public abstract class V2SchemeVerifier {
         ByteBuffer eocd = signatureInfo.eocd;
 
         verify(executor,
+                metricsListener,
+                progressReporter,
+                verifyIntegrity,
+                digestCache,
+                signerCache,
                 beforeApkSigningBlock,
                 signatureInfo.signatureBlock,
                 centralDir,
@@ -126,7 +149,8 @@ public abstract class V2SchemeVerifier {
     /**
      * Verifies the provided APK's v2 signatures and outputs the results into the provided
      * {@code result}. APK is considered verified only if there are no errors reported in the
-     * {@code result}. See {@link #verify(RunnablesExecutor, DataSource, ApkUtils.ZipSections, Map,
+     * {@code result}. See {@link #verify(RunnablesExecutor, MetricsListener, ProgressReporter,
+     * boolean, ApkDigestCache, SignerVerificationCache, DataSource, ApkUtils.ZipSections, Map,
      * Set, int, int)} for more information about the contract of this method.
      *
      * @param result result populated by this method with interesting information about the APK,
@@ -134,6 +158,11 @@ public abstract class V2SchemeVerifier {
      */
     private static void verify(
             RunnablesExecutor executor,
+            MetricsListener metricsListener,
+            ProgressReporter progressReporter,
+            boolean verifyIntegrity,
+            ApkDigestCache digestCache,
+            SignerVerificationCache signerCache,
             DataSource beforeApkSigningBlock,
             ByteBuffer apkSignatureSchemeV2Block,
             DataSource centralDir,
@@ -147,6 +176,7 @@ public abstract class V2SchemeVerifier {
         Set<ContentDigestAlgorithm> contentDigestsToVerify = new HashSet<>(1);
         parseSigners(
                 apkSignatureSchemeV2Block,
+                signerCache,
                 contentDigestsToVerify,
                 supportedApkSigSchemeNames,
                 foundSigSchemeIds,
@@ -156,8 +186,18 @@ public abstract class V2SchemeVerifier {
         if (result.containsErrors()) {
             return;
         }
-        ApkSigningBlockUtils.verifyIntegrity(
-                executor, beforeApkSigningBlock, centralDir, eocd, contentDigestsToVerify, result);
+        if (verifyIntegrity) {
+            ApkSigningBlockUtils.verifyIntegrity(
+                    executor,
+                    metricsListener,
+                    progressReporter,
+                    digestCache,
+                    beforeApkSigningBlock,
+                    centralDir,
+                    eocd,
+                    contentDigestsToVerify,
+                    result);
+        }
         if (!result.containsErrors()) {
             result.verified = true;
         }
@@ -177,6 +217,7 @@ public abstract class V2SchemeVerifier {
      */
     private static void parseSigners(
             ByteBuffer apkSignatureSchemeV2Block,
+            SignerVerificationCache signerCache,
             Set<ContentDigestAlgorithm> contentDigestsToVerify,
             Map<Integer, String> supportedApkSigSchemeNames,
             Set<Integer> foundApkSigSchemeIds,
@@ -214,6 +255,7 @@ public abstract class V2SchemeVerifier {
                 parseSigner(
                         signer,
                         certFactory,
+                        signerCache,
                         signerInfo,
                         contentDigestsToVerify,
                         supportedApkSigSchemeNames,
@@ -242,6 +284,7 @@ public abstract class V2SchemeVerifier {
     private static void parseSigner(
             ByteBuffer signerBlock,
             CertificateFactory certFactory,
+            SignerVerificationCache signerCache,
             ApkSigningBlockUtils.Result.SignerInfo result,
             Set<ContentDigestAlgorithm> contentDigestsToVerify,
             Map<Integer, String> supportedApkSigSchemeNames,
@@ -304,18 +347,29 @@ public abstract class V2SchemeVerifier {
             AlgorithmParameterSpec jcaSignatureAlgorithmParams =
                     signatureAlgorithm.getJcaSignatureAlgorithmAndParams().getSecond();
             String keyAlgorithm = signatureAlgorithm.getJcaKeyAlgorithm();
+            if ((signerCache != null)
+                    && (signerCache.isSignatureVerified(
+                            signatureAlgorithm,
+                            publicKeyBytes,
+                            signedDataBytes,
+                            signature.signature))) {
+                // An identical signature was verified before
+                result.verifiedSignatures.put(signatureAlgorithm, signature.signature);
+                contentDigestsToVerify.add(signatureAlgorithm.getContentDigestAlgorithm());
+                continue;
+            }
             PublicKey publicKey;
             try {
                 publicKey =
-                        KeyFactory.getInstance(keyAlgorithm).generatePublic(
+                        CryptoFactory.getKeyFactory(keyAlgorithm).generatePublic(
                                 new X509EncodedKeySpec(publicKeyBytes));
             } catch (Exception e) {
                 result.addError(Issue.V2_SIG_MALFORMED_PUBLIC_KEY, e);
                 return;
             }
             try {
-                Signature sig = Signature.getInstance(jcaSignatureAlgorithm);
-                sig.initVerify(publicKey);
+                Signature sig =
+                        CryptoFactory.getSignatureForVerification(jcaSignatureAlgorithm, publicKey);
                 if (jcaSignatureAlgorithmParams != null) {
                     sig.setParameter(jcaSignatureAlgorithmParams);
                 }
@@ -328,6 +382,10 @@ public abstract class V2SchemeVerifier {
                 }
                 result.verifiedSignatures.put(signatureAlgorithm, sigBytes);
                 contentDigestsToVerify.add(signatureAlgorithm.getContentDigestAlgorithm());
+                if (signerCache != null) {
+                    signerCache.addVerifiedSignature(
+                            signatureAlgorithm, publicKeyBytes, signedDataBytes, sigBytes);
+                }
             } catch (InvalidKeyException | InvalidAlgorithmParameterException
                     | SignatureException e) {
                 result.addError(Issue.V2_SIG_VERIFY_EXCEPTION, signatureAlgorithm, e);
@@ -348,7 +406,11 @@ public abstract class V2SchemeVerifier {
             byte[] encodedCert = ApkSigningBlockUtils.readLengthPrefixedByteArray(certificates);
             X509Certificate certificate;
             try {
-                certificate = X509CertificateUtils.generateCertificate(encodedCert, certFactory);
+                certificate =
+                        (signerCache != null)
+                                ? signerCache.generateCertificate(encodedCert, certFactory)
+                                : X509CertificateUtils.generateCertificate(
+                                        encodedCert, certFactory);
             } catch (CertificateException e) {
                 result.addError(
                         Issue.V2_SIG_MALFORMED_CERTIFICATE,
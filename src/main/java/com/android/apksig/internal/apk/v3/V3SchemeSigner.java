@@ -24,11 +24,16 @@ import static com.android.apksig.internal.apk.ApkSigningBlockUtils.encodePublicK
 
 import com.android.apksig.SigningCertificateLineage;
 import com.android.apksig.internal.apk.ApkSigningBlockUtils;
+import com.android.apksig.internal.apk.ApkSigningBlockUtils.PendingBlock;
+import com.android.apksig.internal.apk.ApkSigningBlockUtils.PendingSignatures;
 import com.android.apksig.internal.apk.ApkSigningBlockUtils.SignerConfig;
 import com.android.apksig.internal.apk.ContentDigestAlgorithm;
 import com.android.apksig.internal.apk.SignatureAlgorithm;
 import com.android.apksig.internal.util.Pair;
+import com.android.apksig.internal.util.PhaseTracker;
+import com.android.apksig.internal.util.ProgressReporter;
 import com.android.apksig.util.DataSource;
+import com.android.apksig.util.MetricsListener;
 import com.android.apksig.util.RunnablesExecutor;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -129,48 +134,119 @@ public abstract class V3SchemeSigner {
 
     public static Pair<byte[], Integer> generateApkSignatureSchemeV3Block(
             RunnablesExecutor executor,
+            MetricsListener metricsListener,
+            ProgressReporter progressReporter,
             DataSource beforeCentralDir,
             DataSource centralDir,
             DataSource eocd,
             List<SignerConfig> signerConfigs)
                     throws IOException, InvalidKeyException, NoSuchAlgorithmException,
                             SignatureException {
+        PendingSignatures pendingSignatures = new PendingSignatures();
+        PendingBlock pendingBlock =
+                prepareApkSignatureSchemeV3Block(
+                        executor,
+                        metricsListener,
+                        progressReporter,
+                        beforeCentralDir,
+                        centralDir,
+                        eocd,
+                        signerConfigs,
+                        pendingSignatures);
+        PhaseTracker tracker =
+                PhaseTracker.start(metricsListener, MetricsListener.Phase.SIGNATURE_GENERATION);
+        try {
+            pendingSignatures.generate(executor);
+            Pair<byte[], Integer> result = pendingBlock.getBlock();
+            tracker.addBytesWritten(result.getFirst().length);
+            return result;
+        } finally {
+            tracker.finish();
+        }
+    }
+
+    /**
+     * Computes the content digests of the APK and prepares its APK Signature Scheme v3 block,
+     * adding the signatures which the block requires to the provided pending signatures. The
+     * returned block can be obtained once these signatures have been generated.
+     */
+    public static PendingBlock prepareApkSignatureSchemeV3Block(
+            RunnablesExecutor executor,
+            MetricsListener metricsListener,
+            ProgressReporter progressReporter,
+            DataSource beforeCentralDir,
+            DataSource centralDir,
+            DataSource eocd,
+            List<SignerConfig> signerConfigs,
+            PendingSignatures pendingSignatures)
+                    throws IOException, InvalidKeyException, NoSuchAlgorithmException,
+                            SignatureException {
         Pair<List<SignerConfig>,
                 Map<ContentDigestAlgorithm, byte[]>> digestInfo =
                 ApkSigningBlockUtils.computeContentDigests(
-                        executor, beforeCentralDir, centralDir, eocd, signerConfigs);
-        return generateApkSignatureSchemeV3Block(digestInfo.getFirst(), digestInfo.getSecond());
+                        executor,
+                        metricsListener,
+                        progressReporter,
+                        beforeCentralDir,
+                        centralDir,
+                        eocd,
+                        signerConfigs);
+        return prepareApkSignatureSchemeV3Block(
+                digestInfo.getFirst(), digestInfo.getSecond(), pendingSignatures);
     }
 
-    private static Pair<byte[], Integer> generateApkSignatureSchemeV3Block(
+    private static PendingBlock prepareApkSignatureSchemeV3Block(
             List<SignerConfig> signerConfigs,
-            Map<ContentDigestAlgorithm, byte[]> contentDigests)
+            Map<ContentDigestAlgorithm, byte[]> contentDigests,
+            PendingSignatures pendingSignatures)
                     throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
-        // FORMAT:
-        // * length-prefixed sequence of length-prefixed signer blocks.
-
-        List<byte[]> signerBlocks = new ArrayList<>(signerConfigs.size());
+        List<V3SignatureSchemeBlock.Signer> signers = new ArrayList<>(signerConfigs.size());
+        int[] signatureIndices = new int[signerConfigs.size()];
         int signerNumber = 0;
         for (SignerConfig signerConfig : signerConfigs) {
             signerNumber++;
-            byte[] signerBlock;
+            V3SignatureSchemeBlock.Signer signer;
             try {
-                signerBlock = generateSignerBlock(signerConfig, contentDigests);
+                signer = prepareSigner(signerConfig, contentDigests);
             } catch (InvalidKeyException e) {
                 throw new InvalidKeyException("Signer #" + signerNumber + " failed", e);
             } catch (SignatureException e) {
                 throw new SignatureException("Signer #" + signerNumber + " failed", e);
             }
-            signerBlocks.add(signerBlock);
+            signatureIndices[signers.size()] =
+                    pendingSignatures.add(signerConfig, signer.signedData);
+            signers.add(signer);
         }
 
-        return Pair.of(encodeAsSequenceOfLengthPrefixedElements(
-                new byte[][] {
-                    encodeAsSequenceOfLengthPrefixedElements(signerBlocks),
-                }), APK_SIGNATURE_SCHEME_V3_BLOCK_ID);
+        return () -> {
+            // FORMAT:
+            // * length-prefixed sequence of length-prefixed signer blocks.
+
+            List<byte[]> signerBlocks = new ArrayList<>(signers.size());
+            for (int i = 0; i < signers.size(); i++) {
+                V3SignatureSchemeBlock.Signer signer = signers.get(i);
+                try {
+                    signer.signatures = pendingSignatures.get(signatureIndices[i]);
+                } catch (InvalidKeyException e) {
+                    throw new InvalidKeyException("Signer #" + (i + 1) + " failed", e);
+                } catch (SignatureException e) {
+                    throw new SignatureException("Signer #" + (i + 1) + " failed", e);
+                }
+                signerBlocks.add(encodeSigner(signer));
+            }
+
+            return Pair.of(encodeAsSequenceOfLengthPrefixedElements(
+                    new byte[][] {
+                        encodeAsSequenceOfLengthPrefixedElements(signerBlocks),
+                    }), APK_SIGNATURE_SCHEME_V3_BLOCK_ID);
+        };
     }
 
-    private static byte[] generateSignerBlock(
+    /**
+     * Returns the signer with its signed data, SDK version range, and public key populated. The
+     * signatures over the signed data are to be generated separately.
+     */
+    private static V3SignatureSchemeBlock.Signer prepareSigner(
             SignerConfig signerConfig,
             Map<ContentDigestAlgorithm, byte[]> contentDigests)
                     throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
@@ -213,11 +289,7 @@ public abstract class V3SchemeSigner {
         signer.minSdkVersion = signerConfig.minSdkVersion;
         signer.maxSdkVersion = signerConfig.maxSdkVersion;
         signer.publicKey = encodedPublicKey;
-        signer.signatures =
-                ApkSigningBlockUtils.generateSignaturesOverData(signerConfig, signer.signedData);
-
-
-        return encodeSigner(signer);
+        return signer;
     }
 
     private static byte[] encodeSigner(V3SignatureSchemeBlock.Signer signer) {
@@ -23,23 +23,27 @@ import com.android.apksig.ApkVerifier.Issue;
 import com.android.apksig.SigningCertificateLineage;
 import com.android.apksig.apk.ApkFormatException;
 import com.android.apksig.apk.ApkUtils;
+import com.android.apksig.internal.apk.ApkDigestCache;
 import com.android.apksig.internal.apk.ApkSigningBlockUtils;
 import com.android.apksig.internal.apk.ApkSigningBlockUtils.SignatureNotFoundException;
 import com.android.apksig.internal.apk.ContentDigestAlgorithm;
 import com.android.apksig.internal.apk.SignatureAlgorithm;
 import com.android.apksig.internal.apk.SignatureInfo;
+import com.android.apksig.internal.apk.SignerVerificationCache;
 import com.android.apksig.internal.util.AndroidSdkVersion;
 import com.android.apksig.internal.util.ByteBufferUtils;
+import com.android.apksig.internal.util.CryptoFactory;
+import com.android.apksig.internal.util.ProgressReporter;
 import com.android.apksig.internal.util.X509CertificateUtils;
 import com.android.apksig.internal.util.GuaranteedEncodedFormX509Certificate;
 import com.android.apksig.util.DataSource;
+import com.android.apksig.util.MetricsListener;
 import com.android.apksig.util.RunnablesExecutor;
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
@@ -86,6 +90,15 @@ public abstract class V3SchemeVerifier {
      * this method returns a result with one or more errors and whose
      * {@code Result.verified == false}, or this method throws an exception.
      *
+     * <p>If {@code verifyIntegrity} is {@code false}, the APK's content digests are not computed.
+     * Only the signatures over signed data and the certificates are verified. The result then
+     * does not guarantee that the APK's contents match the signatures.
+     *
+     * <p>If {@code digestCache} is not {@code null}, the APK's content digests are shared with
+     * verifications of the APK for other platform version ranges. If {@code signerCache} is not
+     * {@code null}, the results of verifying signer blocks are shared with verifications of other
+     * APKs.
+     *
      * @throws ApkFormatException if the APK is malformed
      * @throws NoSuchAlgorithmException if the APK's signatures cannot be verified because a
      *         required cryptographic algorithm implementation is missing
@@ -95,6 +108,11 @@ public abstract class V3SchemeVerifier {
      */
     public static ApkSigningBlockUtils.Result verify(
             RunnablesExecutor executor,
+            MetricsListener metricsListener,
+            ProgressReporter progressReporter,
+            boolean verifyIntegrity,
+            ApkDigestCache digestCache,
+            SignerVerificationCache signerCache,
             DataSource apk,
             ApkUtils.ZipSections zipSections,
             int minSdkVersion,
@@ -120,6 +138,11 @@ public abstract class V3SchemeVerifier {
         }
 
         verify(executor,
+                metricsListener,
+                progressReporter,
+                verifyIntegrity,
+                digestCache,
+                signerCache,
                 beforeApkSigningBlock,
                 signatureInfo.signatureBlock,
                 centralDir,
@@ -133,7 +156,8 @@ public abstract class V3SchemeVerifier {
     /**
      * Verifies the provided APK's v3 signatures and outputs the results into the provided
      * {@code result}. APK is considered verified only if there are no errors reported in the
-     * {@code result}. See {@link #verify(RunnablesExecutor, DataSource, ApkUtils.ZipSections, int,
+     * {@code result}. See {@link #verify(RunnablesExecutor, MetricsListener, ProgressReporter,
+     * boolean, ApkDigestCache, SignerVerificationCache, DataSource, ApkUtils.ZipSections, int,
      * int)} for more information about the contract of this method.
      *
      * @param result result populated by this method with interesting information about the APK,
@@ -141,6 +165,11 @@ public abstract class V3SchemeVerifier {
      */
     private static void verify(
             RunnablesExecutor executor,
+            MetricsListener metricsListener,
+            ProgressReporter progressReporter,
+            boolean verifyIntegrity,
+            ApkDigestCache digestCache,
+            SignerVerificationCache signerCache,
             DataSource beforeApkSigningBlock,
             ByteBuffer apkSignatureSchemeV3Block,
             DataSource centralDir,
@@ -150,13 +179,23 @@ public abstract class V3SchemeVerifier {
             ApkSigningBlockUtils.Result result)
             throws IOException, NoSuchAlgorithmException {
         Set<ContentDigestAlgorithm> contentDigestsToVerify = new HashSet<>(1);
-        parseSigners(apkSignatureSchemeV3Block, contentDigestsToVerify, result);
+        parseSigners(apkSignatureSchemeV3Block, signerCache, contentDigestsToVerify, result);
 
         if (result.containsErrors()) {
             return;
         }
-        ApkSigningBlockUtils.verifyIntegrity(
-                executor, beforeApkSigningBlock, centralDir, eocd, contentDigestsToVerify, result);
+        if (verifyIntegrity) {
+            ApkSigningBlockUtils.verifyIntegrity(
+                    executor,
+                    metricsListener,
+                    progressReporter,
+                    digestCache,
+                    beforeApkSigningBlock,
+                    centralDir,
+                    eocd,
+                    contentDigestsToVerify,
+                    result);
+        }
 
         // make sure that the v3 signers cover the entire targeted sdk version ranges and that the
         // longest SigningCertificateHistory, if present, corresponds to the newest platform
@@ -230,6 +269,7 @@ public abstract class V3SchemeVerifier {
      */
     private static void parseSigners(
             ByteBuffer apkSignatureSchemeV3Block,
+            SignerVerificationCache signerCache,
             Set<ContentDigestAlgorithm> contentDigestsToVerify,
             ApkSigningBlockUtils.Result result) throws NoSuchAlgorithmException {
         ByteBuffer signers;
@@ -260,7 +300,8 @@ public abstract class V3SchemeVerifier {
             result.signers.add(signerInfo);
             try {
                 ByteBuffer signer = getLengthPrefixedSlice(signers);
-                parseSigner(signer, certFactory, signerInfo, contentDigestsToVerify);
+                parseSigner(
+                        signer, certFactory, signerCache, signerInfo, contentDigestsToVerify);
             } catch (ApkFormatException | BufferUnderflowException e) {
                 signerInfo.addError(Issue.V3_SIG_MALFORMED_SIGNER);
                 return;
@@ -283,6 +324,7 @@ public abstract class V3SchemeVerifier {
     private static void parseSigner(
             ByteBuffer signerBlock,
             CertificateFactory certFactory,
+            SignerVerificationCache signerCache,
             ApkSigningBlockUtils.Result.SignerInfo result,
             Set<ContentDigestAlgorithm> contentDigestsToVerify)
                     throws ApkFormatException, NoSuchAlgorithmException {
@@ -351,18 +393,29 @@ public abstract class V3SchemeVerifier {
             AlgorithmParameterSpec jcaSignatureAlgorithmParams =
                     signatureAlgorithm.getJcaSignatureAlgorithmAndParams().getSecond();
             String keyAlgorithm = signatureAlgorithm.getJcaKeyAlgorithm();
+            if ((signerCache != null)
+                    && (signerCache.isSignatureVerified(
+                            signatureAlgorithm,
+                            publicKeyBytes,
+                            signedDataBytes,
+                            signature.signature))) {
+                // An identical signature was verified before
+                result.verifiedSignatures.put(signatureAlgorithm, signature.signature);
+                contentDigestsToVerify.add(signatureAlgorithm.getContentDigestAlgorithm());
+                continue;
+            }
             PublicKey publicKey;
             try {
                 publicKey =
-                        KeyFactory.getInstance(keyAlgorithm).generatePublic(
+                        CryptoFactory.getKeyFactory(keyAlgorithm).generatePublic(
                                 new X509EncodedKeySpec(publicKeyBytes));
             } catch (Exception e) {
                 result.addError(Issue.V3_SIG_MALFORMED_PUBLIC_KEY, e);
                 return;
             }
             try {
-                Signature sig = Signature.getInstance(jcaSignatureAlgorithm);
-                sig.initVerify(publicKey);
+                Signature sig =
+                        CryptoFactory.getSignatureForVerification(jcaSignatureAlgorithm, publicKey);
                 if (jcaSignatureAlgorithmParams != null) {
                     sig.setParameter(jcaSignatureAlgorithmParams);
                 }
@@ -375,6 +428,10 @@ public abstract class V3SchemeVerifier {
                 }
                 result.verifiedSignatures.put(signatureAlgorithm, sigBytes);
                 contentDigestsToVerify.add(signatureAlgorithm.getContentDigestAlgorithm());
+                if (signerCache != null) {
+                    signerCache.addVerifiedSignature(
+                            signatureAlgorithm, publicKeyBytes, signedDataBytes, sigBytes);
+                }
             } catch (InvalidKeyException | InvalidAlgorithmParameterException
                     | SignatureException e) {
                 result.addError(Issue.V3_SIG_VERIFY_EXCEPTION, signatureAlgorithm, e);
@@ -410,7 +467,11 @@ public abstract class V3SchemeVerifier {
             byte[] encodedCert = readLengthPrefixedByteArray(certificates);
             X509Certificate certificate;
             try {
-                certificate = X509CertificateUtils.generateCertificate(encodedCert, certFactory);
+                certificate =
+                        (signerCache != null)
+                                ? signerCache.generateCertificate(encodedCert, certFactory)
+                                : X509CertificateUtils.generateCertificate(
+                                        encodedCert, certFactory);
             } catch (CertificateException e) {
                 result.addError(
                         Issue.V3_SIG_MALFORMED_CERTIFICATE,
@@ -490,7 +551,10 @@ public abstract class V3SchemeVerifier {
                     try {
                         // SigningCertificateLineage is verified when built
                         result.signingCertificateLineage =
-                                SigningCertificateLineage.readFromV3AttributeValue(value);
+                                (signerCache != null)
+                                        ? signerCache.getSigningCertificateLineage(value)
+                                        : SigningCertificateLineage.readFromV3AttributeValue(
+                                                value);
                         // make sure that the last cert in the chain matches this signer cert
                         SigningCertificateLineage subLineage =
                                 result.signingCertificateLineage.getSubLineage(result.certs.get(0));
@@ -24,6 +24,7 @@ import static com.android.apksig.internal.apk.ApkSigningBlockUtils.readLengthPre
 import com.android.apksig.apk.ApkFormatException;
 import com.android.apksig.internal.apk.ApkSigningBlockUtils;
 import com.android.apksig.internal.apk.SignatureAlgorithm;
+import com.android.apksig.internal.util.CryptoFactory;
 import com.android.apksig.internal.util.GuaranteedEncodedFormX509Certificate;
 import com.android.apksig.internal.util.X509CertificateUtils;
 
@@ -119,8 +120,9 @@ public class V3SigningCertificateLineage {
                     AlgorithmParameterSpec jcaSignatureAlgorithmParams =
                             sigAlgorithm.getJcaSignatureAlgorithmAndParams().getSecond();
                     PublicKey publicKey = lastCert.getPublicKey();
-                    Signature sig = Signature.getInstance(jcaSignatureAlgorithm);
-                    sig.initVerify(publicKey);
+                    Signature sig =
+                            CryptoFactory.getSignatureForVerification(
+                                    jcaSignatureAlgorithm, publicKey);
                     if (jcaSignatureAlgorithmParams != null) {
                         sig.setParameter(jcaSignatureAlgorithmParams);
                     }
@@ -251,7 +253,8 @@ public class V3SigningCertificateLineage {
                 SignatureAlgorithm sigAlgorithm,
                 byte[] signature,
                 int flags) {
-            this.signingCert = signingCert;
+            // Wrapped so that nodes and certificates in lineages are compared by fingerprint
+            this.signingCert = X509CertificateUtils.toFingerprintedCertificate(signingCert);
             this.parentSigAlgorithm = parentSigAlgorithm;
             this.sigAlgorithm = sigAlgorithm;
             this.signature = signature;
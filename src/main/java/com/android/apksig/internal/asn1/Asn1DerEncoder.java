@@ -28,16 +28,30 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Encoder of ASN.1 structures into DER-encoded form.
  *
  * <p>Structure is described to the encoder by providing a class annotated with {@link Asn1Class},
  * containing fields annotated with {@link Asn1Field}.
+ *
+ * <p>Encoding is performed in two phases. The first phase converts the structure into a tree of
+ * {@link DerValue}s, which know the length of their encoded form without being encoded. The second
+ * phase writes the whole tree into a single buffer of the exact size. Thus, the contents of nested
+ * SEQUENCEs and SETs are not copied once per level of nesting.
  */
 public final class Asn1DerEncoder {
     private Asn1DerEncoder() {}
 
+    /**
+     * Annotated fields of each {@link Asn1Class} class encoded so far, in declaration order.
+     * Looking up fields and their annotations via reflection is relatively slow.
+     */
+    private static final Map<Class<?>, List<AnnotatedField>> ANNOTATED_FIELDS_CACHE =
+            new ConcurrentHashMap<>();
+
     /**
      * Returns the DER-encoded form of the provided ASN.1 structure.
      *
@@ -52,6 +66,17 @@ public final class Asn1DerEncoder {
      * @throws Asn1EncodingException if the input could not be encoded
      */
     public static byte[] encode(Object container) throws Asn1EncodingException {
+        DerValue value = toDerValue(container);
+        byte[] result = new byte[value.getEncodedLength()];
+        int end = value.writeTo(result, 0);
+        if (end != result.length) {
+            throw new IllegalStateException(
+                    "Wrote " + end + " bytes instead of " + result.length);
+        }
+        return result;
+    }
+
+    private static DerValue toDerValue(Object container) throws Asn1EncodingException {
         Class<?> containerClass = container.getClass();
         Asn1Class containerAnnotation = containerClass.getDeclaredAnnotation(Asn1Class.class);
         if (containerAnnotation == null) {
@@ -72,9 +97,9 @@ public final class Asn1DerEncoder {
         }
     }
 
-    private static byte[] toChoice(Object container) throws Asn1EncodingException {
+    private static DerValue toChoice(Object container) throws Asn1EncodingException {
         Class<?> containerClass = container.getClass();
-        List<AnnotatedField> fields = getAnnotatedFields(container);
+        List<AnnotatedField> fields = getAnnotatedFields(containerClass);
         if (fields.isEmpty()) {
             throw new Asn1EncodingException(
                     "No fields annotated with " + Asn1Field.class.getName()
@@ -82,6 +107,7 @@ public final class Asn1DerEncoder {
         }
 
         AnnotatedField resultField = null;
+        Object resultFieldValue = null;
         for (AnnotatedField field : fields) {
             Object fieldValue = getMemberFieldValue(container, field.getField());
             if (fieldValue != null) {
@@ -92,6 +118,7 @@ public final class Asn1DerEncoder {
                                     + ", " + field.getField().getName());
                 }
                 resultField = field;
+                resultFieldValue = fieldValue;
             }
         }
 
@@ -100,17 +127,17 @@ public final class Asn1DerEncoder {
                     "No non-null fields in CHOICE class " + containerClass.getName());
         }
 
-        return resultField.toDer();
+        return resultField.toDerValue(resultFieldValue);
     }
 
-    private static byte[] toSequence(Object container) throws Asn1EncodingException {
+    private static DerValue toSequence(Object container) throws Asn1EncodingException {
         return toSequence(container, false);
     }
 
-    private static byte[] toSequence(Object container, boolean omitTag)
+    private static DerValue toSequence(Object container, boolean omitTag)
             throws Asn1EncodingException {
         Class<?> containerClass = container.getClass();
-        List<AnnotatedField> fields = getAnnotatedFields(container);
+        List<AnnotatedField> fields = new ArrayList<>(getAnnotatedFields(containerClass));
         Collections.sort(
                 fields, (f1, f2) -> f1.getAnnotation().index() - f2.getAnnotation().index());
         if (fields.size() > 1) {
@@ -127,12 +154,12 @@ public final class Asn1DerEncoder {
             }
         }
 
-        List<byte[]> serializedFields = new ArrayList<>(fields.size());
-        int contentLen = 0;
+        List<DerValue> serializedFields = new ArrayList<>(fields.size());
         for (AnnotatedField field : fields) {
-            byte[] serializedField;
+            DerValue serializedField;
             try {
-                serializedField = field.toDer();
+                Object fieldValue = getMemberFieldValue(container, field.getField());
+                serializedField = field.toDerValue(fieldValue);
             } catch (Asn1EncodingException e) {
                 throw new Asn1EncodingException(
                         "Failed to encode " + containerClass.getName()
@@ -141,80 +168,93 @@ public final class Asn1DerEncoder {
             }
             if (serializedField != null) {
                 serializedFields.add(serializedField);
-                contentLen += serializedField.length;
             }
         }
 
+        DerValue contents = new ConcatenatedValue(serializedFields);
         if (omitTag) {
-            byte[] unencodedResult = new byte[contentLen];
-            int index = 0;
-            for (byte[] serializedField : serializedFields) {
-                System.arraycopy(serializedField, 0, unencodedResult, index, serializedField.length);
-                index += serializedField.length;
-            }
-            return unencodedResult;
+            return contents;
         } else {
-            return createTag(
+            return new TaggedValue(
                     BerEncoding.TAG_CLASS_UNIVERSAL, true, BerEncoding.TAG_NUMBER_SEQUENCE,
-                    serializedFields.toArray(new byte[0][]));
+                    contents);
         }
     }
 
-    private static byte[] toSetOf(Collection<?> values, Asn1Type elementType) throws Asn1EncodingException {
+    private static DerValue toSetOf(Collection<?> values, Asn1Type elementType)
+            throws Asn1EncodingException {
         return toSequenceOrSetOf(values, elementType, true);
     }
 
-    private static byte[] toSequenceOf(Collection<?> values, Asn1Type elementType) throws Asn1EncodingException {
+    private static DerValue toSequenceOf(Collection<?> values, Asn1Type elementType)
+            throws Asn1EncodingException {
         return toSequenceOrSetOf(values, elementType, false);
     }
 
-    private static byte[] toSequenceOrSetOf(Collection<?> values, Asn1Type elementType, boolean toSet)
+    private static DerValue toSequenceOrSetOf(
+            Collection<?> values, Asn1Type elementType, boolean toSet)
             throws Asn1EncodingException {
-        List<byte[]> serializedValues = new ArrayList<>(values.size());
+        List<DerValue> serializedValues = new ArrayList<>(values.size());
         for (Object value : values) {
-            serializedValues.add(JavaToDerConverter.toDer(value, elementType, null));
+            serializedValues.add(JavaToDerConverter.toDerValue(value, elementType, null));
         }
         int tagNumber;
         if (toSet) {
             if (serializedValues.size() > 1) {
-                Collections.sort(serializedValues, ByteArrayLexicographicComparator.INSTANCE);
+                // DER orders elements of SET OF by their encoded form. Only the elements are
+                // encoded separately for this purpose, not the rest of the structure.
+                List<ByteBuffer> encodedValues = new ArrayList<>(serializedValues.size());
+                for (DerValue serializedValue : serializedValues) {
+                    encodedValues.add(serializedValue.toByteBuffer());
+                }
+                Collections.sort(encodedValues, ByteBufferLexicographicComparator.INSTANCE);
+                serializedValues.clear();
+                for (ByteBuffer encodedValue : encodedValues) {
+                    serializedValues.add(new BytesValue(encodedValue));
+                }
             }
             tagNumber = BerEncoding.TAG_NUMBER_SET;
         } else {
             tagNumber = BerEncoding.TAG_NUMBER_SEQUENCE;
         }
-        return createTag(
+        return new TaggedValue(
                 BerEncoding.TAG_CLASS_UNIVERSAL, true, tagNumber,
-                serializedValues.toArray(new byte[0][]));
+                new ConcatenatedValue(serializedValues));
     }
 
     /**
-     * Compares two bytes arrays based on their lexicographic order. Corresponding elements of the
-     * two arrays are compared in ascending order. Elements at out of range indices are assumed to
-     * be smaller than the smallest possible value for an element.
+     * Compares the remaining contents of two buffers based on their lexicographic order.
+     * Corresponding elements of the two buffers are compared in ascending order. Elements at out of
+     * range indices are assumed to be smaller than the smallest possible value for an element.
      */
-    private static class ByteArrayLexicographicComparator implements Comparator<byte[]> {
-            private static final ByteArrayLexicographicComparator INSTANCE =
-                    new ByteArrayLexicographicComparator();
+    private static class ByteBufferLexicographicComparator implements Comparator<ByteBuffer> {
+            private static final ByteBufferLexicographicComparator INSTANCE =
+                    new ByteBufferLexicographicComparator();
 
             @Override
-            public int compare(byte[] arr1, byte[] arr2) {
-                int commonLength = Math.min(arr1.length, arr2.length);
+            public int compare(ByteBuffer buf1, ByteBuffer buf2) {
+                int pos1 = buf1.position();
+                int pos2 = buf2.position();
+                int commonLength = Math.min(buf1.remaining(), buf2.remaining());
                 for (int i = 0; i < commonLength; i++) {
-                    int diff = (arr1[i] & 0xff) - (arr2[i] & 0xff);
+                    int diff = (buf1.get(pos1 + i) & 0xff) - (buf2.get(pos2 + i) & 0xff);
                     if (diff != 0) {
                         return diff;
                     }
                 }
-                return arr1.length - arr2.length;
+                return buf1.remaining() - buf2.remaining();
             }
     }
 
-    private static List<AnnotatedField> getAnnotatedFields(Object container)
+    private static List<AnnotatedField> getAnnotatedFields(Class<?> containerClass)
             throws Asn1EncodingException {
-        Class<?> containerClass = container.getClass();
+        List<AnnotatedField> result = ANNOTATED_FIELDS_CACHE.get(containerClass);
+        if (result != null) {
+            return result;
+        }
+
         Field[] declaredFields = containerClass.getDeclaredFields();
-        List<AnnotatedField> result = new ArrayList<>(declaredFields.length);
+        result = new ArrayList<>(declaredFields.length);
         for (Field field : declaredFields) {
             Asn1Field annotation = field.getDeclaredAnnotation(Asn1Field.class);
             if (annotation == null) {
@@ -228,7 +268,7 @@ public final class Asn1DerEncoder {
 
             AnnotatedField annotatedField;
             try {
-                annotatedField = new AnnotatedField(container, field, annotation);
+                annotatedField = new AnnotatedField(field, annotation);
             } catch (Asn1EncodingException e) {
                 throw new Asn1EncodingException(
                         "Invalid ASN.1 annotation on "
@@ -237,24 +277,27 @@ public final class Asn1DerEncoder {
             }
             result.add(annotatedField);
         }
+        result = Collections.unmodifiableList(result);
+        // Classes with invalid annotations are not cached, so that they fail every time
+        ANNOTATED_FIELDS_CACHE.putIfAbsent(containerClass, result);
         return result;
     }
 
-    private static byte[] toInteger(int value) {
+    private static DerValue toInteger(int value) {
         return toInteger((long) value);
     }
 
-    private static byte[] toInteger(long value) {
+    private static DerValue toInteger(long value) {
         return toInteger(BigInteger.valueOf(value));
     }
 
-    private static byte[] toInteger(BigInteger value) {
-        return createTag(
+    private static DerValue toInteger(BigInteger value) {
+        return new TaggedValue(
                 BerEncoding.TAG_CLASS_UNIVERSAL, false, BerEncoding.TAG_NUMBER_INTEGER,
                 value.toByteArray());
     }
 
-    private static byte[] toBoolean(boolean value) {
+    private static DerValue toBoolean(boolean value) {
         // A boolean should be encoded in a single byte with a value of 0 for false and any non-zero
         // value for true.
         byte[] result = new byte[1];
@@ -263,10 +306,11 @@ public final class Asn1DerEncoder {
         } else {
             result[0] = 1;
         }
-        return createTag(BerEncoding.TAG_CLASS_UNIVERSAL, false, BerEncoding.TAG_NUMBER_BOOLEAN, result);
+        return new TaggedValue(
+                BerEncoding.TAG_CLASS_UNIVERSAL, false, BerEncoding.TAG_NUMBER_BOOLEAN, result);
     }
 
-    private static byte[] toOid(String oid) throws Asn1EncodingException {
+    private static DerValue toOid(String oid) throws Asn1EncodingException {
         ByteArrayOutputStream encodedValue = new ByteArrayOutputStream();
         String[] nodes = oid.split("\\.");
         if (nodes.length < 2) {
@@ -328,7 +372,7 @@ public final class Asn1DerEncoder {
             throw new Asn1EncodingException("Node #" + (i + 1) + " too large: " + node);
         }
 
-        return createTag(
+        return new TaggedValue(
                 BerEncoding.TAG_CLASS_UNIVERSAL, false, BerEncoding.TAG_NUMBER_OBJECT_IDENTIFIER,
                 encodedValue.toByteArray());
     }
@@ -343,9 +387,12 @@ public final class Asn1DerEncoder {
         }
     }
 
+    /**
+     * Encoding metadata of a field annotated with {@link Asn1Field}. Instances are shared by all
+     * objects of the class declaring the field.
+     */
     private static final class AnnotatedField {
         private final Field mField;
-        private final Object mObject;
         private final Asn1Field mAnnotation;
         private final Asn1Type mDataType;
         private final Asn1Type mElementDataType;
@@ -355,9 +402,7 @@ public final class Asn1DerEncoder {
         private final Asn1Tagging mTagging;
         private final boolean mOptional;
 
-        public AnnotatedField(Object obj, Field field, Asn1Field annotation)
-                throws Asn1EncodingException {
-            mObject = obj;
+        public AnnotatedField(Field field, Asn1Field annotation) throws Asn1EncodingException {
             mField = field;
             mAnnotation = annotation;
             mDataType = annotation.type();
@@ -402,8 +447,11 @@ public final class Asn1DerEncoder {
             return mAnnotation;
         }
 
-        public byte[] toDer() throws Asn1EncodingException {
-            Object fieldValue = getMemberFieldValue(mObject, mField);
+        /**
+         * Returns the DER value of this field, given the field's value, or {@code null} if the
+         * field is optional and not set.
+         */
+        public DerValue toDerValue(Object fieldValue) throws Asn1EncodingException {
             if (fieldValue == null) {
                 if (mOptional) {
                     return null;
@@ -411,14 +459,16 @@ public final class Asn1DerEncoder {
                 throw new Asn1EncodingException("Required field not set");
             }
 
-            byte[] encoded = JavaToDerConverter.toDer(fieldValue, mDataType, mElementDataType);
+            DerValue encoded =
+                    JavaToDerConverter.toDerValue(fieldValue, mDataType, mElementDataType);
             switch (mTagging) {
                 case NORMAL:
                     return encoded;
                 case EXPLICIT:
-                    return createTag(mDerTagClass, true, mDerTagNumber, encoded);
+                    return new TaggedValue(mDerTagClass, true, mDerTagNumber, encoded);
                 case IMPLICIT:
-                    int originalTagNumber = BerEncoding.getTagNumber(encoded[0]);
+                    byte firstIdentifierByte = encoded.getFirstByte();
+                    int originalTagNumber = BerEncoding.getTagNumber(firstIdentifierByte);
                     if (originalTagNumber == 0x1f) {
                         throw new Asn1EncodingException("High-tag-number form not supported");
                     }
@@ -426,106 +476,246 @@ public final class Asn1DerEncoder {
                         throw new Asn1EncodingException(
                                 "Unsupported high tag number: " + mDerTagNumber);
                     }
-                    encoded[0] = BerEncoding.setTagNumber(encoded[0], mDerTagNumber);
-                    encoded[0] = BerEncoding.setTagClass(encoded[0], mDerTagClass);
-                    return encoded;
+                    firstIdentifierByte =
+                            BerEncoding.setTagNumber(firstIdentifierByte, mDerTagNumber);
+                    firstIdentifierByte =
+                            BerEncoding.setTagClass(firstIdentifierByte, mDerTagClass);
+                    return new ImplicitlyTaggedValue(encoded, firstIdentifierByte);
                 default:
                     throw new RuntimeException("Unknown tagging mode: " + mTagging);
             }
         }
     }
 
-    private static byte[] createTag(
-            int tagClass, boolean constructed, int tagNumber, byte[]... contents) {
-        if (tagNumber >= 0x1f) {
-            throw new IllegalArgumentException("High tag numbers not supported: " + tagNumber);
-        }
-        // tag class & number fit into the first byte
-        byte firstIdentifierByte =
-                (byte) ((tagClass << 6) | (constructed ? 1 << 5 : 0) | tagNumber);
-
-        int contentsLength = 0;
-        for (byte[] c : contents) {
-            contentsLength += c.length;
-        }
-        int contentsPosInResult;
-        byte[] result;
-        if (contentsLength < 0x80) {
-            // Length fits into one byte
-            contentsPosInResult = 2;
-            result = new byte[contentsPosInResult + contentsLength];
-            result[0] = firstIdentifierByte;
-            result[1] = (byte) contentsLength;
-        } else {
-            // Length is represented as multiple bytes
-            // The low 7 bits of the first byte represent the number of length bytes (following the
-            // first byte) in which the length is in big-endian base-256 form
-            if (contentsLength <= 0xff) {
-                contentsPosInResult = 3;
-                result = new byte[contentsPosInResult + contentsLength];
-                result[1] = (byte) 0x81; // 1 length byte
-                result[2] = (byte) contentsLength;
+    /**
+     * Value to be DER-encoded. The length of the encoded form is known before the value is written.
+     */
+    private abstract static class DerValue {
+        /**
+         * Returns the number of bytes {@link #writeTo(byte[], int)} writes.
+         */
+        abstract int getEncodedLength();
+
+        /**
+         * Returns the first byte of the encoded form.
+         *
+         * @throws Asn1EncodingException if the encoded form is empty
+         */
+        abstract byte getFirstByte() throws Asn1EncodingException;
+
+        /**
+         * Writes the encoded form into the provided array at the provided offset and returns the
+         * offset following the last byte written.
+         */
+        abstract int writeTo(byte[] out, int offset);
+
+        /**
+         * Returns the encoded form.
+         */
+        ByteBuffer toByteBuffer() {
+            byte[] result = new byte[getEncodedLength()];
+            writeTo(result, 0);
+            return ByteBuffer.wrap(result);
+        }
+    }
+
+    /** Value whose encoded form is already known. */
+    private static final class BytesValue extends DerValue {
+        private final ByteBuffer mEncoded;
+
+        private BytesValue(byte[] encoded) {
+            this(ByteBuffer.wrap(encoded));
+        }
+
+        private BytesValue(ByteBuffer encoded) {
+            mEncoded = encoded.slice();
+        }
+
+        @Override
+        int getEncodedLength() {
+            return mEncoded.remaining();
+        }
+
+        @Override
+        byte getFirstByte() throws Asn1EncodingException {
+            if (!mEncoded.hasRemaining()) {
+                throw new Asn1EncodingException("Empty encoded value");
+            }
+            return mEncoded.get(0);
+        }
+
+        @Override
+        int writeTo(byte[] out, int offset) {
+            int length = mEncoded.remaining();
+            mEncoded.duplicate().get(out, offset, length);
+            return offset + length;
+        }
+
+        @Override
+        ByteBuffer toByteBuffer() {
+            return mEncoded.duplicate();
+        }
+    }
+
+    /** Concatenation of values, without an identifier and length. */
+    private static final class ConcatenatedValue extends DerValue {
+        private final List<DerValue> mValues;
+        private final int mEncodedLength;
+
+        private ConcatenatedValue(List<DerValue> values) {
+            mValues = values;
+            int encodedLength = 0;
+            for (DerValue value : values) {
+                encodedLength += value.getEncodedLength();
+            }
+            mEncodedLength = encodedLength;
+        }
+
+        @Override
+        int getEncodedLength() {
+            return mEncodedLength;
+        }
+
+        @Override
+        byte getFirstByte() throws Asn1EncodingException {
+            for (DerValue value : mValues) {
+                if (value.getEncodedLength() > 0) {
+                    return value.getFirstByte();
+                }
+            }
+            throw new Asn1EncodingException("Empty encoded value");
+        }
+
+        @Override
+        int writeTo(byte[] out, int offset) {
+            for (DerValue value : mValues) {
+                offset = value.writeTo(out, offset);
+            }
+            return offset;
+        }
+    }
+
+    /** Identifier and length, followed by contents. */
+    private static final class TaggedValue extends DerValue {
+        private final byte mFirstIdentifierByte;
+        private final DerValue mContents;
+        private final int mLengthLength;
+
+        private TaggedValue(int tagClass, boolean constructed, int tagNumber, byte[] contents) {
+            this(tagClass, constructed, tagNumber, new BytesValue(contents));
+        }
+
+        private TaggedValue(int tagClass, boolean constructed, int tagNumber, DerValue contents) {
+            if (tagNumber >= 0x1f) {
+                throw new IllegalArgumentException("High tag numbers not supported: " + tagNumber);
+            }
+            // tag class & number fit into the first byte
+            mFirstIdentifierByte =
+                    (byte) ((tagClass << 6) | (constructed ? 1 << 5 : 0) | tagNumber);
+            mContents = contents;
+            mLengthLength = getLengthLength(contents.getEncodedLength());
+        }
+
+        @Override
+        int getEncodedLength() {
+            return 1 + mLengthLength + mContents.getEncodedLength();
+        }
+
+        @Override
+        byte getFirstByte() {
+            return mFirstIdentifierByte;
+        }
+
+        @Override
+        int writeTo(byte[] out, int offset) {
+            out[offset++] = mFirstIdentifierByte;
+            int contentsLength = mContents.getEncodedLength();
+            if (mLengthLength == 1) {
+                // Length fits into one byte
+                out[offset++] = (byte) contentsLength;
+            } else {
+                // Length is represented as multiple bytes
+                // The low 7 bits of the first byte represent the number of length bytes (following
+                // the first byte) in which the length is in big-endian base-256 form
+                int lengthByteCount = mLengthLength - 1;
+                out[offset++] = (byte) (0x80 | lengthByteCount);
+                for (int i = lengthByteCount - 1; i >= 0; i--) {
+                    out[offset++] = (byte) (contentsLength >> (i * 8));
+                }
+            }
+            return mContents.writeTo(out, offset);
+        }
+
+        /** Returns the number of bytes in which the provided contents length is encoded. */
+        private static int getLengthLength(int contentsLength) {
+            if (contentsLength < 0x80) {
+                return 1;
+            } else if (contentsLength <= 0xff) {
+                return 2;
             } else if (contentsLength <= 0xffff) {
-                contentsPosInResult = 4;
-                result = new byte[contentsPosInResult + contentsLength];
-                result[1] = (byte) 0x82; // 2 length bytes
-                result[2] = (byte) (contentsLength >> 8);
-                result[3] = (byte) (contentsLength & 0xff);
+                return 3;
             } else if (contentsLength <= 0xffffff) {
-                contentsPosInResult = 5;
-                result = new byte[contentsPosInResult + contentsLength];
-                result[1] = (byte) 0x83; // 3 length bytes
-                result[2] = (byte) (contentsLength >> 16);
-                result[3] = (byte) ((contentsLength >> 8) & 0xff);
-                result[4] = (byte) (contentsLength & 0xff);
+                return 4;
             } else {
-                contentsPosInResult = 6;
-                result = new byte[contentsPosInResult + contentsLength];
-                result[1] = (byte) 0x84; // 4 length bytes
-                result[2] = (byte) (contentsLength >> 24);
-                result[3] = (byte) ((contentsLength >> 16) & 0xff);
-                result[4] = (byte) ((contentsLength >> 8) & 0xff);
-                result[5] = (byte) (contentsLength & 0xff);
+                return 5;
             }
-            result[0] = firstIdentifierByte;
         }
-        for (byte[] c : contents) {
-            System.arraycopy(c, 0, result, contentsPosInResult, c.length);
-            contentsPosInResult += c.length;
+    }
+
+    /** Value whose identifier is replaced, as per IMPLICIT tagging. */
+    private static final class ImplicitlyTaggedValue extends DerValue {
+        private final DerValue mValue;
+        private final byte mFirstIdentifierByte;
+
+        private ImplicitlyTaggedValue(DerValue value, byte firstIdentifierByte) {
+            mValue = value;
+            mFirstIdentifierByte = firstIdentifierByte;
+        }
+
+        @Override
+        int getEncodedLength() {
+            return mValue.getEncodedLength();
+        }
+
+        @Override
+        byte getFirstByte() {
+            return mFirstIdentifierByte;
+        }
+
+        @Override
+        int writeTo(byte[] out, int offset) {
+            int result = mValue.writeTo(out, offset);
+            out[offset] = mFirstIdentifierByte;
+            return result;
         }
-        return result;
     }
 
     private static final class JavaToDerConverter {
         private JavaToDerConverter() {}
 
-        public static byte[] toDer(Object source, Asn1Type targetType, Asn1Type targetElementType)
+        public static DerValue toDerValue(
+                Object source, Asn1Type targetType, Asn1Type targetElementType)
                 throws Asn1EncodingException {
             Class<?> sourceType = source.getClass();
             if (Asn1OpaqueObject.class.equals(sourceType)) {
-                ByteBuffer buf = ((Asn1OpaqueObject) source).getEncoded();
-                byte[] result = new byte[buf.remaining()];
-                buf.get(result);
-                return result;
+                return new BytesValue(((Asn1OpaqueObject) source).getEncoded());
             }
 
             if ((targetType == null) || (targetType == Asn1Type.ANY)) {
-                return encode(source);
+                return Asn1DerEncoder.toDerValue(source);
             }
 
             switch (targetType) {
                 case OCTET_STRING:
                 case BIT_STRING:
-                    byte[] value = null;
+                    DerValue value = null;
                     if (source instanceof ByteBuffer) {
-                        ByteBuffer buf = (ByteBuffer) source;
-                        value = new byte[buf.remaining()];
-                        buf.slice().get(value);
+                        value = new BytesValue((ByteBuffer) source);
                     } else if (source instanceof byte[]) {
-                        value = (byte[]) source;
+                        value = new BytesValue((byte[]) source);
                     }
                     if (value != null) {
-                        return createTag(
+                        return new TaggedValue(
                                 BerEncoding.TAG_CLASS_UNIVERSAL,
                                 false,
                                 BerEncoding.getTagNumber(targetType),
@@ -549,7 +739,7 @@ public final class Asn1DerEncoder {
                 case UTC_TIME:
                 case GENERALIZED_TIME:
                     if (source instanceof String) {
-                        return createTag(BerEncoding.TAG_CLASS_UNIVERSAL, false,
+                        return new TaggedValue(BerEncoding.TAG_CLASS_UNIVERSAL, false,
                                 BerEncoding.getTagNumber(targetType), ((String) source).getBytes());
                     }
                     break;
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import com.android.apksig.util.CancellationSignal;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link CompletableFuture} whose task is run on an {@link Executor} and whose {@link #cancel}
+ * cancels the {@link CancellationSignal} checked by the task. Long-running loops of APK signing
+ * and verification check the signal and abort once it has been canceled (see
+ * {@link ProgressReporter#throwIfCanceled()}).
+ *
+ * <p>Canceling does not interrupt the thread running the task. Interrupting a thread which is
+ * reading from or writing to a {@link java.nio.channels.FileChannel} closes the channel, which
+ * may be owned by the caller.
+ */
+public class CancelableFuture<T> extends CompletableFuture<T> {
+    private final CancellationSignal mCancellationSignal;
+
+    private CancelableFuture(CancellationSignal cancellationSignal) {
+        mCancellationSignal = cancellationSignal;
+    }
+
+    /**
+     * Task which checks the provided cancellation signal.
+     */
+    public interface Task<T> {
+        T call(CancellationSignal cancellationSignal) throws Exception;
+    }
+
+    /**
+     * Returns a future which is completed with the result of the provided task once the task has
+     * run on the provided executor. If the task throws an exception, the future completes
+     * exceptionally with that exception.
+     *
+     * @param parentCancellationSignal signal whose cancellation also cancels the task, or
+     *        {@code null}
+     */
+    public static <T> CancelableFuture<T> submit(
+            Executor executor, CancellationSignal parentCancellationSignal, Task<T> task) {
+        CancelableFuture<T> result =
+                new CancelableFuture<>(CancellationSignal.linkedTo(parentCancellationSignal));
+        try {
+            executor.execute(() -> result.run(task));
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private void run(Task<T> task) {
+        if (isDone()) {
+            return;
+        }
+        try {
+            complete(task.call(mCancellationSignal));
+        } catch (Throwable e) {
+            completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Cancels this future and the cancellation signal checked by its task, regardless of
+     * {@code mayInterruptIfRunning}. The task aborts the next time it checks the signal.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean canceled = super.cancel(mayInterruptIfRunning);
+        if (canceled) {
+            mCancellationSignal.cancel();
+        }
+        return canceled;
+    }
+}
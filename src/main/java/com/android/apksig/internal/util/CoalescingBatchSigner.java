@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import com.android.apksig.util.BatchSigner;
+import java.security.InvalidKeyException;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link BatchSigner} which combines the requests of concurrent callers into as few invocations of
+ * the delegate signer as possible.
+ *
+ * <p>The first caller invokes the delegate on its own behalf. Callers arriving while the delegate
+ * is busy queue up their requests. Once the delegate returns, one of the queued callers invokes the
+ * delegate on behalf of all queued callers, and so on.
+ *
+ * <p>If an invocation on behalf of several callers fails, the requests of each of these callers are
+ * retried in a separate invocation. Thus, a caller fails only if its own requests cannot be signed,
+ * and each failing caller receives the exception of its own invocation.
+ */
+public class CoalescingBatchSigner implements BatchSigner {
+    private final BatchSigner mDelegate;
+
+    private final Object mLock = new Object();
+    private List<Call> mQueuedCalls = new ArrayList<>();
+    private boolean mDelegateBusy;
+
+    public CoalescingBatchSigner(BatchSigner delegate) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate == null");
+        }
+        mDelegate = delegate;
+    }
+
+    @Override
+    public List<byte[]> sign(List<SignatureRequest> requests)
+            throws InvalidKeyException, SignatureException {
+        Call call = new Call(requests);
+        List<Call> batch;
+        synchronized (mLock) {
+            mQueuedCalls.add(call);
+            boolean interrupted = false;
+            while ((!call.mDone) && (mDelegateBusy)) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    // The request may already be in flight as part of another caller's batch
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (call.mDone) {
+                return call.getResults();
+            }
+            mDelegateBusy = true;
+            batch = mQueuedCalls;
+            mQueuedCalls = new ArrayList<>();
+        }
+
+        try {
+            signBatch(batch);
+        } finally {
+            synchronized (mLock) {
+                for (Call batchCall : batch) {
+                    if ((batchCall.mResults == null) && (batchCall.mFailure == null)) {
+                        batchCall.mFailure = new SignatureException("Batch signing failed");
+                    }
+                    batchCall.mDone = true;
+                }
+                mDelegateBusy = false;
+                mLock.notifyAll();
+            }
+        }
+        return call.getResults();
+    }
+
+    private void signBatch(List<Call> batch) {
+        if (batch.size() == 1) {
+            signCall(batch.get(0));
+            return;
+        }
+        List<SignatureRequest> requests = new ArrayList<>();
+        for (Call call : batch) {
+            requests.addAll(call.mRequests);
+        }
+        List<byte[]> results;
+        try {
+            results = signWithDelegate(requests);
+        } catch (InvalidKeyException | SignatureException | RuntimeException e) {
+            // The failure may be caused by the requests of only some of the callers
+            for (Call call : batch) {
+                signCall(call);
+            }
+            return;
+        }
+        int offset = 0;
+        for (Call call : batch) {
+            int count = call.mRequests.size();
+            call.mResults = new ArrayList<>(results.subList(offset, offset + count));
+            offset += count;
+        }
+    }
+
+    private void signCall(Call call) {
+        try {
+            call.mResults = signWithDelegate(call.mRequests);
+        } catch (InvalidKeyException | SignatureException | RuntimeException e) {
+            call.mFailure = e;
+        }
+    }
+
+    private List<byte[]> signWithDelegate(List<SignatureRequest> requests)
+            throws InvalidKeyException, SignatureException {
+        List<byte[]> results = mDelegate.sign(requests);
+        if ((results == null) || (results.size() != requests.size())) {
+            throw new SignatureException(
+                    "Unexpected number of signatures. Expected: " + requests.size()
+                            + ", actual: " + ((results != null) ? results.size() : null));
+        }
+        return results;
+    }
+
+    private static class Call {
+        private final List<SignatureRequest> mRequests;
+        private List<byte[]> mResults;
+        private Exception mFailure;
+        private boolean mDone;
+
+        private Call(List<SignatureRequest> requests) {
+            mRequests = requests;
+        }
+
+        private List<byte[]> getResults() throws InvalidKeyException, SignatureException {
+            if (mFailure instanceof InvalidKeyException) {
+                throw (InvalidKeyException) mFailure;
+            } else if (mFailure instanceof SignatureException) {
+                throw (SignatureException) mFailure;
+            } else if (mFailure instanceof RuntimeException) {
+                throw (RuntimeException) mFailure;
+            }
+            return mResults;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory of JCA {@link MessageDigest}, {@link Signature} and {@link KeyFactory} instances used
+ * by APK signing and verification.
+ *
+ * <p>By default, instances are obtained using the JCA provider preference order. A specific
+ * {@link Provider} can be selected per algorithm via {@link #setProvider(String, Provider)}. A
+ * provider selected for a key algorithm ({@code RSA}, {@code EC} or {@code DSA}) is used for
+ * the key factories of that algorithm and for all signature algorithms using keys of that
+ * algorithm, unless a provider is selected for the exact signature algorithm. If the selected
+ * provider does not implement a particular algorithm, the JCA provider preference order is used
+ * for that algorithm.
+ *
+ * <p>Obtaining an instance walks the provider list and allocates fresh state each time. Code
+ * which digests many small items, such as the entries of a JAR being verified, should instead
+ * borrow instances from the thread-confined pool via {@link #acquireMessageDigest(String)} and
+ * return them once done. Instances obtained only a few times per APK are not worth pooling.
+ * Instances which other code may still use, such as a digest behind a {@code DataSink} handed to a
+ * caller, must not be pooled.
+ */
+public abstract class CryptoFactory {
+
+    /** Maximum number of idle instances of each algorithm kept by the pool of each thread. */
+    private static final int MAX_POOLED_INSTANCES_PER_ALGORITHM = 4;
+
+    private static final Map<String, Provider> PROVIDERS = new ConcurrentHashMap<>();
+
+    /** Incremented whenever selected providers change, which invalidates pooled instances. */
+    private static final AtomicInteger PROVIDERS_GENERATION = new AtomicInteger();
+
+    private static final ThreadLocal<Pool> POOL = ThreadLocal.withInitial(Pool::new);
+
+    private CryptoFactory() {}
+
+    /**
+     * Selects the provider to use for the provided JCA algorithm, or restores the JCA provider
+     * preference order for the algorithm if {@code provider} is {@code null}.
+     */
+    public static void setProvider(String jcaAlgorithm, Provider provider) {
+        String key = normalize(jcaAlgorithm);
+        if (provider != null) {
+            PROVIDERS.put(key, provider);
+        } else {
+            PROVIDERS.remove(key);
+        }
+        PROVIDERS_GENERATION.incrementAndGet();
+    }
+
+    /**
+     * Returns the provider selected for the provided JCA algorithm or {@code null} if the JCA
+     * provider preference order is used.
+     */
+    public static Provider getProvider(String jcaAlgorithm) {
+        return PROVIDERS.get(normalize(jcaAlgorithm));
+    }
+
+    /**
+     * Restores the JCA provider preference order for all algorithms.
+     */
+    public static void clearProviders() {
+        PROVIDERS.clear();
+        PROVIDERS_GENERATION.incrementAndGet();
+    }
+
+    /**
+     * Returns a {@link MessageDigest} of the provided algorithm from the current thread's pool, or
+     * a new instance if the pool has none. The instance should be returned to the pool using
+     * {@link #releaseMessageDigest(MessageDigest)} once no longer needed and must not be used
+     * after that.
+     */
+    public static MessageDigest acquireMessageDigest(String jcaDigestAlgorithm)
+            throws NoSuchAlgorithmException {
+        ArrayDeque<MessageDigest> idle = getPool().mDigests.get(jcaDigestAlgorithm);
+        MessageDigest result = (idle != null) ? idle.pollFirst() : null;
+        return (result != null) ? result : getMessageDigest(jcaDigestAlgorithm);
+    }
+
+    /**
+     * Resets the provided {@link MessageDigest} and returns it to the current thread's pool.
+     */
+    public static void releaseMessageDigest(MessageDigest md) {
+        md.reset();
+        ArrayDeque<MessageDigest> idle =
+                getPool().mDigests.computeIfAbsent(md.getAlgorithm(), k -> new ArrayDeque<>());
+        if (idle.size() < MAX_POOLED_INSTANCES_PER_ALGORITHM) {
+            idle.addFirst(md);
+        }
+    }
+
+    public static MessageDigest getMessageDigest(String jcaDigestAlgorithm)
+            throws NoSuchAlgorithmException {
+        Provider provider = getProvider(jcaDigestAlgorithm);
+        if (provider != null) {
+            try {
+                return MessageDigest.getInstance(jcaDigestAlgorithm, provider);
+            } catch (NoSuchAlgorithmException e) {
+                // Fall back to JCA provider preference order
+            }
+        }
+        return MessageDigest.getInstance(jcaDigestAlgorithm);
+    }
+
+    public static Signature getSignature(String jcaSignatureAlgorithm)
+            throws NoSuchAlgorithmException {
+        Provider provider = getSignatureProvider(jcaSignatureAlgorithm);
+        if (provider != null) {
+            try {
+                return Signature.getInstance(jcaSignatureAlgorithm, provider);
+            } catch (NoSuchAlgorithmException e) {
+                // Fall back to JCA provider preference order
+            }
+        }
+        return Signature.getInstance(jcaSignatureAlgorithm);
+    }
+
+    /**
+     * Returns a {@link Signature} of the provided algorithm initialized for signing with the
+     * provided key. If the provider selected for the algorithm does not accept the key (e.g., the
+     * key is stored in hardware), the JCA provider preference order is used instead.
+     */
+    public static Signature getSignatureForSigning(
+            String jcaSignatureAlgorithm, PrivateKey privateKey)
+                    throws NoSuchAlgorithmException, InvalidKeyException {
+        Signature signature = getSignature(jcaSignatureAlgorithm);
+        try {
+            signature.initSign(privateKey);
+        } catch (InvalidKeyException e) {
+            if (!isProviderSelected(jcaSignatureAlgorithm)) {
+                throw e;
+            }
+            signature = Signature.getInstance(jcaSignatureAlgorithm);
+            signature.initSign(privateKey);
+        }
+        return signature;
+    }
+
+    /**
+     * Returns a {@link Signature} of the provided algorithm initialized for verification with the
+     * provided key. If the provider selected for the algorithm does not accept the key, the JCA
+     * provider preference order is used instead.
+     */
+    public static Signature getSignatureForVerification(
+            String jcaSignatureAlgorithm, PublicKey publicKey)
+                    throws NoSuchAlgorithmException, InvalidKeyException {
+        Signature signature = getSignature(jcaSignatureAlgorithm);
+        try {
+            signature.initVerify(publicKey);
+        } catch (InvalidKeyException e) {
+            if (!isProviderSelected(jcaSignatureAlgorithm)) {
+                throw e;
+            }
+            signature = Signature.getInstance(jcaSignatureAlgorithm);
+            signature.initVerify(publicKey);
+        }
+        return signature;
+    }
+
+    public static KeyFactory getKeyFactory(String jcaKeyAlgorithm)
+            throws NoSuchAlgorithmException {
+        Provider provider = getProvider(jcaKeyAlgorithm);
+        if (provider != null) {
+            try {
+                return KeyFactory.getInstance(jcaKeyAlgorithm, provider);
+            } catch (NoSuchAlgorithmException e) {
+                // Fall back to JCA provider preference order
+            }
+        }
+        return KeyFactory.getInstance(jcaKeyAlgorithm);
+    }
+
+    private static boolean isProviderSelected(String jcaSignatureAlgorithm) {
+        return getSignatureProvider(jcaSignatureAlgorithm) != null;
+    }
+
+    private static Provider getSignatureProvider(String jcaSignatureAlgorithm) {
+        Provider provider = getProvider(jcaSignatureAlgorithm);
+        if (provider == null) {
+            String keyAlgorithm = getKeyAlgorithm(jcaSignatureAlgorithm);
+            if (keyAlgorithm != null) {
+                provider = getProvider(keyAlgorithm);
+            }
+        }
+        return provider;
+    }
+
+    /**
+     * Returns the JCA key algorithm ({@code RSA}, {@code EC} or {@code DSA}) of the provided JCA
+     * signature algorithm (e.g., {@code SHA256withRSA/PSS}), or {@code null} if not known.
+     */
+    static String getKeyAlgorithm(String jcaSignatureAlgorithm) {
+        String name = jcaSignatureAlgorithm.toUpperCase(Locale.US);
+        int withIndex = name.indexOf("WITH");
+        if (withIndex == -1) {
+            return null;
+        }
+        String keyAlgorithm = name.substring(withIndex + "WITH".length());
+        int slashIndex = keyAlgorithm.indexOf('/');
+        if (slashIndex != -1) {
+            keyAlgorithm = keyAlgorithm.substring(0, slashIndex);
+        }
+        switch (keyAlgorithm) {
+            case "RSA":
+                return "RSA";
+            case "ECDSA":
+                return "EC";
+            case "DSA":
+                return "DSA";
+            default:
+                return null;
+        }
+    }
+
+    private static Pool getPool() {
+        Pool pool = POOL.get();
+        int generation = PROVIDERS_GENERATION.get();
+        if (pool.mGeneration != generation) {
+            // Pooled instances may have been obtained from providers which are no longer selected
+            pool.mDigests.clear();
+            pool.mGeneration = generation;
+        }
+        return pool;
+    }
+
+    private static String normalize(String jcaAlgorithm) {
+        if (jcaAlgorithm == null) {
+            throw new NullPointerException("jcaAlgorithm == null");
+        }
+        return jcaAlgorithm.toUpperCase(Locale.US);
+    }
+
+    /**
+     * Idle instances of the current thread, keyed by JCA algorithm name as requested. Names are
+     * not normalized to keep lookups cheap, because callers use the same constant names.
+     */
+    private static class Pool {
+        private final Map<String, ArrayDeque<MessageDigest>> mDigests = new HashMap<>();
+        private int mGeneration = PROVIDERS_GENERATION.get();
+    }
+}
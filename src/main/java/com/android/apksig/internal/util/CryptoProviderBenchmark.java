@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.Security;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Short micro-benchmark which selects the fastest installed JCA provider for the algorithms most
+ * commonly used by APK signing and verification.
+ *
+ * <p>Digest algorithms are measured by digesting a buffer. Signature algorithms are measured by
+ * verifying a signature, because APK verification is far more common than signing.
+ */
+public abstract class CryptoProviderBenchmark {
+
+    /** JCA digest algorithms measured by this benchmark. */
+    private static final String[] DIGEST_ALGORITHMS = {"SHA-1", "SHA-256", "SHA-512"};
+
+    /**
+     * Key algorithms measured by this benchmark, together with the signature algorithm and key
+     * size used to measure each key algorithm.
+     */
+    private static final String[][] KEY_ALGORITHMS = {
+        {"RSA", "SHA256withRSA", "2048"},
+        {"EC", "SHA256withECDSA", "256"},
+        {"DSA", "SHA256withDSA", "2048"},
+    };
+
+    private static final int DIGEST_INPUT_SIZE_BYTES = 256 * 1024;
+    private static final int DIGEST_WARMUP_ITERATIONS = 4;
+    private static final int DIGEST_MEASURED_ITERATIONS = 16;
+    private static final int SIGNATURE_WARMUP_ITERATIONS = 10;
+    private static final int SIGNATURE_MEASURED_ITERATIONS = 40;
+
+    private CryptoProviderBenchmark() {}
+
+    /**
+     * Measures each installed provider of the benchmarked algorithms and returns the fastest
+     * provider of each algorithm keyed by JCA algorithm name. Algorithms implemented by only one
+     * provider are not measured and are not included in the result.
+     */
+    public static Map<String, Provider> findFastestProviders() {
+        Map<String, Provider> result = new LinkedHashMap<>();
+        byte[] input = new byte[DIGEST_INPUT_SIZE_BYTES];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (byte) i;
+        }
+
+        for (String algorithm : DIGEST_ALGORITHMS) {
+            Provider[] providers = Security.getProviders("MessageDigest." + algorithm);
+            if ((providers == null) || (providers.length < 2)) {
+                continue;
+            }
+            Provider fastestProvider = null;
+            long fastestNanos = Long.MAX_VALUE;
+            for (Provider provider : providers) {
+                long nanos = measureDigest(algorithm, provider, input);
+                if (nanos < fastestNanos) {
+                    fastestNanos = nanos;
+                    fastestProvider = provider;
+                }
+            }
+            if (fastestProvider != null) {
+                result.put(algorithm, fastestProvider);
+            }
+        }
+
+        for (String[] keyAlgorithm : KEY_ALGORITHMS) {
+            String algorithm = keyAlgorithm[0];
+            String signatureAlgorithm = keyAlgorithm[1];
+            Provider[] providers = Security.getProviders("Signature." + signatureAlgorithm);
+            if ((providers == null) || (providers.length < 2)) {
+                continue;
+            }
+            byte[] encodedPublicKey;
+            byte[] signature;
+            try {
+                KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(algorithm);
+                keyPairGenerator.initialize(Integer.parseInt(keyAlgorithm[2]));
+                KeyPair keyPair = keyPairGenerator.generateKeyPair();
+                Signature signer = Signature.getInstance(signatureAlgorithm);
+                signer.initSign(keyPair.getPrivate());
+                signer.update(input, 0, 1024);
+                signature = signer.sign();
+                encodedPublicKey = keyPair.getPublic().getEncoded();
+            } catch (GeneralSecurityException | RuntimeException e) {
+                // Cannot measure this algorithm on this JVM
+                continue;
+            }
+            Provider fastestProvider = null;
+            long fastestNanos = Long.MAX_VALUE;
+            for (Provider provider : providers) {
+                long nanos =
+                        measureSignature(
+                                algorithm,
+                                signatureAlgorithm,
+                                provider,
+                                encodedPublicKey,
+                                input,
+                                signature);
+                if (nanos < fastestNanos) {
+                    fastestNanos = nanos;
+                    fastestProvider = provider;
+                }
+            }
+            if (fastestProvider != null) {
+                result.put(algorithm, fastestProvider);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the time (nanoseconds) taken by the provider to digest the input a fixed number of
+     * times, or {@link Long#MAX_VALUE} if the provider failed.
+     */
+    private static long measureDigest(String algorithm, Provider provider, byte[] input) {
+        try {
+            MessageDigest md = MessageDigest.getInstance(algorithm, provider);
+            for (int i = 0; i < DIGEST_WARMUP_ITERATIONS; i++) {
+                md.update(input);
+                md.digest();
+            }
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < DIGEST_MEASURED_ITERATIONS; i++) {
+                md.update(input);
+                md.digest();
+            }
+            return System.nanoTime() - startNanos;
+        } catch (GeneralSecurityException | RuntimeException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Returns the time (nanoseconds) taken by the provider to verify the signature a fixed number
+     * of times, or {@link Long#MAX_VALUE} if the provider failed or the signature did not verify.
+     */
+    private static long measureSignature(
+            String keyAlgorithm,
+            String signatureAlgorithm,
+            Provider provider,
+            byte[] encodedPublicKey,
+            byte[] input,
+            byte[] signature) {
+        try {
+            KeyFactory keyFactory;
+            try {
+                keyFactory = KeyFactory.getInstance(keyAlgorithm, provider);
+            } catch (GeneralSecurityException e) {
+                keyFactory = KeyFactory.getInstance(keyAlgorithm);
+            }
+            PublicKey publicKey =
+                    keyFactory.generatePublic(new X509EncodedKeySpec(encodedPublicKey));
+            Signature verifier = Signature.getInstance(signatureAlgorithm, provider);
+            long startNanos = 0;
+            for (int i = 0; i < SIGNATURE_WARMUP_ITERATIONS + SIGNATURE_MEASURED_ITERATIONS; i++) {
+                if (i == SIGNATURE_WARMUP_ITERATIONS) {
+                    startNanos = System.nanoTime();
+                }
+                verifier.initVerify(publicKey);
+                verifier.update(input, 0, 1024);
+                if (!verifier.verify(signature)) {
+                    return Long.MAX_VALUE;
+                }
+            }
+            return System.nanoTime() - startNanos;
+        } catch (GeneralSecurityException | RuntimeException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.apksig.internal.util;
+
+import com.android.apksig.util.RunnablesExecutor;
+import com.android.apksig.util.RunnablesProvider;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * {@link RunnablesExecutor} which runs the provided {@code Runnable}s on an {@link Executor}.
+ *
+ * <p>The calling thread runs one of the {@code Runnable}s itself and then waits only for those
+ * {@code Runnable}s which the {@code Executor} has already started. {@code Runnable}s started by
+ * the {@code Executor} after that point return immediately without running. This relies on the
+ * {@code Runnable}s sharing a work queue, such that any one of them completes all of the work if
+ * the others do not run. As a result, the calling thread never waits for a task queued behind
+ * itself, which makes this safe to use with bounded thread pools as well as with virtual threads.
+ */
+public class ExecutorRunnablesExecutor implements RunnablesExecutor {
+    private final Executor mExecutor;
+    private final int mParallelism;
+
+    public ExecutorRunnablesExecutor(Executor executor) {
+        this(executor, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ExecutorRunnablesExecutor(Executor executor, int parallelism) {
+        if (executor == null) {
+            throw new NullPointerException("executor == null");
+        }
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        mExecutor = executor;
+        mParallelism = parallelism;
+    }
+
+    @Override
+    public void execute(RunnablesProvider provider) {
+        Batch batch = new Batch();
+        for (int i = 1; i < mParallelism; i++) {
+            Runnable runnable = provider.getRunnable();
+            try {
+                mExecutor.execute(() -> batch.run(runnable));
+            } catch (RejectedExecutionException e) {
+                // Executor is saturated or shut down. Make do with the tasks submitted so far.
+                break;
+            }
+        }
+        batch.run(provider.getRunnable());
+        batch.close();
+    }
+
+    private static class Batch {
+        private int mRunning;
+        private boolean mClosed;
+        private Throwable mFailure;
+
+        void run(Runnable runnable) {
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                mRunning++;
+            }
+            Throwable failure = null;
+            try {
+                runnable.run();
+            } catch (Throwable e) {
+                failure = e;
+            } finally {
+                synchronized (this) {
+                    if ((failure != null) && (mFailure == null)) {
+                        mFailure = failure;
+                    }
+                    mRunning--;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Prevents further {@code Runnable}s from starting, waits for the running ones to finish,
+         * and rethrows the first failure, if any.
+         */
+        synchronized void close() {
+            mClosed = true;
+            boolean interrupted = false;
+            while (mRunning > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Running tasks share state with the caller. Wait for them regardless.
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (mFailure instanceof RuntimeException) {
+                throw (RuntimeException) mFailure;
+            } else if (mFailure instanceof Error) {
+                throw (Error) mFailure;
+            } else if (mFailure != null) {
+                throw new RuntimeException(mFailure);
+            }
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.android.apksig.internal.util;
 
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
@@ -23,16 +24,25 @@ import java.util.Arrays;
 /**
  * {@link X509Certificate} whose {@link #getEncoded()} returns the data provided at construction
  * time.
+ *
+ * <p>The hash code and the SHA-256 digest (fingerprint) of the encoded form are computed at
+ * construction time. {@link #equals(Object)} compares instances of this class by fingerprint,
+ * which makes identity checks between such instances independent of the size of certificates.
  */
 public class GuaranteedEncodedFormX509Certificate extends DelegatingX509Certificate {
     private static final long serialVersionUID = 1L;
 
     private final byte[] mEncodedForm;
-    private int mHash = -1;
+    private final byte[] mSha256Fingerprint;
+    private final int mHash;
 
     public GuaranteedEncodedFormX509Certificate(X509Certificate wrapped, byte[] encodedForm) {
         super(wrapped);
         this.mEncodedForm = (encodedForm != null) ? encodedForm.clone() : null;
+        this.mSha256Fingerprint =
+                (encodedForm != null) ? computeSha256Fingerprint(mEncodedForm) : null;
+        // Same hash code as other implementations of X509Certificate with this encoded form
+        this.mHash = Arrays.hashCode(mEncodedForm);
     }
 
     @Override
@@ -40,15 +50,27 @@ public class GuaranteedEncodedFormX509Certificate extends DelegatingX509Certific
         return (mEncodedForm != null) ? mEncodedForm.clone() : null;
     }
 
+    /**
+     * Returns the SHA-256 digest of the encoded form of this certificate, or {@code null} if the
+     * encoded form is not known.
+     */
+    public byte[] getSha256Fingerprint() {
+        return (mSha256Fingerprint != null) ? mSha256Fingerprint.clone() : null;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
+        if (o instanceof GuaranteedEncodedFormX509Certificate) {
+            GuaranteedEncodedFormX509Certificate other = (GuaranteedEncodedFormX509Certificate) o;
+            return (mHash == other.mHash)
+                    && (Arrays.equals(mSha256Fingerprint, other.mSha256Fingerprint));
+        }
         if (!(o instanceof X509Certificate)) return false;
 
         try {
-            byte[] a = this.getEncoded();
             byte[] b = ((X509Certificate) o).getEncoded();
-            return Arrays.equals(a, b);
+            return Arrays.equals(mEncodedForm, b);
         } catch (CertificateEncodingException e) {
             return false;
         }
@@ -56,13 +78,14 @@ public class GuaranteedEncodedFormX509Certificate extends DelegatingX509Certific
 
     @Override
     public int hashCode() {
-        if (mHash == -1) {
-            try {
-                mHash = Arrays.hashCode(this.getEncoded());
-            } catch (CertificateEncodingException e) {
-                mHash = 0;
-            }
-        }
         return mHash;
     }
+
+    private static byte[] computeSha256Fingerprint(byte[] encodedForm) {
+        try {
+            return CryptoFactory.getMessageDigest("SHA-256").digest(encodedForm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not supported", e);
+        }
+    }
 }
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import com.android.apksig.util.MetricsListener;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects timings and counters of a {@link MetricsListener.Phase} and reports them to a
+ * {@link MetricsListener}.
+ *
+ * <p>Trackers for {@link MetricsListener#NO_OP} are disabled: all their methods return immediately
+ * without reading clocks or updating counters.
+ *
+ * <p>A tracker can be paused and resumed to measure a phase whose work is interleaved with other
+ * work. Counter methods may be invoked from any thread.
+ */
+public class PhaseTracker {
+    private static final PhaseTracker DISABLED = new PhaseTracker(null, null);
+
+    private final MetricsListener mListener;
+    private final MetricsListener.Phase mPhase;
+
+    private final AtomicLong mBytesRead = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private final AtomicLong mEntries = new AtomicLong();
+    private final Map<String, AtomicLong> mDigestedBytes = new ConcurrentHashMap<>();
+
+    private long mWallTimeNanos;
+    private long mCpuTimeNanos;
+    private long mResumedWallTimeNanos;
+    private long mResumedCpuTimeNanos;
+    private boolean mStarted;
+    private boolean mRunning;
+    private boolean mFinished;
+
+    private PhaseTracker(MetricsListener listener, MetricsListener.Phase phase) {
+        mListener = listener;
+        mPhase = phase;
+    }
+
+    /**
+     * Returns a new tracker for the provided phase and starts it. The listener is notified that the
+     * phase has started.
+     */
+    public static PhaseTracker start(MetricsListener listener, MetricsListener.Phase phase) {
+        PhaseTracker result = create(listener, phase);
+        result.resume();
+        return result;
+    }
+
+    /**
+     * Returns a new tracker for the provided phase without starting it. The phase starts the first
+     * time {@link #resume()} is invoked.
+     */
+    public static PhaseTracker create(MetricsListener listener, MetricsListener.Phase phase) {
+        if ((listener == null) || (listener == MetricsListener.NO_OP)) {
+            return DISABLED;
+        }
+        return new PhaseTracker(listener, phase);
+    }
+
+    /**
+     * Returns {@code true} if this tracker reports to a listener.
+     */
+    public boolean isEnabled() {
+        return mListener != null;
+    }
+
+    /**
+     * Resumes measuring time spent in this phase. The first invocation of this method notifies the
+     * listener that the phase has started.
+     */
+    public void resume() {
+        if ((mListener == null) || (mRunning) || (mFinished)) {
+            return;
+        }
+        if (!mStarted) {
+            mStarted = true;
+            mListener.onPhaseStarted(mPhase);
+        }
+        mRunning = true;
+        mResumedCpuTimeNanos = getCurrentThreadCpuTimeNanos();
+        mResumedWallTimeNanos = System.nanoTime();
+    }
+
+    /**
+     * Stops measuring time spent in this phase until {@link #resume()} is invoked.
+     */
+    public void pause() {
+        if ((mListener == null) || (!mRunning)) {
+            return;
+        }
+        mRunning = false;
+        mWallTimeNanos += System.nanoTime() - mResumedWallTimeNanos;
+        if ((mCpuTimeNanos != -1) && (mResumedCpuTimeNanos != -1)) {
+            long cpuTimeNanos = getCurrentThreadCpuTimeNanos();
+            mCpuTimeNanos =
+                    (cpuTimeNanos != -1) ? mCpuTimeNanos + cpuTimeNanos - mResumedCpuTimeNanos : -1;
+        } else {
+            mCpuTimeNanos = -1;
+        }
+    }
+
+    /**
+     * Finishes this phase and reports its metrics to the listener. Does nothing if the phase was
+     * never started or has already finished.
+     */
+    public void finish() {
+        if ((mListener == null) || (!mStarted) || (mFinished)) {
+            return;
+        }
+        pause();
+        mFinished = true;
+        Map<String, Long> digestedBytes = new HashMap<>(mDigestedBytes.size());
+        for (Map.Entry<String, AtomicLong> entry : mDigestedBytes.entrySet()) {
+            digestedBytes.put(entry.getKey(), entry.getValue().get());
+        }
+        mListener.onPhaseFinished(
+                new MetricsListener.PhaseMetrics(
+                        mPhase,
+                        mWallTimeNanos,
+                        mCpuTimeNanos,
+                        mBytesRead.get(),
+                        mBytesWritten.get(),
+                        mEntries.get(),
+                        digestedBytes));
+    }
+
+    public void addBytesRead(long count) {
+        if (mListener != null) {
+            mBytesRead.addAndGet(count);
+        }
+    }
+
+    public void addBytesWritten(long count) {
+        if (mListener != null) {
+            mBytesWritten.addAndGet(count);
+        }
+    }
+
+    public void addEntriesProcessed(long count) {
+        if (mListener != null) {
+            mEntries.addAndGet(count);
+        }
+    }
+
+    /**
+     * Records that the provided number of bytes were digested using the provided algorithm.
+     */
+    public void addDigestedBytes(String digestAlgorithm, long count) {
+        if (mListener != null) {
+            mDigestedBytes.computeIfAbsent(digestAlgorithm, k -> new AtomicLong()).addAndGet(count);
+        }
+    }
+
+    private static long getCurrentThreadCpuTimeNanos() {
+        ThreadMXBean threadMXBean = ThreadMXBeanHolder.THREAD_MX_BEAN;
+        if (threadMXBean == null) {
+            return -1;
+        }
+        try {
+            return threadMXBean.getCurrentThreadCpuTime();
+        } catch (UnsupportedOperationException e) {
+            return -1;
+        }
+    }
+
+    /** Lazily obtains the {@link ThreadMXBean}, which is not available on all platforms. */
+    private static class ThreadMXBeanHolder {
+        private static final ThreadMXBean THREAD_MX_BEAN = getThreadMXBean();
+
+        private static ThreadMXBean getThreadMXBean() {
+            try {
+                ThreadMXBean result = ManagementFactory.getThreadMXBean();
+                return (result.isCurrentThreadCpuTimeSupported()) ? result : null;
+            } catch (Throwable e) {
+                // java.lang.management is not available, for example, on Android
+                return null;
+            }
+        }
+    }
+}
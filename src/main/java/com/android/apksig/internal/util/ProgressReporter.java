@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import com.android.apksig.util.CancellationSignal;
+import com.android.apksig.util.MetricsListener;
+import com.android.apksig.util.ProgressListener;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reports progress of long-running loops to a {@link ProgressListener} and aborts them once the
+ * operation has been canceled via a {@link CancellationSignal}. If a signal is provided, the loops
+ * are also aborted once the current thread has been interrupted. Without a signal, an interrupt is
+ * left to be handled by whatever blocking call the thread makes next.
+ *
+ * <p>This class is thread-safe.
+ */
+public class ProgressReporter {
+
+    /**
+     * Reporter which neither reports progress nor aborts.
+     */
+    public static final ProgressReporter NONE = new ProgressReporter(ProgressListener.NO_OP, null);
+
+    private final ProgressListener mListener;
+    private final CancellationSignal mCancellationSignal;
+
+    private ProgressReporter(ProgressListener listener, CancellationSignal cancellationSignal) {
+        mListener = listener;
+        mCancellationSignal = cancellationSignal;
+    }
+
+    /**
+     * Returns a reporter which reports progress to the provided listener and checks the provided
+     * cancellation signal. Either parameter may be {@code null}.
+     */
+    public static ProgressReporter create(
+            ProgressListener listener, CancellationSignal cancellationSignal) {
+        if (listener == null) {
+            listener = ProgressListener.NO_OP;
+        }
+        if ((listener == ProgressListener.NO_OP) && (cancellationSignal == null)) {
+            return NONE;
+        }
+        return new ProgressReporter(listener, cancellationSignal);
+    }
+
+    /**
+     * Returns the cancellation signal checked by this reporter, or {@code null} if none.
+     */
+    public CancellationSignal getCancellationSignal() {
+        return mCancellationSignal;
+    }
+
+    /**
+     * Returns a reporter which reports progress to the same listener as this reporter, but checks
+     * the provided cancellation signal instead of this reporter's.
+     */
+    public ProgressReporter withCancellationSignal(CancellationSignal cancellationSignal) {
+        return create(mListener, cancellationSignal);
+    }
+
+    /**
+     * Throws a {@link CancellationException} if the operation has been canceled or, if a
+     * cancellation signal has been provided, the current thread has been interrupted. The
+     * interrupted status of the thread is left unchanged.
+     */
+    public void throwIfCanceled() throws CancellationException {
+        if (mCancellationSignal == null) {
+            return;
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("Interrupted");
+        }
+        mCancellationSignal.throwIfCanceled();
+    }
+
+    /**
+     * Returns a new object for reporting progress of the provided phase which consists of
+     * {@code total} units of work.
+     */
+    public PhaseProgress start(MetricsListener.Phase phase, long total) {
+        return new PhaseProgress(phase, total);
+    }
+
+    /**
+     * Progress of a phase.
+     */
+    public class PhaseProgress {
+        private final MetricsListener.Phase mPhase;
+        private final long mTotal;
+        private final AtomicLong mProcessed = new AtomicLong();
+
+        private PhaseProgress(MetricsListener.Phase phase, long total) {
+            mPhase = phase;
+            mTotal = total;
+        }
+
+        /**
+         * Records that the provided amount of work has been done and reports the progress to the
+         * listener.
+         *
+         * @throws CancellationException if the operation has been canceled
+         */
+        public void advance(long amount) throws CancellationException {
+            throwIfCanceled();
+            if (mListener != ProgressListener.NO_OP) {
+                mListener.onProgress(mPhase, mProcessed.addAndGet(amount), mTotal);
+            }
+        }
+
+        /**
+         * Throws a {@link CancellationException} if the operation has been canceled.
+         */
+        public void throwIfCanceled() throws CancellationException {
+            ProgressReporter.this.throwIfCanceled();
+        }
+    }
+}
@@ -65,13 +65,13 @@ public class RandomAccessFileDataSink implements DataSink {
     @Override
     public void consume(byte[] buf, int offset, int length) throws IOException {
         if (offset < 0) {
-            // Must perform this check here because RandomAccessFile.write doesn't throw when offset
-            // is negative but length is 0
+            // Must perform this check here because zero-length writes are skipped below, even when
+            // offset is negative
             throw new IndexOutOfBoundsException("offset: " + offset);
         }
         if (offset > buf.length) {
-            // Must perform this check here because RandomAccessFile.write doesn't throw when offset
-            // is too large but length is 0
+            // Must perform this check here because zero-length writes are skipped below, even when
+            // offset is too large
             throw new IndexOutOfBoundsException(
                     "offset: " + offset + ", buf.length: " + buf.length);
         }
@@ -79,26 +79,21 @@ public class RandomAccessFileDataSink implements DataSink {
             return;
         }
 
-        synchronized (mFile) {
-            mFile.seek(mPosition);
-            mFile.write(buf, offset, length);
-            mPosition += length;
-        }
+        consume(ByteBuffer.wrap(buf, offset, length));
     }
 
     @Override
     public void consume(ByteBuffer buf) throws IOException {
-        int length = buf.remaining();
-        if (length == 0) {
+        if (!buf.hasRemaining()) {
             return;
         }
 
-        synchronized (mFile) {
-            mFile.seek(mPosition);
+        // Positional writes do not modify the channel's position. Thus, multiple sinks may write
+        // to different regions of the same file concurrently.
+        synchronized (this) {
             while (buf.hasRemaining()) {
-                mFileChannel.write(buf);
+                mPosition += mFileChannel.write(buf, mPosition);
             }
-            mPosition += length;
         }
     }
 }
@@ -109,15 +109,14 @@ public class RandomAccessFileDataSource implements DataSource {
             int chunkSize = (int) Math.min(remaining, buf.capacity());
             int chunkRemaining = chunkSize;
             buf.limit(chunkSize);
-            synchronized (mChannel) {
-                mChannel.position(chunkOffsetInFile);
-                while (chunkRemaining > 0) {
-                    int read = mChannel.read(buf);
-                    if (read < 0) {
-                        throw new IOException("Unexpected EOF encountered");
-                    }
-                    chunkRemaining -= read;
+            // Positional reads do not modify the channel's position and thus may proceed
+            // concurrently
+            while (chunkRemaining > 0) {
+                int read = mChannel.read(buf, chunkOffsetInFile + chunkSize - chunkRemaining);
+                if (read < 0) {
+                    throw new IOException("Unexpected EOF encountered");
                 }
+                chunkRemaining -= read;
             }
             buf.flip();
             sink.consume(buf);
@@ -146,10 +145,9 @@ public class RandomAccessFileDataSource implements DataSource {
             // the buffer's limit to avoid reading more than size bytes.
             dest.limit(dest.position() + size);
             while (remaining > 0) {
-                int chunkSize;
-                synchronized (mChannel) {
-                    mChannel.position(offsetInFile);
-                    chunkSize = mChannel.read(dest);
+                int chunkSize = mChannel.read(dest, offsetInFile);
+                if (chunkSize < 0) {
+                    throw new IOException("Unexpected EOF encountered");
                 }
                 offsetInFile += chunkSize;
                 remaining -= chunkSize;
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.apksig.internal.util;
+
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.DataSource;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DataSource} which, while it is being read sequentially, prefetches upcoming windows of
+ * the wrapped data source on a background thread. This lets the consumer process one window while
+ * the next one is being read.
+ *
+ * <p>The wrapped data source is divided into windows of fixed size. Once a read starts where the
+ * previous read ended (or a little further), up to {@code depth} windows following the one being
+ * read are prefetched into a ring of reusable direct buffers. Reads of windows which have not been
+ * prefetched, for example, as part of random access, are served directly from the wrapped data
+ * source. Slices of this data source share the prefetched windows.
+ *
+ * <p>The contents of the wrapped data source must not change while this data source is in use.
+ * This class is thread-safe.
+ */
+public class ReadAheadDataSource implements DataSource {
+
+    private final Prefetcher mPrefetcher;
+    private final long mOffset;
+    private final long mSize;
+
+    public ReadAheadDataSource(DataSource source, int windowSize, int depth) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("windowSize must be positive: " + windowSize);
+        }
+        if (depth <= 0) {
+            throw new IllegalArgumentException("depth must be positive: " + depth);
+        }
+        mPrefetcher = new Prefetcher(source, windowSize, depth);
+        mOffset = 0;
+        mSize = source.size();
+    }
+
+    private ReadAheadDataSource(Prefetcher prefetcher, long offset, long size) {
+        mPrefetcher = prefetcher;
+        mOffset = offset;
+        mSize = size;
+    }
+
+    @Override
+    public long size() {
+        return mSize;
+    }
+
+    @Override
+    public void feed(long offset, long size, DataSink sink) throws IOException {
+        checkChunkValid(offset, size, mSize);
+        mPrefetcher.feed(mOffset + offset, size, sink);
+    }
+
+    @Override
+    public ByteBuffer getByteBuffer(long offset, int size) throws IOException {
+        if (size < 0) {
+            throw new IndexOutOfBoundsException("size: " + size);
+        }
+        ByteBuffer result = ByteBuffer.allocate(size);
+        copyTo(offset, size, result);
+        result.flip();
+        return result;
+    }
+
+    @Override
+    public void copyTo(long offset, int size, ByteBuffer dest) throws IOException {
+        checkChunkValid(offset, size, mSize);
+        if (size > dest.remaining()) {
+            throw new BufferOverflowException();
+        }
+        mPrefetcher.feed(mOffset + offset, size, new ByteBufferSink(dest));
+    }
+
+    @Override
+    public ReadAheadDataSource slice(long offset, long size) {
+        checkChunkValid(offset, size, mSize);
+        if ((offset == 0) && (size == mSize)) {
+            return this;
+        }
+        return new ReadAheadDataSource(mPrefetcher, mOffset + offset, size);
+    }
+
+    private static void checkChunkValid(long offset, long size, long sourceSize) {
+        if (offset < 0) {
+            throw new IndexOutOfBoundsException("offset: " + offset);
+        }
+        if (size < 0) {
+            throw new IndexOutOfBoundsException("size: " + size);
+        }
+        if (offset > sourceSize) {
+            throw new IndexOutOfBoundsException(
+                    "offset (" + offset + ") > source size (" + sourceSize + ")");
+        }
+        long endOffset = offset + size;
+        if (endOffset < offset) {
+            throw new IndexOutOfBoundsException(
+                    "offset (" + offset + ") + size (" + size + ") overflow");
+        }
+        if (endOffset > sourceSize) {
+            throw new IndexOutOfBoundsException(
+                    "offset (" + offset + ") + size (" + size
+                            + ") > source size (" + sourceSize  +")");
+        }
+    }
+
+    /**
+     * Window of the wrapped data source which has been or is being prefetched.
+     */
+    private static class Window {
+        private final long mIndex;
+        private final ByteBuffer mBuffer;
+        private boolean mLoaded;
+        private IOException mFailure;
+        /** Number of reads currently consuming this window's buffer. */
+        private int mPins;
+
+        private Window(long index, ByteBuffer buffer) {
+            mIndex = index;
+            mBuffer = buffer;
+        }
+    }
+
+    /**
+     * Prefetching state shared by a data source and its slices. All fields are guarded by
+     * {@code this}.
+     */
+    private static class Prefetcher {
+        private final DataSource mSource;
+        private final long mSourceSize;
+        private final int mWindowSize;
+        private final int mDepth;
+
+        private final Map<Long, Window> mWindows = new HashMap<>();
+        private final ArrayDeque<ByteBuffer> mFreeBuffers = new ArrayDeque<>();
+        private int mAllocatedBufferCount;
+        private final ArrayDeque<Window> mLoadQueue = new ArrayDeque<>();
+        private boolean mLoaderRunning;
+        private long mNextExpectedOffset;
+
+        private Prefetcher(DataSource source, int windowSize, int depth) {
+            mSource = source;
+            mSourceSize = source.size();
+            mWindowSize = windowSize;
+            mDepth = depth;
+        }
+
+        void feed(long offset, long size, DataSink sink) throws IOException {
+            long remaining = size;
+            while (remaining > 0) {
+                long windowIndex = offset / mWindowSize;
+                long windowStart = windowIndex * mWindowSize;
+                int pieceSize = (int) Math.min(remaining, windowStart + mWindowSize - offset);
+                Window window;
+                synchronized (this) {
+                    if ((offset >= mNextExpectedOffset)
+                            && (offset - mNextExpectedOffset <= mWindowSize)) {
+                        prefetchWindowsFollowing(windowIndex);
+                    }
+                    mNextExpectedOffset = offset + pieceSize;
+                    window = mWindows.get(windowIndex);
+                    if (window != null) {
+                        window.mPins++;
+                    }
+                }
+
+                if (window == null) {
+                    mSource.feed(offset, pieceSize, sink);
+                } else {
+                    try {
+                        if (awaitLoaded(window)) {
+                            ByteBuffer piece = window.mBuffer.asReadOnlyBuffer();
+                            int pieceOffsetInWindow = (int) (offset - windowStart);
+                            piece.limit(pieceOffsetInWindow + pieceSize);
+                            piece.position(pieceOffsetInWindow);
+                            sink.consume(piece);
+                        } else {
+                            // Prefetching failed. Let the wrapped data source report the error.
+                            mSource.feed(offset, pieceSize, sink);
+                        }
+                    } finally {
+                        synchronized (this) {
+                            window.mPins--;
+                        }
+                    }
+                }
+                offset += pieceSize;
+                remaining -= pieceSize;
+            }
+        }
+
+        /**
+         * Waits for the provided window to be loaded and returns {@code true} if loading
+         * succeeded.
+         */
+        private synchronized boolean awaitLoaded(Window window) throws InterruptedIOException {
+            while ((!window.mLoaded) && (window.mFailure == null)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for read-ahead");
+                }
+            }
+            return window.mLoaded;
+        }
+
+        /**
+         * Releases windows which are no longer needed and schedules prefetching of the
+         * {@code mDepth} windows following the provided one.
+         */
+        private void prefetchWindowsFollowing(long windowIndex) {
+            long lastWindowIndex = Math.min(
+                    windowIndex + mDepth, (mSourceSize - 1) / mWindowSize);
+            for (Iterator<Window> it = mWindows.values().iterator(); it.hasNext();) {
+                Window window = it.next();
+                if ((window.mIndex >= windowIndex) && (window.mIndex <= lastWindowIndex)) {
+                    continue;
+                }
+                if ((window.mPins == 0) && ((window.mLoaded) || (window.mFailure != null))) {
+                    it.remove();
+                    mFreeBuffers.add(window.mBuffer);
+                }
+            }
+            for (long i = windowIndex + 1; i <= lastWindowIndex; i++) {
+                if (mWindows.containsKey(i)) {
+                    continue;
+                }
+                ByteBuffer buffer = mFreeBuffers.poll();
+                if ((buffer == null) && (mAllocatedBufferCount < mDepth)) {
+                    buffer = ByteBuffer.allocateDirect(mWindowSize);
+                    mAllocatedBufferCount++;
+                }
+                if (buffer == null) {
+                    // All buffers are in use by windows which are being read or loaded
+                    break;
+                }
+                Window window = new Window(i, buffer);
+                mWindows.put(i, window);
+                mLoadQueue.add(window);
+            }
+            if ((!mLoaderRunning) && (!mLoadQueue.isEmpty())) {
+                mLoaderRunning = true;
+                LoaderExecutorHolder.EXECUTOR.execute(this::loadQueuedWindows);
+            }
+        }
+
+        private void loadQueuedWindows() {
+            while (true) {
+                Window window;
+                synchronized (this) {
+                    window = mLoadQueue.poll();
+                    if (window == null) {
+                        mLoaderRunning = false;
+                        return;
+                    }
+                }
+                long windowStart = window.mIndex * mWindowSize;
+                int windowSize = (int) Math.min(mWindowSize, mSourceSize - windowStart);
+                IOException failure = null;
+                try {
+                    window.mBuffer.clear();
+                    mSource.copyTo(windowStart, windowSize, window.mBuffer);
+                    window.mBuffer.flip();
+                } catch (IOException e) {
+                    failure = e;
+                } catch (RuntimeException e) {
+                    failure = new IOException("Failed to read ahead", e);
+                }
+                synchronized (this) {
+                    if (failure == null) {
+                        window.mLoaded = true;
+                    } else {
+                        window.mFailure = failure;
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /** Lazily creates the pool of daemon threads which prefetch windows. */
+    private static class LoaderExecutorHolder {
+        private static final Executor EXECUTOR = createExecutor();
+
+        private static Executor createExecutor() {
+            return new ThreadPoolExecutor(
+                    0, Integer.MAX_VALUE, 10, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "apksig-read-ahead");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.apksig.internal.util;
+
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.CloseableReadableDataSink;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Growable sequence of bytes stored in fixed-size blocks, which can be appended to via
+ * {@link DataSink} interface and read from via {@link DataSource} interface.
+ *
+ * <p>Unlike {@link ByteArrayDataSink}, growth never copies data consumed so far and the size is
+ * not limited to 2 GB. Once the optional memory budget is exhausted, further data is written to a
+ * temporary file. The temporary file is deleted by {@link #close()}. Blocks of the default size
+ * are returned to a shared pool by {@link #close()}, for reuse by other instances.
+ */
+public class SegmentedDataSink implements CloseableReadableDataSink {
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    private static final int MAX_READ_CHUNK_SIZE = 64 * 1024;
+
+    /** Maximum number of blocks kept in {@link #BLOCK_POOL} (16 MB). */
+    private static final int MAX_POOLED_BLOCK_COUNT = 256;
+    private static final ConcurrentLinkedQueue<byte[]> BLOCK_POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED_BLOCK_COUNT = new AtomicInteger();
+
+    private final int mBlockSize;
+    private final long mMaxInMemoryBlockCount;
+
+    /** Blocks held in memory. All but the last block are full. */
+    private final List<byte[]> mBlocks = new ArrayList<>();
+    private long mSize;
+
+    // Once the memory budget is exhausted, full blocks are written to the temporary file and the
+    // block being filled is held in mSpillTail.
+    private Path mSpillFile;
+    private RandomAccessFile mSpillRaf;
+    private FileChannel mSpillChannel;
+    private long mSpilledSize;
+    private byte[] mSpillTail;
+    private int mSpillTailSize;
+
+    public SegmentedDataSink() {
+        this(DEFAULT_BLOCK_SIZE, -1);
+    }
+
+    /**
+     * Constructs a new sink.
+     *
+     * @param blockSize size (bytes) of each block
+     * @param memoryBudget maximum number of bytes to hold in memory before writing further data to
+     *        a temporary file, or {@code -1} for no limit. At least one block is always held in
+     *        memory.
+     */
+    public SegmentedDataSink(int blockSize, long memoryBudget) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+        }
+        if (memoryBudget < -1) {
+            throw new IllegalArgumentException("memoryBudget: " + memoryBudget);
+        }
+        mBlockSize = blockSize;
+        mMaxInMemoryBlockCount =
+                (memoryBudget == -1) ? Long.MAX_VALUE : Math.max(memoryBudget / blockSize - 1, 0);
+    }
+
+    @Override
+    public void consume(byte[] buf, int offset, int length) throws IOException {
+        if ((offset < 0) || (offset > buf.length)) {
+            throw new IndexOutOfBoundsException(
+                    "offset: " + offset + ", buf.length: " + buf.length);
+        }
+        if ((length < 0) || (offset + length > buf.length)) {
+            throw new IndexOutOfBoundsException(
+                    "offset: " + offset + ", length: " + length + ", buf.length: " + buf.length);
+        }
+        while (length > 0) {
+            byte[] block = getBlockForAppend();
+            int offsetInBlock = (int) (mSize % mBlockSize);
+            int chunkSize = Math.min(length, mBlockSize - offsetInBlock);
+            System.arraycopy(buf, offset, block, offsetInBlock, chunkSize);
+            appended(chunkSize);
+            offset += chunkSize;
+            length -= chunkSize;
+        }
+    }
+
+    @Override
+    public void consume(ByteBuffer buf) throws IOException {
+        if (buf.hasArray()) {
+            consume(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            buf.position(buf.limit());
+            return;
+        }
+        while (buf.hasRemaining()) {
+            byte[] block = getBlockForAppend();
+            int offsetInBlock = (int) (mSize % mBlockSize);
+            int chunkSize = Math.min(buf.remaining(), mBlockSize - offsetInBlock);
+            buf.get(block, offsetInBlock, chunkSize);
+            appended(chunkSize);
+        }
+    }
+
+    /**
+     * Returns the block into which the next byte is to be appended, allocating or spilling blocks
+     * as necessary.
+     */
+    private byte[] getBlockForAppend() throws IOException {
+        if (mSpillChannel != null) {
+            if (mSpillTailSize == mBlockSize) {
+                ByteBuffer tail = ByteBuffer.wrap(mSpillTail);
+                while (tail.hasRemaining()) {
+                    mSpillChannel.write(tail, mSpilledSize + tail.position());
+                }
+                mSpilledSize += mBlockSize;
+                mSpillTailSize = 0;
+            }
+            return mSpillTail;
+        }
+        if (mSize % mBlockSize != 0) {
+            return mBlocks.get(mBlocks.size() - 1);
+        }
+        if (mBlocks.size() < mMaxInMemoryBlockCount) {
+            byte[] block = allocateBlock();
+            mBlocks.add(block);
+            return block;
+        }
+        mSpillFile = Files.createTempFile("apksig", ".tmp");
+        try {
+            mSpillRaf = new RandomAccessFile(mSpillFile.toFile(), "rw");
+        } catch (IOException e) {
+            Files.deleteIfExists(mSpillFile);
+            mSpillFile = null;
+            throw e;
+        }
+        mSpillChannel = mSpillRaf.getChannel();
+        mSpillTail = allocateBlock();
+        return mSpillTail;
+    }
+
+    private void appended(int count) {
+        mSize += count;
+        if (mSpillChannel != null) {
+            mSpillTailSize += count;
+        }
+    }
+
+    private byte[] allocateBlock() {
+        if (mBlockSize == DEFAULT_BLOCK_SIZE) {
+            byte[] block = BLOCK_POOL.poll();
+            if (block != null) {
+                POOLED_BLOCK_COUNT.decrementAndGet();
+                return block;
+            }
+        }
+        return new byte[mBlockSize];
+    }
+
+    /**
+     * Releases the blocks and the temporary file of this sink. This sink must not be used
+     * afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mBlockSize == DEFAULT_BLOCK_SIZE) {
+            for (byte[] block : mBlocks) {
+                if (POOLED_BLOCK_COUNT.incrementAndGet() > MAX_POOLED_BLOCK_COUNT) {
+                    POOLED_BLOCK_COUNT.decrementAndGet();
+                    break;
+                }
+                BLOCK_POOL.add(block);
+            }
+        }
+        mBlocks.clear();
+        mSize = 0;
+        mSpillTail = null;
+        mSpillTailSize = 0;
+        mSpilledSize = 0;
+        mSpillChannel = null;
+        if (mSpillRaf != null) {
+            try {
+                mSpillRaf.close();
+            } finally {
+                mSpillRaf = null;
+                Path spillFile = mSpillFile;
+                mSpillFile = null;
+                Files.deleteIfExists(spillFile);
+            }
+        }
+    }
+
+    @Override
+    public long size() {
+        return mSize;
+    }
+
+    @Override
+    public void feed(long offset, long size, DataSink sink) throws IOException {
+        checkChunkValid(offset, size, mSize);
+        long inMemorySize = (mSpillChannel != null) ? ((long) mBlocks.size()) * mBlockSize : mSize;
+        ByteBuffer spillBuf = null;
+        while (size > 0) {
+            int chunkSize;
+            if (offset < inMemorySize) {
+                int offsetInBlock = (int) (offset % mBlockSize);
+                chunkSize = (int) Math.min(size, mBlockSize - offsetInBlock);
+                sink.consume(mBlocks.get((int) (offset / mBlockSize)), offsetInBlock, chunkSize);
+            } else if (offset < inMemorySize + mSpilledSize) {
+                long offsetInFile = offset - inMemorySize;
+                chunkSize = (int) Math.min(
+                        Math.min(size, mSpilledSize - offsetInFile), MAX_READ_CHUNK_SIZE);
+                if (spillBuf == null) {
+                    spillBuf = ByteBuffer.allocate(MAX_READ_CHUNK_SIZE);
+                }
+                spillBuf.clear();
+                spillBuf.limit(chunkSize);
+                while (spillBuf.hasRemaining()) {
+                    int read = mSpillChannel.read(spillBuf, offsetInFile + spillBuf.position());
+                    if (read < 0) {
+                        throw new IOException("Unexpected EOF encountered");
+                    }
+                }
+                spillBuf.flip();
+                sink.consume(spillBuf);
+            } else {
+                int offsetInTail = (int) (offset - inMemorySize - mSpilledSize);
+                chunkSize = (int) size;
+                sink.consume(mSpillTail, offsetInTail, chunkSize);
+            }
+            offset += chunkSize;
+            size -= chunkSize;
+        }
+    }
+
+    @Override
+    public ByteBuffer getByteBuffer(long offset, int size) throws IOException {
+        if (size < 0) {
+            throw new IndexOutOfBoundsException("size: " + size);
+        }
+        ByteBuffer result = ByteBuffer.allocate(size);
+        copyTo(offset, size, result);
+        result.flip();
+        return result;
+    }
+
+    @Override
+    public void copyTo(long offset, int size, ByteBuffer dest) throws IOException {
+        checkChunkValid(offset, size, mSize);
+        if (size > dest.remaining()) {
+            throw new BufferOverflowException();
+        }
+        feed(offset, size, new ByteBufferSink(dest));
+    }
+
+    @Override
+    public DataSource slice(long offset, long size) {
+        checkChunkValid(offset, size, mSize);
+        return new SliceDataSource(offset, size);
+    }
+
+    private static void checkChunkValid(long offset, long size, long sourceSize) {
+        if (offset < 0) {
+            throw new IndexOutOfBoundsException("offset: " + offset);
+        }
+        if (size < 0) {
+            throw new IndexOutOfBoundsException("size: " + size);
+        }
+        if (offset > sourceSize) {
+            throw new IndexOutOfBoundsException(
+                    "offset (" + offset + ") > source size (" + sourceSize + ")");
+        }
+        long endOffset = offset + size;
+        if (endOffset < offset) {
+            throw new IndexOutOfBoundsException(
+                    "offset (" + offset + ") + size (" + size + ") overflow");
+        }
+        if (endOffset > sourceSize) {
+            throw new IndexOutOfBoundsException(
+                    "offset (" + offset + ") + size (" + size + ") > source size (" + sourceSize
+                            + ")");
+        }
+    }
+
+    /**
+     * Slice of the sink. The slice's offset and size in the sink are fixed.
+     */
+    private class SliceDataSource implements DataSource {
+        private final long mSliceOffset;
+        private final long mSliceSize;
+
+        private SliceDataSource(long offset, long size) {
+            mSliceOffset = offset;
+            mSliceSize = size;
+        }
+
+        @Override
+        public long size() {
+            return mSliceSize;
+        }
+
+        @Override
+        public void feed(long offset, long size, DataSink sink) throws IOException {
+            checkChunkValid(offset, size, mSliceSize);
+            SegmentedDataSink.this.feed(mSliceOffset + offset, size, sink);
+        }
+
+        @Override
+        public ByteBuffer getByteBuffer(long offset, int size) throws IOException {
+            checkChunkValid(offset, size, mSliceSize);
+            return SegmentedDataSink.this.getByteBuffer(mSliceOffset + offset, size);
+        }
+
+        @Override
+        public void copyTo(long offset, int size, ByteBuffer dest) throws IOException {
+            checkChunkValid(offset, size, mSliceSize);
+            SegmentedDataSink.this.copyTo(mSliceOffset + offset, size, dest);
+        }
+
+        @Override
+        public DataSource slice(long offset, long size) {
+            checkChunkValid(offset, size, mSliceSize);
+            return new SliceDataSource(mSliceOffset + offset, size);
+        }
+    }
+}
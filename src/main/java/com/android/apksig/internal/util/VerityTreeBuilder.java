@@ -21,23 +21,35 @@ import com.android.apksig.util.DataSink;
 import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 /**
  * VerityTreeBuilder is used to generate the root hash of verity tree built from the input file.
  * The root hash can be used on device for on-access verification.  The tree itself is reproducible
- * on device, and is not shipped with the APK.
+ * on device, and is not shipped with the APK. It can nevertheless be output, for example, to be
+ * shipped alongside the APK.
  */
 public class VerityTreeBuilder {
 
     /** Maximum size (in bytes) of each node of the tree. */
     private final static int CHUNK_SIZE = 4096;
 
+    /**
+     * Maximum number of bytes of each level of the tree held in memory when the tree is output.
+     */
+    private final static int LEVEL_MEMORY_BUDGET_BYTES = 1024 * 1024;
+
+    /** Number of input bytes digested between progress reports. */
+    private final static int PROGRESS_INTERVAL_BYTES = 1024 * 1024;
+
     /** Digest algorithm (JCA Digest algorithm name) used in the tree. */
     private final static String JCA_ALGORITHM = "SHA-256";
 
@@ -46,9 +58,22 @@ public class VerityTreeBuilder {
 
     private final MessageDigest mMd;
 
+    /** Progress of digesting the input data. */
+    private final ProgressReporter.PhaseProgress mProgress;
+
     public VerityTreeBuilder(byte[] salt) throws NoSuchAlgorithmException {
+        this(salt, null);
+    }
+
+    /**
+     * Constructs a new builder which reports the number of input bytes digested to the provided
+     * {@code progress} and which checks it for cancellation. {@code progress} may be {@code null}.
+     */
+    public VerityTreeBuilder(byte[] salt, ProgressReporter.PhaseProgress progress)
+            throws NoSuchAlgorithmException {
         mSalt = salt;
-        mMd = MessageDigest.getInstance(JCA_ALGORITHM);
+        mMd = CryptoFactory.getMessageDigest(JCA_ALGORITHM);
+        mProgress = progress;
     }
 
     /**
@@ -60,28 +85,82 @@ public class VerityTreeBuilder {
      */
     public byte[] generateVerityTreeRootHash(DataSource beforeApkSigningBlock,
             DataSource centralDir, DataSource eocd) throws IOException {
+        return generateVerityTree(beforeApkSigningBlock, centralDir, eocd, null);
+    }
+
+    /**
+     * Returns the root hash of the APK verity tree built from ZIP blocks and, if {@code treeOut}
+     * is not {@code null}, outputs the tree into it. See
+     * {@link #generateVerityTreeRootHash(DataSource, DataSource, DataSource)} and
+     * {@link #generateVerityTree(DataSource, DataSink)}.
+     */
+    public byte[] generateVerityTree(DataSource beforeApkSigningBlock,
+            DataSource centralDir, DataSource eocd, DataSink treeOut) throws IOException {
         if (beforeApkSigningBlock.size() % CHUNK_SIZE != 0) {
             throw new IllegalStateException("APK Signing Block size not a multiple of " + CHUNK_SIZE
                     + ": " + beforeApkSigningBlock.size());
         }
 
-        // Ensure that, when digesting, ZIP End of Central Directory record's Central Directory
-        // offset field is treated as pointing to the offset at which the APK Signing Block will
-        // start.
-        long centralDirOffsetForDigesting = beforeApkSigningBlock.size();
+        return generateVerityTree(new ChainedDataSource(beforeApkSigningBlock, centralDir,
+                    getEocdForDigesting(eocd, beforeApkSigningBlock.size())), treeOut);
+    }
+
+    /**
+     * Returns the root hash of the APK verity tree built from ZIP blocks, where the data preceding
+     * the APK Signing Block has already been fed into the provided incremental tree. See
+     * {@link #generateVerityTreeRootHash(DataSource, DataSource, DataSource)}.
+     *
+     * <p>The provided tree is not modified and can thus be reused.
+     */
+    public byte[] generateVerityTreeRootHash(IncrementalTree beforeApkSigningBlock,
+            DataSource centralDir, DataSource eocd) throws IOException {
+        if (beforeApkSigningBlock.size() % CHUNK_SIZE != 0) {
+            throw new IllegalStateException("APK Signing Block size not a multiple of " + CHUNK_SIZE
+                    + ": " + beforeApkSigningBlock.size());
+        }
+        IncrementalTree tree = beforeApkSigningBlock.copy();
+        centralDir.feed(0, centralDir.size(), tree);
+        DataSource eocdForDigesting = getEocdForDigesting(eocd, beforeApkSigningBlock.size());
+        eocdForDigesting.feed(0, eocdForDigesting.size(), tree);
+        return tree.getRootHash();
+    }
+
+    /**
+     * Returns a new verity tree into which input can be fed incrementally, for example, while the
+     * input is being read from a stream.
+     */
+    public IncrementalTree newIncrementalTree() {
+        return new IncrementalTree(new TreeLevels(false));
+    }
+
+    /**
+     * Returns a copy of the provided ZIP End of Central Directory record whose Central Directory
+     * offset field points to the offset at which the APK Signing Block will start. This is how the
+     * record is treated when digesting.
+     */
+    private static DataSource getEocdForDigesting(DataSource eocd, long apkSigningBlockOffset)
+            throws IOException {
         ByteBuffer eocdBuf = ByteBuffer.allocate((int) eocd.size());
         eocdBuf.order(ByteOrder.LITTLE_ENDIAN);
         eocd.copyTo(0, (int) eocd.size(), eocdBuf);
         eocdBuf.flip();
-        ZipUtils.setZipEocdCentralDirectoryOffset(eocdBuf, centralDirOffsetForDigesting);
-
-        return generateVerityTreeRootHash(new ChainedDataSource(beforeApkSigningBlock, centralDir,
-                    DataSources.asDataSource(eocdBuf)));
+        ZipUtils.setZipEocdCentralDirectoryOffset(eocdBuf, apkSigningBlockOffset);
+        return DataSources.asDataSource(eocdBuf);
     }
 
     /**
      * Returns the root hash of the verity tree built from the data source.
      *
+     * This is package-private for testing purpose.
+     */
+    byte[] generateVerityTreeRootHash(DataSource fileSource) throws IOException {
+        return generateVerityTree(fileSource, null);
+    }
+
+    /**
+     * Returns the root hash of the verity tree built from the data source and, if {@code treeOut}
+     * is not {@code null}, outputs the tree into it.
+     *
      * The tree is built bottom up. The bottom level has 256-bit digest for each 4 KB block in the
      * input file.  If the total size is larger than 4 KB, take this level as input and repeat the
      * same procedure, until the level is within 4 KB.  If salt is given, it will apply to each
@@ -89,87 +168,45 @@ public class VerityTreeBuilder {
      *
      * The returned root hash is calculated from the last level of 4 KB chunk, similarly with salt.
      *
-     * The tree is currently stored only in memory and is never written out.  Nevertheless, it is
-     * the actual verity tree format on disk, and is supposed to be re-generated on device.
-     *
-     * This is package-private for testing purpose.
+     * The tree is built in a single pass over the input, holding only the 4 KB page currently
+     * being filled at each level. The tree is output in the on-disk verity tree format: levels from
+     * the top (single page) to the bottom, each level padded with 0s to a multiple of 4 KB. Until
+     * the top of the tree is known, lower levels are buffered, spilling to temporary files if they
+     * are large.
      */
-    byte[] generateVerityTreeRootHash(DataSource fileSource) throws IOException {
-        int digestSize = mMd.getDigestLength();
-
-        // Calculate the summed area table of level size. In other word, this is the offset
-        // table of each level, plus the next non-existing level.
-        int[] levelOffset = calculateLevelOffset(fileSource.size(), digestSize);
-
-        ByteBuffer verityBuffer = ByteBuffer.allocate(levelOffset[levelOffset.length - 1]);
-
-        // Generate the hash tree bottom-up.
-        for (int i = levelOffset.length - 2; i >= 0; i--) {
-            DataSink middleBufferSink = new ByteBufferSink(
-                    slice(verityBuffer, levelOffset[i], levelOffset[i + 1]));
-            DataSource src;
-            if (i == levelOffset.length - 2) {
-                src = fileSource;
-                digestDataByChunks(src, middleBufferSink);
-            } else {
-                src = DataSources.asDataSource(slice(verityBuffer.asReadOnlyBuffer(),
-                            levelOffset[i + 1], levelOffset[i + 2]));
-                digestDataByChunks(src, middleBufferSink);
+    public byte[] generateVerityTree(DataSource fileSource, DataSink treeOut) throws IOException {
+        TreeLevels levels = new TreeLevels(treeOut != null);
+        try {
+            digestDataByChunks(fileSource, levels.getBottomLevelSink(), mProgress);
+            byte[] rootHash = levels.finish();
+            if (treeOut != null) {
+                levels.writeTo(treeOut);
             }
-
-            // If the output is not full chunk, pad with 0s.
-            long totalOutput = divideRoundup(src.size(), CHUNK_SIZE) * digestSize;
-            int incomplete = (int) (totalOutput % CHUNK_SIZE);
-            if (incomplete > 0) {
-                byte[] padding = new byte[CHUNK_SIZE - incomplete];
-                middleBufferSink.consume(padding, 0, padding.length);
-            }
-        }
-
-        // Finally, calculate the root hash from the top level (only page).
-        ByteBuffer firstPage = slice(verityBuffer.asReadOnlyBuffer(), 0, CHUNK_SIZE);
-        return saltedDigest(firstPage);
-    }
-
-    /**
-     * Returns an array of summed area table of level size in the verity tree.  In other words, the
-     * returned array is offset of each level in the verity tree file format, plus an additional
-     * offset of the next non-existing level (i.e. end of the last level + 1).  Thus the array size
-     * is level + 1.
-     */
-    private static int[] calculateLevelOffset(long dataSize, int digestSize) {
-        // Compute total size of each level, bottom to top.
-        ArrayList<Long> levelSize = new ArrayList<>();
-        while (true) {
-            long chunkCount = divideRoundup(dataSize, CHUNK_SIZE);
-            long size = CHUNK_SIZE * divideRoundup(chunkCount * digestSize, CHUNK_SIZE);
-            levelSize.add(size);
-            if (chunkCount * digestSize <= CHUNK_SIZE) {
-                break;
-            }
-            dataSize = chunkCount * digestSize;
-        }
-
-        // Reverse and convert to summed area table.
-        int[] levelOffset = new int[levelSize.size() + 1];
-        levelOffset[0] = 0;
-        for (int i = 0; i < levelSize.size(); i++) {
-            // We don't support verity tree if it is larger then Integer.MAX_VALUE.
-            levelOffset[i + 1] = levelOffset[i] + Math.toIntExact(
-                    levelSize.get(levelSize.size() - i - 1));
+            return rootHash;
+        } finally {
+            levels.close();
         }
-        return levelOffset;
     }
 
     /**
      * Digest data source by chunks then feeds them to the sink one by one.  If the last unit is
      * less than the chunk size and padding is desired, feed with extra padding 0 to fill up the
      * chunk before digesting.
+     *
+     * <p>If {@code progress} is not {@code null}, the number of bytes digested is reported to it
+     * after every {@link #PROGRESS_INTERVAL_BYTES}.
      */
-    private void digestDataByChunks(DataSource dataSource, DataSink dataSink) throws IOException {
+    private void digestDataByChunks(
+            DataSource dataSource, DataSink dataSink, ProgressReporter.PhaseProgress progress)
+            throws IOException {
         long size = dataSource.size();
         long offset = 0;
+        long reportedOffset = 0;
         for (; offset + CHUNK_SIZE <= size; offset += CHUNK_SIZE) {
+            if ((progress != null) && (offset - reportedOffset >= PROGRESS_INTERVAL_BYTES)) {
+                progress.advance(offset - reportedOffset);
+                reportedOffset = offset;
+            }
             ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
             dataSource.copyTo(offset, CHUNK_SIZE, buffer);
             buffer.rewind();
@@ -188,6 +225,9 @@ public class VerityTreeBuilder {
             byte[] hash = saltedDigest(buffer);
             dataSink.consume(hash, 0, hash.length);
         }
+        if (progress != null) {
+            progress.advance(size - reportedOffset);
+        }
     }
 
     /** Returns the digest of data with salt prepanded. */
@@ -200,17 +240,228 @@ public class VerityTreeBuilder {
         return mMd.digest();
     }
 
-    /** Divides a number and round up to the closest integer. */
-    private static long divideRoundup(long dividend, long divisor) {
-        return (dividend + divisor - 1) / divisor;
+    /**
+     * Verity tree whose input is fed incrementally. Only the 4 KB page currently being filled at
+     * each level of the tree is held in memory.
+     *
+     * <p>Trees are not thread-safe. Trees created by the same builder, including their copies,
+     * must not be used concurrently.
+     */
+    public class IncrementalTree implements DataSink {
+        private final TreeLevels mLevels;
+        private final byte[] mChunk = new byte[CHUNK_SIZE];
+        private int mChunkSize;
+        private long mSize;
+        private boolean mFinished;
+
+        private IncrementalTree(TreeLevels levels) {
+            mLevels = levels;
+        }
+
+        /**
+         * Returns the number of bytes fed into this tree.
+         */
+        public long size() {
+            return mSize;
+        }
+
+        @Override
+        public void consume(byte[] buf, int offset, int length) throws IOException {
+            if (mFinished) {
+                throw new IllegalStateException("Root hash already computed");
+            }
+            mSize += length;
+            while (length > 0) {
+                int chunkSize = Math.min(length, CHUNK_SIZE - mChunkSize);
+                System.arraycopy(buf, offset, mChunk, mChunkSize, chunkSize);
+                mChunkSize += chunkSize;
+                offset += chunkSize;
+                length -= chunkSize;
+                if (mChunkSize == CHUNK_SIZE) {
+                    digestChunk();
+                }
+            }
+        }
+
+        @Override
+        public void consume(ByteBuffer buf) throws IOException {
+            if (buf.hasArray()) {
+                consume(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+                buf.position(buf.limit());
+            } else {
+                byte[] chunk = new byte[Math.min(buf.remaining(), CHUNK_SIZE)];
+                while (buf.hasRemaining()) {
+                    int chunkSize = Math.min(buf.remaining(), chunk.length);
+                    buf.get(chunk, 0, chunkSize);
+                    consume(chunk, 0, chunkSize);
+                }
+            }
+        }
+
+        /**
+         * Returns a copy of this tree. Input fed into the copy does not affect this tree.
+         */
+        public IncrementalTree copy() {
+            IncrementalTree result = new IncrementalTree(mLevels.copy());
+            System.arraycopy(mChunk, 0, result.mChunk, 0, mChunkSize);
+            result.mChunkSize = mChunkSize;
+            result.mSize = mSize;
+            result.mFinished = mFinished;
+            return result;
+        }
+
+        /**
+         * Returns the root hash of the tree built from the input fed so far. The last incomplete
+         * chunk of input is padded with 0s. No more input can be fed afterwards.
+         */
+        public byte[] getRootHash() throws IOException {
+            if (mFinished) {
+                throw new IllegalStateException("Root hash already computed");
+            }
+            if (mChunkSize > 0) {
+                Arrays.fill(mChunk, mChunkSize, CHUNK_SIZE, (byte) 0);
+                digestChunk();
+            }
+            mFinished = true;
+            return mLevels.finish();
+        }
+
+        private void digestChunk() throws IOException {
+            byte[] hash = saltedDigest(ByteBuffer.wrap(mChunk));
+            mLevels.addDigest(0, hash, 0, hash.length);
+            mChunkSize = 0;
+        }
     }
 
-    /** Returns a slice of the buffer with shared the content. */
-    private static ByteBuffer slice(ByteBuffer buffer, int begin, int end) {
-        ByteBuffer b = buffer.duplicate();
-        b.position(0);  // to ensure position <= limit invariant.
-        b.limit(end);
-        b.position(begin);
-        return b.slice();
+    /**
+     * Levels of the verity tree being built. Level {@code 0} is the bottom level.
+     */
+    private class TreeLevels implements Closeable {
+        private final boolean mRetainTree;
+        private final List<Level> mLevels = new ArrayList<>();
+
+        private TreeLevels(boolean retainTree) {
+            mRetainTree = retainTree;
+        }
+
+        /** Returns a sink which appends each digest it consumes to the bottom level. */
+        DataSink getBottomLevelSink() {
+            return new DataSink() {
+                @Override
+                public void consume(byte[] buf, int offset, int length) throws IOException {
+                    addDigest(0, buf, offset, length);
+                }
+
+                @Override
+                public void consume(ByteBuffer buf) throws IOException {
+                    byte[] digest = new byte[buf.remaining()];
+                    buf.get(digest);
+                    addDigest(0, digest, 0, digest.length);
+                }
+            };
+        }
+
+        /**
+         * Returns a copy of these levels. Only levels which are not retained can be copied.
+         */
+        TreeLevels copy() {
+            if (mRetainTree) {
+                throw new IllegalStateException("Retained tree cannot be copied");
+            }
+            TreeLevels result = new TreeLevels(false);
+            for (Level level : mLevels) {
+                Level levelCopy = new Level(false);
+                System.arraycopy(level.mPage, 0, levelCopy.mPage, 0, level.mPageSize);
+                levelCopy.mPageSize = level.mPageSize;
+                levelCopy.mCompletedPageCount = level.mCompletedPageCount;
+                result.mLevels.add(levelCopy);
+            }
+            return result;
+        }
+
+        private Level getLevel(int index) {
+            if (index == mLevels.size()) {
+                mLevels.add(new Level(mRetainTree));
+            }
+            return mLevels.get(index);
+        }
+
+        private void addDigest(int levelIndex, byte[] digest, int offset, int length)
+                throws IOException {
+            Level level = getLevel(levelIndex);
+            if (level.mPageSize + length > CHUNK_SIZE) {
+                flushPage(levelIndex, level);
+            }
+            System.arraycopy(digest, offset, level.mPage, level.mPageSize, length);
+            level.mPageSize += length;
+        }
+
+        /**
+         * Outputs the current page of the provided level, padded with 0s, and appends its digest
+         * to the level above.
+         */
+        private void flushPage(int levelIndex, Level level) throws IOException {
+            byte[] digest = level.completePage();
+            addDigest(levelIndex + 1, digest, 0, digest.length);
+        }
+
+        /**
+         * Completes all levels and returns the root hash, which is the digest of the top level's
+         * only page.
+         */
+        byte[] finish() throws IOException {
+            for (int i = 0; ; i++) {
+                Level level = getLevel(i);
+                if (level.mCompletedPageCount == 0) {
+                    // All of this level fits into one page. This is the top level.
+                    return level.completePage();
+                }
+                flushPage(i, level);
+            }
+        }
+
+        /** Outputs the levels from top to bottom. */
+        void writeTo(DataSink out) throws IOException {
+            for (int i = mLevels.size() - 1; i >= 0; i--) {
+                DataSource level = mLevels.get(i).mContents;
+                level.feed(0, level.size(), out);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Level level : mLevels) {
+                if (level.mContents != null) {
+                    level.mContents.close();
+                }
+            }
+        }
+    }
+
+    /** Level of the verity tree being built. */
+    private class Level {
+        private final byte[] mPage = new byte[CHUNK_SIZE];
+        private int mPageSize;
+        private long mCompletedPageCount;
+        /** Completed pages of this level, or {@code null} if the tree is not retained. */
+        private final SegmentedDataSink mContents;
+
+        private Level(boolean retainContents) {
+            mContents = (retainContents)
+                    ? new SegmentedDataSink(CHUNK_SIZE, LEVEL_MEMORY_BUDGET_BYTES) : null;
+        }
+
+        /**
+         * Pads the current page with 0s, records it as completed, and returns its digest.
+         */
+        private byte[] completePage() throws IOException {
+            Arrays.fill(mPage, mPageSize, CHUNK_SIZE, (byte) 0);
+            if (mContents != null) {
+                mContents.consume(mPage, 0, CHUNK_SIZE);
+            }
+            mPageSize = 0;
+            mCompletedPageCount++;
+            return saltedDigest(ByteBuffer.wrap(mPage));
+        }
     }
 }
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.ReadableDataSink;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DataSink} which outputs received data into the associated file, sequentially, on a
+ * background thread. This lets the producer of the data continue while earlier data is being
+ * written.
+ *
+ * <p>Received data is coalesced into a bounded number of reusable direct buffers whose contents
+ * end at file offsets which are multiples of the buffer size. Full buffers are written to the file
+ * using positional writes which leave the file's position unchanged. When all buffers are waiting
+ * to be written, the producer blocks until a buffer becomes available. Write errors are reported
+ * by the next invocation of a method of this sink.
+ *
+ * <p>Data consumed so far is exposed via the {@link DataSource} interface. Reading it first waits
+ * for all data consumed so far to be written to the file, as does {@link #flush()}. Neither this
+ * sink nor {@link #close()} closes the file. This class is thread-safe.
+ */
+public class WriteBehindDataSink implements ReadableDataSink, Flushable, Closeable {
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mStartPosition;
+    private final int mBufferSize;
+    private final int mMaxBufferCount;
+
+    // All fields below are guarded by this
+    private final ArrayDeque<ByteBuffer> mFreeBuffers = new ArrayDeque<>();
+    private int mAllocatedBufferCount;
+    private final ArrayDeque<ByteBuffer> mWriteQueue = new ArrayDeque<>();
+    private boolean mWriterRunning;
+    private IOException mFailure;
+    /** Buffer receiving data, or {@code null} if no data has been received since last submit. */
+    private ByteBuffer mCurrentBuffer;
+    /** Position in file of the next byte to be consumed. */
+    private long mPosition;
+    /** Position in file of the first byte of the next buffer to be written. */
+    private long mWritePosition;
+
+    /**
+     * Constructs a new {@code WriteBehindDataSink} which stores output starting from the specified
+     * position of the provided file.
+     *
+     * @param bufferSize size (bytes) of each buffer, for example, {@code 256 * 1024}
+     * @param maxBufferCount maximum number of buffers holding data not yet written to the file
+     */
+    public WriteBehindDataSink(
+            RandomAccessFile file, long startPosition, int bufferSize, int maxBufferCount) {
+        if (file == null) {
+            throw new NullPointerException("file == null");
+        }
+        if (startPosition < 0) {
+            throw new IllegalArgumentException("startPosition: " + startPosition);
+        }
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+        }
+        if (maxBufferCount <= 0) {
+            throw new IllegalArgumentException(
+                    "maxBufferCount must be positive: " + maxBufferCount);
+        }
+        mFile = file;
+        mChannel = file.getChannel();
+        mStartPosition = startPosition;
+        mBufferSize = bufferSize;
+        mMaxBufferCount = maxBufferCount;
+        mPosition = startPosition;
+        mWritePosition = startPosition;
+    }
+
+    /**
+     * Returns the underlying {@link RandomAccessFile}.
+     */
+    public RandomAccessFile getFile() {
+        return mFile;
+    }
+
+    /**
+     * Skips the provided number of bytes of the file as though they were consumed by this sink.
+     * The caller is responsible for writing these bytes to the file directly, for example, using
+     * positional writes.
+     *
+     * @throws IOException if an I/O error occurred while writing data consumed so far
+     */
+    public synchronized void skip(long byteCount) throws IOException {
+        if (byteCount < 0) {
+            throw new IllegalArgumentException("byteCount: " + byteCount);
+        }
+        flush();
+        mPosition += byteCount;
+        mWritePosition += byteCount;
+    }
+
+    @Override
+    public void consume(byte[] buf, int offset, int length) throws IOException {
+        consume(ByteBuffer.wrap(buf, offset, length));
+    }
+
+    @Override
+    public synchronized void consume(ByteBuffer buf) throws IOException {
+        throwIfFailed();
+        while (buf.hasRemaining()) {
+            if (mCurrentBuffer == null) {
+                mCurrentBuffer = takeFreeBuffer();
+            }
+            int chunkSize = Math.min(buf.remaining(), mCurrentBuffer.remaining());
+            ByteBuffer chunk = buf.slice();
+            chunk.limit(chunkSize);
+            mCurrentBuffer.put(chunk);
+            buf.position(buf.position() + chunkSize);
+            mPosition += chunkSize;
+            if (!mCurrentBuffer.hasRemaining()) {
+                submitCurrentBuffer();
+            }
+        }
+    }
+
+    /**
+     * Waits for all data consumed so far to be written to the file.
+     *
+     * @throws IOException if an I/O error occurred while writing data
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (mCurrentBuffer != null) {
+            submitCurrentBuffer();
+        }
+        while (((mWriterRunning) || (!mWriteQueue.isEmpty())) && (mFailure == null)) {
+            awaitWriter();
+        }
+        throwIfFailed();
+    }
+
+    /**
+     * Waits for all data consumed so far to be written to the file and releases the buffers of
+     * this sink.
+     *
+     * @throws IOException if an I/O error occurred while writing data
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            mAllocatedBufferCount -= mFreeBuffers.size();
+            mFreeBuffers.clear();
+        }
+    }
+
+    @Override
+    public synchronized long size() {
+        return mPosition - mStartPosition;
+    }
+
+    @Override
+    public void feed(long offset, long size, DataSink sink) throws IOException {
+        getFlushedDataSource().feed(offset, size, sink);
+    }
+
+    @Override
+    public ByteBuffer getByteBuffer(long offset, int size) throws IOException {
+        return getFlushedDataSource().getByteBuffer(offset, size);
+    }
+
+    @Override
+    public void copyTo(long offset, int size, ByteBuffer dest) throws IOException {
+        getFlushedDataSource().copyTo(offset, size, dest);
+    }
+
+    @Override
+    public DataSource slice(long offset, long size) {
+        try {
+            return getFlushedDataSource().slice(offset, size);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to write data consumed so far", e);
+        }
+    }
+
+    /**
+     * Returns a data source which provides the data consumed so far, once it has been written to
+     * the file.
+     */
+    private synchronized DataSource getFlushedDataSource() throws IOException {
+        flush();
+        return new RandomAccessFileDataSource(mFile, mStartPosition, size());
+    }
+
+    private void throwIfFailed() throws IOException {
+        if (mFailure != null) {
+            throw new IOException("Failed to write to file", mFailure);
+        }
+    }
+
+    private ByteBuffer takeFreeBuffer() throws IOException {
+        while (true) {
+            throwIfFailed();
+            ByteBuffer buffer = mFreeBuffers.poll();
+            if ((buffer == null) && (mAllocatedBufferCount < mMaxBufferCount)) {
+                buffer = ByteBuffer.allocateDirect(mBufferSize);
+                mAllocatedBufferCount++;
+            }
+            if (buffer != null) {
+                buffer.clear();
+                // End the buffer's contents at the next offset which is a multiple of buffer size
+                buffer.limit(mBufferSize - (int) (mPosition % mBufferSize));
+                return buffer;
+            }
+            // All buffers are waiting to be written
+            awaitWriter();
+        }
+    }
+
+    private void submitCurrentBuffer() {
+        mCurrentBuffer.flip();
+        mWriteQueue.add(mCurrentBuffer);
+        mCurrentBuffer = null;
+        if (!mWriterRunning) {
+            mWriterRunning = true;
+            WriterExecutorHolder.EXECUTOR.execute(this::writeQueuedBuffers);
+        }
+    }
+
+    private void awaitWriter() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for write-behind");
+        }
+    }
+
+    private void writeQueuedBuffers() {
+        while (true) {
+            ByteBuffer[] buffers;
+            long position;
+            synchronized (this) {
+                if ((mWriteQueue.isEmpty()) || (mFailure != null)) {
+                    mWriterRunning = false;
+                    notifyAll();
+                    return;
+                }
+                buffers = mWriteQueue.toArray(new ByteBuffer[mWriteQueue.size()]);
+                mWriteQueue.clear();
+                position = mWritePosition;
+            }
+            long length = 0;
+            for (ByteBuffer buffer : buffers) {
+                length += buffer.remaining();
+            }
+            IOException failure = null;
+            try {
+                long bufferPosition = position;
+                for (ByteBuffer buffer : buffers) {
+                    while (buffer.hasRemaining()) {
+                        bufferPosition += mChannel.write(buffer, bufferPosition);
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException("Failed to write behind", e);
+            }
+            synchronized (this) {
+                mWritePosition = position + length;
+                for (ByteBuffer buffer : buffers) {
+                    mFreeBuffers.add(buffer);
+                }
+                if (failure != null) {
+                    mFailure = failure;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /** Lazily creates the pool of daemon threads which write buffers. */
+    private static class WriterExecutorHolder {
+        private static final Executor EXECUTOR = createExecutor();
+
+        private static Executor createExecutor() {
+            return new ThreadPoolExecutor(
+                    0, Integer.MAX_VALUE, 10, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "apksig-write-behind");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+    }
+}
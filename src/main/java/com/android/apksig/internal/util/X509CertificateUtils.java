@@ -26,6 +26,7 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
@@ -140,6 +141,24 @@ public class X509CertificateUtils {
         }
     }
 
+    /**
+     * Returns the provided certificate as a {@link GuaranteedEncodedFormX509Certificate}, which
+     * can be compared to other such certificates by fingerprint. The provided certificate is
+     * returned as is if it already is such a certificate or if its encoded form cannot be
+     * obtained.
+     */
+    public static X509Certificate toFingerprintedCertificate(X509Certificate certificate) {
+        if ((certificate == null)
+                || (certificate instanceof GuaranteedEncodedFormX509Certificate)) {
+            return certificate;
+        }
+        try {
+            return new GuaranteedEncodedFormX509Certificate(certificate, certificate.getEncoded());
+        } catch (CertificateEncodingException e) {
+            return certificate;
+        }
+    }
+
     /**
      * Generates a {@code Collection} of {@code Certificate} objects from the encoded {@code
      * InputStream}.
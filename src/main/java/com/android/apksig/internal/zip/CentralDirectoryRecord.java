@@ -223,9 +223,32 @@ public class CentralDirectoryRecord {
             long compressedSize,
             long uncompressedSize,
             long localFileHeaderOffset) {
+        return createWithData(
+                name,
+                ZipUtils.COMPRESSION_METHOD_DEFLATED,
+                lastModifiedTime,
+                lastModifiedDate,
+                crc32,
+                compressedSize,
+                uncompressedSize,
+                localFileHeaderOffset);
+    }
+
+    /**
+     * Returns a new record for an entry with the provided name whose data is compressed using the
+     * provided method.
+     */
+    public static CentralDirectoryRecord createWithData(
+            String name,
+            short compressionMethod,
+            int lastModifiedTime,
+            int lastModifiedDate,
+            long crc32,
+            long compressedSize,
+            long uncompressedSize,
+            long localFileHeaderOffset) {
         byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
         short gpFlags = ZipUtils.GP_FLAG_EFS; // UTF-8 character encoding used for entry name
-        short compressionMethod = ZipUtils.COMPRESSION_METHOD_DEFLATED;
         int recordSize = HEADER_SIZE_BYTES + nameBytes.length;
         ByteBuffer result = ByteBuffer.allocate(recordSize);
         result.order(ByteOrder.LITTLE_ENDIAN);
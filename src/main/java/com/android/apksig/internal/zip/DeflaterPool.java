@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.zip;
+
+import java.util.zip.Deflater;
+
+/**
+ * Thread-confined pool of raw (no zlib header) {@link Deflater} instances and the buffers used
+ * with them.
+ *
+ * <p>Each {@code Deflater} holds native zlib state, including a sizeable window and hash table,
+ * which is only released by {@link Deflater#end()} or once the instance is garbage-collected. This
+ * pool keeps one {@code Deflater} and its output buffer per thread and hands them out again after
+ * they have been released.
+ */
+public final class DeflaterPool {
+    private DeflaterPool() {}
+
+    /** Size (in bytes) of the output buffer of each pooled deflater. */
+    public static final int BUFFER_SIZE_BYTES = 65536;
+
+    private static final ThreadLocal<PooledDeflater> CACHED = new ThreadLocal<>();
+
+    /**
+     * Returns a deflater which uses the provided compression level, for use by the current thread.
+     * Only a pooled deflater of the same level is reused.
+     * The deflater must be returned to the pool using {@link PooledDeflater#release()} once no
+     * longer needed.
+     */
+    public static PooledDeflater acquire(int level) {
+        PooledDeflater result = CACHED.get();
+        if ((result != null) && (result.mLevel == level)) {
+            // Remove the instance from the pool so that nested acquisitions on this thread get
+            // their own instances.
+            CACHED.set(null);
+            result.mReleased = false;
+            return result;
+        }
+        // Compression level is fixed at construction. Changing the level of a deflater takes
+        // effect only once it is next invoked, which may be after a preset dictionary is set.
+        return new PooledDeflater(level);
+    }
+
+    /**
+     * {@link Deflater} on loan from the pool, together with an output buffer of
+     * {@link #BUFFER_SIZE_BYTES} bytes.
+     */
+    public static final class PooledDeflater {
+        private final int mLevel;
+        private final Deflater mDeflater;
+        private byte[] mOutputBuffer;
+        private boolean mReleased;
+
+        private PooledDeflater(int level) {
+            mLevel = level;
+            mDeflater = new Deflater(level, true);
+        }
+
+        public Deflater getDeflater() {
+            checkNotReleased();
+            return mDeflater;
+        }
+
+        /**
+         * Returns the buffer to use for receiving deflated data.
+         */
+        public byte[] getOutputBuffer() {
+            checkNotReleased();
+            if (mOutputBuffer == null) {
+                mOutputBuffer = new byte[BUFFER_SIZE_BYTES];
+            }
+            return mOutputBuffer;
+        }
+
+        /**
+         * Resets the deflater and returns it to the pool of the current thread. This instance must
+         * not be used after it has been released.
+         */
+        public void release() {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+            mDeflater.reset();
+            if (CACHED.get() == null) {
+                CACHED.set(this);
+            } else {
+                // This thread already has a pooled instance. Release the native resources now
+                // rather than waiting for GC.
+                mDeflater.end();
+            }
+        }
+
+        private void checkNotReleased() {
+            if (mReleased) {
+                throw new IllegalStateException("Released");
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.zip;
+
+import com.android.apksig.util.DataSink;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * {@link DataSink} which Deflate-compresses the data it receives, without zlib header, into
+ * another sink, as needed for the data of a Deflate-compressed ZIP entry. {@link #finish()} must be
+ * invoked once all data has been received, or {@link #release()} if compression is abandoned.
+ */
+public class DeflatingDataSink implements DataSink {
+
+    private final DataSink mOutput;
+    private DeflaterPool.PooledDeflater mPooledDeflater;
+    private byte[] mInputBuffer;
+
+    public DeflatingDataSink(DataSink output, int level) {
+        mOutput = output;
+        mPooledDeflater = DeflaterPool.acquire(level);
+    }
+
+    @Override
+    public void consume(byte[] buf, int offset, int length) throws IOException {
+        checkNotFinished();
+        Deflater deflater = mPooledDeflater.getDeflater();
+        deflater.setInput(buf, offset, length);
+        // The deflater references the provided buffer until it needs more input
+        byte[] outputBuffer = mPooledDeflater.getOutputBuffer();
+        while (!deflater.needsInput()) {
+            int chunkSize = deflater.deflate(outputBuffer);
+            if (chunkSize > 0) {
+                mOutput.consume(outputBuffer, 0, chunkSize);
+            }
+        }
+    }
+
+    @Override
+    public void consume(ByteBuffer buf) throws IOException {
+        if (buf.hasArray()) {
+            consume(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            buf.position(buf.limit());
+            return;
+        }
+        if (mInputBuffer == null) {
+            mInputBuffer = new byte[DeflaterPool.BUFFER_SIZE_BYTES];
+        }
+        while (buf.hasRemaining()) {
+            int chunkSize = Math.min(buf.remaining(), mInputBuffer.length);
+            buf.get(mInputBuffer, 0, chunkSize);
+            consume(mInputBuffer, 0, chunkSize);
+        }
+    }
+
+    /**
+     * Outputs the remaining compressed data and returns the deflater to its pool. No more data
+     * may be received afterwards.
+     */
+    public void finish() throws IOException {
+        checkNotFinished();
+        try {
+            Deflater deflater = mPooledDeflater.getDeflater();
+            byte[] outputBuffer = mPooledDeflater.getOutputBuffer();
+            deflater.finish();
+            while (!deflater.finished()) {
+                int chunkSize = deflater.deflate(outputBuffer);
+                mOutput.consume(outputBuffer, 0, chunkSize);
+            }
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Returns the deflater to its pool without outputting the remaining compressed data. Does
+     * nothing if the deflater has already been returned.
+     */
+    public void release() {
+        if (mPooledDeflater != null) {
+            mPooledDeflater.release();
+            mPooledDeflater = null;
+        }
+    }
+
+    private void checkNotFinished() {
+        if (mPooledDeflater == null) {
+            throw new IllegalStateException("Already finished");
+        }
+    }
+}
@@ -28,6 +28,20 @@ public class EocdRecord {
     private static final int CD_SIZE_OFFSET = 12;
     private static final int CD_OFFSET_OFFSET = 16;
 
+    private static final int RECORD_SIGNATURE = 0x06054b50;
+    private static final int HEADER_SIZE_BYTES = 22;
+
+    /**
+     * Returns a new record, without comment, of an archive whose ZIP Central Directory is empty
+     * and starts at offset {@code 0}.
+     */
+    public static ByteBuffer createEmpty() {
+        ByteBuffer result = ByteBuffer.allocate(HEADER_SIZE_BYTES);
+        result.order(ByteOrder.LITTLE_ENDIAN);
+        result.putInt(0, RECORD_SIGNATURE);
+        return result;
+    }
+
     public static ByteBuffer createWithModifiedCentralDirectoryInfo(
             ByteBuffer original,
             int centralDirectoryRecordCount,
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.zip;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.zip.Inflater;
+
+/**
+ * Thread-confined pool of raw (no zlib header) {@link Inflater} instances and the buffers used
+ * with them.
+ *
+ * <p>Each {@code Inflater} holds native zlib state which is only released by
+ * {@link Inflater#end()} or once the instance is garbage-collected. Inflating tens of thousands of
+ * small entries with a fresh {@code Inflater} each thus puts pressure on both native memory and
+ * GC. This pool keeps one {@code Inflater} and its buffers per thread and hands them out again
+ * after they have been released.
+ */
+public final class InflaterPool {
+    private InflaterPool() {}
+
+    /** Size (in bytes) of the input and output buffers of each pooled inflater. */
+    public static final int BUFFER_SIZE_BYTES = 65536;
+
+    private static final ThreadLocal<PooledInflater> CACHED = new ThreadLocal<>();
+
+    /**
+     * {@code Inflater.setInput(ByteBuffer)} which is only available on Java 11 and newer, or
+     * {@code null} if not available.
+     */
+    private static final MethodHandle SET_INPUT_BYTE_BUFFER = findSetInputByteBuffer();
+
+    /**
+     * Returns an inflater for use by the current thread. The inflater must be returned to the pool
+     * using {@link PooledInflater#release()} once no longer needed.
+     */
+    public static PooledInflater acquire() {
+        PooledInflater result = CACHED.get();
+        if (result != null) {
+            // Remove the instance from the pool so that nested acquisitions on this thread get
+            // their own instances.
+            CACHED.set(null);
+            result.mReleased = false;
+            return result;
+        }
+        return new PooledInflater();
+    }
+
+    /**
+     * Returns {@code true} if inflaters can consume input directly from {@link ByteBuffer}s which
+     * are not backed by an accessible array, such as direct or memory-mapped buffers.
+     */
+    public static boolean isDirectInputSupported() {
+        return SET_INPUT_BYTE_BUFFER != null;
+    }
+
+    private static MethodHandle findSetInputByteBuffer() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(
+                    Inflater.class,
+                    "setInput",
+                    MethodType.methodType(void.class, ByteBuffer.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * {@link Inflater} on loan from the pool, together with input and output buffers of
+     * {@link #BUFFER_SIZE_BYTES} bytes each.
+     */
+    public static final class PooledInflater {
+        private final Inflater mInflater = new Inflater(true);
+        private byte[] mInputBuffer;
+        private byte[] mOutputBuffer;
+        private boolean mReleased;
+
+        private PooledInflater() {}
+
+        public Inflater getInflater() {
+            checkNotReleased();
+            return mInflater;
+        }
+
+        /**
+         * Returns the buffer to use for copying input data which is not in a {@code byte[]}.
+         */
+        public byte[] getInputBuffer() {
+            checkNotReleased();
+            if (mInputBuffer == null) {
+                mInputBuffer = new byte[BUFFER_SIZE_BYTES];
+            }
+            return mInputBuffer;
+        }
+
+        /**
+         * Returns the buffer to use for receiving inflated data.
+         */
+        public byte[] getOutputBuffer() {
+            checkNotReleased();
+            if (mOutputBuffer == null) {
+                mOutputBuffer = new byte[BUFFER_SIZE_BYTES];
+            }
+            return mOutputBuffer;
+        }
+
+        /**
+         * Sets the remaining data of the provided buffer as the inflater's input without copying it
+         * into a {@code byte[]}. The inflater advances the buffer's position as it consumes the
+         * data.
+         *
+         * @throws UnsupportedOperationException if {@link InflaterPool#isDirectInputSupported()}
+         *         returns {@code false}
+         */
+        public void setInput(ByteBuffer input) {
+            checkNotReleased();
+            if (SET_INPUT_BYTE_BUFFER == null) {
+                throw new UnsupportedOperationException(
+                        "Inflater.setInput(ByteBuffer) not supported");
+            }
+            try {
+                SET_INPUT_BYTE_BUFFER.invokeExact(mInflater, input);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException("Failed to set inflater input", e);
+            }
+        }
+
+        /**
+         * Resets the inflater and returns it to the pool of the current thread. This instance must
+         * not be used after it has been released.
+         */
+        public void release() {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+            mInflater.reset();
+            if (CACHED.get() == null) {
+                CACHED.set(this);
+            } else {
+                // This thread already has a pooled instance. Release the native resources now
+                // rather than waiting for GC.
+                mInflater.end();
+            }
+        }
+
+        private void checkNotReleased() {
+            if (mReleased) {
+                throw new IllegalStateException("Released");
+            }
+        }
+    }
+}
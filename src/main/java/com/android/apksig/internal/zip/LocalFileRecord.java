@@ -16,6 +16,7 @@
 
 package com.android.apksig.internal.zip;
 
+import com.android.apksig.internal.util.ByteBufferDataSource;
 import com.android.apksig.internal.util.ByteBufferSink;
 import com.android.apksig.util.DataSink;
 import com.android.apksig.util.DataSource;
@@ -302,6 +303,15 @@ public class LocalFileRecord {
         return size;
     }
 
+    /**
+     * Returns the size (in bytes) of this record once its extra field is replaced with one of the
+     * provided size.
+     */
+    public long getSizeWithModifiedExtra(int extraSizeBytes) {
+        return getExtraFieldStartOffsetInsideRecord() + extraSizeBytes
+                + getSize() - mDataStartOffset;
+    }
+
     /**
      * Outputs this record, replacing its extra field with the provided one, and returns returns the
      * number of bytes output.
@@ -341,22 +351,62 @@ public class LocalFileRecord {
             long crc32,
             long uncompressedSize,
             DataSink output) throws IOException {
+        return outputRecordWithData(
+                name,
+                ZipUtils.COMPRESSION_METHOD_DEFLATED,
+                lastModifiedTime,
+                lastModifiedDate,
+                crc32,
+                uncompressedSize,
+                EMPTY_BYTE_BUFFER,
+                new ByteBufferDataSource(ByteBuffer.wrap(compressedData)),
+                output);
+    }
+
+    /**
+     * Returns the offset of the extra field inside a record with the provided name output by
+     * {@link #outputRecordWithData(String, short, int, int, long, long, ByteBuffer, DataSource,
+     * DataSink) outputRecordWithData}.
+     */
+    public static int getExtraFieldStartOffsetInsideRecord(String name) {
+        return HEADER_SIZE_BYTES + name.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Outputs a record with the provided name, extra field and data, compressed using the
+     * provided method, into the provided data sink. Returns the number of bytes output.
+     *
+     * @param data data of the record as stored in the archive, that is, compressed if the
+     *        compression method is not {@link ZipUtils#COMPRESSION_METHOD_STORED}
+     */
+    public static long outputRecordWithData(
+            String name,
+            short compressionMethod,
+            int lastModifiedTime,
+            int lastModifiedDate,
+            long crc32,
+            long uncompressedSize,
+            ByteBuffer extra,
+            DataSource data,
+            DataSink output) throws IOException {
         byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
-        int recordSize = HEADER_SIZE_BYTES + nameBytes.length;
+        int extraSize = extra.remaining();
+        int recordSize = HEADER_SIZE_BYTES + nameBytes.length + extraSize;
         ByteBuffer result = ByteBuffer.allocate(recordSize);
         result.order(ByteOrder.LITTLE_ENDIAN);
         result.putInt(RECORD_SIGNATURE);
         ZipUtils.putUnsignedInt16(result,  0x14); // Minimum version needed to extract
         result.putShort(ZipUtils.GP_FLAG_EFS); // General purpose flag: UTF-8 encoded name
-        result.putShort(ZipUtils.COMPRESSION_METHOD_DEFLATED);
+        result.putShort(compressionMethod);
         ZipUtils.putUnsignedInt16(result, lastModifiedTime);
         ZipUtils.putUnsignedInt16(result, lastModifiedDate);
         ZipUtils.putUnsignedInt32(result, crc32);
-        ZipUtils.putUnsignedInt32(result, compressedData.length);
+        ZipUtils.putUnsignedInt32(result, data.size());
         ZipUtils.putUnsignedInt32(result, uncompressedSize);
         ZipUtils.putUnsignedInt16(result, nameBytes.length);
-        ZipUtils.putUnsignedInt16(result, 0); // Extra field length
+        ZipUtils.putUnsignedInt16(result, extraSize);
         result.put(nameBytes);
+        result.put(extra.slice());
         if (result.hasRemaining()) {
             throw new RuntimeException("pos: " + result.position() + ", limit: " + result.limit());
         }
@@ -364,8 +414,8 @@ public class LocalFileRecord {
 
         long outputByteCount = result.remaining();
         output.consume(result);
-        outputByteCount += compressedData.length;
-        output.consume(compressedData, 0, compressedData.length);
+        outputByteCount += data.size();
+        data.feed(0, data.size(), output);
         return outputByteCount;
     }
 
@@ -459,13 +509,15 @@ public class LocalFileRecord {
     /**
      * {@link DataSink} which inflates received data and outputs the deflated data into the provided
      * delegate sink.
+     *
+     * <p>The {@code Inflater} and buffers used by this adapter are obtained from
+     * {@link InflaterPool} and are returned to the pool when this adapter is closed.
      */
     private static class InflateSinkAdapter implements DataSink, Closeable {
         private final DataSink mDelegate;
 
-        private Inflater mInflater = new Inflater(true);
-        private byte[] mOutputBuffer;
-        private byte[] mInputBuffer;
+        private InflaterPool.PooledInflater mPooledInflater = InflaterPool.acquire();
+        private Inflater mInflater = mPooledInflater.getInflater();
         private long mOutputByteCount;
         private boolean mClosed;
 
@@ -477,22 +529,7 @@ public class LocalFileRecord {
         public void consume(byte[] buf, int offset, int length) throws IOException {
             checkNotClosed();
             mInflater.setInput(buf, offset, length);
-            if (mOutputBuffer == null) {
-                mOutputBuffer = new byte[65536];
-            }
-            while (!mInflater.finished()) {
-                int outputChunkSize;
-                try {
-                    outputChunkSize = mInflater.inflate(mOutputBuffer);
-                } catch (DataFormatException e) {
-                    throw new IOException("Failed to inflate data", e);
-                }
-                if (outputChunkSize == 0) {
-                    return;
-                }
-                mDelegate.consume(mOutputBuffer, 0, outputChunkSize);
-                mOutputByteCount += outputChunkSize;
-            }
+            inflateAvailableInput();
         }
 
         @Override
@@ -501,18 +538,38 @@ public class LocalFileRecord {
             if (buf.hasArray()) {
                 consume(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
                 buf.position(buf.limit());
+            } else if (InflaterPool.isDirectInputSupported()) {
+                // Inflate straight from the buffer, avoiding the copy into a byte[]
+                mPooledInflater.setInput(buf);
+                inflateAvailableInput();
+                buf.position(buf.limit());
             } else {
-                if (mInputBuffer == null) {
-                    mInputBuffer = new byte[65536];
-                }
+                byte[] inputBuffer = mPooledInflater.getInputBuffer();
                 while (buf.hasRemaining()) {
-                    int chunkSize = Math.min(buf.remaining(), mInputBuffer.length);
-                    buf.get(mInputBuffer, 0, chunkSize);
-                    consume(mInputBuffer, 0, chunkSize);
+                    int chunkSize = Math.min(buf.remaining(), inputBuffer.length);
+                    buf.get(inputBuffer, 0, chunkSize);
+                    consume(inputBuffer, 0, chunkSize);
                 }
             }
         }
 
+        private void inflateAvailableInput() throws IOException {
+            byte[] outputBuffer = mPooledInflater.getOutputBuffer();
+            while (!mInflater.finished()) {
+                int outputChunkSize;
+                try {
+                    outputChunkSize = mInflater.inflate(outputBuffer);
+                } catch (DataFormatException e) {
+                    throw new IOException("Failed to inflate data", e);
+                }
+                if (outputChunkSize == 0) {
+                    return;
+                }
+                mDelegate.consume(outputBuffer, 0, outputChunkSize);
+                mOutputByteCount += outputChunkSize;
+            }
+        }
+
         public long getOutputByteCount() {
             return mOutputByteCount;
         }
@@ -520,11 +577,10 @@ public class LocalFileRecord {
         @Override
         public void close() throws IOException {
             mClosed = true;
-            mInputBuffer = null;
-            mOutputBuffer = null;
-            if (mInflater != null) {
-                mInflater.end();
-                mInflater = null;
+            mInflater = null;
+            if (mPooledInflater != null) {
+                mPooledInflater.release();
+                mPooledInflater = null;
             }
         }
 
@@ -18,10 +18,12 @@ package com.android.apksig.internal.zip;
 
 import com.android.apksig.internal.util.Pair;
 import com.android.apksig.util.DataSource;
+import com.android.apksig.util.RunnablesExecutor;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.CRC32;
 import java.util.zip.Deflater;
 
@@ -283,7 +285,33 @@ public abstract class ZipUtils {
         buffer.putInt((int) value);
     }
 
+    /**
+     * Size (in bytes) of the blocks of input which {@link #deflate(ByteBuffer, int,
+     * RunnablesExecutor)} deflates independently of each other.
+     */
+    static final int DEFLATE_BLOCK_SIZE_BYTES = 1024 * 1024;
+
+    /** Size (in bytes) of the deflate sliding window. */
+    private static final int DEFLATE_WINDOW_SIZE_BYTES = 32 * 1024;
+
+    /**
+     * Deflates the provided input using the best compression level.
+     */
     public static DeflateResult deflate(ByteBuffer input) {
+        return deflate(input, Deflater.BEST_COMPRESSION, RunnablesExecutor.SINGLE_THREADED);
+    }
+
+    /**
+     * Deflates the provided input using the provided compression level.
+     *
+     * <p>Input longer than {@link #DEFLATE_BLOCK_SIZE_BYTES} is split into blocks which are
+     * deflated in parallel using the provided executor. Each block is deflated with the input
+     * preceding it as preset dictionary, and each block other than the last one ends with a sync
+     * flush. Thus, the deflated blocks concatenated form a single deflate stream. CRC-32 values of
+     * the blocks are combined into the CRC-32 of the whole input. The output depends only on the
+     * input and the compression level, not on the executor.
+     */
+    public static DeflateResult deflate(ByteBuffer input, int level, RunnablesExecutor executor) {
         byte[] inputBuf;
         int inputOffset;
         int inputLength = input.remaining();
@@ -296,19 +324,152 @@ public abstract class ZipUtils {
             inputOffset = 0;
             input.get(inputBuf);
         }
-        CRC32 crc32 = new CRC32();
-        crc32.update(inputBuf, inputOffset, inputLength);
-        long crc32Value = crc32.getValue();
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        Deflater deflater = new Deflater(9, true);
-        deflater.setInput(inputBuf, inputOffset, inputLength);
-        deflater.finish();
-        byte[] buf = new byte[65536];
-        while (!deflater.finished()) {
-            int chunkSize = deflater.deflate(buf);
-            out.write(buf, 0, chunkSize);
+
+        int blockCount =
+                (inputLength > 0) ? ((inputLength - 1) / DEFLATE_BLOCK_SIZE_BYTES) + 1 : 1;
+        byte[][] blockOutputs = new byte[blockCount][];
+        long[] blockCrc32s = new long[blockCount];
+        // Workers pull blocks off a shared queue so that any one of them can deflate all blocks
+        AtomicInteger nextBlock = new AtomicInteger();
+        Runnable deflateBlocks = () -> {
+            int blockIndex;
+            while ((blockIndex = nextBlock.getAndIncrement()) < blockCount) {
+                int blockOffset = blockIndex * DEFLATE_BLOCK_SIZE_BYTES;
+                int blockLength = Math.min(DEFLATE_BLOCK_SIZE_BYTES, inputLength - blockOffset);
+                CRC32 crc32 = new CRC32();
+                crc32.update(inputBuf, inputOffset + blockOffset, blockLength);
+                blockCrc32s[blockIndex] = crc32.getValue();
+                blockOutputs[blockIndex] =
+                        deflateBlock(
+                                inputBuf,
+                                inputOffset,
+                                blockOffset,
+                                blockLength,
+                                blockIndex == blockCount - 1,
+                                level);
+            }
+        };
+        if (blockCount == 1) {
+            deflateBlocks.run();
+        } else {
+            executor.execute(() -> deflateBlocks);
+        }
+
+        long crc32Value = blockCrc32s[0];
+        int outputLength = blockOutputs[0].length;
+        for (int i = 1; i < blockCount; i++) {
+            int blockLength =
+                    Math.min(DEFLATE_BLOCK_SIZE_BYTES, inputLength - i * DEFLATE_BLOCK_SIZE_BYTES);
+            crc32Value = combineCrc32(crc32Value, blockCrc32s[i], blockLength);
+            outputLength += blockOutputs[i].length;
+        }
+        byte[] output = blockOutputs[0];
+        if (blockCount > 1) {
+            output = new byte[outputLength];
+            int outputOffset = 0;
+            for (byte[] blockOutput : blockOutputs) {
+                System.arraycopy(blockOutput, 0, output, outputOffset, blockOutput.length);
+                outputOffset += blockOutput.length;
+            }
+        }
+        return new DeflateResult(inputLength, crc32Value, output);
+    }
+
+    private static byte[] deflateBlock(
+            byte[] inputBuf,
+            int inputOffset,
+            int blockOffset,
+            int blockLength,
+            boolean lastBlock,
+            int level) {
+        DeflaterPool.PooledDeflater pooledDeflater = DeflaterPool.acquire(level);
+        try {
+            Deflater deflater = pooledDeflater.getDeflater();
+            byte[] buf = pooledDeflater.getOutputBuffer();
+            if (blockOffset > 0) {
+                // Let matches refer to the preceding input, as they could if the whole input were
+                // deflated at once
+                int dictionaryLength = Math.min(blockOffset, DEFLATE_WINDOW_SIZE_BYTES);
+                deflater.setDictionary(
+                        inputBuf, inputOffset + blockOffset - dictionaryLength, dictionaryLength);
+            }
+            deflater.setInput(inputBuf, inputOffset + blockOffset, blockLength);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (lastBlock) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int chunkSize = deflater.deflate(buf);
+                    out.write(buf, 0, chunkSize);
+                }
+            } else {
+                // Sync flush ends the output on a byte boundary without marking the end of the
+                // stream, so that the output of the next block can follow
+                int chunkSize;
+                do {
+                    chunkSize = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                    out.write(buf, 0, chunkSize);
+                } while ((chunkSize == buf.length) || (!deflater.needsInput()));
+            }
+            return out.toByteArray();
+        } finally {
+            pooledDeflater.release();
+        }
+    }
+
+    /**
+     * Returns the CRC-32 of the concatenation of two sequences of bytes, given the CRC-32 of each
+     * sequence and the length of the second sequence. This is zlib's {@code crc32_combine}.
+     */
+    static long combineCrc32(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        // Operator for a single zero bit: CRC-32 polynomial followed by the identity shifted by 1
+        long[] odd = new long[32];
+        odd[0] = 0xedb88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // Operators for two and four zero bits
+        long[] even = new long[32];
+        squareGf2Matrix(even, odd);
+        squareGf2Matrix(odd, even);
+
+        // Apply length2 zero bytes to crc1, squaring the operator for each bit of length2
+        do {
+            squareGf2Matrix(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = multiplyGf2Matrix(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            squareGf2Matrix(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = multiplyGf2Matrix(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long multiplyGf2Matrix(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void squareGf2Matrix(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = multiplyGf2Matrix(matrix, matrix[n]);
         }
-        return new DeflateResult(inputLength, crc32Value, out.toByteArray());
     }
 
     public static class DeflateResult {
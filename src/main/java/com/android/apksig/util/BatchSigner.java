@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.util;
+
+import com.android.apksig.internal.util.CoalescingBatchSigner;
+import java.security.InvalidKeyException;
+import java.security.SignatureException;
+import java.security.cert.X509Certificate;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.List;
+
+/**
+ * Signer which performs private key operations on behalf of APK signers whose private keys are not
+ * available locally, for example, because the keys are held by a remote signing service.
+ *
+ * <p>Signatures are requested in batches. All signatures required by a step of signing an APK are
+ * requested using a single invocation of {@link #sign(List)}, regardless of the number of signers,
+ * signature algorithms and signature schemes involved. Signing an APK thus takes two batches: one
+ * for JAR signing (v1 scheme) and one for APK Signature Scheme v2 and v3, because the former
+ * signatures are covered by the latter. To also combine the batches of multiple APKs, sign the
+ * APKs concurrently using a signer obtained from {@link #coalescing(BatchSigner)}.
+ *
+ * <p>The signatures are verified locally against the public key of the signer's certificate
+ * before they are used. Implementations must be thread-safe.
+ */
+public interface BatchSigner {
+
+    /**
+     * Returns the signatures requested by the provided requests, in the same order as the
+     * requests.
+     *
+     * @throws InvalidKeyException if the key of one of the requests cannot be used
+     * @throws SignatureException if one of the signatures could not be generated
+     */
+    List<byte[]> sign(List<SignatureRequest> requests)
+            throws InvalidKeyException, SignatureException;
+
+    /**
+     * Returns a signer which combines the requests of concurrent invocations of
+     * {@link #sign(List)} into as few invocations of the provided signer as possible. While the
+     * provided signer is busy, requests are queued up. All queued requests are then passed to the
+     * provided signer in a single invocation.
+     */
+    static BatchSigner coalescing(BatchSigner signer) {
+        return new CoalescingBatchSigner(signer);
+    }
+
+    /**
+     * Request to sign data.
+     */
+    final class SignatureRequest {
+        private final X509Certificate mCertificate;
+        private final String mJcaSignatureAlgorithm;
+        private final AlgorithmParameterSpec mJcaSignatureAlgorithmParams;
+        private final byte[] mData;
+
+        public SignatureRequest(
+                X509Certificate certificate,
+                String jcaSignatureAlgorithm,
+                AlgorithmParameterSpec jcaSignatureAlgorithmParams,
+                byte[] data) {
+            mCertificate = certificate;
+            mJcaSignatureAlgorithm = jcaSignatureAlgorithm;
+            mJcaSignatureAlgorithmParams = jcaSignatureAlgorithmParams;
+            mData = data;
+        }
+
+        /**
+         * Returns the certificate whose subject public key corresponds to the private key with
+         * which to sign.
+         */
+        public X509Certificate getCertificate() {
+            return mCertificate;
+        }
+
+        /**
+         * Returns the JCA name of the signature algorithm (e.g., {@code SHA256withRSA}).
+         */
+        public String getJcaSignatureAlgorithm() {
+            return mJcaSignatureAlgorithm;
+        }
+
+        /**
+         * Returns the parameters of the signature algorithm or {@code null} if the algorithm has
+         * no parameters.
+         */
+        public AlgorithmParameterSpec getJcaSignatureAlgorithmParams() {
+            return mJcaSignatureAlgorithmParams;
+        }
+
+        /**
+         * Returns the data to sign.
+         */
+        public byte[] getData() {
+            return mData;
+        }
+    }
+}
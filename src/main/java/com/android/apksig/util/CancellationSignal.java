@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.util;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signal used to request cancellation of an APK signing or verification operation.
+ *
+ * <p>Cancellation is cooperative: long-running loops periodically check the signal and abort with a
+ * {@link CancellationException} once the signal has been canceled or its deadline has passed. An
+ * operation provided with a signal is also aborted if the thread performing it is interrupted.
+ * Operations provided with no signal do not check whether their thread has been interrupted.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class CancellationSignal {
+    private final long mDeadlineNanos;
+    private final boolean mDeadlineSet;
+    private final CancellationSignal mParent;
+    private volatile boolean mCanceled;
+
+    /**
+     * Constructs a new signal which is canceled only once {@link #cancel()} is invoked.
+     */
+    public CancellationSignal() {
+        this(0, false, null);
+    }
+
+    private CancellationSignal(long deadlineNanos, boolean deadlineSet, CancellationSignal parent) {
+        mDeadlineNanos = deadlineNanos;
+        mDeadlineSet = deadlineSet;
+        mParent = parent;
+    }
+
+    /**
+     * Returns a new signal which is canceled once the provided amount of time has elapsed or
+     * {@link #cancel()} is invoked, whichever happens first.
+     */
+    public static CancellationSignal withTimeout(long timeout, TimeUnit unit) {
+        return new CancellationSignal(System.nanoTime() + unit.toNanos(timeout), true, null);
+    }
+
+    /**
+     * Returns a new signal which is canceled once {@link #cancel()} is invoked on it or the
+     * provided signal is canceled, whichever happens first. Canceling the returned signal does not
+     * cancel the provided signal.
+     *
+     * @param parent signal whose cancellation cancels the returned signal, or {@code null}
+     */
+    public static CancellationSignal linkedTo(CancellationSignal parent) {
+        return new CancellationSignal(0, false, parent);
+    }
+
+    /**
+     * Requests cancellation of the operation which uses this signal.
+     */
+    public void cancel() {
+        mCanceled = true;
+    }
+
+    /**
+     * Returns {@code true} if cancellation has been requested or the deadline has passed.
+     */
+    public boolean isCanceled() {
+        if (mCanceled) {
+            return true;
+        }
+        if ((mParent != null) && (mParent.isCanceled())) {
+            mCanceled = true;
+            return true;
+        }
+        if ((mDeadlineSet) && (System.nanoTime() - mDeadlineNanos >= 0)) {
+            mCanceled = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Throws a {@link CancellationException} if cancellation has been requested or the deadline
+     * has passed.
+     */
+    public void throwIfCanceled() throws CancellationException {
+        if (isCanceled()) {
+            throw new CancellationException("Operation canceled");
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.util;
+
+import com.android.apksig.internal.util.CryptoFactory;
+import com.android.apksig.internal.util.CryptoProviderBenchmark;
+import java.security.Provider;
+import java.util.Map;
+
+/**
+ * Selection of JCA {@link Provider}s used for cryptographic operations of APK signing and
+ * verification in this process.
+ *
+ * <p>By default, the JCA provider preference order is used for all algorithms. A provider can be
+ * selected per digest algorithm (e.g., {@code SHA-256}), per signature algorithm (e.g.,
+ * {@code SHA256withRSA}) and per key algorithm ({@code RSA}, {@code EC} or {@code DSA}). A
+ * provider selected for a key algorithm is used for all signature algorithms using keys of that
+ * algorithm, unless a provider is selected for the exact signature algorithm. Algorithms not
+ * implemented by the selected provider fall back to the JCA provider preference order.
+ *
+ * <p>When signing with keys which are only usable with a particular provider (e.g., keys stored in
+ * hardware), the provider selected for the key's algorithm must support these keys.
+ */
+public abstract class CryptoProviders {
+    private CryptoProviders() {}
+
+    /**
+     * Selects the provider to use for the provided JCA digest, signature or key algorithm. If
+     * {@code provider} is {@code null}, the JCA provider preference order is restored for the
+     * algorithm.
+     */
+    public static void setProvider(String jcaAlgorithm, Provider provider) {
+        CryptoFactory.setProvider(jcaAlgorithm, provider);
+    }
+
+    /**
+     * Returns the provider selected for the provided JCA algorithm via
+     * {@link #setProvider(String, Provider)}, or {@code null} if none is selected.
+     */
+    public static Provider getProvider(String jcaAlgorithm) {
+        return CryptoFactory.getProvider(jcaAlgorithm);
+    }
+
+    /**
+     * Restores the JCA provider preference order for all algorithms.
+     */
+    public static void clearProviders() {
+        CryptoFactory.clearProviders();
+    }
+
+    /**
+     * Runs a short micro-benchmark of the installed providers of {@code SHA-1}, {@code SHA-256},
+     * {@code SHA-512}, {@code RSA}, {@code EC} (ECDSA) and {@code DSA}, and selects the fastest
+     * provider of each of these algorithms. Algorithms implemented by only one provider are left
+     * unchanged. This takes up to a few seconds and is meant to be run once at startup.
+     *
+     * @return the selected providers, keyed by JCA algorithm name
+     */
+    public static Map<String, Provider> selectFastestProviders() {
+        Map<String, Provider> providers = CryptoProviderBenchmark.findFastestProviders();
+        for (Map.Entry<String, Provider> entry : providers.entrySet()) {
+            CryptoFactory.setProvider(entry.getKey(), entry.getValue());
+        }
+        return providers;
+    }
+}
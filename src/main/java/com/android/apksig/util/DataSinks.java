@@ -20,6 +20,8 @@ import com.android.apksig.internal.util.ByteArrayDataSink;
 import com.android.apksig.internal.util.MessageDigestSink;
 import com.android.apksig.internal.util.OutputStreamDataSink;
 import com.android.apksig.internal.util.RandomAccessFileDataSink;
+import com.android.apksig.internal.util.SegmentedDataSink;
+import com.android.apksig.internal.util.WriteBehindDataSink;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.security.MessageDigest;
@@ -46,6 +48,27 @@ public abstract class DataSinks {
         return new RandomAccessFileDataSink(file);
     }
 
+    /**
+     * Returns a new {@link DataSink} which outputs received data into the provided file,
+     * sequentially, starting at the beginning of the file. Unlike
+     * {@link #asDataSink(RandomAccessFile)}, data is coalesced into large buffers which are written
+     * to the file on a background thread.
+     * All data consumed so far is exposed via the {@link DataSource} interface once it has been
+     * written to the file.
+     *
+     * <p>The returned sink implements {@link java.io.Flushable} and {@link java.io.Closeable}.
+     * Flushing or closing it waits for all data consumed so far to be written to the file. Write
+     * errors are reported by the next operation on the sink. Closing the sink does not close the
+     * file.
+     *
+     * @param bufferSize size (bytes) of each buffer, for example, {@code 256 * 1024}
+     * @param maxBufferCount maximum number of buffers holding data not yet written to the file
+     */
+    public static ReadableDataSink newWriteBehindDataSink(
+            RandomAccessFile file, int bufferSize, int maxBufferCount) {
+        return new WriteBehindDataSink(file, 0, bufferSize, maxBufferCount);
+    }
+
     /**
      * Returns a {@link DataSink} which forwards data into the provided {@link MessageDigest}
      * instances via their {@code update} method. Each {@code MessageDigest} instance receives the
@@ -72,4 +95,23 @@ public abstract class DataSinks {
     public static ReadableDataSink newInMemoryDataSink(int initialCapacity) {
         return new ByteArrayDataSink(initialCapacity);
     }
+
+    /**
+     * Returns a new {@link DataSink} which stores received data in fixed-size blocks and exposes
+     * all data consumed so far via the {@link DataSource} interface. Unlike
+     * {@link #newInMemoryDataSink()}, the sink never copies data consumed so far when growing and
+     * is not limited to 2 GB.
+     *
+     * <p>Once more than {@code memoryBudget} bytes would be held in memory, further data is
+     * transparently written to a temporary file. Closing the returned sink deletes the temporary
+     * file and releases its blocks. The temporary file is not deleted if the sink is not closed.
+     *
+     * @param blockSize size (bytes) of each block, for example, {@code 64 * 1024}
+     * @param memoryBudget maximum number of bytes to hold in memory, or {@code -1} to hold all data
+     *        in memory
+     */
+    public static CloseableReadableDataSink newSegmentedDataSink(
+            int blockSize, long memoryBudget) {
+        return new SegmentedDataSink(blockSize, memoryBudget);
+    }
 }
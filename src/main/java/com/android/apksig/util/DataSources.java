@@ -18,6 +18,7 @@ package com.android.apksig.util;
 
 import com.android.apksig.internal.util.ByteBufferDataSource;
 import com.android.apksig.internal.util.RandomAccessFileDataSource;
+import com.android.apksig.internal.util.ReadAheadDataSource;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 
@@ -60,4 +61,25 @@ public abstract class DataSources {
         }
         return new RandomAccessFileDataSource(file, offset, size);
     }
+
+    /**
+     * Returns a {@link DataSource} which reads the provided data source ahead of the consumer while
+     * the consumer reads it sequentially. Up to {@code depth} windows of {@code windowSize} bytes
+     * following the window being read are prefetched on a background thread, such that reading of
+     * the next window overlaps with processing of the current one. Random access transparently
+     * falls back to reading from the provided data source.
+     *
+     * <p>This is beneficial for data sources backed by slow storage, such as files, when signing
+     * or verifying large APKs. The contents of the provided data source must not change while the
+     * returned data source is in use.
+     *
+     * @param windowSize size (bytes) of each prefetched window, for example, {@code 1024 * 1024}
+     * @param depth maximum number of windows prefetched ahead of the consumer
+     */
+    public static DataSource readAhead(DataSource source, int windowSize, int depth) {
+        if (source == null) {
+            throw new NullPointerException();
+        }
+        return new ReadAheadDataSource(source, windowSize, depth);
+    }
 }
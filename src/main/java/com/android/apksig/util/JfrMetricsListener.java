@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.util;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link MetricsListener} which emits a JDK Flight Recorder (JFR) event named
+ * {@code com.android.apksig.Phase} for each phase of APK signing or verification.
+ *
+ * <p>JFR is accessed reflectively because it is only available on some JVMs (OpenJDK 11 and
+ * newer). Use {@link #isSupported()} to check whether this listener can be used. Events are only
+ * recorded while a JFR recording with this event enabled is running, for example, when the JVM is
+ * started with {@code -XX:StartFlightRecording}.
+ */
+public class JfrMetricsListener implements MetricsListener {
+
+    /** Name of the JFR event emitted for each phase. */
+    public static final String EVENT_NAME = "com.android.apksig.Phase";
+
+    private static final int FIELD_PHASE = 0;
+    private static final int FIELD_CPU_TIME = 1;
+    private static final int FIELD_BYTES_READ = 2;
+    private static final int FIELD_BYTES_WRITTEN = 3;
+    private static final int FIELD_ENTRIES = 4;
+    private static final int FIELD_DIGESTED_BYTES = 5;
+
+    private final Object mEventFactory;
+    private final Method mNewEvent;
+    private final Method mBegin;
+    private final Method mEnd;
+    private final Method mSet;
+    private final Method mCommit;
+
+    /** In-flight events of each thread. Phases may finish in a different order than started. */
+    private final ThreadLocal<Map<Phase, Deque<Object>>> mInFlightEvents =
+            ThreadLocal.withInitial(() -> new EnumMap<>(Phase.class));
+
+    /**
+     * Constructs a new listener.
+     *
+     * @throws UnsupportedOperationException if JFR is not supported by this JVM
+     */
+    public JfrMetricsListener() {
+        try {
+            Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+            Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory");
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            Constructor<?> newAnnotationElement =
+                    annotationElementClass.getConstructor(Class.class, Object.class);
+            Constructor<?> newValueDescriptor =
+                    valueDescriptorClass.getConstructor(Class.class, String.class, List.class);
+
+            List<Object> eventAnnotations = Arrays.asList(
+                    newAnnotationElement.newInstance(loadAnnotation("Name"), EVENT_NAME),
+                    newAnnotationElement.newInstance(
+                            loadAnnotation("Label"), "APK Signing Phase"),
+                    newAnnotationElement.newInstance(
+                            loadAnnotation("Category"), new String[] {"apksig"}));
+            Object timespanNanos =
+                    newAnnotationElement.newInstance(loadAnnotation("Timespan"), "NANOSECONDS");
+            Object dataAmountBytes =
+                    newAnnotationElement.newInstance(loadAnnotation("DataAmount"), "BYTES");
+
+            List<Object> fields = new ArrayList<>();
+            fields.add(FIELD_PHASE,
+                    newValueDescriptor.newInstance(
+                            String.class, "phase", Collections.emptyList()));
+            fields.add(FIELD_CPU_TIME,
+                    newValueDescriptor.newInstance(
+                            long.class, "cpuTime", Collections.singletonList(timespanNanos)));
+            fields.add(FIELD_BYTES_READ,
+                    newValueDescriptor.newInstance(
+                            long.class, "bytesRead", Collections.singletonList(dataAmountBytes)));
+            fields.add(FIELD_BYTES_WRITTEN,
+                    newValueDescriptor.newInstance(
+                            long.class,
+                            "bytesWritten",
+                            Collections.singletonList(dataAmountBytes)));
+            fields.add(FIELD_ENTRIES,
+                    newValueDescriptor.newInstance(
+                            long.class, "entriesProcessed", Collections.emptyList()));
+            fields.add(FIELD_DIGESTED_BYTES,
+                    newValueDescriptor.newInstance(
+                            String.class, "digestedBytes", Collections.emptyList()));
+
+            mEventFactory = eventFactoryClass.getMethod("create", List.class, List.class)
+                    .invoke(null, eventAnnotations, fields);
+            mNewEvent = eventFactoryClass.getMethod("newEvent");
+            mBegin = eventClass.getMethod("begin");
+            mEnd = eventClass.getMethod("end");
+            mSet = eventClass.getMethod("set", int.class, Object.class);
+            mCommit = eventClass.getMethod("commit");
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            throw new UnsupportedOperationException("JDK Flight Recorder not supported", e);
+        }
+    }
+
+    /**
+     * Returns {@code true} if JDK Flight Recorder is supported by this JVM.
+     */
+    public static boolean isSupported() {
+        try {
+            Class.forName("jdk.jfr.EventFactory");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void onPhaseStarted(Phase phase) {
+        Object event = invoke(mNewEvent, mEventFactory);
+        invoke(mBegin, event);
+        mInFlightEvents.get().computeIfAbsent(phase, k -> new ArrayDeque<>()).push(event);
+    }
+
+    @Override
+    public void onPhaseFinished(PhaseMetrics metrics) {
+        Deque<Object> events = mInFlightEvents.get().get(metrics.getPhase());
+        if ((events == null) || (events.isEmpty())) {
+            // Phase started on a different thread or before this listener was installed
+            return;
+        }
+        Object event = events.pop();
+        invoke(mEnd, event);
+        invoke(mSet, event, FIELD_PHASE, metrics.getPhase().name());
+        invoke(mSet, event, FIELD_CPU_TIME, metrics.getCpuTimeNanos());
+        invoke(mSet, event, FIELD_BYTES_READ, metrics.getBytesRead());
+        invoke(mSet, event, FIELD_BYTES_WRITTEN, metrics.getBytesWritten());
+        invoke(mSet, event, FIELD_ENTRIES, metrics.getEntriesProcessed());
+        invoke(mSet, event, FIELD_DIGESTED_BYTES, metrics.getDigestedBytes().toString());
+        invoke(mCommit, event);
+    }
+
+    private static Class<?> loadAnnotation(String simpleName) throws ClassNotFoundException {
+        return Class.forName("jdk.jfr." + simpleName);
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Failed to invoke " + method, e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException("Failed to invoke " + method, cause);
+        }
+    }
+}
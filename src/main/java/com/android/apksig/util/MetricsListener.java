@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.util;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Listener notified about the phases of APK signing and verification, together with timings and
+ * counters of each phase.
+ *
+ * <p>Phases may nest. For example, {@link Phase#CONTENT_DIGESTS} is reported from within
+ * {@link Phase#V2_VERIFICATION}. Listeners may be invoked from any thread which performs signing or
+ * verification work and must thus be thread-safe if the same listener is shared between multiple
+ * signing or verification operations.
+ *
+ * <p>{@link #NO_OP} is the default listener. When it is in use, no timings or counters are
+ * collected at all.
+ */
+public interface MetricsListener {
+
+    /** Listener which ignores all notifications. */
+    MetricsListener NO_OP = new MetricsListener() {
+        @Override
+        public void onPhaseStarted(Phase phase) {}
+
+        @Override
+        public void onPhaseFinished(PhaseMetrics metrics) {}
+    };
+
+    /**
+     * Invoked when the provided phase has started on the current thread.
+     */
+    void onPhaseStarted(Phase phase);
+
+    /**
+     * Invoked when a phase has finished on the current thread.
+     */
+    void onPhaseFinished(PhaseMetrics metrics);
+
+    /**
+     * Phase of APK signing or verification.
+     */
+    enum Phase {
+        /**
+         * Reading an APK from a stream. This includes digesting the APK's contents as they stream
+         * past.
+         */
+        READ_APK_STREAM,
+
+        /** Locating ZIP End of Central Directory, Central Directory, and APK Signing Block. */
+        FIND_ZIP_SECTIONS,
+
+        /** Copying ZIP entries from the input APK into the output APK. */
+        COPY_ENTRIES,
+
+        /**
+         * Computing digests of uncompressed contents of JAR entries for JAR signing. This work is
+         * interleaved with {@link #COPY_ENTRIES}. Only the time spent digesting is reported.
+         */
+        V1_ENTRY_DIGESTS,
+
+        /** Generating the JAR manifest ({@code META-INF/MANIFEST.MF}). */
+        V1_MANIFEST_GENERATION,
+
+        /** Generating JAR signature files and signature block files. */
+        V1_SIGNATURE_GENERATION,
+
+        /** Computing 1 MB chunk-based content digests of the APK. */
+        CONTENT_DIGESTS,
+
+        /** Building the verity tree of the APK and computing its root hash. */
+        VERITY_TREE,
+
+        /** Generating APK Signature Scheme v2 or v3 signatures over the content digests. */
+        SIGNATURE_GENERATION,
+
+        /** Verifying JAR signatures. */
+        V1_VERIFICATION,
+
+        /** Verifying APK Signature Scheme v2 signatures. */
+        V2_VERIFICATION,
+
+        /** Verifying APK Signature Scheme v3 signatures. */
+        V3_VERIFICATION,
+    }
+
+    /**
+     * Timings and counters collected for a finished phase.
+     */
+    final class PhaseMetrics {
+        private final Phase mPhase;
+        private final long mWallTimeNanos;
+        private final long mCpuTimeNanos;
+        private final long mBytesRead;
+        private final long mBytesWritten;
+        private final long mEntriesProcessed;
+        private final Map<String, Long> mDigestedBytes;
+
+        public PhaseMetrics(
+                Phase phase,
+                long wallTimeNanos,
+                long cpuTimeNanos,
+                long bytesRead,
+                long bytesWritten,
+                long entriesProcessed,
+                Map<String, Long> digestedBytes) {
+            mPhase = phase;
+            mWallTimeNanos = wallTimeNanos;
+            mCpuTimeNanos = cpuTimeNanos;
+            mBytesRead = bytesRead;
+            mBytesWritten = bytesWritten;
+            mEntriesProcessed = entriesProcessed;
+            mDigestedBytes = Collections.unmodifiableMap(new TreeMap<>(digestedBytes));
+        }
+
+        public Phase getPhase() {
+            return mPhase;
+        }
+
+        /**
+         * Returns the wall-clock time (nanoseconds) spent in this phase.
+         */
+        public long getWallTimeNanos() {
+            return mWallTimeNanos;
+        }
+
+        /**
+         * Returns the CPU time (nanoseconds) consumed by the thread which ran this phase, or
+         * {@code -1} if CPU time measurement is not supported by the JVM. CPU time consumed by
+         * worker threads of a {@link RunnablesExecutor} is not included.
+         */
+        public long getCpuTimeNanos() {
+            return mCpuTimeNanos;
+        }
+
+        /**
+         * Returns the number of bytes read from the input APK during this phase.
+         */
+        public long getBytesRead() {
+            return mBytesRead;
+        }
+
+        /**
+         * Returns the number of bytes output during this phase.
+         */
+        public long getBytesWritten() {
+            return mBytesWritten;
+        }
+
+        /**
+         * Returns the number of ZIP/JAR entries processed during this phase.
+         */
+        public long getEntriesProcessed() {
+            return mEntriesProcessed;
+        }
+
+        /**
+         * Returns the number of bytes digested during this phase, keyed by name of digest
+         * algorithm (e.g., {@code CHUNKED_SHA256} or {@code VERITY_CHUNKED_SHA256}).
+         */
+        public Map<String, Long> getDigestedBytes() {
+            return mDigestedBytes;
+        }
+
+        /**
+         * Returns the digest throughput (bytes per second) of the provided digest algorithm during
+         * this phase, or {@code 0} if the algorithm was not used in this phase.
+         */
+        public double getDigestThroughputBytesPerSecond(String digestAlgorithm) {
+            Long digestedBytes = mDigestedBytes.get(digestAlgorithm);
+            if ((digestedBytes == null) || (mWallTimeNanos <= 0)) {
+                return 0;
+            }
+            return digestedBytes * 1000000000.0d / mWallTimeNanos;
+        }
+
+        @Override
+        public String toString() {
+            return mPhase + ": wall " + mWallTimeNanos + " ns, cpu " + mCpuTimeNanos
+                    + " ns, read " + mBytesRead + " B, written " + mBytesWritten
+                    + " B, entries " + mEntriesProcessed + ", digested " + mDigestedBytes;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.util;
+
+/**
+ * Listener notified about the progress of long-running phases of APK signing and verification.
+ *
+ * <p>Progress is reported in bytes for {@link MetricsListener.Phase#COPY_ENTRIES},
+ * {@link MetricsListener.Phase#CONTENT_DIGESTS} and {@link MetricsListener.Phase#VERITY_TREE}, and
+ * in JAR entries for {@link MetricsListener.Phase#V1_VERIFICATION}.
+ *
+ * <p>The listener may be invoked concurrently from multiple threads when a multi-threaded
+ * {@link RunnablesExecutor} is used. In that case, notifications may arrive slightly out of order.
+ */
+public interface ProgressListener {
+
+    /** Listener which ignores all notifications. */
+    ProgressListener NO_OP = (phase, processed, total) -> {};
+
+    /**
+     * Invoked when progress has been made in the provided phase.
+     *
+     * @param processed amount of work done so far in this phase
+     * @param total total amount of work to be done in this phase
+     */
+    void onProgress(MetricsListener.Phase phase, long processed, long total);
+}
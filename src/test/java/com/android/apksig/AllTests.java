@@ -21,6 +21,7 @@ import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
+    ApkSetVerifierTest.class,
     ApkSignerTest.class,
     ApkVerifierTest.class,
     SigningCertificateLineageTest.class,
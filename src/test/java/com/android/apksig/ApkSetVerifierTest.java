@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.apksig.ApkVerifier.Issue;
+import com.android.apksig.internal.apk.SignatureAlgorithm;
+import com.android.apksig.internal.apk.SignerVerificationCache;
+import com.android.apksig.internal.util.AndroidSdkVersion;
+import com.android.apksig.internal.util.Resources;
+import com.android.apksig.util.DataSinks;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.DataSources;
+import com.android.apksig.util.ReadableDataSink;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ApkSetVerifierTest {
+
+    @Test
+    public void testSetWithSameSignersAndLineageVerifies() throws Exception {
+        ApkSetVerifier verifier =
+                createVerifier(
+                        "golden-aligned-v1v2v3-lineage-out.apk",
+                        "golden-unaligned-v1v2v3-lineage-out.apk",
+                        "golden-legacy-aligned-v1v2v3-lineage-out.apk",
+                        // Identical signer blocks are verified once
+                        "golden-aligned-v1v2v3-lineage-out.apk");
+        ApkSetVerifier.Result result = verifier.verify();
+        assertTrue(result.getErrors().toString(), result.isVerified());
+        assertEquals(4, result.getApkResults().size());
+        assertEquals(1, result.getSignerCertificates().size());
+        assertNotNull(result.getSigningCertificateLineage());
+        for (ApkVerifier.Result apkResult : result.getApkResults()) {
+            ApkVerifierTest.assertVerified(apkResult);
+            assertTrue(apkResult.isVerifiedUsingV3Scheme());
+        }
+    }
+
+    @Test
+    public void testSetVerifiesConcurrently() throws Exception {
+        ApkSetVerifier verifier =
+                newBuilder(
+                        "golden-aligned-v1v2v3-out.apk",
+                        "golden-unaligned-v1v2v3-out.apk",
+                        "golden-aligned-v2v3-out.apk",
+                        "golden-unaligned-v2v3-out.apk")
+                        .setMinCheckedPlatformVersion(AndroidSdkVersion.N)
+                        .build();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            ApkSetVerifier.Result result = verifier.verifyAsync(executor).get();
+            assertTrue(result.getErrors().toString(), result.isVerified());
+            assertEquals(
+                    Arrays.asList(
+                            "golden-aligned-v1v2v3-out.apk",
+                            "golden-unaligned-v1v2v3-out.apk",
+                            "golden-aligned-v2v3-out.apk",
+                            "golden-unaligned-v2v3-out.apk"),
+                    result.getApkNames());
+            ApkSetVerifier.Result sequentialResult = verifier.verify();
+            assertEquals(
+                    sequentialResult.getSignerCertificates(), result.getSignerCertificates());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSetWithDifferentSignersDoesNotVerify() throws Exception {
+        ApkSetVerifier.Result result =
+                createVerifier(
+                        "golden-aligned-v1v2v3-out.apk",
+                        "golden-aligned-v1v2v3-lineage-out.apk")
+                        .verify();
+        for (ApkVerifier.Result apkResult : result.getApkResults()) {
+            ApkVerifierTest.assertVerified(apkResult);
+        }
+        assertFalse(result.isVerified());
+        assertEquals(Issue.APK_SET_SIGNERS_MISMATCH, result.getErrors().get(0).getIssue());
+    }
+
+    @Test
+    public void testSetWithDifferentLineagesDoesNotVerify() throws Exception {
+        // Both APKs are signed by rsa-2048_2, but only one has the rsa-2048 -> rsa-2048_2 lineage
+        List<X509Certificate> certs =
+                Resources.toCertificateChain(getClass(), "rsa-2048_2.x509.pem");
+        PrivateKey privateKey = Resources.toPrivateKey(getClass(), "rsa-2048_2.pk8");
+        ReadableDataSink apkWithoutLineage = DataSinks.newInMemoryDataSink();
+        new ApkSigner.Builder(
+                        Collections.singletonList(
+                                new ApkSigner.SignerConfig.Builder("rsa-2048_2", privateKey, certs)
+                                        .build()))
+                .setInputApk(getApk("golden-aligned-in.apk"))
+                .setOutputApk(apkWithoutLineage)
+                .setV1SigningEnabled(false)
+                .setV2SigningEnabled(false)
+                .setV3SigningEnabled(true)
+                .build()
+                .sign();
+
+        ApkSetVerifier.Result result =
+                new ApkSetVerifier.Builder()
+                        .addApk("with-lineage", getApk("golden-aligned-v3-lineage-out.apk"))
+                        .addApk("without-lineage", apkWithoutLineage)
+                        .setMinCheckedPlatformVersion(AndroidSdkVersion.P)
+                        .build()
+                        .verify();
+        for (ApkVerifier.Result apkResult : result.getApkResults()) {
+            ApkVerifierTest.assertVerified(apkResult);
+        }
+        assertFalse(result.isVerified());
+        assertEquals(1, result.getErrors().size());
+        assertEquals(Issue.APK_SET_LINEAGE_MISMATCH, result.getErrors().get(0).getIssue());
+    }
+
+    @Test
+    public void testIdenticalSignaturesVerifiedOnce() throws Exception {
+        CountingSignerVerificationCache signerCache = new CountingSignerVerificationCache();
+        ApkVerifier.Result firstResult =
+                verifyWithSignerCache("golden-aligned-v2v3-lineage-out.apk", signerCache);
+        ApkVerifierTest.assertVerified(firstResult);
+        int signatureCount = signerCache.misses;
+        assertTrue(signatureCount > 0);
+        assertEquals(0, signerCache.hits);
+
+        // The same signer blocks are not verified again
+        ApkVerifier.Result secondResult =
+                verifyWithSignerCache("golden-aligned-v2v3-lineage-out.apk", signerCache);
+        ApkVerifierTest.assertVerified(secondResult);
+        assertEquals(signatureCount, signerCache.hits);
+        assertEquals(signatureCount, signerCache.misses);
+
+        // Signer blocks of an APK with different contents are verified
+        ApkVerifierTest.assertVerified(
+                verifyWithSignerCache("golden-unaligned-v2v3-lineage-out.apk", signerCache));
+        assertEquals(signatureCount, signerCache.hits);
+        assertEquals(2 * signatureCount, signerCache.misses);
+
+        // Updating the lineage of one result does not affect the other result
+        SigningCertificateLineage lineage = firstResult.getSigningCertificateLineage();
+        X509Certificate oldestCert = lineage.getCertificatesInLineage().get(0);
+        boolean hadInstalledData = lineage.getSignerCapabilities(oldestCert).hasInstalledData();
+        lineage.updateSignerCapabilities(
+                new SigningCertificateLineage.SignerConfig.Builder(
+                                Resources.toPrivateKey(getClass(), "rsa-2048.pk8"), oldestCert)
+                        .build(),
+                new SigningCertificateLineage.SignerCapabilities.Builder()
+                        .setInstalledData(!hadInstalledData)
+                        .build());
+        assertEquals(
+                !hadInstalledData,
+                lineage.getSignerCapabilities(oldestCert).hasInstalledData());
+        assertEquals(
+                hadInstalledData,
+                secondResult.getSigningCertificateLineage()
+                        .getSignerCapabilities(oldestCert)
+                        .hasInstalledData());
+    }
+
+    private ApkVerifier.Result verifyWithSignerCache(
+            String apkFilenameInResources, SignerVerificationCache signerCache) throws Exception {
+        return new ApkVerifier.Builder(getApk(apkFilenameInResources))
+                .setMinCheckedPlatformVersion(AndroidSdkVersion.N)
+                .setSignerVerificationCache(signerCache)
+                .build()
+                .verify();
+    }
+
+    private DataSource getApk(String apkFilenameInResources) throws Exception {
+        return DataSources.asDataSource(
+                ByteBuffer.wrap(Resources.toByteArray(getClass(), apkFilenameInResources)));
+    }
+
+    private ApkSetVerifier createVerifier(String... apkFilenamesInResources) throws Exception {
+        return newBuilder(apkFilenamesInResources).build();
+    }
+
+    private ApkSetVerifier.Builder newBuilder(String... apkFilenamesInResources)
+            throws Exception {
+        ApkSetVerifier.Builder builder = new ApkSetVerifier.Builder();
+        for (String apk : apkFilenamesInResources) {
+            builder.addApk(apk, getApk(apk));
+        }
+        return builder;
+    }
+
+    /**
+     * {@link SignerVerificationCache} which counts lookups of verified signatures.
+     */
+    private static class CountingSignerVerificationCache extends SignerVerificationCache {
+        private int hits;
+        private int misses;
+
+        @Override
+        public synchronized boolean isSignatureVerified(
+                SignatureAlgorithm algorithm,
+                byte[] publicKey,
+                byte[] signedData,
+                byte[] signature) throws NoSuchAlgorithmException {
+            boolean verified =
+                    super.isSignatureVerified(algorithm, publicKey, signedData, signature);
+            if (verified) {
+                hits++;
+            } else {
+                misses++;
+            }
+            return verified;
+        }
+    }
+}
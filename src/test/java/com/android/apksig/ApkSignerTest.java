@@ -16,30 +16,68 @@
 
 package com.android.apksig;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
 import com.android.apksig.ApkVerifier.Issue;
 import com.android.apksig.apk.ApkFormatException;
+import com.android.apksig.apk.ApkUtils;
+import com.android.apksig.internal.apk.v1.V1SchemeVerifier;
+import com.android.apksig.internal.util.AndroidSdkVersion;
 import com.android.apksig.internal.util.ByteBufferDataSource;
 import com.android.apksig.internal.util.Resources;
+import com.android.apksig.internal.zip.CentralDirectoryRecord;
+import com.android.apksig.internal.zip.LocalFileRecord;
+import com.android.apksig.util.BatchSigner;
+import com.android.apksig.util.CancellationSignal;
+import com.android.apksig.util.DataSink;
 import com.android.apksig.util.DataSinks;
 import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
+import com.android.apksig.util.JfrMetricsListener;
+import com.android.apksig.util.MetricsListener;
+import com.android.apksig.util.ProgressListener;
 import com.android.apksig.util.ReadableDataSink;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
+import java.security.Signature;
 import java.security.SignatureException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -62,6 +100,11 @@ public class ApkSignerTest {
     private static final String LINEAGE_RSA_2048_2_SIGNERS_RESOURCE_NAME =
             "rsa-2048-lineage-2-signers";
 
+    // APK signed and verified by testSignManyEntryApkWithSmallHeap
+    private static final int SMALL_HEAP_TEST_ENTRY_COUNT = 20000;
+    private static final int SMALL_HEAP_TEST_LARGE_ENTRY_SIZE = 128 * 1024 * 1024;
+    private static final int SMALL_HEAP_TEST_MAX_HEAP_MB = 48;
+
     public static void main(String[] params) throws Exception {
         File outDir = (params.length > 0) ? new File(params[0]) : new File(".");
         generateGoldenFiles(outDir);
@@ -806,6 +849,738 @@ public class ApkSignerTest {
                 lineageFromApk.isSignerInLineage((secondSigner)));
     }
 
+    @Test
+    public void testMetricsListenerNotifiedAboutSigningAndVerificationPhases() throws Exception {
+        List<ApkSigner.SignerConfig> rsa2048SignerConfig =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        RecordingMetricsListener signingListener = new RecordingMetricsListener();
+        DataSource out = sign("original.apk",
+                new ApkSigner.Builder(rsa2048SignerConfig)
+                        .setV1SigningEnabled(true)
+                        .setV2SigningEnabled(true)
+                        .setV3SigningEnabled(true)
+                        .setMetricsListener(signingListener));
+        assertTrue(signingListener.started.isEmpty());
+        for (MetricsListener.Phase phase : new MetricsListener.Phase[] {
+                MetricsListener.Phase.FIND_ZIP_SECTIONS,
+                MetricsListener.Phase.COPY_ENTRIES,
+                MetricsListener.Phase.V1_ENTRY_DIGESTS,
+                MetricsListener.Phase.V1_MANIFEST_GENERATION,
+                MetricsListener.Phase.V1_SIGNATURE_GENERATION,
+                MetricsListener.Phase.CONTENT_DIGESTS,
+                MetricsListener.Phase.SIGNATURE_GENERATION}) {
+            assertTrue(phase + " not reported", signingListener.finished.containsKey(phase));
+        }
+        MetricsListener.PhaseMetrics copyEntries =
+                signingListener.finished.get(MetricsListener.Phase.COPY_ENTRIES).get(0);
+        assertTrue(copyEntries.getEntriesProcessed() > 0);
+        assertTrue(copyEntries.getBytesRead() > 0);
+        assertTrue(copyEntries.getBytesWritten() > 0);
+        // Content digests are computed once for v2 and once for v3
+        List<MetricsListener.PhaseMetrics> contentDigests =
+                signingListener.finished.get(MetricsListener.Phase.CONTENT_DIGESTS);
+        assertEquals(2, contentDigests.size());
+        assertEquals(
+                contentDigests.get(0).getBytesRead(),
+                (long) contentDigests.get(0).getDigestedBytes().get("CHUNKED_SHA256"));
+
+        RecordingMetricsListener verificationListener = new RecordingMetricsListener();
+        assertVerified(
+                new ApkVerifier.Builder(out)
+                        .setMinCheckedPlatformVersion(AndroidSdkVersion.JELLY_BEAN_MR2)
+                        .setMetricsListener(verificationListener)
+                        .build()
+                        .verify());
+        assertTrue(verificationListener.started.isEmpty());
+        for (MetricsListener.Phase phase : new MetricsListener.Phase[] {
+                MetricsListener.Phase.FIND_ZIP_SECTIONS,
+                MetricsListener.Phase.V1_VERIFICATION,
+                MetricsListener.Phase.V2_VERIFICATION,
+                MetricsListener.Phase.V3_VERIFICATION,
+                MetricsListener.Phase.CONTENT_DIGESTS}) {
+            assertTrue(phase + " not reported", verificationListener.finished.containsKey(phase));
+        }
+    }
+
+    @Test
+    public void testJfrMetricsListenerRecordsSigningPhases() throws Exception {
+        assumeTrue(JfrMetricsListener.isSupported());
+        List<ApkSigner.SignerConfig> rsa2048SignerConfig =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        // JFR is accessed reflectively, as by JfrMetricsListener, because it is not available on
+        // all JVMs
+        File recordingFile = File.createTempFile("apksigtest", ".jfr");
+        recordingFile.deleteOnExit();
+        Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+        Object recording = recordingClass.getConstructor().newInstance();
+        List<?> events;
+        try {
+            recordingClass.getMethod("enable", String.class)
+                    .invoke(recording, JfrMetricsListener.EVENT_NAME);
+            recordingClass.getMethod("start").invoke(recording);
+            sign("original.apk",
+                    new ApkSigner.Builder(rsa2048SignerConfig)
+                            .setV1SigningEnabled(true)
+                            .setV2SigningEnabled(true)
+                            .setMetricsListener(new JfrMetricsListener()));
+            recordingClass.getMethod("stop").invoke(recording);
+            recordingClass.getMethod("dump", Path.class).invoke(recording, recordingFile.toPath());
+            events =
+                    (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile")
+                            .getMethod("readAllEvents", Path.class)
+                            .invoke(null, recordingFile.toPath());
+        } finally {
+            recordingClass.getMethod("close").invoke(recording);
+        }
+
+        Map<String, Long> bytesReadByPhase = new HashMap<>();
+        for (Object event : events) {
+            Object eventType = event.getClass().getMethod("getEventType").invoke(event);
+            if (!JfrMetricsListener.EVENT_NAME.equals(
+                    eventType.getClass().getMethod("getName").invoke(eventType))) {
+                continue;
+            }
+            String phase =
+                    (String) event.getClass().getMethod("getString", String.class)
+                            .invoke(event, "phase");
+            long bytesRead =
+                    (long) event.getClass().getMethod("getLong", String.class)
+                            .invoke(event, "bytesRead");
+            bytesReadByPhase.merge(phase, bytesRead, Long::sum);
+        }
+        for (MetricsListener.Phase phase : new MetricsListener.Phase[] {
+                MetricsListener.Phase.FIND_ZIP_SECTIONS,
+                MetricsListener.Phase.COPY_ENTRIES,
+                MetricsListener.Phase.V1_ENTRY_DIGESTS,
+                MetricsListener.Phase.V1_SIGNATURE_GENERATION,
+                MetricsListener.Phase.CONTENT_DIGESTS,
+                MetricsListener.Phase.SIGNATURE_GENERATION}) {
+            assertTrue(phase + " not recorded", bytesReadByPhase.containsKey(phase.name()));
+        }
+        assertTrue(bytesReadByPhase.get(MetricsListener.Phase.COPY_ENTRIES.name()) > 0);
+    }
+
+    @Test
+    public void testProgressListenerReportsCompletedPhases() throws Exception {
+        List<ApkSigner.SignerConfig> rsa2048SignerConfig =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        Map<MetricsListener.Phase, long[]> progress = new EnumMap<>(MetricsListener.Phase.class);
+        ProgressListener listener = (phase, processed, total) -> {
+            assertTrue(phase + ": " + processed + " > " + total, processed <= total);
+            progress.put(phase, new long[] {processed, total});
+        };
+        DataSource out = sign("original.apk",
+                new ApkSigner.Builder(rsa2048SignerConfig)
+                        .setV1SigningEnabled(true)
+                        .setV2SigningEnabled(true)
+                        .setProgressListener(listener));
+        for (MetricsListener.Phase phase : new MetricsListener.Phase[] {
+                MetricsListener.Phase.COPY_ENTRIES,
+                MetricsListener.Phase.CONTENT_DIGESTS}) {
+            long[] processedAndTotal = progress.get(phase);
+            assertNotNull(phase + " not reported", processedAndTotal);
+            assertEquals(phase.toString(), processedAndTotal[1], processedAndTotal[0]);
+        }
+
+        progress.clear();
+        assertVerified(
+                new ApkVerifier.Builder(out)
+                        .setMinCheckedPlatformVersion(AndroidSdkVersion.JELLY_BEAN_MR2)
+                        .setProgressListener(listener)
+                        .build()
+                        .verify());
+        for (MetricsListener.Phase phase : new MetricsListener.Phase[] {
+                MetricsListener.Phase.V1_VERIFICATION,
+                MetricsListener.Phase.CONTENT_DIGESTS}) {
+            long[] processedAndTotal = progress.get(phase);
+            assertNotNull(phase + " not reported", processedAndTotal);
+            assertEquals(phase.toString(), processedAndTotal[1], processedAndTotal[0]);
+        }
+    }
+
+    @Test(expected = CancellationException.class)
+    public void testCanceledSigningThrowsCancellationException() throws Exception {
+        List<ApkSigner.SignerConfig> rsa2048SignerConfig =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        cancellationSignal.cancel();
+        sign("original.apk",
+                new ApkSigner.Builder(rsa2048SignerConfig)
+                        .setV2SigningEnabled(true)
+                        .setCancellationSignal(cancellationSignal));
+    }
+
+    @Test(expected = CancellationException.class)
+    public void testCanceledVerificationThrowsCancellationException() throws Exception {
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        cancellationSignal.cancel();
+        new ApkVerifier.Builder(DataSources.asDataSource(
+                ByteBuffer.wrap(Resources.toByteArray(getClass(), "golden-aligned-v2-out.apk"))))
+                .setCancellationSignal(cancellationSignal)
+                .build()
+                .verify();
+    }
+
+    @Test
+    public void testCancelingVerifyAsyncLeavesProvidedFileOpen() throws Exception {
+        // Interrupting a thread reading from a FileChannel closes the channel. Canceling must thus
+        // not interrupt the thread reading the caller's file.
+        File apkFile = File.createTempFile("apksigtest", ".apk");
+        apkFile.deleteOnExit();
+        Files.write(
+                apkFile.toPath(), Resources.toByteArray(getClass(), "golden-aligned-v2-out.apk"));
+        CompletableFuture<CompletableFuture<ApkVerifier.Result>> futureHolder =
+                new CompletableFuture<>();
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        try (RandomAccessFile f = new RandomAccessFile(apkFile, "r")) {
+            CompletableFuture<ApkVerifier.Result> future =
+                    new ApkVerifier.Builder(DataSources.asDataSource(f))
+                            .setProgressListener(
+                                    (phase, processed, total) -> futureHolder.join().cancel(true))
+                            .build()
+                            .verifyAsync(executor);
+            futureHolder.complete(future);
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+            assertTrue(future.isCancelled());
+
+            assertTrue(f.getChannel().isOpen());
+            assertVerified(
+                    new ApkVerifier.Builder(DataSources.asDataSource(f))
+                            .setMinCheckedPlatformVersion(AndroidSdkVersion.N)
+                            .build()
+                            .verify());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSignAsyncAndVerifyAsync() throws Exception {
+        List<ApkSigner.SignerConfig> rsa2048SignerConfig =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        DataSource in =
+                DataSources.asDataSource(
+                        ByteBuffer.wrap(
+                                Resources.toByteArray(getClass(), "golden-aligned-in.apk")));
+        ReadableDataSink out = DataSinks.newInMemoryDataSink();
+        // Single worker thread to assert that tasks never wait for tasks queued behind them
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        try {
+            new ApkSigner.Builder(rsa2048SignerConfig)
+                    .setInputApk(in)
+                    .setOutputApk(out)
+                    .build()
+                    .signAsync(executor)
+                    .get(1, TimeUnit.MINUTES);
+            assertEquals(
+                    ByteBuffer.wrap(Resources.toByteArray(getClass(), "golden-aligned-out.apk")),
+                    out.getByteBuffer(0, (int) out.size()));
+
+            assertVerified(
+                    new ApkVerifier.Builder(out)
+                            .build()
+                            .verifyAsync(executor)
+                            .get(1, TimeUnit.MINUTES));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSignAsyncWithMultipleSignersMatchesSign() throws Exception {
+        // RSA PKCS#1 v1.5 signatures are deterministic. Thus, signatures generated in parallel
+        // must produce the same output as signatures generated on a single thread.
+        List<ApkSigner.SignerConfig> signerConfigs = Arrays.asList(
+                getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME),
+                getDefaultSignerConfigFromResources("rsa-3072"));
+        DataSource expectedOut = sign("golden-aligned-in.apk",
+                new ApkSigner.Builder(signerConfigs)
+                        .setV1SigningEnabled(true)
+                        .setV2SigningEnabled(true)
+                        .setV3SigningEnabled(false));
+
+        DataSource in =
+                DataSources.asDataSource(
+                        ByteBuffer.wrap(
+                                Resources.toByteArray(getClass(), "golden-aligned-in.apk")));
+        ReadableDataSink out = DataSinks.newInMemoryDataSink();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            new ApkSigner.Builder(signerConfigs)
+                    .setV1SigningEnabled(true)
+                    .setV2SigningEnabled(true)
+                    .setV3SigningEnabled(false)
+                    .setInputApk(in)
+                    .setOutputApk(out)
+                    .build()
+                    .signAsync(executor)
+                    .get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(
+                expectedOut.getByteBuffer(0, (int) expectedOut.size()),
+                out.getByteBuffer(0, (int) out.size()));
+        assertVerified(verify(out, null));
+    }
+
+    @Test
+    public void testSignAsyncWithParallelEntryCopyingMatchesGolden() throws Exception {
+        // Entries of this input are re-aligned in the output. Their planned offsets must match the
+        // offsets at which they are output when copied sequentially.
+        List<ApkSigner.SignerConfig> rsa2048SignerConfig =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        DataSource in =
+                DataSources.asDataSource(
+                        ByteBuffer.wrap(
+                                Resources.toByteArray(getClass(), "golden-unaligned-in.apk")));
+        File outFile = File.createTempFile(ApkSignerTest.class.getSimpleName(), ".apk");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            new ApkSigner.Builder(rsa2048SignerConfig)
+                    .setInputApk(in)
+                    .setOutputApk(outFile)
+                    .setParallelEntryCopyingEnabled(true)
+                    .build()
+                    .signAsync(executor)
+                    .get(1, TimeUnit.MINUTES);
+            assertEquals(
+                    ByteBuffer.wrap(
+                            Resources.toByteArray(getClass(), "golden-unaligned-out.apk")),
+                    ByteBuffer.wrap(Files.readAllBytes(outFile.toPath())));
+        } finally {
+            executor.shutdownNow();
+            outFile.delete();
+        }
+    }
+
+    @Test
+    public void testSignManyEntryApkWithSmallHeap() throws Exception {
+        // Entry data is streamed, so that the heap used by the signer and the verifier grows with
+        // the number of entries rather than with the size of their data. The APK is signed and
+        // verified in a separate JVM whose heap is much smaller than the APK.
+        File inFile = File.createTempFile(ApkSignerTest.class.getSimpleName(), ".apk");
+        File outFile = File.createTempFile(ApkSignerTest.class.getSimpleName(), ".apk");
+        try {
+            writeManyEntryApk(
+                    inFile, SMALL_HEAP_TEST_ENTRY_COUNT, SMALL_HEAP_TEST_LARGE_ENTRY_SIZE);
+            File java = new File(new File(System.getProperty("java.home"), "bin"), "java");
+            Process process =
+                    new ProcessBuilder(
+                                    java.getPath(),
+                                    "-Xmx" + SMALL_HEAP_TEST_MAX_HEAP_MB + "m",
+                                    "-cp",
+                                    System.getProperty("java.class.path"),
+                                    SmallHeapSigner.class.getName(),
+                                    inFile.getPath(),
+                                    outFile.getPath())
+                            .redirectErrorStream(true)
+                            .start();
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try (InputStream in = process.getInputStream()) {
+                byte[] buf = new byte[4096];
+                int chunkSize;
+                while ((chunkSize = in.read(buf)) != -1) {
+                    output.write(buf, 0, chunkSize);
+                }
+            }
+            if (!process.waitFor(5, TimeUnit.MINUTES)) {
+                process.destroyForcibly();
+                fail("Signing under a small heap timed out");
+            }
+            assertEquals(output.toString("UTF-8"), 0, process.exitValue());
+        } finally {
+            inFile.delete();
+            outFile.delete();
+        }
+    }
+
+    /**
+     * Writes an unsigned APK with the provided number of small entries and one stored entry of the
+     * provided size.
+     */
+    private static void writeManyEntryApk(File file, int entryCount, int largeEntrySize)
+            throws IOException {
+        Random random = new Random(entryCount);
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            byte[] data = new byte[256];
+            for (int i = 0; i < entryCount; i++) {
+                random.nextBytes(data);
+                out.putNextEntry(new ZipEntry(String.format("res/raw/entry%06d.bin", i)));
+                out.write(data);
+                out.closeEntry();
+            }
+
+            // The large entry consists of a repeated random chunk, so that it need not be held in
+            // memory
+            byte[] chunk = new byte[1024 * 1024];
+            random.nextBytes(chunk);
+            CRC32 crc32 = new CRC32();
+            for (int offset = 0; offset < largeEntrySize; offset += chunk.length) {
+                crc32.update(chunk, 0, Math.min(chunk.length, largeEntrySize - offset));
+            }
+            ZipEntry largeEntry = new ZipEntry("assets/large.bin");
+            largeEntry.setMethod(ZipEntry.STORED);
+            largeEntry.setSize(largeEntrySize);
+            largeEntry.setCrc(crc32.getValue());
+            out.putNextEntry(largeEntry);
+            for (int offset = 0; offset < largeEntrySize; offset += chunk.length) {
+                out.write(chunk, 0, Math.min(chunk.length, largeEntrySize - offset));
+            }
+            out.closeEntry();
+        }
+    }
+
+    /**
+     * Signs the APK file named by the first argument into the file named by the second argument
+     * and verifies the output. Exits with a non-zero status if the output does not verify.
+     */
+    public static final class SmallHeapSigner {
+        public static void main(String[] args) throws Exception {
+            new ApkSigner.Builder(
+                            Collections.singletonList(
+                                    getDefaultSignerConfigFromResources(
+                                            FIRST_RSA_2048_SIGNER_RESOURCE_NAME)))
+                    .setInputApk(new File(args[0]))
+                    .setOutputApk(new File(args[1]))
+                    .setMinSdkVersion(AndroidSdkVersion.JELLY_BEAN_MR2)
+                    .build()
+                    .sign();
+            ApkVerifier.Result result =
+                    new ApkVerifier.Builder(new File(args[1]))
+                            .setMinCheckedPlatformVersion(AndroidSdkVersion.JELLY_BEAN_MR2)
+                            // Newer platforms require AndroidManifest.xml, which the APK lacks
+                            .setMaxCheckedPlatformVersion(AndroidSdkVersion.N)
+                            .build()
+                            .verify();
+            if (!result.isVerified() || !result.isVerifiedUsingV1Scheme()) {
+                System.err.println("Output APK did not verify: " + result.getErrors());
+                System.exit(1);
+            }
+        }
+    }
+
+    @Test
+    public void testSignInputEntries() throws Exception {
+        List<ApkSigner.SignerConfig> rsa2048SignerConfig =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        List<ApkSigner.InputEntry> inputEntries = new ArrayList<>();
+        Map<String, ReadRecordingDataSource> entrySources = new HashMap<>();
+        try (ZipInputStream in =
+                new ZipInputStream(getClass().getResourceAsStream("golden-aligned-in.apk"))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                ReadRecordingDataSource entrySource =
+                        new ReadRecordingDataSource(
+                                DataSources.asDataSource(ByteBuffer.wrap(readFully(in))));
+                entrySources.put(entry.getName(), entrySource);
+                inputEntries.add(
+                        new ApkSigner.InputEntry.Builder(entry.getName(), entrySource)
+                                .setCompressed(entry.getMethod() == ZipEntry.DEFLATED)
+                                .build());
+            }
+        }
+        ReadableDataSink out = DataSinks.newInMemoryDataSink();
+        ReadRecordingDataSource outIn = new ReadRecordingDataSource(out);
+        new ApkSigner.Builder(rsa2048SignerConfig)
+                .setInputEntries(inputEntries)
+                .setOutputApk(out, outIn)
+                .setV1SigningEnabled(false)
+                .setV2SigningEnabled(true)
+                .setV3SigningEnabled(true)
+                .build()
+                .sign();
+        assertVerified(verifyForMinSdkVersion(out, AndroidSdkVersion.N));
+
+        // Compressed entries are read once, to be compressed. Stored entries are read twice: once
+        // to compute their CRC-32 and once to be output. AndroidManifest.xml is also read to
+        // obtain the APK's minSdkVersion. META-INF/MANIFEST.MF is dropped without being read
+        // because JAR signing is disabled.
+        for (ApkSigner.InputEntry inputEntry : inputEntries) {
+            String name = inputEntry.getName();
+            long expectedReads = (inputEntry.isCompressed()) ? 1 : 2;
+            if (name.equals("AndroidManifest.xml")) {
+                expectedReads++;
+            } else if (name.equals("META-INF/MANIFEST.MF")) {
+                expectedReads = 0;
+            }
+            ReadRecordingDataSource entrySource = entrySources.get(name);
+            assertEquals(name, expectedReads * entrySource.size(), entrySource.getBytesRead());
+        }
+        // The output ZIP entries, which precede the APK Signing Block, are never read back
+        ApkUtils.ZipSections outSections = ApkUtils.findZipSections(out);
+        long apkSigningBlockOffset =
+                ApkUtils.findApkSigningBlock(out, outSections).getStartOffset();
+        for (long[] read : outIn.getReads()) {
+            assertTrue(
+                    "Output read at " + read[0] + ", size " + read[1],
+                    read[0] >= apkSigningBlockOffset);
+        }
+
+        // Stored native libraries are page-aligned
+        assertEquals(0, getEntryDataOffset(out, "lib/armeabi/fake.so") % 4096);
+
+        // The content digests precomputed while the entries were output must match the ones
+        // computed by reading the output back: signing the output again reproduces it. JAR
+        // signing is disabled because it would move the JAR signature files.
+        ReadableDataSink resignedOut = DataSinks.newInMemoryDataSink();
+        new ApkSigner.Builder(rsa2048SignerConfig)
+                .setInputApk(out)
+                .setOutputApk(resignedOut)
+                .setV1SigningEnabled(false)
+                .setV2SigningEnabled(true)
+                .setV3SigningEnabled(true)
+                .build()
+                .sign();
+        assertEquals(
+                out.getByteBuffer(0, (int) out.size()),
+                resignedOut.getByteBuffer(0, (int) resignedOut.size()));
+    }
+
+    @Test
+    public void testSignInputEntriesRejectsDuplicateNames() throws Exception {
+        List<ApkSigner.SignerConfig> rsa2048SignerConfig =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        DataSource data = DataSources.asDataSource(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+        List<ApkSigner.InputEntry> inputEntries =
+                Arrays.asList(
+                        new ApkSigner.InputEntry.Builder("temp.txt", data).build(),
+                        new ApkSigner.InputEntry.Builder("temp.txt", data)
+                                .setCompressed(false)
+                                .build());
+        try {
+            new ApkSigner.Builder(rsa2048SignerConfig)
+                    .setInputEntries(inputEntries)
+                    .setOutputApk(DataSinks.newInMemoryDataSink())
+                    .setMinSdkVersion(AndroidSdkVersion.N)
+                    .build()
+                    .sign();
+            fail();
+        } catch (ApkFormatException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("temp.txt"));
+        }
+    }
+
+    @Test
+    public void testSignInputEntriesFromDirectory() throws Exception {
+        List<ApkSigner.SignerConfig> rsa2048SignerConfig =
+                Collections.singletonList(
+                        getDefaultSignerConfigFromResources(FIRST_RSA_2048_SIGNER_RESOURCE_NAME));
+        File dir = Files.createTempDirectory(ApkSignerTest.class.getSimpleName()).toFile();
+        File outFile = File.createTempFile(ApkSignerTest.class.getSimpleName(), ".apk");
+        try {
+            try (ZipInputStream in =
+                    new ZipInputStream(getClass().getResourceAsStream("golden-aligned-in.apk"))) {
+                ZipEntry entry;
+                while ((entry = in.getNextEntry()) != null) {
+                    File file = new File(dir, entry.getName());
+                    if (entry.isDirectory()) {
+                        file.mkdirs();
+                    } else {
+                        file.getParentFile().mkdirs();
+                        Files.write(file.toPath(), readFully(in));
+                    }
+                }
+            }
+            // Symbolic links to directories are not followed
+            try {
+                Files.createSymbolicLink(new File(dir, "lib/armeabi/loop").toPath(), dir.toPath());
+            } catch (IOException | UnsupportedOperationException e) {
+                // Symbolic links not supported
+            }
+            List<ApkSigner.InputEntry> inputEntries = ApkSigner.InputEntry.listDirectory(dir);
+            List<String> names = new ArrayList<>();
+            for (ApkSigner.InputEntry inputEntry : inputEntries) {
+                names.add(inputEntry.getName());
+                assertEquals(
+                        inputEntry.getName(),
+                        !inputEntry.getName().equals("resources.arsc"),
+                        inputEntry.isCompressed());
+            }
+            assertEquals(
+                    Arrays.asList(
+                            "AndroidManifest.xml",
+                            "META-INF/MANIFEST.MF",
+                            "classes.dex",
+                            "lib/armeabi/fake.so",
+                            "resources.arsc",
+                            "temp.txt",
+                            "temp2.txt"),
+                    names);
+
+            new ApkSigner.Builder(rsa2048SignerConfig)
+                    .setInputEntries(inputEntries)
+                    .setOutputApk(outFile)
+                    .setV1SigningEnabled(true)
+                    .setV2SigningEnabled(true)
+                    .setV3SigningEnabled(true)
+                    .build()
+                    .sign();
+            assertVerified(new ApkVerifier.Builder(outFile).build().verify());
+        } finally {
+            deleteRecursively(dir);
+            outFile.delete();
+        }
+    }
+
+    @Test
+    public void testBatchSignerSignsApkInTwoBatches() throws Exception {
+        LocalKeyBatchSigner batchSigner = new LocalKeyBatchSigner();
+        List<ApkSigner.SignerConfig> rsa2048SignerConfig =
+                Collections.singletonList(
+                        getBatchSignerConfigFromResources(
+                                FIRST_RSA_2048_SIGNER_RESOURCE_NAME, batchSigner, batchSigner));
+        assertGolden(
+                "golden-aligned-in.apk",
+                "golden-aligned-v1v2v3-out.apk",
+                new ApkSigner.Builder(rsa2048SignerConfig)
+                        .setV1SigningEnabled(true)
+                        .setV2SigningEnabled(true)
+                        .setV3SigningEnabled(true));
+        // One batch for the JAR signature, one batch for the v2 and v3 signatures
+        assertEquals(2, batchSigner.batchSizes.size());
+        assertEquals(1, (int) batchSigner.batchSizes.get(0));
+        assertTrue(batchSigner.batchSizes.get(1) >= 2);
+    }
+
+    @Test
+    public void testCoalescingBatchSignerSignsConcurrentApks() throws Exception {
+        // The first batch is held until the JAR signature requests of all four APKs have been
+        // submitted and the other three are queued up behind it. These three must then be signed
+        // in a single batch.
+        LocalKeyBatchSigner batchSigner = new LocalKeyBatchSigner();
+        List<Thread> submitters = Collections.synchronizedList(new ArrayList<>());
+        AtomicBoolean firstBatch = new AtomicBoolean(true);
+        BatchSigner coalescingSigner =
+                BatchSigner.coalescing(requests -> {
+                    if (firstBatch.getAndSet(false)) {
+                        awaitQueuedSubmitters(submitters, 4);
+                    }
+                    return batchSigner.sign(requests);
+                });
+        List<ApkSigner.SignerConfig> rsa2048SignerConfig =
+                Collections.singletonList(
+                        getBatchSignerConfigFromResources(
+                                FIRST_RSA_2048_SIGNER_RESOURCE_NAME,
+                                batchSigner,
+                                requests -> {
+                                    submitters.add(Thread.currentThread());
+                                    return coalescingSigner.sign(requests);
+                                }));
+        byte[] in = Resources.toByteArray(getClass(), "golden-aligned-in.apk");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<ReadableDataSink> outs = new ArrayList<>();
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                ReadableDataSink out = DataSinks.newInMemoryDataSink();
+                outs.add(out);
+                futures.add(
+                        new ApkSigner.Builder(rsa2048SignerConfig)
+                                .setV1SigningEnabled(true)
+                                .setV2SigningEnabled(true)
+                                .setV3SigningEnabled(true)
+                                .setInputApk(DataSources.asDataSource(ByteBuffer.wrap(in)))
+                                .setOutputApk(out)
+                                .build()
+                                .signAsync(executor));
+            }
+            ByteBuffer expectedOut =
+                    ByteBuffer.wrap(
+                            Resources.toByteArray(getClass(), "golden-aligned-v1v2v3-out.apk"));
+            for (int i = 0; i < futures.size(); i++) {
+                futures.get(i).get(1, TimeUnit.MINUTES);
+                ReadableDataSink out = outs.get(i);
+                assertEquals(expectedOut, out.getByteBuffer(0, (int) out.size()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        // One batch for the first APK's JAR signature, one for the other three APKs' JAR
+        // signatures (possibly joined by the first APK's v2 and v3 signatures), and at most four
+        // for the v2 and v3 signatures
+        List<Integer> batchSizes = batchSigner.batchSizes;
+        assertTrue(batchSizes.toString(), batchSizes.size() <= 6);
+        assertTrue(batchSizes.toString(), batchSizes.get(1) >= 3 * batchSizes.get(0));
+    }
+
+    /**
+     * Waits until the provided number of threads have submitted requests and all of them other
+     * than the current thread are waiting for their requests to be signed.
+     */
+    private static void awaitQueuedSubmitters(List<Thread> submitters, int count) {
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+        while (true) {
+            boolean queued;
+            synchronized (submitters) {
+                queued = submitters.size() >= count;
+                for (Thread submitter : submitters) {
+                    if ((submitter != Thread.currentThread())
+                            && (submitter.getState() != Thread.State.WAITING)) {
+                        queued = false;
+                    }
+                }
+            }
+            if (queued) {
+                return;
+            }
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Timed out waiting for submitters: " + submitters);
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Returns the offset in the provided APK at which the data of the provided entry starts.
+     */
+    private static long getEntryDataOffset(DataSource apk, String entryName) throws Exception {
+        ApkUtils.ZipSections sections = ApkUtils.findZipSections(apk);
+        for (CentralDirectoryRecord cdRecord
+                : V1SchemeVerifier.parseZipCentralDirectory(apk, sections)) {
+            if (cdRecord.getName().equals(entryName)) {
+                LocalFileRecord lfhRecord =
+                        LocalFileRecord.getRecord(
+                                apk, cdRecord, sections.getZipCentralDirectoryOffset());
+                return lfhRecord.getStartOffsetInArchive()
+                        + lfhRecord.getDataStartOffsetInRecord();
+            }
+        }
+        throw new AssertionError("No such entry: " + entryName);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int chunkSize;
+        while ((chunkSize = in.read(buf)) != -1) {
+            result.write(buf, 0, chunkSize);
+        }
+        return result.toByteArray();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = (Files.isSymbolicLink(file.toPath())) ? null : file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
     /**
      * Asserts that signing the specified golden input file using the provided signing
      * configuration produces output identical to the specified golden output file.
@@ -895,6 +1670,146 @@ public class ApkSignerTest {
         ApkVerifierTest.assertVerificationFailure(result, expectedIssue);
     }
 
+    /**
+     * {@link MetricsListener} which records the metrics of finished phases and which phases are
+     * currently in progress.
+     */
+    private static class RecordingMetricsListener implements MetricsListener {
+        private final List<Phase> started = new ArrayList<>();
+        private final Map<Phase, List<PhaseMetrics>> finished = new EnumMap<>(Phase.class);
+
+        @Override
+        public void onPhaseStarted(Phase phase) {
+            started.add(phase);
+        }
+
+        @Override
+        public void onPhaseFinished(PhaseMetrics metrics) {
+            assertTrue(
+                    metrics.getPhase() + " finished but not started",
+                    started.remove(metrics.getPhase()));
+            assertTrue(metrics.getWallTimeNanos() >= 0);
+            finished.computeIfAbsent(metrics.getPhase(), k -> new ArrayList<>()).add(metrics);
+        }
+    }
+
+    /**
+     * {@link BatchSigner} which signs using private keys from resources and records the number of
+     * requests in each batch.
+     */
+    private static class LocalKeyBatchSigner implements BatchSigner {
+        private final Map<X509Certificate, PrivateKey> privateKeys =
+                new ConcurrentHashMap<>();
+        private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public List<byte[]> sign(List<SignatureRequest> requests)
+                throws InvalidKeyException, SignatureException {
+            batchSizes.add(requests.size());
+            List<byte[]> signatures = new ArrayList<>(requests.size());
+            for (SignatureRequest request : requests) {
+                try {
+                    Signature signature =
+                            Signature.getInstance(request.getJcaSignatureAlgorithm());
+                    signature.initSign(privateKeys.get(request.getCertificate()));
+                    if (request.getJcaSignatureAlgorithmParams() != null) {
+                        signature.setParameter(request.getJcaSignatureAlgorithmParams());
+                    }
+                    signature.update(request.getData());
+                    signatures.add(signature.sign());
+                } catch (GeneralSecurityException e) {
+                    throw new SignatureException("Failed to sign", e);
+                }
+            }
+            return signatures;
+        }
+    }
+
+    /**
+     * {@link DataSource} which records the offset and size of each read of its data, including
+     * reads through its slices.
+     */
+    private static class ReadRecordingDataSource implements DataSource {
+        private final DataSource mDelegate;
+        private final long mOffset;
+        private final List<long[]> mReads;
+
+        private ReadRecordingDataSource(DataSource delegate) {
+            this(delegate, 0, Collections.synchronizedList(new ArrayList<>()));
+        }
+
+        private ReadRecordingDataSource(DataSource delegate, long offset, List<long[]> reads) {
+            mDelegate = delegate;
+            mOffset = offset;
+            mReads = reads;
+        }
+
+        /**
+         * Returns the {@code offset, size} of each read, relative to the start of the data source
+         * this source was sliced from.
+         */
+        private List<long[]> getReads() {
+            synchronized (mReads) {
+                return new ArrayList<>(mReads);
+            }
+        }
+
+        /**
+         * Returns the total number of bytes read.
+         */
+        private long getBytesRead() {
+            long result = 0;
+            for (long[] read : getReads()) {
+                result += read[1];
+            }
+            return result;
+        }
+
+        @Override
+        public long size() {
+            return mDelegate.size();
+        }
+
+        @Override
+        public void feed(long offset, long size, DataSink sink) throws IOException {
+            mReads.add(new long[] {mOffset + offset, size});
+            mDelegate.feed(offset, size, sink);
+        }
+
+        @Override
+        public ByteBuffer getByteBuffer(long offset, int size) throws IOException {
+            mReads.add(new long[] {mOffset + offset, size});
+            return mDelegate.getByteBuffer(offset, size);
+        }
+
+        @Override
+        public void copyTo(long offset, int size, ByteBuffer dest) throws IOException {
+            mReads.add(new long[] {mOffset + offset, size});
+            mDelegate.copyTo(offset, size, dest);
+        }
+
+        @Override
+        public DataSource slice(long offset, long size) {
+            return new ReadRecordingDataSource(
+                    mDelegate.slice(offset, size), mOffset + offset, mReads);
+        }
+    }
+
+    /**
+     * Returns the config of a signer whose private key operations are performed by the provided
+     * batch signer, which delegates to the provided local key batch signer.
+     */
+    private static ApkSigner.SignerConfig getBatchSignerConfigFromResources(
+            String keyNameInResources, LocalKeyBatchSigner localKeys, BatchSigner batchSigner)
+                    throws Exception {
+        ApkSigner.SignerConfig signerConfig =
+                getDefaultSignerConfigFromResources(keyNameInResources);
+        localKeys.privateKeys.put(
+                signerConfig.getCertificates().get(0), signerConfig.getPrivateKey());
+        return new ApkSigner.SignerConfig.Builder(
+                keyNameInResources, batchSigner, signerConfig.getCertificates()).build();
+    }
+
     private static ApkSigner.SignerConfig getDefaultSignerConfigFromResources(
             String keyNameInResources) throws Exception {
         PrivateKey privateKey =
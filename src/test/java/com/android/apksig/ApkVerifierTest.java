@@ -17,6 +17,8 @@
 package com.android.apksig;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.junit.Assume.assumeNoException;
 
@@ -27,8 +29,14 @@ import com.android.apksig.internal.util.AndroidSdkVersion;
 import com.android.apksig.internal.util.HexEncoding;
 import com.android.apksig.internal.util.Resources;
 import com.android.apksig.util.DataSources;
+import com.android.apksig.util.MetricsListener;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -37,15 +45,20 @@ import java.security.Security;
 import java.security.Signature;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.Locale;
 import org.junit.Assume;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 @RunWith(JUnit4.class)
 public class ApkVerifierTest {
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
 
     private static final String[] DSA_KEY_NAMES = {"1024", "2048", "3072"};
     private static final String[] DSA_KEY_NAMES_1024_AND_SMALLER = {"1024"};
@@ -645,6 +658,34 @@ public class ApkVerifierTest {
                 HexEncoding.encode(sha256(signingCerts.get(0).getEncoded())));
     }
 
+    @Test
+    public void testMalformedCertInPkcs7SignedDataCertsSetRejected() throws Exception {
+        // Obtained by appending a malformed certificate (SEQUENCE { INTEGER 0 }) to the PKCS#7
+        // SignedData certificates set of v1-only-with-rsa-pkcs1-sha1-1.2.840.113549.1.1.1-2048.apk
+        // META-INF/CERT.RSA. The malformed certificate is not needed to verify the signature or to
+        // build the signing certificate chain, but Android rejects such APKs nevertheless.
+        String apk = "v1-only-pkcs7-cert-bag-malformed-cert-not-used.apk";
+        assertVerificationFailure(
+                verifyForMaxSdkVersion(apk, AndroidSdkVersion.N - 1),
+                Issue.JAR_SIG_PARSE_EXCEPTION);
+        assertVerificationFailure(
+                verifyForMinSdkVersion(apk, AndroidSdkVersion.N), Issue.JAR_SIG_PARSE_EXCEPTION);
+    }
+
+    @Test
+    public void testMalformedSecondSignerInfoInPkcs7SignedDataRejected() throws Exception {
+        // Obtained by appending a malformed SignerInfo (SEQUENCE { OCTET STRING }) to the PKCS#7
+        // SignedData SignerInfos set of v1-only-with-rsa-pkcs1-sha1-1.2.840.113549.1.1.1-2048.apk
+        // META-INF/CERT.RSA. Prior to Android N, only the first SignerInfo is verified, but the
+        // whole SignedData is decoded and thus rejected nevertheless.
+        String apk = "v1-only-pkcs7-malformed-second-signer-info.apk";
+        assertVerificationFailure(
+                verifyForMaxSdkVersion(apk, AndroidSdkVersion.N - 1),
+                Issue.JAR_SIG_PARSE_EXCEPTION);
+        assertVerificationFailure(
+                verifyForMinSdkVersion(apk, AndroidSdkVersion.N), Issue.JAR_SIG_PARSE_EXCEPTION);
+    }
+
     @Test
     public void testV1SchemeSignatureCertNotReencoded() throws Exception {
         // Regression test for b/30148997 and b/18228011. When PackageManager does not preserve the
@@ -1020,6 +1061,268 @@ public class ApkVerifierTest {
         assertVerified(verifyForMinSdkVersion(apk, AndroidSdkVersion.N));
     }
 
+    @Test
+    public void testInspectSignersReportsSignersWithoutVerifyingContents() throws Exception {
+        String apk = "v2-only-with-ecdsa-sha256-p256.apk";
+        ApkVerifier.Result verified = verifyForMinSdkVersion(apk, AndroidSdkVersion.N);
+        assertVerified(verified);
+        assertFalse(verified.isInspectionOnly());
+        ApkVerifier.Result inspected = inspectSignersForMinSdkVersion(apk, AndroidSdkVersion.N);
+        assertInspected(inspected);
+        assertTrue(inspected.isInspectedUsingV2Scheme());
+        assertFalse(inspected.isInspectedUsingV1Scheme());
+        assertFalse(inspected.isInspectedUsingV3Scheme());
+        assertEquals(verified.getSignerCertificates(), inspected.getSignerCertificates());
+
+        // Content digests are not checked. Thus, signers are reported even though the APK's
+        // contents do not match the signatures.
+        assertInspected(
+                inspectSignersForMinSdkVersion(
+                        "v2-only-with-ecdsa-sha256-p256-digest-mismatch.apk",
+                        AndroidSdkVersion.N));
+        assertInspected(
+                inspectSignersForMinSdkVersion(
+                        "v3-only-with-rsa-pkcs1-sha512-8192-digest-mismatch.apk",
+                        AndroidSdkVersion.P));
+        assertInspected(
+                inspectSigners("v1-sha1-sha256-manifest-and-sf-with-sha1-wrong-in-manifest.apk"));
+
+        // Signature lineage is reported
+        ApkVerifier.Result lineage = inspectSigners("v1v2v3-with-rsa-2048-lineage-3-signers.apk");
+        assertInspected(lineage);
+        assertTrue(lineage.isInspectedUsingV1Scheme());
+        assertTrue(lineage.isInspectedUsingV2Scheme());
+        assertTrue(lineage.isInspectedUsingV3Scheme());
+        assertEquals(3, lineage.getSigningCertificateLineage().size());
+    }
+
+    @Test
+    public void testInspectSignersRejectsInvalidSignatures() throws Exception {
+        // Signatures over signed data are still verified
+        ApkVerifier.Result result =
+                inspectSignersForMinSdkVersion(
+                        "v2-only-with-ecdsa-sha256-p256-sig-does-not-verify.apk",
+                        AndroidSdkVersion.N);
+        assertVerificationFailure(result, Issue.V2_SIG_DID_NOT_VERIFY);
+        assertFalse(result.isInspectionOnly());
+        assertFalse(result.isVerifiedUsingV2Scheme());
+        assertTrue(result.getSignerCertificates().isEmpty());
+    }
+
+    @Test
+    public void testResultCacheSkipsContentVerificationOfUnmodifiedApk() throws Exception {
+        File apk = temporaryFolder.newFile("v2-only.apk");
+        Files.write(
+                apk.toPath(),
+                Resources.toByteArray(getClass(), "v2-only-with-ecdsa-sha256-p256.apk"));
+        File cacheDir = new File(temporaryFolder.getRoot(), "cache");
+        AtomicInteger contentDigestPhases = new AtomicInteger();
+        MetricsListener metricsListener = new MetricsListener() {
+            @Override
+            public void onPhaseStarted(Phase phase) {
+                if (phase == Phase.CONTENT_DIGESTS) {
+                    contentDigestPhases.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void onPhaseFinished(PhaseMetrics metrics) {}
+        };
+        ApkVerifier verifier =
+                new ApkVerifier.Builder(apk)
+                        .setMinCheckedPlatformVersion(AndroidSdkVersion.N)
+                        .setMetricsListener(metricsListener)
+                        .setResultCacheDirectory(cacheDir, 10)
+                        .build();
+
+        ApkVerifier.Result result = verifier.verify();
+        assertVerified(result);
+        assertEquals(1, contentDigestPhases.get());
+
+        ApkVerifier.Result cachedResult = verifier.verify();
+        assertVerified(cachedResult);
+        assertFalse(cachedResult.isInspectionOnly());
+        assertEquals(1, contentDigestPhases.get());
+        assertEquals(result.getSignerCertificates(), cachedResult.getSignerCertificates());
+
+        // Modifying the file invalidates the cache entry
+        assertTrue(apk.setLastModified(apk.lastModified() - 60000));
+        assertVerified(verifier.verify());
+        assertEquals(2, contentDigestPhases.get());
+    }
+
+    @Test
+    public void testVerifyForMultiplePlatformVersionRanges() throws Exception {
+        List<ApkVerifier.PlatformVersionRange> ranges = Arrays.asList(
+                new ApkVerifier.PlatformVersionRange(
+                        AndroidSdkVersion.JELLY_BEAN_MR2, AndroidSdkVersion.N - 1),
+                new ApkVerifier.PlatformVersionRange(AndroidSdkVersion.N, AndroidSdkVersion.P - 1),
+                new ApkVerifier.PlatformVersionRange(AndroidSdkVersion.P, Integer.MAX_VALUE));
+        String[] apks = {
+                "golden-aligned-v1v2v3-out.apk",
+                "golden-legacy-aligned-v1v2v3-lineage-out.apk",
+                "golden-rsa-minSdkVersion-1-out.apk",
+        };
+        for (String apk : apks) {
+            byte[] apkBytes = Resources.toByteArray(getClass(), apk);
+            AtomicInteger contentDigestPhases = new AtomicInteger();
+            MetricsListener metricsListener = new MetricsListener() {
+                @Override
+                public void onPhaseStarted(Phase phase) {
+                    if (phase == Phase.CONTENT_DIGESTS) {
+                        contentDigestPhases.incrementAndGet();
+                    }
+                }
+
+                @Override
+                public void onPhaseFinished(PhaseMetrics metrics) {}
+            };
+            List<ApkVerifier.Result> results =
+                    new ApkVerifier.Builder(DataSources.asDataSource(ByteBuffer.wrap(apkBytes)))
+                            .setMetricsListener(metricsListener)
+                            .build()
+                            .verify(ranges);
+            // v2 and v3 content digests are computed once for all ranges
+            assertEquals(apk, 1, contentDigestPhases.get());
+            assertEquals(apk, ranges.size(), results.size());
+            for (int i = 0; i < ranges.size(); i++) {
+                ApkVerifier.PlatformVersionRange range = ranges.get(i);
+                ApkVerifier.Result expected =
+                        verify(apk, range.getMinSdkVersion(), range.getMaxSdkVersion());
+                ApkVerifier.Result actual = results.get(i);
+                String apkId = apk + " " + range;
+                assertVerified(actual, apkId);
+                assertEquals(apkId, getAllIssues(expected), getAllIssues(actual));
+                assertEquals(
+                        apkId,
+                        expected.isVerifiedUsingV1Scheme(),
+                        actual.isVerifiedUsingV1Scheme());
+                assertEquals(
+                        apkId,
+                        expected.isVerifiedUsingV2Scheme(),
+                        actual.isVerifiedUsingV2Scheme());
+                assertEquals(
+                        apkId,
+                        expected.isVerifiedUsingV3Scheme(),
+                        actual.isVerifiedUsingV3Scheme());
+                assertEquals(
+                        apkId, expected.getSignerCertificates(), actual.getSignerCertificates());
+            }
+        }
+    }
+
+    @Test
+    public void testStreamingVerificationMatchesDataSourceVerification() throws Exception {
+        String[] apks = {
+                "golden-aligned-v1-out.apk",
+                "golden-aligned-v1v2v3-out.apk",
+                "golden-unaligned-v2-out.apk",
+                "golden-legacy-aligned-v1v2v3-lineage-out.apk",
+                "v2-only-with-ecdsa-sha256-p256.apk",
+                "mismatched-compression-method.apk",
+        };
+        for (String apk : apks) {
+            byte[] apkBytes = Resources.toByteArray(getClass(), apk);
+            ApkVerifier.Result expected =
+                    new ApkVerifier.Builder(DataSources.asDataSource(ByteBuffer.wrap(apkBytes)))
+                            .build()
+                            .verify();
+            ApkVerifier.Result actual =
+                    new ApkVerifier.Builder(new ByteArrayInputStream(apkBytes)).build().verify();
+            assertEquals(apk, expected.isVerified(), actual.isVerified());
+            assertEquals(apk, getAllIssues(expected), getAllIssues(actual));
+            assertEquals(apk, expected.getSignerCertificates(), actual.getSignerCertificates());
+        }
+    }
+
+    @Test
+    public void testStreamingVerificationDetectsModifiedEntry() throws Exception {
+        assertTrue(
+                verifyModifiedEntryFromStream("golden-aligned-v1v2v3-out.apk")
+                        .contains(Issue.V3_SIG_APK_DIGEST_DID_NOT_VERIFY.name()));
+        assertTrue(
+                verifyModifiedEntryFromStream("golden-aligned-v1-out.apk")
+                        .contains(Issue.JAR_SIG_ZIP_ENTRY_DIGEST_DID_NOT_VERIFY.name()));
+    }
+
+    /**
+     * Modifies the data of the provided APK's classes.dex entry, verifies the APK read from a
+     * stream, and returns the issues found.
+     */
+    private String verifyModifiedEntryFromStream(String apkFilenameInResources) throws Exception {
+        byte[] apkBytes = Resources.toByteArray(getClass(), apkFilenameInResources);
+        // classes.dex is stored uncompressed. Its name first occurs in its Local File Header.
+        ByteBuffer apk = ByteBuffer.wrap(apkBytes).order(ByteOrder.LITTLE_ENDIAN);
+        int entryOffset =
+                new String(apkBytes, StandardCharsets.ISO_8859_1).indexOf("classes.dex") - 30;
+        assertEquals(0x04034b50, apk.getInt(entryOffset));
+        int entryDataOffset =
+                entryOffset + 30 + apk.getShort(entryOffset + 26) + apk.getShort(entryOffset + 28);
+        apkBytes[entryDataOffset + 100] ^= 1;
+
+        ApkVerifier.Result expected =
+                new ApkVerifier.Builder(DataSources.asDataSource(ByteBuffer.wrap(apkBytes)))
+                        .build()
+                        .verify();
+        ApkVerifier.Result actual =
+                new ApkVerifier.Builder(new ByteArrayInputStream(apkBytes)).build().verify();
+        assertFalse(actual.isVerified());
+        assertEquals(getAllIssues(expected), getAllIssues(actual));
+        return getAllIssues(actual);
+    }
+
+    /**
+     * Returns the issues of the provided result and of its signers.
+     */
+    private static String getAllIssues(ApkVerifier.Result result) {
+        StringBuilder issues = new StringBuilder();
+        for (IssueWithParams issue : result.getErrors()) {
+            issues.append(issue.getIssue()).append(": ").append(issue).append('\n');
+        }
+        for (ApkVerifier.Result.V1SchemeSignerInfo signer : result.getV1SchemeSigners()) {
+            for (IssueWithParams issue : signer.getErrors()) {
+                issues.append(issue.getIssue()).append(": ").append(issue).append('\n');
+            }
+        }
+        for (ApkVerifier.Result.V2SchemeSignerInfo signer : result.getV2SchemeSigners()) {
+            for (IssueWithParams issue : signer.getErrors()) {
+                issues.append(issue.getIssue()).append(": ").append(issue).append('\n');
+            }
+        }
+        for (ApkVerifier.Result.V3SchemeSignerInfo signer : result.getV3SchemeSigners()) {
+            for (IssueWithParams issue : signer.getErrors()) {
+                issues.append(issue.getIssue()).append(": ").append(issue).append('\n');
+            }
+        }
+        return issues.toString();
+    }
+
+    private ApkVerifier.Result inspectSigners(String apkFilenameInResources) throws Exception {
+        return inspectSignersForMinSdkVersion(apkFilenameInResources, null);
+    }
+
+    private ApkVerifier.Result inspectSignersForMinSdkVersion(
+            String apkFilenameInResources, Integer minSdkVersionOverride) throws Exception {
+        byte[] apkBytes = Resources.toByteArray(getClass(), apkFilenameInResources);
+        ApkVerifier.Builder builder =
+                new ApkVerifier.Builder(DataSources.asDataSource(ByteBuffer.wrap(apkBytes)));
+        if (minSdkVersionOverride != null) {
+            builder.setMinCheckedPlatformVersion(minSdkVersionOverride);
+        }
+        return builder.build().inspectSigners();
+    }
+
+    private static void assertInspected(ApkVerifier.Result result) {
+        assertFalse(result.getErrors().toString(), result.containsErrors());
+        assertFalse(result.isVerified());
+        assertTrue(result.isInspectionOnly());
+        assertFalse(result.getSignerCertificates().isEmpty());
+        // Signatures are not reported as verified, because the APK's contents were not verified
+        assertFalse(result.isVerifiedUsingV1Scheme());
+        assertFalse(result.isVerifiedUsingV2Scheme());
+        assertFalse(result.isVerifiedUsingV3Scheme());
+    }
+
     private ApkVerifier.Result verify(String apkFilenameInResources)
             throws IOException, ApkFormatException, NoSuchAlgorithmException {
         return verify(apkFilenameInResources, null, null);
@@ -24,6 +24,7 @@ import static org.junit.Assert.fail;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
+import java.util.EnumSet;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -89,6 +90,29 @@ public class ApkUtilsTest {
                 ApkUtils.getPackageNameFromBinaryAndroidManifest(manifest));
     }
 
+    @Test
+    public void testGetAndroidManifestAttributes() throws Exception {
+        ByteBuffer manifest = getAndroidManifest("original.apk");
+        ApkUtils.AndroidManifestAttributes attributes =
+                ApkUtils.getAndroidManifestAttributes(
+                        manifest.slice(), EnumSet.allOf(ApkUtils.AndroidManifestAttribute.class));
+        assertEquals(23, attributes.getMinSdkVersion());
+        assertFalse(attributes.isDebuggable());
+        assertEquals("android.appsecurity.cts.tinyapp", attributes.getPackageName());
+        assertEquals(1, attributes.getTargetSandboxVersion());
+
+        // Attributes which were not requested are not available
+        attributes =
+                ApkUtils.getAndroidManifestAttributes(
+                        manifest.slice(),
+                        EnumSet.of(ApkUtils.AndroidManifestAttribute.PACKAGE_NAME));
+        assertEquals("android.appsecurity.cts.tinyapp", attributes.getPackageName());
+        try {
+            attributes.getMinSdkVersion();
+            fail();
+        } catch (IllegalStateException expected) {}
+    }
+
     @Test
     public void testGetAndroidManifest() throws Exception {
         ByteBuffer manifest = getAndroidManifest("original.apk");
@@ -21,7 +21,9 @@ import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
+    com.android.apksig.internal.apk.AllTests.class,
     com.android.apksig.internal.asn1.AllTests.class,
     com.android.apksig.internal.util.AllTests.class,
+    com.android.apksig.internal.zip.AllTests.class,
 })
 public class AllTests {}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.apk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class VerificationResultCacheTest {
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testContainsOnlyAddedKeys() throws Exception {
+        File dir = new File(temporaryFolder.getRoot(), "cache");
+        VerificationResultCache cache = new VerificationResultCache(dir, 10);
+        assertFalse(cache.contains("a"));
+        cache.put("a");
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+
+        // Entries are visible to other instances, e.g., in other processes
+        assertTrue(new VerificationResultCache(dir, 10).contains("a"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntriesEvicted() throws Exception {
+        File dir = temporaryFolder.newFolder();
+        VerificationResultCache cache = new VerificationResultCache(dir, 2);
+        cache.put("a");
+        cache.put("b");
+        setLastUsedTimes(dir, 1000000000L);
+        // Use "a" so that "b" becomes the least recently used entry
+        assertTrue(cache.contains("a"));
+        cache.put("c");
+
+        assertEquals(2, dir.listFiles().length);
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertTrue(cache.contains("c"));
+    }
+
+    private static void setLastUsedTimes(File dir, long timeMillis) {
+        for (File file : dir.listFiles()) {
+            assertTrue(file.setLastModified(timeMillis));
+        }
+    }
+}
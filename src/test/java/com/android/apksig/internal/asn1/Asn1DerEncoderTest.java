@@ -82,6 +82,26 @@ public class Asn1DerEncoderTest {
                         new SequenceWithByteBufferBitString(ByteBuffer.wrap(new byte[0]))));
     }
 
+    @Test
+    public void testLongFormLength() throws Exception {
+        byte[] encoded =
+                encode(new SequenceWithByteBufferOctetString(ByteBuffer.wrap(new byte[200])));
+        assertEquals(206, encoded.length);
+        assertEquals("3081cb0481c8", HexEncoding.encode(Arrays.copyOf(encoded, 6)));
+
+        encoded = encode(new SequenceWithByteBufferOctetString(ByteBuffer.wrap(new byte[300])));
+        assertEquals(308, encoded.length);
+        assertEquals("308201300482012c", HexEncoding.encode(Arrays.copyOf(encoded, 8)));
+    }
+
+    @Test
+    public void testImplicitlyTaggedOpaque() throws Exception {
+        assertEquals(
+                "3003800100",
+                encodeToHex(new SequenceWithImplicitlyTaggedOpaque(
+                        new Asn1OpaqueObject(new byte[] {0x06, 0x01, 0x00}))));
+    }
+
 
     @Test
     public void testOid() throws Exception {
@@ -336,6 +356,16 @@ public class Asn1DerEncoderTest {
         }
     }
 
+    @Asn1Class(type = Asn1Type.SEQUENCE)
+    public static class SequenceWithImplicitlyTaggedOpaque {
+        @Asn1Field(type = Asn1Type.ANY, tagging = Asn1Tagging.IMPLICIT, tagNumber = 0)
+        public Asn1OpaqueObject obj;
+
+        public SequenceWithImplicitlyTaggedOpaque(Asn1OpaqueObject obj) {
+            this.obj = obj;
+        }
+    }
+
     @Asn1Class(type = Asn1Type.SEQUENCE)
     public static class SequenceWithBoolean {
 
@@ -23,7 +23,11 @@ import org.junit.runners.Suite;
 @Suite.SuiteClasses({
     ArrayBackedByteBufferSinkTest.class,
     ChainedDataSourceTest.class,
+    CoalescingBatchSignerTest.class,
+    CryptoFactoryTest.class,
     DirectByteBufferSinkTest.class,
+    ExecutorRunnablesExecutorTest.class,
+    ProgressReporterTest.class,
     VerityTreeBuilderTest.class,
     X509CertificateUtilsTest.class,
 })
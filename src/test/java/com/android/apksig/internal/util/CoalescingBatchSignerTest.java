@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.apksig.util.BatchSigner;
+import com.android.apksig.util.BatchSigner.SignatureRequest;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Unit tests for {@link CoalescingBatchSigner}. */
+@RunWith(JUnit4.class)
+public final class CoalescingBatchSignerTest {
+
+    @Test
+    public void testRequestsQueuedWhileDelegateBusyAreSignedInOneBatch() throws Exception {
+        CountDownLatch firstBatchStarted = new CountDownLatch(1);
+        CountDownLatch firstBatchMayFinish = new CountDownLatch(1);
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        BatchSigner signer = new CoalescingBatchSigner(requests -> {
+            batchSizes.add(requests.size());
+            if (batchSizes.size() == 1) {
+                firstBatchStarted.countDown();
+                awaitUninterruptibly(firstBatchMayFinish);
+            }
+            // "Sign" by echoing the data
+            List<byte[]> signatures = new ArrayList<>(requests.size());
+            for (SignatureRequest request : requests) {
+                signatures.add(request.getData());
+            }
+            return signatures;
+        });
+
+        List<byte[]> results = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            byte[] data = new byte[] {(byte) i};
+            Thread thread = new Thread(() -> {
+                try {
+                    List<byte[]> signatures = signer.sign(
+                            Collections.singletonList(
+                                    new SignatureRequest(null, "SHA256withRSA", null, data)));
+                    assertEquals(1, signatures.size());
+                    assertArrayEquals(data, signatures.get(0));
+                    results.add(signatures.get(0));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+            if (i == 0) {
+                firstBatchStarted.await();
+            } else {
+                // Wait until the thread is queued up behind the first batch
+                while (thread.getState() != Thread.State.WAITING) {
+                    Thread.sleep(1);
+                }
+            }
+        }
+        firstBatchMayFinish.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(4, results.size());
+        assertEquals(2, batchSizes.size());
+        assertEquals(1, (int) batchSizes.get(0));
+        assertEquals(3, (int) batchSizes.get(1));
+    }
+
+    @Test
+    public void testFailureOfDelegatePropagatesToCaller() throws Exception {
+        BatchSigner signer = new CoalescingBatchSigner(requests -> {
+            throw new SignatureException("test");
+        });
+        try {
+            signer.sign(
+                    Collections.singletonList(
+                            new SignatureRequest(null, "SHA256withRSA", null, new byte[1])));
+            fail();
+        } catch (SignatureException expected) {
+            assertEquals("test", expected.getMessage());
+        }
+    }
+
+    @Test
+    public void testFailedBatchRetriedPerCaller() throws Exception {
+        CountDownLatch firstBatchStarted = new CountDownLatch(1);
+        CountDownLatch firstBatchMayFinish = new CountDownLatch(1);
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        BatchSigner signer = new CoalescingBatchSigner(requests -> {
+            batchSizes.add(requests.size());
+            if (batchSizes.size() == 1) {
+                firstBatchStarted.countDown();
+                awaitUninterruptibly(firstBatchMayFinish);
+            }
+            List<byte[]> signatures = new ArrayList<>(requests.size());
+            for (SignatureRequest request : requests) {
+                // Requests with empty data cannot be signed
+                if (request.getData().length == 0) {
+                    throw new SignatureException("Empty data");
+                }
+                signatures.add(request.getData());
+            }
+            return signatures;
+        });
+
+        // The first caller occupies the delegate while the others queue up in one batch, which
+        // fails because of the last caller's request
+        byte[][] data = {{0}, {1}, {2}, {}};
+        Object[] outcomes = new Object[data.length];
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < data.length; i++) {
+            int index = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    outcomes[index] = signer.sign(
+                            Collections.singletonList(
+                                    new SignatureRequest(
+                                            null, "SHA256withRSA", null, data[index])));
+                } catch (Exception e) {
+                    outcomes[index] = e;
+                }
+            });
+            threads.add(thread);
+            thread.start();
+            if (i == 0) {
+                firstBatchStarted.await();
+            } else {
+                while (thread.getState() != Thread.State.WAITING) {
+                    Thread.sleep(1);
+                }
+            }
+        }
+        firstBatchMayFinish.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // One batch for the first caller, one for the queued callers, then one per queued caller
+        assertEquals(Arrays.asList(1, 3, 1, 1, 1), batchSizes);
+        for (int i = 0; i < data.length - 1; i++) {
+            assertArrayEquals(data[i], (byte[]) ((List<?>) outcomes[i]).get(0));
+        }
+        assertTrue(outcomes[data.length - 1] instanceof SignatureException);
+    }
+
+    @Test
+    public void testCallersOfFailedBatchGetDistinctExceptions() throws Exception {
+        CountDownLatch firstBatchStarted = new CountDownLatch(1);
+        CountDownLatch firstBatchMayFinish = new CountDownLatch(1);
+        AtomicInteger batchCount = new AtomicInteger();
+        BatchSigner signer = new CoalescingBatchSigner(requests -> {
+            if (batchCount.incrementAndGet() == 1) {
+                firstBatchStarted.countDown();
+                awaitUninterruptibly(firstBatchMayFinish);
+            }
+            throw new SignatureException("Signing service unavailable");
+        });
+
+        Object[] outcomes = new Object[3];
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < outcomes.length; i++) {
+            int index = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    outcomes[index] = signer.sign(
+                            Collections.singletonList(
+                                    new SignatureRequest(
+                                            null, "SHA256withRSA", null, new byte[1])));
+                } catch (Exception e) {
+                    outcomes[index] = e;
+                }
+            });
+            threads.add(thread);
+            thread.start();
+            if (i == 0) {
+                firstBatchStarted.await();
+            } else {
+                while (thread.getState() != Thread.State.WAITING) {
+                    Thread.sleep(1);
+                }
+            }
+        }
+        firstBatchMayFinish.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (Object outcome : outcomes) {
+            assertTrue(String.valueOf(outcome), outcome instanceof SignatureException);
+        }
+        assertNotSame(outcomes[1], outcomes[2]);
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        while (true) {
+            try {
+                latch.await();
+                return;
+            } catch (InterruptedException ignored) {
+                // Keep waiting
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.security.Security;
+import java.security.Signature;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CryptoFactoryTest {
+
+    @After
+    public void tearDown() {
+        CryptoFactory.clearProviders();
+    }
+
+    @Test
+    public void testDefaultProviderOrderUsedWhenNoProviderSelected() throws Exception {
+        assertNull(CryptoFactory.getProvider("SHA-256"));
+        assertSame(
+                MessageDigest.getInstance("SHA-256").getProvider(),
+                CryptoFactory.getMessageDigest("SHA-256").getProvider());
+    }
+
+    @Test
+    public void testSelectedDigestProviderUsed() throws Exception {
+        Provider provider = getLastProvider("MessageDigest.SHA-256");
+        CryptoFactory.setProvider("sha-256", provider);
+        assertSame(provider, CryptoFactory.getProvider("SHA-256"));
+        assertSame(provider, CryptoFactory.getMessageDigest("SHA-256").getProvider());
+
+        CryptoFactory.setProvider("SHA-256", null);
+        assertNull(CryptoFactory.getProvider("SHA-256"));
+    }
+
+    @Test
+    public void testKeyAlgorithmProviderUsedForSignatureAlgorithms() throws Exception {
+        Provider provider = getLastProvider("Signature.SHA256withRSA");
+        CryptoFactory.setProvider("RSA", provider);
+        assertSame(provider, CryptoFactory.getSignature("SHA256withRSA").getProvider());
+
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048);
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+        byte[] data = {1, 2, 3};
+        Signature signer =
+                CryptoFactory.getSignatureForSigning("SHA256withRSA", keyPair.getPrivate());
+        signer.update(data);
+        byte[] signature = signer.sign();
+        Signature verifier =
+                CryptoFactory.getSignatureForVerification("SHA256withRSA", keyPair.getPublic());
+        verifier.update(data);
+        assertTrue(verifier.verify(signature));
+    }
+
+    @Test
+    public void testFallsBackWhenSelectedProviderDoesNotImplementAlgorithm() throws Exception {
+        Provider provider = new Provider("Empty", 1.0, "Provider without algorithms") {};
+        CryptoFactory.setProvider("SHA-256", provider);
+        CryptoFactory.setProvider("EC", provider);
+        assertEquals("SHA-256", CryptoFactory.getMessageDigest("SHA-256").getAlgorithm());
+        assertEquals("EC", CryptoFactory.getKeyFactory("EC").getAlgorithm());
+        assertEquals(
+                "SHA256withECDSA", CryptoFactory.getSignature("SHA256withECDSA").getAlgorithm());
+    }
+
+    @Test
+    public void testPooledMessageDigestReusedAfterRelease() throws Exception {
+        MessageDigest md = CryptoFactory.acquireMessageDigest("SHA-256");
+        // Nested acquisitions get their own instances
+        MessageDigest nested = CryptoFactory.acquireMessageDigest("SHA-256");
+        assertNotSame(md, nested);
+        CryptoFactory.releaseMessageDigest(nested);
+
+        md.update(new byte[] {1, 2, 3});
+        CryptoFactory.releaseMessageDigest(md);
+        MessageDigest reused = CryptoFactory.acquireMessageDigest("SHA-256");
+        assertTrue(reused == md || reused == nested);
+        // Released instances are reset
+        assertArrayEquals(
+                MessageDigest.getInstance("SHA-256").digest(new byte[] {4}),
+                reused.digest(new byte[] {4}));
+        CryptoFactory.releaseMessageDigest(reused);
+    }
+
+    @Test
+    public void testPooledInstancesDiscardedWhenProviderSelectionChanges() throws Exception {
+        MessageDigest md = CryptoFactory.acquireMessageDigest("SHA-256");
+        CryptoFactory.releaseMessageDigest(md);
+        Provider provider = getLastProvider("MessageDigest.SHA-256");
+        CryptoFactory.setProvider("SHA-256", provider);
+        MessageDigest afterChange = CryptoFactory.acquireMessageDigest("SHA-256");
+        assertNotSame(md, afterChange);
+        assertSame(provider, afterChange.getProvider());
+    }
+
+    @Test
+    public void testGetKeyAlgorithm() {
+        assertEquals("RSA", CryptoFactory.getKeyAlgorithm("SHA256withRSA"));
+        assertEquals("RSA", CryptoFactory.getKeyAlgorithm("SHA512withRSA/PSS"));
+        assertEquals("EC", CryptoFactory.getKeyAlgorithm("SHA256withECDSA"));
+        assertEquals("DSA", CryptoFactory.getKeyAlgorithm("SHA1withDSA"));
+        assertNull(CryptoFactory.getKeyAlgorithm("SHA-256"));
+    }
+
+    @Test
+    public void testBenchmarkSelectsInstalledProviders() throws Exception {
+        Map<String, Provider> providers = CryptoProviderBenchmark.findFastestProviders();
+        for (Map.Entry<String, Provider> entry : providers.entrySet()) {
+            assertNotNull(entry.getKey(), entry.getValue());
+            String service =
+                    (entry.getKey().startsWith("SHA")) ? "MessageDigest." : "KeyFactory.";
+            assertTrue(
+                    entry.getKey() + ": " + entry.getValue(),
+                    Security.getProviders(service + entry.getKey()).length > 0);
+        }
+    }
+
+    private static Provider getLastProvider(String service) {
+        Provider[] providers = Security.getProviders(service);
+        return providers[providers.length - 1];
+    }
+}
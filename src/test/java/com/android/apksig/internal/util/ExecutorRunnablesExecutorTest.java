@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.apksig.internal.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Unit tests for {@link ExecutorRunnablesExecutor}. */
+@RunWith(JUnit4.class)
+public final class ExecutorRunnablesExecutorTest {
+
+    @Test
+    public void testCallerCompletesWorkIfExecutorDoesNotRunTasks() {
+        List<Runnable> deferred = new ArrayList<>();
+        AtomicInteger remainingWork = new AtomicInteger(100);
+        AtomicInteger runnablesRun = new AtomicInteger();
+        new ExecutorRunnablesExecutor(deferred::add, 4).execute(() -> () -> {
+            runnablesRun.incrementAndGet();
+            while (remainingWork.getAndDecrement() > 0) {}
+        });
+        assertEquals(3, deferred.size());
+        assertEquals(1, runnablesRun.get());
+        assertEquals(-1, remainingWork.get());
+
+        // Tasks started after execute() returned must not run
+        for (Runnable task : deferred) {
+            task.run();
+        }
+        assertEquals(1, runnablesRun.get());
+    }
+
+    @Test
+    public void testAllRunnablesRunOnDirectExecutor() {
+        AtomicInteger runnablesRun = new AtomicInteger();
+        new ExecutorRunnablesExecutor(Runnable::run, 4)
+                .execute(() -> runnablesRun::incrementAndGet);
+        assertEquals(4, runnablesRun.get());
+    }
+
+    @Test
+    public void testFailureOfRunnablePropagatesToCaller() {
+        try {
+            new ExecutorRunnablesExecutor(Runnable::run, 2).execute(() -> () -> {
+                throw new IllegalStateException("test");
+            });
+            fail();
+        } catch (IllegalStateException expected) {
+            assertEquals("test", expected.getMessage());
+        }
+    }
+}
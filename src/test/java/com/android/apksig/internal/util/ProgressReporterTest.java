@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.util;
+
+import static org.junit.Assert.fail;
+
+import com.android.apksig.util.CancellationSignal;
+import com.android.apksig.util.MetricsListener;
+import com.android.apksig.util.ProgressListener;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.CancellationException;
+
+/** Unit tests for {@link ProgressReporter}. */
+@RunWith(JUnit4.class)
+public final class ProgressReporterTest {
+
+    @After
+    public void clearInterrupt() {
+        Thread.interrupted();
+    }
+
+    @Test
+    public void testInterruptIgnoredWithoutCancellationSignal() {
+        Thread.currentThread().interrupt();
+        ProgressReporter.NONE.throwIfCanceled();
+        ProgressReporter.create((phase, processed, total) -> {}, null)
+                .start(MetricsListener.Phase.COPY_ENTRIES, 1)
+                .advance(1);
+    }
+
+    @Test
+    public void testInterruptAbortsWithCancellationSignal() {
+        ProgressReporter reporter =
+                ProgressReporter.create(ProgressListener.NO_OP, new CancellationSignal());
+        reporter.throwIfCanceled();
+        Thread.currentThread().interrupt();
+        try {
+            reporter.throwIfCanceled();
+            fail();
+        } catch (CancellationException expected) {}
+    }
+
+    @Test
+    public void testCanceledSignalAborts() {
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        ProgressReporter.PhaseProgress progress =
+                ProgressReporter.create(null, cancellationSignal)
+                        .start(MetricsListener.Phase.COPY_ENTRIES, 2);
+        progress.advance(1);
+        cancellationSignal.cancel();
+        try {
+            progress.advance(1);
+            fail();
+        } catch (CancellationException expected) {}
+    }
+}
@@ -21,8 +21,10 @@ import static junit.framework.TestCase.assertEquals;
 import static junit.framework.TestCase.assertNotNull;
 import static junit.framework.TestCase.fail;
 
+import com.android.apksig.util.DataSinks;
 import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
+import com.android.apksig.util.ReadableDataSink;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -30,7 +32,9 @@ import org.junit.runners.JUnit4;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 
 /** Unit tests for {@link VerityTreeBuilder}. */
@@ -58,6 +62,83 @@ public final class VerityTreeBuilderTest {
                 "f63b718c01f569386d7de2e813d7b1e452322c638fb240af3ef01c2e6d317ee8");
     }
 
+    @Test public void generateVerityTreeOutputsTreeTopLevelFirst() throws Exception {
+        byte[] input =
+                Resources.toByteArray(VerityTreeBuilderTest.class, "random-data-525000-bytes");
+        byte[] salt = new byte[] { 0x23 };
+        ReadableDataSink tree = DataSinks.newInMemoryDataSink();
+        byte[] rootHash = new VerityTreeBuilder(salt).generateVerityTree(
+                DataSources.asDataSource(ByteBuffer.wrap(input)), tree);
+        assertEquals("f63b718c01f569386d7de2e813d7b1e452322c638fb240af3ef01c2e6d317ee8",
+                HexEncoding.encode(rootHash));
+
+        // 129 chunks of input: two pages of digests in the bottom level, one page above it
+        assertEquals(3 * 4096, tree.size());
+        assertEquals(HexEncoding.encode(rootHash),
+                HexEncoding.encode(saltedSha256(salt, tree.getByteBuffer(0, 4096))));
+        ByteBuffer topLevel = tree.getByteBuffer(0, 4096);
+        for (int i = 0; i < 2; i++) {
+            byte[] expectedDigest = new byte[32];
+            topLevel.get(expectedDigest);
+            assertEquals(HexEncoding.encode(expectedDigest),
+                    HexEncoding.encode(
+                            saltedSha256(salt, tree.getByteBuffer(4096 * (i + 1), 4096))));
+        }
+    }
+
+    @Test public void incrementalTreeRootHashMatch() throws Exception {
+        byte[] input =
+                Resources.toByteArray(VerityTreeBuilderTest.class, "random-data-525000-bytes");
+        byte[] salt = new byte[] { 0x23 };
+        VerityTreeBuilder builder = new VerityTreeBuilder(salt);
+        VerityTreeBuilder.IncrementalTree tree = builder.newIncrementalTree();
+        // Feed the input in pieces which do not line up with 4 KB chunks
+        for (int offset = 0; offset < input.length; offset += 1000) {
+            tree.consume(input, offset, Math.min(1000, input.length - offset));
+        }
+        assertEquals(input.length, tree.size());
+        VerityTreeBuilder.IncrementalTree copy = tree.copy();
+        assertEquals("f63b718c01f569386d7de2e813d7b1e452322c638fb240af3ef01c2e6d317ee8",
+                HexEncoding.encode(tree.getRootHash()));
+        assertEquals("f63b718c01f569386d7de2e813d7b1e452322c638fb240af3ef01c2e6d317ee8",
+                HexEncoding.encode(copy.getRootHash()));
+    }
+
+    @Test public void incrementalTreeOfDataBeforeSigningBlockRootHashMatch() throws Exception {
+        byte[] eocd = new byte[] {
+            0x50, 0x4b, 0x05, 0x06, 0x00, 0x00, 0x00, 0x00, 0x06, 0x00, 0x06, 0x00, 0x79, 0x01,
+            0x00, 0x00, 0x30, 0x16, 0x00, 0x00, 0x00, 0x00
+        };
+        byte[] beforeSigningBlock =
+                Arrays.copyOf(
+                        Resources.toByteArray(
+                                VerityTreeBuilderTest.class, "random-data-524288-bytes"),
+                        3 * 4096);
+        VerityTreeBuilder builder = new VerityTreeBuilder(new byte[8]);
+        byte[] expectedRootHash = builder.generateVerityTreeRootHash(
+                DataSources.asDataSource(ByteBuffer.wrap(beforeSigningBlock)),
+                makeStringDataSource("this is central directory (fake data)"),
+                DataSources.asDataSource(ByteBuffer.wrap(eocd)));
+
+        VerityTreeBuilder.IncrementalTree tree = builder.newIncrementalTree();
+        tree.consume(ByteBuffer.wrap(beforeSigningBlock));
+        for (int i = 0; i < 2; i++) {
+            // The tree of the data before the APK Signing Block can be reused
+            byte[] rootHash = builder.generateVerityTreeRootHash(
+                    tree,
+                    makeStringDataSource("this is central directory (fake data)"),
+                    DataSources.asDataSource(ByteBuffer.wrap(eocd)));
+            assertEquals(HexEncoding.encode(expectedRootHash), HexEncoding.encode(rootHash));
+        }
+    }
+
+    private static byte[] saltedSha256(byte[] salt, ByteBuffer data) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(salt);
+        md.update(data);
+        return md.digest();
+    }
+
     private static void expectRootHash(String inputResource, byte[] salt, String expectedRootHash)
             throws IOException {
         assertEquals(expectedRootHash, generateRootHash(inputResource, salt));
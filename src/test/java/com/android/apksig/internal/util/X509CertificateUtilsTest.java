@@ -17,6 +17,9 @@
 package com.android.apksig.internal.util;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import org.junit.Test;
@@ -149,6 +152,38 @@ public class X509CertificateUtilsTest {
                         new ByteArrayInputStream(new byte[0])).size());
     }
 
+    @Test
+    public void testToFingerprintedCertificate() throws Exception {
+        byte[] encodedForm =
+                Resources.toByteArray(X509CertificateUtilsTest.class, RSA_2048_VALID_DER_ENCODING);
+        X509Certificate cert = X509CertificateUtils.generateCertificate(encodedForm);
+        X509Certificate fingerprinted = X509CertificateUtils.toFingerprintedCertificate(cert);
+        assertTrue(fingerprinted instanceof GuaranteedEncodedFormX509Certificate);
+        assertSame(fingerprinted, X509CertificateUtils.toFingerprintedCertificate(fingerprinted));
+        assertEquals(
+                RSA_2048_VALID_DIGEST_HEX_ENCODING,
+                HexEncoding.encode(
+                        ((GuaranteedEncodedFormX509Certificate) fingerprinted)
+                                .getSha256Fingerprint()));
+
+        // Equal to, and with the same hash code as, the certificate it wraps and other wrappers
+        X509Certificate otherFingerprinted =
+                new GuaranteedEncodedFormX509Certificate(cert, encodedForm);
+        assertEquals(cert, fingerprinted);
+        assertEquals(fingerprinted, cert);
+        assertEquals(otherFingerprinted, fingerprinted);
+        assertEquals(cert.hashCode(), fingerprinted.hashCode());
+        assertEquals(otherFingerprinted.hashCode(), fingerprinted.hashCode());
+
+        X509Certificate differentCert =
+                X509CertificateUtils.toFingerprintedCertificate(
+                        X509CertificateUtils.generateCertificate(
+                                Resources.toByteArray(
+                                        X509CertificateUtilsTest.class,
+                                        RSA_2048_REDUNDANT_LEN_BYTES_DER_ENCODING)));
+        assertNotEquals(fingerprinted, differentCert);
+    }
+
     private static Set<String> createSetOfValues(String... values) {
         Set<String> result = new HashSet<>();
         for (String value : values) {
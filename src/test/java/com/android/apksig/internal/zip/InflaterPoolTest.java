@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.zip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** Unit tests for {@link InflaterPool}. */
+@RunWith(JUnit4.class)
+public final class InflaterPoolTest {
+
+    @Test
+    public void testReleasedInflaterReused() throws Exception {
+        InflaterPool.PooledInflater first = InflaterPool.acquire();
+        Inflater inflater = first.getInflater();
+        byte[] inputBuffer = first.getInputBuffer();
+        byte[] outputBuffer = first.getOutputBuffer();
+        first.release();
+
+        InflaterPool.PooledInflater second = InflaterPool.acquire();
+        try {
+            assertSame(first, second);
+            assertSame(inflater, second.getInflater());
+            assertSame(inputBuffer, second.getInputBuffer());
+            assertSame(outputBuffer, second.getOutputBuffer());
+        } finally {
+            second.release();
+        }
+    }
+
+    @Test
+    public void testNestedAcquisitionsGetDistinctInflaters() throws Exception {
+        InflaterPool.PooledInflater outer = InflaterPool.acquire();
+        InflaterPool.PooledInflater inner = InflaterPool.acquire();
+        try {
+            assertNotSame(outer, inner);
+            assertNotSame(outer.getInflater(), inner.getInflater());
+        } finally {
+            inner.release();
+            outer.release();
+        }
+
+        // Only the first released instance is kept in the pool
+        InflaterPool.PooledInflater reacquired = InflaterPool.acquire();
+        try {
+            assertSame(inner, reacquired);
+        } finally {
+            reacquired.release();
+        }
+    }
+
+    @Test
+    public void testReleasedInflaterIsResetAndUnusable() throws Exception {
+        byte[] data = generateCompressibleData(100000);
+        byte[] compressed = deflate(data);
+
+        InflaterPool.PooledInflater pooled = InflaterPool.acquire();
+        // Leave the inflater in the middle of a stream
+        pooled.getInflater().setInput(compressed, 0, compressed.length / 2);
+        pooled.getInflater().inflate(new byte[1000]);
+        pooled.release();
+        pooled.release(); // no-op
+        try {
+            pooled.getInflater();
+            fail();
+        } catch (IllegalStateException expected) {}
+
+        pooled = InflaterPool.acquire();
+        try {
+            Inflater inflater = pooled.getInflater();
+            inflater.setInput(compressed);
+            assertArrayEquals(data, inflate(inflater, pooled.getOutputBuffer(), data.length));
+        } finally {
+            pooled.release();
+        }
+    }
+
+    @Test
+    public void testDirectInputSupportedIffInflaterAcceptsByteBuffers() throws Exception {
+        boolean inflaterAcceptsByteBuffers;
+        try {
+            Inflater.class.getMethod("setInput", ByteBuffer.class);
+            inflaterAcceptsByteBuffers = true;
+        } catch (NoSuchMethodException e) {
+            inflaterAcceptsByteBuffers = false;
+        }
+        assertEquals(inflaterAcceptsByteBuffers, InflaterPool.isDirectInputSupported());
+    }
+
+    @Test
+    public void testSetInputFromDirectBuffer() throws Exception {
+        assumeTrue(InflaterPool.isDirectInputSupported());
+        byte[] data = generateCompressibleData(100000);
+        byte[] compressed = deflate(data);
+        ByteBuffer input = ByteBuffer.allocateDirect(compressed.length);
+        input.put(compressed);
+        input.flip();
+
+        InflaterPool.PooledInflater pooled = InflaterPool.acquire();
+        try {
+            pooled.setInput(input);
+            assertArrayEquals(
+                    data, inflate(pooled.getInflater(), pooled.getOutputBuffer(), data.length));
+            assertEquals(0, input.remaining());
+        } finally {
+            pooled.release();
+        }
+    }
+
+    @Test
+    public void testSetInputFromDirectBufferUnsupported() throws Exception {
+        // Only exercised on platforms whose Inflater lacks setInput(ByteBuffer), e.g., Java 8
+        assumeTrue(!InflaterPool.isDirectInputSupported());
+        InflaterPool.PooledInflater pooled = InflaterPool.acquire();
+        try {
+            pooled.setInput(ByteBuffer.allocateDirect(1));
+            fail();
+        } catch (UnsupportedOperationException expected) {
+        } finally {
+            pooled.release();
+        }
+    }
+
+    private static byte[] inflate(Inflater inflater, byte[] outputBuffer, int expectedSize)
+            throws Exception {
+        ByteBuffer result = ByteBuffer.allocate(expectedSize);
+        while (!inflater.finished()) {
+            int outputSize = inflater.inflate(outputBuffer);
+            assertTrue(outputSize > 0 || inflater.finished());
+            result.put(outputBuffer, 0, outputSize);
+        }
+        return result.array();
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteBuffer result = ByteBuffer.allocate(data.length + 1024);
+            byte[] buf = new byte[4096];
+            while (!deflater.finished()) {
+                int outputSize = deflater.deflate(buf);
+                result.put(buf, 0, outputSize);
+            }
+            byte[] compressed = new byte[result.position()];
+            result.flip();
+            result.get(compressed);
+            return compressed;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] generateCompressibleData(int size) {
+        byte[] result = new byte[size];
+        Random random = new Random(size);
+        for (int i = 0; i < size; i++) {
+            result[i] = (byte) ('a' + random.nextInt(4));
+        }
+        return result;
+    }
+}
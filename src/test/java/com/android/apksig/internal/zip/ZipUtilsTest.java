@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.internal.zip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.android.apksig.internal.util.ExecutorRunnablesExecutor;
+import com.android.apksig.util.RunnablesExecutor;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+
+/** Unit tests for {@link ZipUtils}. */
+@RunWith(JUnit4.class)
+public final class ZipUtilsTest {
+
+    @Test
+    public void testDeflateSingleBlock() throws Exception {
+        byte[] input = generateCompressibleData(ZipUtils.DEFLATE_BLOCK_SIZE_BYTES);
+        ZipUtils.DeflateResult result = ZipUtils.deflate(ByteBuffer.wrap(input));
+        assertDeflateResult(input, result);
+    }
+
+    @Test
+    public void testDeflateEmptyInput() throws Exception {
+        ZipUtils.DeflateResult result = ZipUtils.deflate(ByteBuffer.allocate(0));
+        assertDeflateResult(new byte[0], result);
+    }
+
+    @Test
+    public void testDeflateMultipleBlocks() throws Exception {
+        byte[] input = generateCompressibleData(3 * ZipUtils.DEFLATE_BLOCK_SIZE_BYTES + 12345);
+        ExecutorService threadPool = Executors.newFixedThreadPool(4);
+        try {
+            for (int level = 0; level <= 9; level += 3) {
+                ZipUtils.DeflateResult singleThreaded =
+                        ZipUtils.deflate(
+                                ByteBuffer.wrap(input), level, RunnablesExecutor.SINGLE_THREADED);
+                assertDeflateResult(input, singleThreaded);
+                ZipUtils.DeflateResult multiThreaded =
+                        ZipUtils.deflate(
+                                ByteBuffer.wrap(input),
+                                level,
+                                new ExecutorRunnablesExecutor(threadPool, 4));
+                assertArrayEquals(singleThreaded.output, multiThreaded.output);
+                assertEquals(singleThreaded.inputCrc32, multiThreaded.inputCrc32);
+            }
+        } finally {
+            threadPool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCombineCrc32() {
+        byte[] data = generateCompressibleData(100000);
+        for (int split : new int[] {0, 1, 4096, 99999, 100000}) {
+            CRC32 crc1 = new CRC32();
+            crc1.update(data, 0, split);
+            CRC32 crc2 = new CRC32();
+            crc2.update(data, split, data.length - split);
+            CRC32 expected = new CRC32();
+            expected.update(data);
+            assertEquals(
+                    expected.getValue(),
+                    ZipUtils.combineCrc32(crc1.getValue(), crc2.getValue(), data.length - split));
+        }
+    }
+
+    private static void assertDeflateResult(byte[] input, ZipUtils.DeflateResult result)
+            throws Exception {
+        assertEquals(input.length, result.inputSizeBytes);
+        CRC32 crc32 = new CRC32();
+        crc32.update(input);
+        assertEquals(crc32.getValue(), result.inputCrc32);
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(result.output);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[65536];
+            while (!inflater.finished()) {
+                int chunkSize = inflater.inflate(buf);
+                if ((!inflater.finished()) && (inflater.needsInput())) {
+                    throw new AssertionError("Truncated deflate stream");
+                }
+                out.write(buf, 0, chunkSize);
+            }
+            assertEquals(0, inflater.getRemaining());
+            assertArrayEquals(input, out.toByteArray());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] generateCompressibleData(int size) {
+        // Repeated words, so that matches span block boundaries
+        Random random = new Random(size);
+        String[] words = {"alpha ", "beta ", "gamma ", "delta ", "META-INF/", "SHA-256-Digest: "};
+        byte[] result = new byte[size];
+        int offset = 0;
+        while (offset < size) {
+            byte[] word = words[random.nextInt(words.length)].getBytes();
+            int length = Math.min(word.length, size - offset);
+            System.arraycopy(word, 0, result, offset, length);
+            offset += length;
+        }
+        return result;
+    }
+}
@@ -23,10 +23,14 @@ import org.junit.runners.Suite;
 @Suite.SuiteClasses({
     DataSinkFromOutputStreamTest.class,
     DataSinkFromRAFTest.class,
+    DataSinkWriteBehindTest.class,
     DataSourceFromByteBufferTest.class,
     DataSourceFromRAFChunkTest.class,
     DataSourceFromRAFTest.class,
+    DataSourceReadAheadTest.class,
     InMemoryDataSinkDataSourceTest.class,
     InMemoryDataSinkTest.class,
+    SegmentedDataSinkDataSourceTest.class,
+    SegmentedDataSinkTest.class,
 })
 public class AllTests {}
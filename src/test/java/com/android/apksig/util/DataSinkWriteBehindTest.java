@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.apksig.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for the {@link DataSink} returned by
+ * {@link DataSinks#newWriteBehindDataSink(RandomAccessFile, int, int)}.
+ */
+@RunWith(JUnit4.class)
+public class DataSinkWriteBehindTest extends DataSinkTestBase<ReadableDataSink> {
+
+    private RandomAccessFile mFile;
+
+    @Override
+    protected CloseableWithDataSink<ReadableDataSink> createDataSink() throws IOException {
+        File tmp = File.createTempFile(DataSinkWriteBehindTest.class.getSimpleName(), ".bin");
+        RandomAccessFile f = null;
+        try {
+            f = new RandomAccessFile(tmp, "rw");
+        } finally {
+            if (f == null) {
+                tmp.delete();
+            }
+        }
+        mFile = f;
+        // Tiny buffers to exercise coalescing across buffer boundaries and waiting for buffers
+        return CloseableWithDataSink.of(
+                DataSinks.newWriteBehindDataSink(f, 3, 2),
+                new DataSourceFromRAFTest.TmpFileCloseable(tmp, f));
+    }
+
+    @Override
+    protected ByteBuffer getContents(ReadableDataSink dataSink) throws IOException {
+        ((Flushable) dataSink).flush();
+        byte[] contents = new byte[(int) mFile.length()];
+        mFile.seek(0);
+        mFile.readFully(contents);
+        return ByteBuffer.wrap(contents);
+    }
+
+    @Test
+    public void testFilePositionUnchanged() throws Exception {
+        try (CloseableWithDataSink<ReadableDataSink> c = createDataSink()) {
+            ReadableDataSink sink = c.getDataSink();
+            mFile.seek(7);
+            sink.consume(new byte[1000], 0, 1000);
+            ((Flushable) sink).flush();
+            assertEquals(1000, mFile.length());
+            assertEquals(7, mFile.getFilePointer());
+        }
+    }
+
+    @Test
+    public void testReadingWaitsForConsumedData() throws Exception {
+        try (CloseableWithDataSink<ReadableDataSink> c = createDataSink()) {
+            ReadableDataSink sink = c.getDataSink();
+            byte[] expected = new byte[1000];
+            for (int i = 0; i < expected.length; i++) {
+                expected[i] = (byte) i;
+                sink.consume(expected, i, 1);
+                if (i % 97 == 0) {
+                    assertEquals(i + 1, sink.size());
+                    assertEquals((byte) i, sink.getByteBuffer(i, 1).get());
+                }
+            }
+            byte[] actual = new byte[expected.length];
+            sink.getByteBuffer(0, expected.length).get(actual);
+            assertArrayEquals(expected, actual);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.apksig.util;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for the {@link DataSource} returned by
+ * {@link DataSources#readAhead(DataSource, int, int)}.
+ */
+@RunWith(JUnit4.class)
+public class DataSourceReadAheadTest extends DataSourceTestBase {
+
+    @Test
+    public void testSequentialAndRandomReadsReturnSourceContents() throws Exception {
+        byte[] contents = new byte[100 * 1024 + 17];
+        Random random = new Random(0);
+        random.nextBytes(contents);
+        DataSource ds =
+                DataSources.readAhead(DataSources.asDataSource(ByteBuffer.wrap(contents)), 4096, 3);
+
+        // Sequential scan in pieces of varying size, some spanning multiple windows
+        ReadableDataSink sink = DataSinks.newInMemoryDataSink();
+        long offset = 0;
+        while (offset < contents.length) {
+            long size = Math.min(1 + random.nextInt(10000), contents.length - offset);
+            ds.feed(offset, size, sink);
+            offset += size;
+        }
+        assertArrayEquals(contents, toArray(sink));
+
+        // Random access
+        for (int i = 0; i < 100; i++) {
+            int start = random.nextInt(contents.length);
+            int size = random.nextInt(contents.length - start);
+            byte[] expected = new byte[size];
+            System.arraycopy(contents, start, expected, 0, size);
+            ByteBuffer actual = ds.getByteBuffer(start, size);
+            assertArrayEquals(expected, toArray(DataSources.asDataSource(actual)));
+        }
+    }
+
+    private static byte[] toArray(DataSource ds) throws IOException {
+        ByteBuffer buf = ds.getByteBuffer(0, (int) ds.size());
+        byte[] result = new byte[buf.remaining()];
+        buf.get(result);
+        return result;
+    }
+
+    @Override
+    protected CloseableWithDataSource createDataSource(byte[] contents) throws IOException {
+        // Tiny windows to exercise reads spanning multiple windows
+        return CloseableWithDataSource.of(
+                DataSources.readAhead(DataSources.asDataSource(ByteBuffer.wrap(contents)), 3, 2));
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.apksig.util;
+
+import java.io.IOException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for the {@link DataSource} returned by {@link DataSinks#newSegmentedDataSink(int, long)}.
+ */
+@RunWith(JUnit4.class)
+public class SegmentedDataSinkDataSourceTest extends DataSourceTestBase {
+    @Override
+    protected CloseableWithDataSource createDataSource(byte[] contents) throws IOException {
+        // Tiny blocks and memory budget to exercise spilling to a temporary file
+        CloseableReadableDataSink sink = DataSinks.newSegmentedDataSink(3, 7);
+        sink.consume(contents, 0, contents.length);
+        return CloseableWithDataSource.of(sink, sink);
+    }
+}
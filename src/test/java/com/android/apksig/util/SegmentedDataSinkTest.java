@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.apksig.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for the {@link DataSink} returned by {@link DataSinks#newSegmentedDataSink(int, long)}.
+ */
+@RunWith(JUnit4.class)
+public class SegmentedDataSinkTest extends DataSinkTestBase<ReadableDataSink> {
+
+    @Test
+    public void testSpilledContentsReadable() throws Exception {
+        byte[] contents = new byte[1024 * 1024 + 3];
+        new Random(0).nextBytes(contents);
+        CloseableReadableDataSink sink = DataSinks.newSegmentedDataSink(4096, 16 * 1024);
+        try {
+            int offset = 0;
+            while (offset < contents.length) {
+                int chunkSize = Math.min(contents.length - offset, 1000);
+                sink.consume(contents, offset, chunkSize);
+                offset += chunkSize;
+            }
+            assertEquals(contents.length, sink.size());
+            assertEquals(ByteBuffer.wrap(contents), getContents(sink));
+
+            // Reads spanning in-memory blocks, the temporary file, and the block being filled
+            MessageDigest expected = MessageDigest.getInstance("SHA-256");
+            expected.update(contents, 5, contents.length - 10);
+            MessageDigest actual = MessageDigest.getInstance("SHA-256");
+            sink.slice(5, contents.length - 10).feed(
+                    0, contents.length - 10, DataSinks.asDataSink(actual));
+            assertEquals(
+                    ByteBuffer.wrap(expected.digest()), ByteBuffer.wrap(actual.digest()));
+        } finally {
+            sink.close();
+        }
+    }
+
+    @Test
+    public void testCloseDeletesTemporaryFile() throws Exception {
+        Set<Path> tempFilesBefore = listTempFiles();
+        CloseableReadableDataSink sink = DataSinks.newSegmentedDataSink(3, 7);
+        Set<Path> tempFiles;
+        try {
+            sink.consume(new byte[100], 0, 100);
+            tempFiles = listTempFiles();
+            tempFiles.removeAll(tempFilesBefore);
+            assertEquals(1, tempFiles.size());
+        } finally {
+            sink.close();
+        }
+        assertFalse(Files.exists(tempFiles.iterator().next()));
+    }
+
+    private static Set<Path> listTempFiles() throws IOException {
+        Set<Path> result = new HashSet<>();
+        try (DirectoryStream<Path> files =
+                Files.newDirectoryStream(
+                        Paths.get(System.getProperty("java.io.tmpdir")), "apksig*.tmp")) {
+            for (Path file : files) {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    protected CloseableWithDataSink<ReadableDataSink> createDataSink() {
+        // Tiny blocks and memory budget to exercise spilling to a temporary file
+        CloseableReadableDataSink sink = DataSinks.newSegmentedDataSink(3, 7);
+        return CloseableWithDataSink.of(sink, sink);
+    }
+
+    @Override
+    protected ByteBuffer getContents(ReadableDataSink dataSink) throws IOException {
+        if (dataSink.size() > Integer.MAX_VALUE) {
+            throw new IOException("Too much data: " + dataSink.size());
+        }
+        return dataSink.getByteBuffer(0, (int) dataSink.size());
+    }
+}